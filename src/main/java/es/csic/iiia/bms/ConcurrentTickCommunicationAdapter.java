@@ -0,0 +1,103 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms;
+
+import es.csic.iiia.bms.metrics.SolverTrace;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Communication adapter that delivers messages by rounds, and that can be safely used by factors
+ * running in different threads.
+ * <p/>
+ * This adapter behaves exactly like the {@link TickCommunicationAdapter}, but each sending thread
+ * buffers its messages in its own (private) list. Hence, sending a message never requires any
+ * locking. However, the {@link #tick()} method must <strong>not</strong> be called while any
+ * factor may still be sending messages (typically, you tick the adapter once all factors have
+ * been run).
+ *
+ * @see es.csic.iiia.bms.parallel.ParallelEngine
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ConcurrentTickCommunicationAdapter implements CommunicationAdapter<Factor<Factor<?>>> {
+    private static final Logger LOG = Logger.getLogger(ConcurrentTickCommunicationAdapter.class.getName());
+
+    private final ConcurrentLinkedQueue<ArrayList<Message>> buffers =
+            new ConcurrentLinkedQueue<ArrayList<Message>>();
+
+    private final ThreadLocal<ArrayList<Message>> buffer = new ThreadLocal<ArrayList<Message>>() {
+        @Override
+        protected ArrayList<Message> initialValue() {
+            ArrayList<Message> threadBuffer = new ArrayList<Message>();
+            buffers.add(threadBuffer);
+            return threadBuffer;
+        }
+    };
+
+    @Override
+    public void send(double message, Factor<Factor<?>> sender, Factor<Factor<?>> recipient) {
+        LOG.log(Level.FINEST, "Message from {0} to {1} : {2}", new Object[]{sender, recipient, message});
+        buffer.get().add(new Message(message, sender, recipient));
+    }
+
+    /**
+     * Messages are buffered until the channel is ticked, when it delivers all
+     * of the messages sent (by any thread) since the last tick.
+     */
+    public void tick() {
+        final boolean trace = SolverTrace.isTickEnabled();
+        final long start = trace ? System.nanoTime() : 0;
+        long nMessages = 0;
+
+        for (ArrayList<Message> threadBuffer : buffers) {
+            nMessages += threadBuffer.size();
+            for (Message m : threadBuffer) {
+                m.deliver();
+            }
+            threadBuffer.clear();
+        }
+
+        if (trace) {
+            SolverTrace.tickDelivered("ConcurrentTickCommunicationAdapter", nMessages,
+                    System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Communication adapter that can be safely used by factors running in different threads, without
+ * any locking nor any global synchronization point.
+ * <p/>
+ * Each registered factor owns an inbox with a single slot per neighbor. Sending a message just
+ * (atomically) overwrites the slot corresponding to the sender and flags it as dirty, so any
+ * number of threads can send messages concurrently. Then, the thread that is about to run a
+ * factor (its single consumer) must call {@link #deliver(Factor)} to hand the pending messages
+ * over to the factor. Since only the latest message from each neighbor is kept, inboxes never
+ * grow beyond the factor's degree.
+ * <p/>
+ * Contrary to the {@link TickCommunicationAdapter}, messages are not delivered by rounds. A
+ * factor sees whichever messages have been sent up to the moment its inbox is delivered, which
+ * makes this adapter suitable for asynchronous executions.
+ *
+ * @see es.csic.iiia.bms.parallel.ParallelEngine#setInboxes(InboxCommunicationAdapter)
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class InboxCommunicationAdapter implements CommunicationAdapter<Factor<Factor<?>>> {
+    private static final Logger LOG = Logger.getLogger(InboxCommunicationAdapter.class.getName());
+
+    private final ConcurrentHashMap<Object, Inbox> inboxes = new ConcurrentHashMap<Object, Inbox>();
+
+    /**
+     * Creates an inbox for the given factor, with a slot for each of its current neighbors.
+     * <p/>
+     * Factors must be registered (after linking them to all their neighbors) before any message
+     * is sent to them.
+     *
+     * @param factor factor to register.
+     */
+    public void register(Factor<?> factor) {
+        inboxes.put(factor.getIdentity(), new Inbox(factor.getNeighbors()));
+    }
+
+    /**
+     * Creates an inbox for each of the given factors.
+     *
+     * @param factors factors to register.
+     * @see #register(Factor)
+     */
+    public void register(List<? extends Factor<?>> factors) {
+        for (Factor<?> factor : factors) {
+            register(factor);
+        }
+    }
+
+    @Override
+    public void send(double message, Factor<Factor<?>> sender, Factor<Factor<?>> recipient) {
+        LOG.log(Level.FINEST, "Message from {0} to {1} : {2}", new Object[]{sender, recipient, message});
+        getInbox(recipient).post(sender, message);
+    }
+
+    /**
+     * Delivers the messages pending in the inbox of the given factor.
+     * <p/>
+     * This method must never be called concurrently for the same factor, although it can be
+     * called while other threads are sending messages to that factor.
+     *
+     * @param factor factor whose messages to deliver.
+     * @return number of messages delivered.
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public int deliver(Factor<?> factor) {
+        final Inbox inbox = getInbox(factor.getIdentity());
+        final Object[] neighbors = inbox.neighbors;
+
+        int delivered = 0;
+        for (int i=0; i<neighbors.length; i++) {
+            // The flag must be cleared *before* reading the slot. Otherwise, a message posted in
+            // between would be left in the slot without its dirty flag.
+            if (inbox.dirty.get(i) != 0 && inbox.dirty.getAndSet(i, 0) != 0) {
+                final double message = Double.longBitsToDouble(inbox.slots.get(i));
+                ((Factor)factor).receive(message, neighbors[i]);
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    private Inbox getInbox(Object identity) {
+        final Inbox inbox = inboxes.get(identity);
+        if (inbox == null) {
+            throw new IllegalArgumentException("Factor " + identity + " has not been registered");
+        }
+        return inbox;
+    }
+
+    /**
+     * Single-consumer inbox, with a slot and a dirty flag for each neighbor of its owner.
+     */
+    private static class Inbox {
+        private final Object[] neighbors;
+        private final HashMap<Object, Integer> neighborIndex;
+        private final AtomicLongArray slots;
+        private final AtomicIntegerArray dirty;
+
+        public Inbox(List<?> neighbors) {
+            this.neighbors = neighbors.toArray();
+            neighborIndex = new HashMap<Object, Integer>(this.neighbors.length * 2);
+            for (int i=0; i<this.neighbors.length; i++) {
+                neighborIndex.put(this.neighbors[i], i);
+            }
+            slots = new AtomicLongArray(this.neighbors.length);
+            dirty = new AtomicIntegerArray(this.neighbors.length);
+        }
+
+        public void post(Object sender, double message) {
+            final Integer index = neighborIndex.get(sender);
+            if (index == null) {
+                throw new IllegalArgumentException("Unknown sender " + sender);
+            }
+            slots.set(index, Double.doubleToRawLongBits(message));
+            dirty.set(index, 1);
+        }
+    }
+
+}
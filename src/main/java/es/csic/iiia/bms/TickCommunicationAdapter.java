@@ -36,6 +36,8 @@
  */
 package es.csic.iiia.bms;
 
+import es.csic.iiia.bms.metrics.SolverTrace;
+
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -66,23 +68,17 @@ public class TickCommunicationAdapter implements CommunicationAdapter<Factor<Fac
      * of the messages sent since the last tick.
      */
     public void tick() {
+        final boolean trace = SolverTrace.isTickEnabled();
+        final long start = trace ? System.nanoTime() : 0;
+        final int nMessages = buffer.size();
+
         for (Message m : buffer) {
-            m.recipient.receive(m.value, m.sender);
+            m.deliver();
         }
         buffer.clear();
-    }
 
-    /**
-     * This is just a holder of typed values. Nothing special about it.
-     */
-    private class Message {
-        public final double value;
-        public final Factor<Factor<?>> sender;
-        public final Factor<Factor<?>> recipient;
-        public Message(double value, Factor<Factor<?>> sender, Factor<Factor<?>> recipient) {
-            this.value = value;
-            this.sender = sender;
-            this.recipient = recipient;
+        if (trace) {
+            SolverTrace.tickDelivered("TickCommunicationAdapter", nMessages, System.nanoTime() - start);
         }
     }
 
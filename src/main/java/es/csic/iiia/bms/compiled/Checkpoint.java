@@ -0,0 +1,402 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of all the messages of a graph, used to warm-start later solves.
+ * <p/>
+ * Messages are identified by the stable ids of their recipient and sender factors,
+ * supplied by the caller as an array with the id of each factor (by index). This way,
+ * a checkpoint taken on a graph can be restored onto a slightly different one: edges
+ * whose factors are found in both graphs get their checkpointed message, and any new
+ * edge starts from zero as usual. When no ids are given, factors are identified by
+ * their index.
+ * <p/>
+ * Checkpoints can be taken from and restored to either a {@link CompiledEngine} or a
+ * list of factor objects, and can be stored in a compact binary file.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class Checkpoint {
+
+    /** Magic number at the start of every checkpoint file ("BMSC") */
+    public static final int MAGIC = 0x424D5343;
+
+    /** Version of the format written by this class */
+    public static final int VERSION = 1;
+
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final long[] recipients;
+    private final long[] senders;
+    private final double[] messages;
+
+    private Checkpoint(long[] recipients, long[] senders, double[] messages) {
+        this.recipients = recipients;
+        this.senders = senders;
+        this.messages = messages;
+        sort();
+        for (int i=1; i<messages.length; i++) {
+            if (compare(i - 1, i) == 0) {
+                throw new IllegalArgumentException("There is more than one edge from "
+                        + senders[i] + " to " + recipients[i]);
+            }
+        }
+    }
+
+    /**
+     * Take a checkpoint of the messages of a compiled engine.
+     *
+     * @param engine engine to checkpoint.
+     * @param ids stable id of each factor, or <code>null</code> to use their indices.
+     * @return checkpoint of the engine's messages.
+     */
+    public static Checkpoint capture(CompiledEngine engine, long[] ids) {
+        return capture(engine.getGraph(), engine.getMessages(), ids);
+    }
+
+    /**
+     * Take a checkpoint of the given messages of a compiled graph, indexed by edge.
+     */
+    static Checkpoint capture(CompiledGraph graph, double[] edgeMessages, long[] ids) {
+        checkIds(ids, graph.getNumberOfFactors());
+
+        final int nEdges = graph.getNumberOfEdges();
+        final long[] recipients = new long[nEdges];
+        final long[] senders = new long[nEdges];
+        final double[] messages = new double[nEdges];
+        for (int factor=0, n=graph.getNumberOfFactors(); factor<n; factor++) {
+            for (int edge=graph.getEdgeOffset(factor); edge<graph.getEdgeOffset(factor+1); edge++) {
+                recipients[edge] = getId(ids, factor);
+                senders[edge] = getId(ids, graph.getNeighbor(edge));
+                messages[edge] = edgeMessages[edge];
+            }
+        }
+        return new Checkpoint(recipients, senders, messages);
+    }
+
+    /**
+     * Take a checkpoint of the messages received by the given factors.
+     * <p/>
+     * The neighbors of every factor must be in the list too.
+     *
+     * @param factors factors to checkpoint.
+     * @param ids stable id of each factor, or <code>null</code> to use their positions in
+     *            the list.
+     * @return checkpoint of the factors' messages.
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public static Checkpoint capture(List<? extends Factor<?>> factors, long[] ids) {
+        checkIds(ids, factors.size());
+        final Map<Object, Integer> indices = getIndices(factors);
+
+        int nEdges = 0;
+        for (Factor<?> factor : factors) {
+            nEdges += factor.getNeighbors().size();
+        }
+        final long[] recipients = new long[nEdges];
+        final long[] senders = new long[nEdges];
+        final double[] messages = new double[nEdges];
+        int edge = 0;
+        for (int i=0; i<factors.size(); i++) {
+            final Factor factor = factors.get(i);
+            for (Object neighbor : factor.getNeighbors()) {
+                recipients[edge] = getId(ids, i);
+                senders[edge] = getId(ids, getIndex(indices, neighbor));
+                messages[edge] = factor.getMessage(neighbor);
+                edge++;
+            }
+        }
+        return new Checkpoint(recipients, senders, messages);
+    }
+
+    /**
+     * Restore this checkpoint onto a compiled engine.
+     * <p/>
+     * Edges that are not in the checkpoint get a zero message.
+     *
+     * @param engine engine whose messages to set.
+     * @param ids stable id of each factor, or <code>null</code> to use their indices.
+     * @return number of edges whose message was found in this checkpoint.
+     */
+    public int restore(CompiledEngine engine, long[] ids) {
+        final CompiledGraph graph = engine.getGraph();
+        checkIds(ids, graph.getNumberOfFactors());
+
+        int restored = 0;
+        for (int factor=0, n=graph.getNumberOfFactors(); factor<n; factor++) {
+            for (int edge=graph.getEdgeOffset(factor); edge<graph.getEdgeOffset(factor+1); edge++) {
+                final int i = find(getId(ids, factor), getId(ids, graph.getNeighbor(edge)));
+                engine.setMessage(edge, i < 0 ? 0 : messages[i]);
+                restored += i < 0 ? 0 : 1;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Restore this checkpoint onto the given factors, making them receive the
+     * checkpointed messages.
+     * <p/>
+     * Edges that are not in the checkpoint get a zero message.
+     *
+     * @param factors factors whose messages to set.
+     * @param ids stable id of each factor, or <code>null</code> to use their positions in
+     *            the list.
+     * @return number of edges whose message was found in this checkpoint.
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public int restore(List<? extends Factor<?>> factors, long[] ids) {
+        checkIds(ids, factors.size());
+        final Map<Object, Integer> indices = getIndices(factors);
+
+        int restored = 0;
+        for (int factor=0; factor<factors.size(); factor++) {
+            final Factor f = factors.get(factor);
+            for (Object neighbor : f.getNeighbors()) {
+                final int i = find(getId(ids, factor), getId(ids, getIndex(indices, neighbor)));
+                f.receive(i < 0 ? 0 : messages[i], neighbor);
+                restored += i < 0 ? 0 : 1;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Get the number of messages in this checkpoint.
+     *
+     * @return number of messages.
+     */
+    public int size() {
+        return messages.length;
+    }
+
+    /**
+     * Get the checkpointed message sent by a factor to another one.
+     *
+     * @param recipient stable id of the recipient factor.
+     * @param sender stable id of the sender factor.
+     * @return checkpointed message, or zero if there is none between those factors.
+     */
+    public double getMessage(long recipient, long sender) {
+        final int i = find(recipient, sender);
+        return i < 0 ? 0 : messages[i];
+    }
+
+    /**
+     * Write this checkpoint to a file.
+     *
+     * @param file file where to write the checkpoint.
+     * @throws IOException if the file can not be written.
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), STREAM_BUFFER_SIZE));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write this checkpoint to the given stream.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(messages.length);
+        for (int i=0; i<messages.length; i++) {
+            out.writeLong(recipients[i]);
+            out.writeLong(senders[i]);
+            out.writeDouble(messages[i]);
+        }
+    }
+
+    /**
+     * Read a checkpoint from a file.
+     *
+     * @param file file to read.
+     * @return checkpoint stored in the file.
+     * @throws IOException if the file can not be read or is not a valid checkpoint.
+     */
+    public static Checkpoint read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), STREAM_BUFFER_SIZE));
+        try {
+            return read(in, file.length(), file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read a checkpoint of the given size (in bytes) from the given stream.
+     */
+    static Checkpoint read(DataInputStream in, long size, File file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("File " + file + " is not a checkpoint file");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        final int n = in.readInt();
+        if (n < 0 || 24L * n + 12 != size) {
+            throw new IOException("The size of file " + file + " does not match its header");
+        }
+
+        final long[] recipients = new long[n];
+        final long[] senders = new long[n];
+        final double[] messages = new double[n];
+        for (int i=0; i<n; i++) {
+            recipients[i] = in.readLong();
+            senders[i] = in.readLong();
+            messages[i] = in.readDouble();
+        }
+        return new Checkpoint(recipients, senders, messages);
+    }
+
+    private static void checkIds(long[] ids, int nFactors) {
+        if (ids != null && ids.length != nFactors) {
+            throw new IllegalArgumentException("Expected " + nFactors + " ids but got "
+                    + ids.length);
+        }
+    }
+
+    private static long getId(long[] ids, int factor) {
+        return ids == null ? factor : ids[factor];
+    }
+
+    private static Map<Object, Integer> getIndices(List<? extends Factor<?>> factors) {
+        final Map<Object, Integer> indices = new HashMap<Object, Integer>(factors.size() * 2);
+        for (int i=0; i<factors.size(); i++) {
+            indices.put(factors.get(i).getIdentity(), i);
+        }
+        return indices;
+    }
+
+    private static int getIndex(Map<Object, Integer> indices, Object neighbor) {
+        final Integer index = indices.get(neighbor);
+        if (index == null) {
+            throw new IllegalArgumentException("Neighbor " + neighbor + " is not in the list");
+        }
+        return index;
+    }
+
+    /**
+     * Binary search of the message sent by the given sender to the given recipient.
+     */
+    private int find(long recipient, long sender) {
+        int low = 0, high = messages.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            int cmp = recipients[mid] < recipient ? -1 : (recipients[mid] > recipient ? 1 : 0);
+            if (cmp == 0) {
+                cmp = senders[mid] < sender ? -1 : (senders[mid] > sender ? 1 : 0);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int i, int j) {
+        if (recipients[i] != recipients[j]) {
+            return recipients[i] < recipients[j] ? -1 : 1;
+        }
+        if (senders[i] != senders[j]) {
+            return senders[i] < senders[j] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Sort the messages by (recipient, sender), sorting them by recipient first and then
+     * each group of messages to the same recipient by sender.
+     */
+    private void sort() {
+        final int n = messages.length;
+        final long[] keys = recipients.clone();
+        final long[] order = new long[n];
+        for (int i=0; i<n; i++) {
+            order[i] = i;
+        }
+        ExternalSorter.sort(keys, order, 0, n);
+
+        final long[] senderKeys = new long[n];
+        for (int i=0; i<n; i++) {
+            senderKeys[i] = senders[(int) order[i]];
+        }
+        for (int from=0, to; from<n; from=to) {
+            to = from + 1;
+            while (to < n && keys[to] == keys[from]) {
+                to++;
+            }
+            ExternalSorter.sort(senderKeys, order, from, to);
+        }
+
+        final long[] sortedSenders = senders.clone();
+        final double[] sortedMessages = messages.clone();
+        for (int i=0; i<n; i++) {
+            final int j = (int) order[i];
+            senders[i] = sortedSenders[j];
+            messages[i] = sortedMessages[j];
+        }
+        System.arraycopy(keys, 0, recipients, 0, n);
+    }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Periodically saves the state of a {@link CompiledEngine} to a recovery file from a
+ * background thread, so that a long solve can be resumed after a crash.
+ * <p/>
+ * The state of a compiled engine is fully described by its messages and its number of
+ * iterations. Hence, taking a snapshot only costs copying the messages array between two
+ * iterations, whereas building the {@link Checkpoint} and writing it is done by the
+ * background thread. When the thread is still writing a previous snapshot, newer
+ * snapshots replace any older one still waiting, so the solver never blocks on the disk.
+ * <p/>
+ * Recovery files are first written to a temporary file next to the target one, and then
+ * renamed over it. On platforms that can not rename over an existing file, the previous
+ * snapshot is kept as a backup file until the rename succeeds, and {@link #resume} falls
+ * back to it. Hence, there is always a complete snapshot to resume from.
+ * <p/>
+ * Snapshots must always be taken from the same engine (or from engines running the same
+ * graph), and only from the thread running it.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class CheckpointWriter {
+
+    /** Magic number at the start of every recovery file ("BMSR") */
+    public static final int MAGIC = 0x424D5352;
+
+    /** Version of the format written by this class */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private final File file;
+    private final File temporary;
+    private final File backup;
+    private final long[] ids;
+    private final Thread thread;
+    private int interval = 1;
+    private long lastIteration = -1;
+
+    // Guarded by this
+    private CompiledGraph graph;
+    private double[] pending;
+    private long pendingIteration;
+    private double[] spare;
+    private boolean writing;
+    private boolean closed;
+    private long writtenIteration = -1;
+    private IOException failure;
+
+    /**
+     * Build a new writer of recovery files, starting its background thread.
+     *
+     * @param file file where to save the snapshots.
+     * @param ids stable id of each factor, or <code>null</code> to use their indices.
+     */
+    public CheckpointWriter(File file, long[] ids) {
+        this.file = file;
+        this.temporary = new File(file.getPath() + ".tmp");
+        this.backup = getBackupFile(file);
+        this.ids = ids == null ? null : ids.clone();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshots();
+            }
+        }, "bms-checkpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the minimum number of iterations between two snapshots.
+     *
+     * @return snapshot interval.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set the minimum number of iterations between two snapshots.
+     *
+     * @param interval snapshot interval.
+     */
+    public void setInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The snapshot interval must be positive");
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * Get the iteration of the last snapshot saved to the recovery file.
+     *
+     * @return iteration of the last saved snapshot, or -1 if none has been saved yet.
+     */
+    public synchronized long getWrittenIteration() {
+        return writtenIteration;
+    }
+
+    /**
+     * Take a snapshot of the given engine if at least the snapshot interval has gone by
+     * since the last one, and queue it to be saved.
+     * <p/>
+     * This method is meant to be called after every iteration of the engine.
+     *
+     * @param engine engine to snapshot.
+     * @return <code>true</code> if a snapshot has been taken.
+     * @throws IOException if saving a previous snapshot failed.
+     */
+    public boolean offer(CompiledEngine engine) throws IOException {
+        final long iteration = engine.getIterations();
+        if (lastIteration >= 0 && iteration - lastIteration < interval) {
+            return false;
+        }
+
+        synchronized (this) {
+            checkState();
+            final int nEdges = engine.getGraph().getNumberOfEdges();
+            double[] snapshot = spare;
+            if (snapshot == null || snapshot.length != nEdges) {
+                snapshot = new double[nEdges];
+            }
+            engine.copyMessages(snapshot);
+
+            // An older snapshot still waiting is dropped, and its array reused later on
+            spare = pending;
+            pending = snapshot;
+            pendingIteration = iteration;
+            graph = engine.getGraph();
+            notifyAll();
+        }
+        lastIteration = iteration;
+        return true;
+    }
+
+    /**
+     * Wait until all the snapshots taken so far have been saved.
+     *
+     * @throws IOException if saving a snapshot failed.
+     */
+    public synchronized void flush() throws IOException {
+        try {
+            while ((pending != null || writing) && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the checkpoint to be saved");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Save all the snapshots taken so far and stop the background thread.
+     *
+     * @throws IOException if saving a snapshot failed.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Resume a solve from the given recovery file, restoring the messages and the number
+     * of iterations of the engine.
+     * <p/>
+     * When the file is missing because the writer was replacing it, its backup is read
+     * instead.
+     *
+     * @param engine engine whose state to restore.
+     * @param file recovery file to read.
+     * @param ids stable id of each factor, or <code>null</code> to use their indices.
+     * @return <code>true</code> if the state was restored, or <code>false</code> if there
+     *         is no recovery file (in which case the engine is left untouched).
+     * @throws IOException if the file can not be read or is not a valid recovery file.
+     */
+    public static boolean resume(CompiledEngine engine, File file, long[] ids)
+            throws IOException
+    {
+        if (!file.exists()) {
+            file = getBackupFile(file);
+            if (!file.exists()) {
+                return false;
+            }
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), Checkpoint.STREAM_BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("File " + file + " is not a recovery file");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported recovery file version " + version);
+            }
+            final long iteration = in.readLong();
+            final Checkpoint checkpoint = Checkpoint.read(in, file.length() - HEADER_SIZE, file);
+            checkpoint.restore(engine, ids);
+            engine.setIterations(iteration);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("This writer has already been closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Main loop of the background thread.
+     */
+    private void writeSnapshots() {
+        while (true) {
+            final CompiledGraph snapshotGraph;
+            final double[] snapshot;
+            final long iteration;
+            synchronized (this) {
+                try {
+                    while (pending == null && !closed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending == null) {
+                    return;
+                }
+                snapshotGraph = graph;
+                snapshot = pending;
+                iteration = pendingIteration;
+                pending = null;
+                writing = true;
+            }
+
+            IOException error = null;
+            try {
+                save(Checkpoint.capture(snapshotGraph, snapshot, ids), iteration);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Unable to save the checkpoint: " + e.getMessage());
+                error.initCause(e);
+            }
+
+            synchronized (this) {
+                writing = false;
+                if (error == null) {
+                    writtenIteration = iteration;
+                } else {
+                    failure = error;
+                }
+                if (spare == null) {
+                    spare = snapshot;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void save(Checkpoint checkpoint, long iteration) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary), Checkpoint.STREAM_BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(iteration);
+            checkpoint.write(out);
+        } finally {
+            out.close();
+        }
+
+        if (temporary.renameTo(file)) {
+            return;
+        }
+
+        // Some platforms can not rename over an existing file, so the previous snapshot is
+        // kept aside until the new one is in place
+        backup.delete();
+        if (!file.renameTo(backup)) {
+            throw new IOException("Unable to move " + file + " to " + backup);
+        }
+        if (!temporary.renameTo(file)) {
+            backup.renameTo(file);
+            throw new IOException("Unable to replace " + file + " with " + temporary);
+        }
+        backup.delete();
+    }
+
+    private static File getBackupFile(File file) {
+        return new File(file.getPath() + ".bak");
+    }
+
+}
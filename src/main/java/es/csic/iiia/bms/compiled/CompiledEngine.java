@@ -0,0 +1,646 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.metrics.FactorMetrics;
+import es.csic.iiia.bms.metrics.FactorProfile;
+import es.csic.iiia.bms.metrics.FactorProfiler;
+import es.csic.iiia.bms.metrics.MetricsRegistry;
+import es.csic.iiia.bms.metrics.ResidualHistogram;
+import es.csic.iiia.bms.metrics.SolverTrace;
+import es.csic.iiia.bms.util.IntBestValuesTracker;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synchronous max-sum engine that runs a {@link CompiledGraph} directly.
+ * <p/>
+ * Messages live in two arrays indexed by directed edge, where the value at edge
+ * <em>e</em> is the last message received by the owner of <em>e</em> from the neighbor
+ * it points to. Each iteration runs every factor against the current array and writes
+ * the outgoing messages into the other one, which becomes current once all factors have
+ * run. Hence, each call to {@link #run()} is equivalent to running all the factors of
+ * the original graph over a {@link es.csic.iiia.bms.TickCommunicationAdapter} and then
+ * ticking it.
+ * <p/>
+ * Variables, as well as independent, standard, selector, at-most-one, conditioned
+ * selector, conditioned deactivation, implication, all-active incentive and saturation
+ * factors run on specialized kernels that work straight on the graph arrays, where
+ * neighbors are positions and nothing is boxed. Any other type is run by a factor object
+ * rebuilt from its compiled form the first time it is needed, and kept for later
+ * iterations.
+ * <p/>
+ * Pairwise factors (including standard factors with two neighbors) are batched, and run
+ * together in a single pass over contiguous arrays of edges and tables. When metrics,
+ * profiling or factor tracing are enabled, they are run one by one instead.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class CompiledEngine {
+
+    private final CompiledGraph graph;
+    private final MaxOperator op;
+    private final DoubleBuffer parameters;
+    private final IntBuffer intParameters;
+    private final IntBestValuesTracker tracker;
+    private final IntBestValuesTracker inverseTracker;
+    private final Factor<Object>[] objects;
+    private final CaptureAdapter capture = new CaptureAdapter();
+
+    // Pairwise factors, batched as contiguous arrays: their first edges, the reverses of
+    // their two edges and their 4-entry tables. All other factors are run one by one.
+    private final int[] pairwiseEdges;
+    private final int[] pairwiseReverses;
+    private final double[] pairwiseTables;
+    private final int[] others;
+    private double[] messages;
+    private double[] next;
+    private double[] scratch = new double[0];
+    private int[] intScratch = new int[0];
+    private long iterations;
+    private MetricsRegistry metrics;
+    private FactorMetrics[] typeMetrics;
+    private FactorProfiler profiler;
+    private FactorProfile[] profiles;
+
+    /**
+     * Build a new engine to run the given graph.
+     * <p/>
+     * All messages are initially zero.
+     *
+     * @param graph graph to run.
+     */
+    @SuppressWarnings("unchecked")
+    public CompiledEngine(CompiledGraph graph) {
+        this.graph = graph;
+        this.op = graph.getMaxOperator();
+        this.parameters = graph.getDoubleParameters();
+        this.intParameters = graph.getIntParameters();
+        this.tracker = new IntBestValuesTracker(op);
+        this.inverseTracker = new IntBestValuesTracker(op.inverse());
+        this.objects = (Factor<Object>[]) new Factor<?>[graph.getNumberOfFactors()];
+        this.messages = new double[graph.getNumberOfEdges()];
+        this.next = new double[graph.getNumberOfEdges()];
+
+        int nPairwise = 0;
+        for (int factor=0, n=graph.getNumberOfFactors(); factor<n; factor++) {
+            nPairwise += isPairwise(factor) ? 1 : 0;
+        }
+        pairwiseEdges = new int[nPairwise];
+        pairwiseReverses = new int[2 * nPairwise];
+        pairwiseTables = new double[4 * nPairwise];
+        others = new int[graph.getNumberOfFactors() - nPairwise];
+        for (int factor=0, n=graph.getNumberOfFactors(), p=0, o=0; factor<n; factor++) {
+            if (!isPairwise(factor)) {
+                others[o++] = factor;
+                continue;
+            }
+            final int start = graph.getEdgeOffset(factor);
+            final int potentials = graph.getDoubleParameterOffset(factor);
+            pairwiseEdges[p] = start;
+            pairwiseReverses[2*p] = graph.getReverse(start);
+            pairwiseReverses[2*p + 1] = graph.getReverse(start + 1);
+            for (int i=0; i<4; i++) {
+                pairwiseTables[4*p + i] = parameters.get(potentials + i);
+            }
+            p++;
+        }
+    }
+
+    private boolean isPairwise(int factor) {
+        final FactorType type = graph.getType(factor);
+        return type == FactorType.PAIRWISE
+                || (type == FactorType.STANDARD && graph.getDegree(factor) == 2);
+    }
+
+    /**
+     * Get the graph run by this engine.
+     *
+     * @return compiled graph.
+     */
+    public CompiledGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Get the last message received through the given edge.
+     *
+     * @param edge index of the edge.
+     * @return last message received by the owner of the edge from its neighbor.
+     */
+    public double getMessage(int edge) {
+        return messages[edge];
+    }
+
+    /**
+     * Set the last message received through the given edge, as if its neighbor had
+     * sent it in the previous iteration.
+     *
+     * @param edge index of the edge.
+     * @param message message to set.
+     */
+    public void setMessage(int edge, double message) {
+        messages[edge] = message;
+    }
+
+    /**
+     * Get a copy of the last messages received through all the edges.
+     *
+     * @return messages, indexed by edge.
+     */
+    public double[] getMessages() {
+        return messages.clone();
+    }
+
+    /**
+     * Copy the last messages received through all the edges into the given array.
+     */
+    void copyMessages(double[] target) {
+        System.arraycopy(messages, 0, target, 0, messages.length);
+    }
+
+    /**
+     * Get the number of iterations run by this engine.
+     *
+     * @return number of iterations.
+     */
+    public long getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Set the number of iterations run by this engine, typically when resuming a solve
+     * from a checkpoint.
+     *
+     * @param iterations number of iterations.
+     */
+    public void setIterations(long iterations) {
+        if (iterations < 0) {
+            throw new IllegalArgumentException("The number of iterations can not be negative");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Get the registry where the metrics of the factor runs are recorded.
+     *
+     * @return metrics registry, or <code>null</code> if metrics are not collected.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the registry where the metrics of the factor runs are recorded.
+     * <p/>
+     * Factor types are named after their {@link FactorType}, and each iteration records the
+     * residual of every edge and closes one iteration of the registry.
+     *
+     * @param metrics metrics registry, or <code>null</code> to stop collecting metrics.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        FactorMetrics[] resolved = null;
+        if (metrics != null) {
+            final FactorType[] types = FactorType.values();
+            resolved = new FactorMetrics[types.length];
+            for (int i=0; i<types.length; i++) {
+                resolved[i] = metrics.getFactorMetrics(types[i].name());
+            }
+        }
+        this.metrics = metrics;
+        this.typeMetrics = resolved;
+    }
+
+    /**
+     * Get the profiler that samples the cost of each factor.
+     *
+     * @return factor profiler, or <code>null</code> if factors are not profiled.
+     */
+    public FactorProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Set the profiler that samples the cost of each factor, registering all the factors of
+     * the graph in it. Factors are identified by their index in the graph, and their types
+     * are named after their {@link FactorType}.
+     *
+     * @param profiler factor profiler, or <code>null</code> to stop profiling factors.
+     */
+    public void setProfiler(FactorProfiler profiler) {
+        FactorProfile[] registered = null;
+        if (profiler != null) {
+            registered = new FactorProfile[graph.getNumberOfFactors()];
+            for (int factor=0; factor<registered.length; factor++) {
+                registered[factor] = profiler.register(factor, graph.getType(factor).name(),
+                        graph.getDegree(factor));
+            }
+        }
+        this.profiler = profiler;
+        this.profiles = registered;
+    }
+
+    /**
+     * Run a single iteration, in which every factor receives the messages sent in the
+     * previous one and sends its new messages.
+     *
+     * @return number of constraint checks performed.
+     */
+    public long run() {
+        final boolean traceIteration = SolverTrace.isIterationEnabled();
+        final boolean traceFactors = SolverTrace.isFactorEnabled();
+        final long iterationStart = traceIteration ? System.nanoTime() : 0;
+        if (traceIteration) {
+            SolverTrace.iterationStarted("CompiledEngine", iterations);
+        }
+        System.arraycopy(messages, 0, next, 0, messages.length);
+
+        long constraintChecks = 0;
+        if (metrics == null && !traceFactors && profiles == null) {
+            for (int factor : others) {
+                constraintChecks += runFactor(factor);
+            }
+            constraintChecks += runPairwiseBatch();
+        } else {
+            for (int factor=0, n=graph.getNumberOfFactors(); factor<n; factor++) {
+                final boolean sampled = profiles != null && profiles[factor].sample();
+                final boolean timed = sampled || metrics != null || traceFactors;
+                final long start = timed ? System.nanoTime() : 0;
+                final long checks = runFactor(factor);
+                final long nanos = timed ? System.nanoTime() - start : -1;
+                if (profiles != null) {
+                    profiles[factor].record(checks, sampled ? nanos : -1);
+                }
+                if (metrics != null) {
+                    typeMetrics[graph.getType(factor).ordinal()].record(graph.getDegree(factor),
+                            checks, nanos);
+                }
+                if (traceFactors) {
+                    SolverTrace.factorRun(graph.getType(factor).name(), graph.getDegree(factor),
+                            nanos);
+                }
+                constraintChecks += checks;
+            }
+        }
+
+        if (metrics != null || traceIteration) {
+            final ResidualHistogram residuals = metrics == null ? null : metrics.getResiduals();
+            double maxResidual = 0;
+            for (int edge=0; edge<next.length; edge++) {
+                final double residual = Math.abs(next[edge] - messages[edge]);
+                maxResidual = Math.max(maxResidual, residual);
+                if (residuals != null) {
+                    residuals.record(residual);
+                }
+            }
+            if (metrics != null) {
+                metrics.endIteration();
+            }
+            if (traceIteration) {
+                SolverTrace.iterationFinished("CompiledEngine", iterations,
+                        System.nanoTime() - iterationStart, next.length, maxResidual);
+            }
+        }
+
+        final double[] swap = messages;
+        messages = next;
+        next = swap;
+        iterations++;
+        return constraintChecks;
+    }
+
+    private long runFactor(int factor) {
+        final int start = graph.getEdgeOffset(factor);
+        final int degree = graph.getEdgeOffset(factor + 1) - start;
+        switch (graph.getType(factor)) {
+            case VARIABLE:
+            case EQUALITY:
+                return runVariable(0, start, degree);
+            case BIASED_VARIABLE:
+            case BIASED_EQUALITY:
+                return runVariable(parameters.get(graph.getDoubleParameterOffset(factor)), start,
+                        degree);
+            case INDEPENDENT:
+                return runIndependent(factor, start, degree);
+            case STANDARD:
+            case PAIRWISE:
+                return runStandard(factor, start, degree);
+            case SELECTOR:
+                return runSelector(start, degree);
+            case AT_MOST_ONE:
+                return runAtMostOne(start, degree);
+            case CONDITIONED_SELECTOR:
+                return runConditionedSelector(factor, start, degree);
+            case CONDITIONED_DEACTIVATION:
+                return runConditionedDeactivation(factor, start, degree);
+            case IMPLICATION:
+                return runImplication(start, degree);
+            case ALL_ACTIVE_INCENTIVE:
+                return runAllActiveIncentive(factor, start, degree);
+            case SATURATION:
+                return runSaturation(factor, start, degree);
+            default:
+                return runObject(factor, start);
+        }
+    }
+
+    private void send(double message, int edge) {
+        next[graph.getReverse(edge)] = message;
+    }
+
+    private long runVariable(double bias, int start, int degree) {
+        final int end = start + degree;
+        double belief = bias;
+        for (int edge=start; edge<end; edge++) {
+            belief += messages[edge];
+        }
+        for (int edge=start; edge<end; edge++) {
+            send(belief - messages[edge], edge);
+        }
+        return degree * 2;
+    }
+
+    private long runIndependent(int factor, int start, int degree) {
+        final int potentials = graph.getDoubleParameterOffset(factor);
+        for (int i=0; i<degree; i++) {
+            send(parameters.get(potentials + i), start + i);
+        }
+        return degree;
+    }
+
+    private long runStandard(int factor, int start, int degree) {
+        final int potentials = graph.getDoubleParameterOffset(factor);
+        final int nConfigurations = 1 << degree;
+        if (scratch.length < nConfigurations) {
+            scratch = new double[nConfigurations];
+        }
+
+        // The first neighbor corresponds to the highest bit of the configuration index
+        for (int i=0; i<degree; i++) {
+            final int excluded = 1 << (degree - 1 - i);
+
+            // Sum of the messages from the active neighbors (but the excluded one) in each
+            // configuration, built from the configuration without its lowest active bit.
+            scratch[0] = 0;
+            double m0 = op.getWorstValue(), m1 = op.getWorstValue();
+            for (int idx=0; idx<nConfigurations; idx++) {
+                if (idx > 0) {
+                    final int lowest = idx & -idx;
+                    scratch[idx] = scratch[idx ^ lowest] + (lowest == excluded ? 0 :
+                            messages[start + degree - 1 - Integer.numberOfTrailingZeros(lowest)]);
+                }
+                final double util = parameters.get(potentials + idx) + scratch[idx];
+                if ((idx & excluded) != 0) {
+                    m1 = op.max(util, m1);
+                } else {
+                    m0 = op.max(util, m0);
+                }
+            }
+            send(m1 - m0, start + i);
+        }
+
+        return degree * degree;
+    }
+
+    /**
+     * Runs all the pairwise factors in a single pass over their contiguous arrays, with the
+     * closed-form messages of {@link es.csic.iiia.bms.factors.PairwiseFactor}.
+     */
+    private long runPairwiseBatch() {
+        final double[] in = messages, out = next;
+        for (int p=0, n=pairwiseEdges.length; p<n; p++) {
+            final int edge = pairwiseEdges[p];
+            final double mx = in[edge], my = in[edge + 1];
+            final double f00 = pairwiseTables[4*p], f01 = pairwiseTables[4*p + 1];
+            final double f10 = pairwiseTables[4*p + 2], f11 = pairwiseTables[4*p + 3];
+            out[pairwiseReverses[2*p]] = op.max(f11 + my, f10) - op.max(f01 + my, f00);
+            out[pairwiseReverses[2*p + 1]] = op.max(f11 + mx, f01) - op.max(f10 + mx, f00);
+        }
+        return 4L * pairwiseEdges.length;
+    }
+
+    private long runSelector(int start, int degree) {
+        final int end = start + degree;
+        tracker.reset();
+        for (int edge=start; edge<end; edge++) {
+            tracker.track(edge, messages[edge]);
+        }
+        for (int edge=start; edge<end; edge++) {
+            send(-tracker.getComplementary(edge), edge);
+        }
+        return degree * 2;
+    }
+
+    private long runAtMostOne(int start, int degree) {
+        final int end = start + degree;
+        tracker.reset();
+        for (int edge=start; edge<end; edge++) {
+            tracker.track(edge, messages[edge]);
+        }
+        for (int edge=start; edge<end; edge++) {
+            send(-op.max(0, tracker.getComplementary(edge)), edge);
+        }
+        return degree * 2;
+    }
+
+    private long runConditionedSelector(int factor, int start, int degree) {
+        final int position = intParameters.get(graph.getIntParameterOffset(factor));
+        if (position < 0) {
+            return runObject(factor, start);
+        }
+
+        final int end = start + degree;
+        final int condition = start + position;
+        tracker.reset();
+        for (int edge=start; edge<end; edge++) {
+            if (edge != condition) {
+                tracker.track(edge, messages[edge]);
+            }
+        }
+        for (int edge=start; edge<end; edge++) {
+            if (edge == condition) {
+                send(tracker.getBestValue(), edge);
+            } else {
+                send(-op.max(tracker.getComplementary(edge), -messages[condition]), edge);
+            }
+        }
+        return degree * 2;
+    }
+
+    private long runConditionedDeactivation(int factor, int start, int degree) {
+        final int position = intParameters.get(graph.getIntParameterOffset(factor));
+        if (position < 0) {
+            return runObject(factor, start);
+        }
+
+        final int end = start + degree;
+        final int exemplar = start + position;
+        double nonExemplarSum = 0;
+        for (int edge=start; edge<end; edge++) {
+            if (edge != exemplar) {
+                nonExemplarSum += op.max(0, messages[edge]);
+            }
+        }
+        final double exemplarMessage = messages[exemplar];
+        for (int edge=start; edge<end; edge++) {
+            if (edge == exemplar) {
+                send(nonExemplarSum, edge);
+            } else {
+                final double a = exemplarMessage + nonExemplarSum - op.max(messages[edge], 0);
+                send(a - op.max(0, a), edge);
+            }
+        }
+        return degree * 2;
+    }
+
+    private long runImplication(int start, int degree) {
+        if (scratch.length < degree + 1) {
+            scratch = new double[degree + 1];
+        }
+        if (intScratch.length < degree) {
+            intScratch = new int[degree];
+        }
+
+        // See ImplicationFactor#run for the details of this kernel
+        final double[] allActiveAcc = scratch;
+        final int[] phiZero = intScratch;
+        allActiveAcc[degree] = 0;
+        double bestAcc = 0;
+        phiZero[degree - 1] = degree;
+        for (int i=degree-1; i>=0; i--) {
+            allActiveAcc[i] = allActiveAcc[i + 1] + messages[start + i];
+            if (i > 0) {
+                phiZero[i - 1] = op.compare(allActiveAcc[i], bestAcc) >= 0 ? i : phiZero[i];
+            }
+            bestAcc = op.max(bestAcc, allActiveAcc[i]);
+        }
+
+        int phiOne = 0;
+        double bestActive = op.getWorstValue();
+        for (int i=0; i<degree; i++) {
+            if (op.compare(allActiveAcc[i], bestActive) > 0) {
+                phiOne = i;
+                bestActive = allActiveAcc[i];
+            }
+            send(allActiveAcc[phiOne] - allActiveAcc[phiZero[i]] - messages[start + i], start + i);
+        }
+        return degree * 2;
+    }
+
+    private long runAllActiveIncentive(int factor, int start, int degree) {
+        final double incentive = parameters.get(graph.getDoubleParameterOffset(factor));
+        final MaxOperator min = op.inverse();
+        final int end = start + degree;
+
+        inverseTracker.reset();
+        double negative = 0;
+        for (int edge=start; edge<end; edge++) {
+            inverseTracker.track(edge, messages[edge]);
+            negative += min.max(0, messages[edge]);
+        }
+        for (int edge=start; edge<end; edge++) {
+            final double worst = inverseTracker.getComplementary(edge);
+            final double otherNegative = negative - min.max(0, messages[edge]);
+            send(op.max(min.max(0, -worst), incentive + otherNegative), edge);
+        }
+        return degree * 2;
+    }
+
+    private long runSaturation(int factor, int start, int degree) {
+        final int potentials = graph.getDoubleParameterOffset(factor);
+
+        double positive = 0;
+        tracker.reset();
+        for (int i=0; i<degree; i++) {
+            final double v = messages[start + i];
+            final double b = parameters.get(potentials + i);
+            positive += op.max(v, 0);
+            tracker.track(i, op.compare(v, 0) >= 0 ? b : b + v);
+        }
+        for (int i=0; i<degree; i++) {
+            final double v = messages[start + i];
+            final double b = parameters.get(potentials + i);
+            final double maxB = tracker.getComplementary(i);
+            final double otherPositive = positive - op.max(v, 0);
+            send(op.max(b, maxB) - op.max(-otherPositive, maxB), start + i);
+        }
+        return degree * 2;
+    }
+
+    private long runObject(int factor, int start) {
+        Factor<Object> object = objects[factor];
+        if (object == null) {
+            final List<Object> neighbors = new ArrayList<Object>();
+            for (int i=0, len=graph.getDegree(factor); i<len; i++) {
+                neighbors.add(i);
+            }
+            object = graph.instantiate(factor, neighbors);
+            object.setIdentity(factor);
+            object.setCommunicationAdapter(capture);
+            objects[factor] = object;
+        }
+
+        final List<Object> neighbors = object.getNeighbors();
+        for (int i=0, len=neighbors.size(); i<len; i++) {
+            object.receive(messages[start + i], neighbors.get(i));
+        }
+        capture.start = start;
+        return object.run();
+    }
+
+    /**
+     * Adapter that forwards the messages sent by factor objects (whose neighbors are
+     * their positions) to the engine's message array.
+     */
+    private class CaptureAdapter implements CommunicationAdapter<Object> {
+        private int start;
+
+        @Override
+        public void send(double message, Object sender, Object recipient) {
+            CompiledEngine.this.send(message, start + (Integer) recipient);
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, array-based representation of a factor graph.
+ * <p/>
+ * Factors are identified by their index, and the links between them are stored as
+ * directed edges in compressed sparse row form: the edges of factor <em>f</em> are those
+ * in the range <code>[getEdgeOffset(f), getEdgeOffset(f+1))</code>, in the same order as
+ * the factor's neighbors. For each edge, the graph stores the index of the neighbor it
+ * points to and the reverse edge (the one going from that neighbor back to <em>f</em>).
+ * The parameters of each factor are stored as two flat streams of integers and doubles,
+ * laid out as defined by its {@link FactorType}.
+ * <p/>
+ * All the data lives in buffers, so a graph can be either built on the heap by
+ * {@link #compile(List)} or be a zero-copy view of a file mapped by {@link GraphFile}.
+ * Compiled graphs are immutable.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class CompiledGraph {
+
+    private final MaxOperator maxOperator;
+    private final int nFactors;
+    private final IntBuffer types;
+    private final IntBuffer edgeOffsets;
+    private final IntBuffer neighbors;
+    private final IntBuffer reverse;
+    private final IntBuffer intOffsets;
+    private final IntBuffer intParameters;
+    private final IntBuffer doubleOffsets;
+    private final DoubleBuffer doubleParameters;
+
+    CompiledGraph(MaxOperator maxOperator, IntBuffer types, IntBuffer edgeOffsets,
+            IntBuffer neighbors, IntBuffer reverse, IntBuffer intOffsets,
+            IntBuffer intParameters, IntBuffer doubleOffsets, DoubleBuffer doubleParameters)
+    {
+        this.maxOperator = maxOperator;
+        this.nFactors = types.limit();
+        this.types = types;
+        this.edgeOffsets = edgeOffsets;
+        this.neighbors = neighbors;
+        this.reverse = reverse;
+        this.intOffsets = intOffsets;
+        this.intParameters = intParameters;
+        this.doubleOffsets = doubleOffsets;
+        this.doubleParameters = doubleParameters;
+    }
+
+    /**
+     * Compile the given factors into a new graph.
+     * <p/>
+     * The index of each factor in the compiled graph is its position in the given list.
+     * Neighbors are resolved through their identities, so the list must contain every
+     * neighbor of every factor, and links must be mutual.
+     *
+     * @param factors factors to compile.
+     * @return compiled graph.
+     * @throws IllegalArgumentException if some factor can not be compiled or the graph is
+     * not closed.
+     */
+    public static CompiledGraph compile(List<? extends Factor<?>> factors) {
+        final int n = factors.size();
+        if (n == 0) {
+            throw new IllegalArgumentException("Can not compile an empty graph");
+        }
+
+        final MaxOperator op = factors.get(0).getMaxOperator();
+        if (op == null) {
+            throw new IllegalArgumentException("Factors must have a max operator to be compiled");
+        }
+
+        final Map<Object, Integer> indices = new HashMap<Object, Integer>(n * 2);
+        for (int i=0; i<n; i++) {
+            if (indices.put(factors.get(i).getIdentity(), i) != null) {
+                throw new IllegalArgumentException("Identity " + factors.get(i).getIdentity()
+                        + " is shared by more than one factor");
+            }
+        }
+
+        // Types, topology and parameters
+        final int[] types = new int[n];
+        final int[] edgeOffsets = new int[n + 1];
+        final int[] intOffsets = new int[n + 1];
+        final int[] doubleOffsets = new int[n + 1];
+        final ParameterSink parameters = new ParameterSink();
+        for (int i=0; i<n; i++) {
+            final Factor<?> factor = factors.get(i);
+            if (factor.getMaxOperator() == null
+                    || factor.getMaxOperator().getClass() != op.getClass()) {
+                throw new IllegalArgumentException("All factors must use the same max operator");
+            }
+
+            final FactorType type = FactorType.of(factor);
+            types[i] = type.getCode();
+            edgeOffsets[i + 1] = edgeOffsets[i] + factor.getNeighbors().size();
+            intOffsets[i] = parameters.getIntCount();
+            doubleOffsets[i] = parameters.getDoubleCount();
+            type.describe(factor, parameters);
+        }
+        intOffsets[n] = parameters.getIntCount();
+        doubleOffsets[n] = parameters.getDoubleCount();
+
+        final int nEdges = edgeOffsets[n];
+        final int[] neighbors = new int[nEdges];
+        final Map<Long, Integer> edges = new HashMap<Long, Integer>(nEdges * 2);
+        for (int i=0; i<n; i++) {
+            int edge = edgeOffsets[i];
+            for (Object neighbor : factors.get(i).getNeighbors()) {
+                final Integer j = indices.get(neighbor);
+                if (j == null) {
+                    throw new IllegalArgumentException("Neighbor " + neighbor + " of factor "
+                            + factors.get(i).getIdentity() + " is not in the graph");
+                }
+                neighbors[edge] = j;
+                if (edges.put(key(i, j), edge) != null) {
+                    throw new IllegalArgumentException("Factor " + factors.get(i).getIdentity()
+                            + " is linked more than once to " + neighbor);
+                }
+                edge++;
+            }
+        }
+
+        final int[] reverse = new int[nEdges];
+        for (int i=0; i<n; i++) {
+            for (int edge=edgeOffsets[i]; edge<edgeOffsets[i+1]; edge++) {
+                final Integer back = edges.get(key(neighbors[edge], i));
+                if (back == null) {
+                    throw new IllegalArgumentException("Factor " + factors.get(i).getIdentity()
+                            + " is not a neighbor of its neighbor "
+                            + factors.get(neighbors[edge]).getIdentity());
+                }
+                reverse[edge] = back;
+            }
+        }
+
+        return new CompiledGraph(op, IntBuffer.wrap(types), IntBuffer.wrap(edgeOffsets),
+                IntBuffer.wrap(neighbors), IntBuffer.wrap(reverse), IntBuffer.wrap(intOffsets),
+                IntBuffer.wrap(parameters.getInts()), IntBuffer.wrap(doubleOffsets),
+                DoubleBuffer.wrap(parameters.getDoubles()));
+    }
+
+    private static Long key(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+
+    /**
+     * Get the maximization operator of this graph.
+     *
+     * @return maximization operator.
+     */
+    public MaxOperator getMaxOperator() {
+        return maxOperator;
+    }
+
+    /**
+     * Get the number of factors in this graph.
+     *
+     * @return number of factors.
+     */
+    public int getNumberOfFactors() {
+        return nFactors;
+    }
+
+    /**
+     * Get the number of directed edges in this graph, which is twice the number of links.
+     *
+     * @return number of directed edges.
+     */
+    public int getNumberOfEdges() {
+        return edgeOffsets.get(nFactors);
+    }
+
+    /**
+     * Get the type of the given factor.
+     *
+     * @param factor index of the factor.
+     * @return type of the factor.
+     */
+    public FactorType getType(int factor) {
+        return FactorType.fromCode(types.get(factor));
+    }
+
+    /**
+     * Get the number of neighbors of the given factor.
+     *
+     * @param factor index of the factor.
+     * @return number of neighbors of the factor.
+     */
+    public int getDegree(int factor) {
+        return edgeOffsets.get(factor + 1) - edgeOffsets.get(factor);
+    }
+
+    /**
+     * Get the first outgoing edge of the given factor.
+     *
+     * @param factor index of the factor, up to (and including) the number of factors.
+     * @return index of the first edge of the factor.
+     */
+    public int getEdgeOffset(int factor) {
+        return edgeOffsets.get(factor);
+    }
+
+    /**
+     * Get the factor that the given edge points to.
+     *
+     * @param edge index of the edge.
+     * @return index of the neighbor at the other end of the edge.
+     */
+    public int getNeighbor(int edge) {
+        return neighbors.get(edge);
+    }
+
+    /**
+     * Get the reverse of the given edge.
+     *
+     * @param edge index of the edge.
+     * @return index of the edge that goes from the neighbor back to the edge's owner.
+     */
+    public int getReverse(int edge) {
+        return reverse.get(edge);
+    }
+
+    /**
+     * Rebuild a factor object equivalent to a compiled one.
+     * <p/>
+     * The identity of the new factor is its index, and its neighbors are the indices of
+     * its neighbors in this graph. The factor has no communication adapter.
+     *
+     * @param factor index of the factor.
+     * @return new factor object.
+     */
+    public Factor<Object> instantiate(int factor) {
+        final List<Object> neighborIndices = new ArrayList<Object>(getDegree(factor));
+        for (int edge=getEdgeOffset(factor); edge<getEdgeOffset(factor + 1); edge++) {
+            neighborIndices.add(neighbors.get(edge));
+        }
+        Factor<Object> result = instantiate(factor, neighborIndices);
+        result.setIdentity(factor);
+        return result;
+    }
+
+    /**
+     * Rebuild a factor object equivalent to a compiled one, using the given objects as
+     * its neighbors.
+     */
+    Factor<Object> instantiate(int factor, List<Object> neighborObjects) {
+        return getType(factor).instantiate(new ParameterSource(this, factor),
+                Collections.unmodifiableList(neighborObjects), maxOperator);
+    }
+
+    IntBuffer getTypes() {
+        return types;
+    }
+
+    IntBuffer getEdgeOffsets() {
+        return edgeOffsets;
+    }
+
+    IntBuffer getNeighbors() {
+        return neighbors;
+    }
+
+    IntBuffer getReverses() {
+        return reverse;
+    }
+
+    IntBuffer getIntOffsets() {
+        return intOffsets;
+    }
+
+    IntBuffer getIntParameters() {
+        return intParameters;
+    }
+
+    int getIntParameterOffset(int factor) {
+        return intOffsets.get(factor);
+    }
+
+    IntBuffer getDoubleOffsets() {
+        return doubleOffsets;
+    }
+
+    DoubleBuffer getDoubleParameters() {
+        return doubleParameters;
+    }
+
+    int getDoubleParameterOffset(int factor) {
+        return doubleOffsets.get(factor);
+    }
+
+}
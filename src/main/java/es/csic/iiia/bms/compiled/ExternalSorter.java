@@ -0,0 +1,351 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts (key, value) records by key, spilling sorted runs to temporary files whenever the
+ * in-memory buffer fills up, and merging them back when the records are read.
+ * <p/>
+ * Keys must be unique, so the sort order is fully determined.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+class ExternalSorter {
+
+    /** Size in bytes of each record, both in memory and on disk */
+    public static final int RECORD_SIZE = 16;
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File directory;
+    private final int capacity;
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private final List<File> runs = new ArrayList<File>();
+
+    /**
+     * Build a new sorter.
+     *
+     * @param capacity number of records to keep in memory before spilling them.
+     * @param directory directory where to create the temporary files, or <code>null</code>
+     *                  to use the system's default one.
+     */
+    public ExternalSorter(int capacity, File directory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The sorter capacity must be positive");
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        keys = new long[Math.min(capacity, INITIAL_CAPACITY)];
+        values = new long[keys.length];
+    }
+
+    /**
+     * Get the number of runs spilled to disk so far.
+     *
+     * @return number of spilled runs.
+     */
+    public int getSpilledRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Add a record.
+     *
+     * @param key key of the record.
+     * @param value value of the record.
+     * @throws IOException if the buffer is full and can not be spilled.
+     */
+    public void add(long key, long value) throws IOException {
+        if (size == keys.length) {
+            if (size < capacity) {
+                final int newLength = (int) Math.min(capacity, 2L * size);
+                keys = Arrays.copyOf(keys, newLength);
+                values = Arrays.copyOf(values, newLength);
+            } else {
+                spill();
+            }
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+    }
+
+    private void spill() throws IOException {
+        sort(keys, values, 0, size);
+
+        File run = File.createTempFile("bms-run", ".tmp", directory);
+        runs.add(run);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run), STREAM_BUFFER_SIZE));
+        try {
+            for (int i=0; i<size; i++) {
+                out.writeLong(keys[i]);
+                out.writeLong(values[i]);
+            }
+        } finally {
+            out.close();
+        }
+        size = 0;
+    }
+
+    /**
+     * Finish adding records and get a cursor over all of them, sorted by key.
+     * <p/>
+     * The sorter releases its in-memory buffer if it had to spill any run.
+     *
+     * @return cursor over the sorted records.
+     * @throws IOException if the spilled runs can not be read.
+     */
+    public Cursor sort() throws IOException {
+        if (runs.isEmpty()) {
+            sort(keys, values, 0, size);
+            return new MemoryCursor();
+        }
+
+        if (size > 0) {
+            spill();
+        }
+        keys = null;
+        values = null;
+        return new MergeCursor();
+    }
+
+    /**
+     * Delete all the temporary files created by this sorter.
+     */
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Sort the given range of records by key, with a quicksort that recurses on the
+     * smaller partition only.
+     */
+    static void sort(long[] keys, long[] values, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            final int mid = (from + to) >>> 1;
+            final long pivot = median(keys[from], keys[mid], keys[to - 1]);
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+
+            if (j + 1 - from < to - i) {
+                sort(keys, values, from, j + 1);
+                from = i;
+            } else {
+                sort(keys, values, i, to);
+                to = j + 1;
+            }
+        }
+
+        for (int i=from+1; i<to; i++) {
+            for (int j=i; j>from && keys[j-1] > keys[j]; j--) {
+                swap(keys, values, j, j - 1);
+            }
+        }
+    }
+
+    private static long median(long a, long b, long c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+
+    private static void swap(long[] keys, long[] values, int i, int j) {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * Forward-only cursor over sorted records.
+     */
+    public static abstract class Cursor {
+        protected long key;
+        protected long value;
+
+        /**
+         * Advance to the next record.
+         *
+         * @return <code>true</code> if there is a next record, or <code>false</code> if
+         * all records have been read.
+         * @throws IOException if the records can not be read.
+         */
+        public abstract boolean next() throws IOException;
+
+        /**
+         * Release the resources held by this cursor.
+         */
+        public void close() {}
+
+        public long getKey() {
+            return key;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    private class MemoryCursor extends Cursor {
+        private int position;
+
+        @Override
+        public boolean next() {
+            if (position == size) {
+                return false;
+            }
+            key = keys[position];
+            value = values[position];
+            position++;
+            return true;
+        }
+    }
+
+    private class MergeCursor extends Cursor {
+        private final PriorityQueue<Run> queue;
+
+        public MergeCursor() throws IOException {
+            queue = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+                @Override
+                public int compare(Run a, Run b) {
+                    return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+                }
+            });
+            try {
+                for (File file : runs) {
+                    Run run = new Run(file);
+                    if (run.advance()) {
+                        queue.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            final Run run = queue.poll();
+            if (run == null) {
+                return false;
+            }
+            key = run.key;
+            value = run.value;
+            if (run.advance()) {
+                queue.add(run);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            for (Run run : queue) {
+                run.close();
+            }
+            queue.clear();
+        }
+    }
+
+    private static class Run {
+        private final DataInputStream in;
+        private long key;
+        private long value;
+
+        public Run(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), STREAM_BUFFER_SIZE));
+        }
+
+        public boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                close();
+                return false;
+            }
+            value = in.readLong();
+            return true;
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to read anyway
+            }
+        }
+    }
+
+}
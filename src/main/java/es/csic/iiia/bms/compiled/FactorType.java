@@ -0,0 +1,642 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.factors.AllActiveIncentiveFactor;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.ConditionedDeactivationFactor;
+import es.csic.iiia.bms.factors.ConditionedSelectorFactor;
+import es.csic.iiia.bms.factors.EqualityFactor;
+import es.csic.iiia.bms.factors.ImplicationFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.PairwiseFactor;
+import es.csic.iiia.bms.factors.ProxyFactor;
+import es.csic.iiia.bms.factors.SaturationFactor;
+import es.csic.iiia.bms.factors.SaturationKFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.SingleWeightFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.factors.WeightingFactor;
+import es.csic.iiia.bms.factors.twosided.AbstractTwoSidedFactor;
+import es.csic.iiia.bms.factors.twosided.EqualFactor;
+import es.csic.iiia.bms.factors.twosided.GreaterOrEqualFactor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Built-in factor types that can be stored in a {@link CompiledGraph}.
+ * <p/>
+ * Each type has a stable numeric code (used in the binary file format), knows how to
+ * dump the parameters of a factor object into integer and double streams, and how to
+ * rebuild an equivalent factor object from those streams. Parameters that refer to a
+ * neighbor (such as the condition neighbor of a {@link ConditionedSelectorFactor}) are
+ * stored as the position of that neighbor in the factor's list of neighbors.
+ * <p/>
+ * Only the exact built-in classes are recognized, because subclasses may change the
+ * behavior of the factor in ways that can not be captured by its parameters. The
+ * deprecated two-sided factors are stored as their non-deprecated counterparts.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public enum FactorType {
+
+    /** {@link VariableFactor}, without parameters. */
+    VARIABLE(0) {
+        @Override
+        Factor create(ParameterSource in) {
+            return new VariableFactor();
+        }
+    },
+
+    /** {@link EqualityFactor}, without parameters. */
+    EQUALITY(1) {
+        @Override
+        Factor create(ParameterSource in) {
+            return new EqualityFactor();
+        }
+    },
+
+    /** {@link IndependentFactor}, with one double potential per neighbor. */
+    INDEPENDENT(2) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            describePotentials((IndependentFactor) factor, out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new IndependentFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            configurePotentials((IndependentFactor) factor, neighbors, in);
+        }
+    },
+
+    /** {@link SaturationFactor}, with one double potential per neighbor. */
+    SATURATION(3) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            describePotentials((IndependentFactor) factor, out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new SaturationFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            configurePotentials((IndependentFactor) factor, neighbors, in);
+        }
+    },
+
+    /** {@link SaturationKFactor}, with an integer k and one double potential per neighbor. */
+    SATURATION_K(4) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            out.addInt(((SaturationKFactor) factor).getK());
+            describePotentials((IndependentFactor) factor, out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new SaturationKFactor(in.nextInt());
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            configurePotentials((IndependentFactor) factor, neighbors, in);
+        }
+    },
+
+    /** {@link StandardFactor}, with its full table of 2^degree double potentials. */
+    STANDARD(5) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            final double[] potential = ((StandardFactor) factor).getPotential();
+            if (potential.length != 1 << factor.getNeighbors().size()) {
+                throw new IllegalArgumentException("The potential of factor "
+                        + factor.getIdentity() + " does not match its number of neighbors");
+            }
+            for (double value : potential) {
+                out.addDouble(value);
+            }
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new StandardFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            final double[] potential = new double[1 << neighbors.size()];
+            for (int i=0; i<potential.length; i++) {
+                potential[i] = in.nextDouble();
+            }
+            ((StandardFactor) factor).setPotential(potential);
+        }
+    },
+
+    /** {@link SelectorFactor}, without parameters. */
+    SELECTOR(6) {
+        @Override
+        Factor create(ParameterSource in) {
+            return new SelectorFactor();
+        }
+    },
+
+    /** {@link AtMostOneFactor}, without parameters. */
+    AT_MOST_ONE(7) {
+        @Override
+        Factor create(ParameterSource in) {
+            return new AtMostOneFactor();
+        }
+    },
+
+    /**
+     * {@link CardinalityFactor}, with its cardinality function tabulated as degree+1
+     * double costs.
+     */
+    CARDINALITY(8) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            final CardinalityFactor.CardinalityFunction function =
+                    ((CardinalityFactor) factor).getFunction();
+            if (function == null) {
+                throw new IllegalArgumentException("Cardinality factor " + factor.getIdentity()
+                        + " has no cardinality function");
+            }
+            for (int i=0, len=factor.getNeighbors().size(); i<=len; i++) {
+                out.addDouble(function.getCost(i));
+            }
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new CardinalityFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            final double[] costs = new double[neighbors.size() + 1];
+            for (int i=0; i<costs.length; i++) {
+                costs[i] = in.nextDouble();
+            }
+            ((CardinalityFactor) factor).setFunction(new CardinalityFactor.CardinalityFunction() {
+                @Override
+                public double getCost(int nActiveVariables) {
+                    return costs[nActiveVariables];
+                }
+            });
+        }
+    },
+
+    /** {@link ConditionedSelectorFactor}, with the position of its condition neighbor. */
+    CONDITIONED_SELECTOR(9) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            describeNeighbor(factor, ((ConditionedSelectorFactor) factor).getConditionNeighbor(), out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new ConditionedSelectorFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            ((ConditionedSelectorFactor) factor).setConditionNeighbor(configureNeighbor(neighbors, in));
+        }
+    },
+
+    /** {@link ConditionedDeactivationFactor}, with the position of its exemplar. */
+    CONDITIONED_DEACTIVATION(10) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            describeNeighbor(factor, ((ConditionedDeactivationFactor) factor).getExemplar(), out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new ConditionedDeactivationFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            ((ConditionedDeactivationFactor) factor).setExemplar(configureNeighbor(neighbors, in));
+        }
+    },
+
+    /** {@link ImplicationFactor}, without parameters. */
+    IMPLICATION(11) {
+        @Override
+        Factor create(ParameterSource in) {
+            return new ImplicationFactor();
+        }
+    },
+
+    /** {@link AllActiveIncentiveFactor}, with its double incentive. */
+    ALL_ACTIVE_INCENTIVE(12) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            out.addDouble(((AllActiveIncentiveFactor) factor).getIncentive());
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new AllActiveIncentiveFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            ((AllActiveIncentiveFactor) factor).setIncentive(in.nextDouble());
+        }
+    },
+
+    /** Two-sided {@link EqualFactor}, with the number of neighbors in set A. */
+    TWO_SIDED_EQUAL(13) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            out.addInt(((AbstractTwoSidedFactor) factor).getNElementsA());
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new EqualFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            ((AbstractTwoSidedFactor) factor).setNElementsA(in.nextInt());
+        }
+    },
+
+    /** Two-sided {@link GreaterOrEqualFactor}, with the number of neighbors in set A. */
+    TWO_SIDED_GREATER_OR_EQUAL(14) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            out.addInt(((AbstractTwoSidedFactor) factor).getNElementsA());
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new GreaterOrEqualFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            ((AbstractTwoSidedFactor) factor).setNElementsA(in.nextInt());
+        }
+    },
+
+    /**
+     * {@link WeightingFactor}, with the type and parameters of its inner factor followed
+     * by one double potential per neighbor.
+     */
+    WEIGHTING(15) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            final WeightingFactor weighting = (WeightingFactor) factor;
+            describeInner(weighting, out);
+            for (Object neighbor : weighting.getNeighbors()) {
+                out.addDouble(weighting.getPotential(neighbor));
+            }
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new WeightingFactor(createInner(in));
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            final WeightingFactor weighting = (WeightingFactor) factor;
+            configureInner(weighting, neighbors, in);
+            for (Object neighbor : neighbors) {
+                weighting.setPotential(neighbor, in.nextDouble());
+            }
+        }
+    },
+
+    /**
+     * {@link SingleWeightFactor}, with the type and parameters of its inner factor
+     * followed by its double potential.
+     */
+    SINGLE_WEIGHT(16) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            final SingleWeightFactor weighting = (SingleWeightFactor) factor;
+            describeInner(weighting, out);
+            out.addDouble(weighting.getPotential());
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new SingleWeightFactor(createInner(in));
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            final SingleWeightFactor weighting = (SingleWeightFactor) factor;
+            configureInner(weighting, neighbors, in);
+            weighting.setPotential(in.nextDouble());
+        }
+    },
+
+    /**
+     * {@link PairwiseFactor}, with its table of 4 double potentials. Standard factors with
+     * exactly two neighbors are stored as this type too.
+     */
+    PAIRWISE(17) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            STANDARD.describe(factor, out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new PairwiseFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            if (!(factor instanceof PairwiseFactor)) {
+                STANDARD.configure(factor, neighbors, in);
+                return;
+            }
+            ((PairwiseFactor) factor).setPotential(in.nextDouble(), in.nextDouble(),
+                    in.nextDouble(), in.nextDouble());
+        }
+    },
+
+    /**
+     * {@link VariableFactor} with a non-zero bias, stored as a single double. Variables without
+     * bias are stored as {@link #VARIABLE}.
+     */
+    BIASED_VARIABLE(18) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            out.addDouble(((VariableFactor) factor).getBias());
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new VariableFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            ((VariableFactor) factor).setBias(in.nextDouble());
+        }
+    },
+
+    /**
+     * {@link EqualityFactor} with a non-zero bias, stored as a single double. Equality factors
+     * without bias are stored as {@link #EQUALITY}.
+     */
+    BIASED_EQUALITY(19) {
+        @Override
+        void describe(Factor factor, ParameterSink out) {
+            BIASED_VARIABLE.describe(factor, out);
+        }
+
+        @Override
+        Factor create(ParameterSource in) {
+            return new EqualityFactor();
+        }
+
+        @Override
+        void configure(Factor factor, List<Object> neighbors, ParameterSource in) {
+            BIASED_VARIABLE.configure(factor, neighbors, in);
+        }
+    };
+
+    private static final FactorType[] BY_CODE;
+    private static final Map<Class<?>, FactorType> BY_CLASS = new HashMap<Class<?>, FactorType>();
+    static {
+        BY_CODE = new FactorType[values().length];
+        for (FactorType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+
+        BY_CLASS.put(VariableFactor.class, VARIABLE);
+        BY_CLASS.put(EqualityFactor.class, EQUALITY);
+        BY_CLASS.put(IndependentFactor.class, INDEPENDENT);
+        BY_CLASS.put(SaturationFactor.class, SATURATION);
+        BY_CLASS.put(SaturationKFactor.class, SATURATION_K);
+        BY_CLASS.put(StandardFactor.class, STANDARD);
+        BY_CLASS.put(SelectorFactor.class, SELECTOR);
+        BY_CLASS.put(AtMostOneFactor.class, AT_MOST_ONE);
+        BY_CLASS.put(CardinalityFactor.class, CARDINALITY);
+        BY_CLASS.put(ConditionedSelectorFactor.class, CONDITIONED_SELECTOR);
+        BY_CLASS.put(ConditionedDeactivationFactor.class, CONDITIONED_DEACTIVATION);
+        BY_CLASS.put(ImplicationFactor.class, IMPLICATION);
+        BY_CLASS.put(AllActiveIncentiveFactor.class, ALL_ACTIVE_INCENTIVE);
+        BY_CLASS.put(EqualFactor.class, TWO_SIDED_EQUAL);
+        BY_CLASS.put(GreaterOrEqualFactor.class, TWO_SIDED_GREATER_OR_EQUAL);
+        BY_CLASS.put(WeightingFactor.class, WEIGHTING);
+        BY_CLASS.put(SingleWeightFactor.class, SINGLE_WEIGHT);
+        BY_CLASS.put(PairwiseFactor.class, PAIRWISE);
+        registerDeprecatedClasses();
+    }
+
+    /**
+     * Maps the deprecated two-sided factors to the types of their replacements.
+     */
+    @SuppressWarnings("deprecation")
+    private static void registerDeprecatedClasses() {
+        BY_CLASS.put(es.csic.iiia.bms.factors.TwoSidedEqualityFactor.class, TWO_SIDED_EQUAL);
+        BY_CLASS.put(es.csic.iiia.bms.factors.TwoSidedReserveFactor.class,
+                TWO_SIDED_GREATER_OR_EQUAL);
+    }
+
+    private final int code;
+
+    private FactorType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Get the numeric code of this type, as stored in the binary file format.
+     *
+     * @return numeric code of this type.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Get the type corresponding to the given numeric code.
+     *
+     * @param code numeric code of the type.
+     * @return type corresponding to the given code.
+     * @throws IllegalArgumentException if there is no type with the given code.
+     */
+    public static FactorType fromCode(int code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            throw new IllegalArgumentException("Unknown factor type code " + code);
+        }
+        return BY_CODE[code];
+    }
+
+    /**
+     * Get the type of the given factor.
+     *
+     * Standard factors with exactly two neighbors are {@link #PAIRWISE}, so that they are
+     * run by the specialized pairwise kernels once compiled, and variables and equality
+     * factors with a bias are {@link #BIASED_VARIABLE} and {@link #BIASED_EQUALITY}.
+     *
+     * @param factor factor whose type to get.
+     * @return type of the given factor.
+     * @throws IllegalArgumentException if the factor is not one of the built-in classes.
+     */
+    public static FactorType of(Factor<?> factor) {
+        final FactorType type = BY_CLASS.get(factor.getClass());
+        if (type == null) {
+            throw new IllegalArgumentException("Factors of class " + factor.getClass().getName()
+                    + " can not be compiled");
+        }
+        if (type == STANDARD && factor.getNeighbors().size() == 2) {
+            return PAIRWISE;
+        }
+        if (type == VARIABLE && ((VariableFactor) factor).getBias() != 0) {
+            return BIASED_VARIABLE;
+        }
+        if (type == EQUALITY && ((VariableFactor) factor).getBias() != 0) {
+            return BIASED_EQUALITY;
+        }
+        return type;
+    }
+
+    /**
+     * Build a factor object equivalent to a compiled one.
+     *
+     * @param in parameters of the compiled factor.
+     * @param neighbors neighbors of the new factor.
+     * @param op maximization operator of the new factor.
+     * @return new factor object, without identity nor communication adapter.
+     */
+    Factor<Object> instantiate(ParameterSource in, List<Object> neighbors, MaxOperator op) {
+        Factor<Object> factor = create(in);
+        factor.setMaxOperator(op);
+        for (Object neighbor : neighbors) {
+            factor.addNeighbor(neighbor);
+        }
+        configure(factor, neighbors, in);
+        return factor;
+    }
+
+    /**
+     * Dump the parameters of the given factor.
+     * <p/>
+     * Parameters must be written in the same order as they are read, first by
+     * {@link #create(ParameterSource)} and then by {@link #configure}.
+     *
+     * @param factor factor whose parameters to dump.
+     * @param out streams where to dump the parameters.
+     */
+    void describe(Factor factor, ParameterSink out) {}
+
+    /**
+     * Create a new factor object of this type, reading the parameters that must be
+     * known before adding any neighbors.
+     *
+     * @param in parameters of the compiled factor.
+     * @return new factor object.
+     */
+    abstract Factor create(ParameterSource in);
+
+    /**
+     * Configure a factor object whose neighbors have already been added, reading the
+     * remaining parameters.
+     *
+     * @param factor factor to configure.
+     * @param neighbors neighbors of the factor.
+     * @param in parameters of the compiled factor.
+     */
+    void configure(Factor factor, List<Object> neighbors, ParameterSource in) {}
+
+    private static void describePotentials(IndependentFactor factor, ParameterSink out) {
+        for (Object neighbor : factor.getNeighbors()) {
+            out.addDouble(factor.getPotential(neighbor));
+        }
+    }
+
+    private static void configurePotentials(IndependentFactor factor, List<Object> neighbors,
+            ParameterSource in)
+    {
+        for (Object neighbor : neighbors) {
+            factor.setPotential(neighbor, in.nextDouble());
+        }
+    }
+
+    private static void describeNeighbor(Factor factor, Object neighbor, ParameterSink out) {
+        out.addInt(neighbor == null ? -1 : factor.getNeighbors().indexOf(neighbor));
+    }
+
+    private static Object configureNeighbor(List<Object> neighbors, ParameterSource in) {
+        final int position = in.nextInt();
+        return position < 0 ? null : neighbors.get(position);
+    }
+
+    private static void describeInner(ProxyFactor proxy, ParameterSink out) {
+        final FactorType inner = of(proxy.getInnerFactor());
+        out.addInt(inner.code);
+        inner.describe(proxy.getInnerFactor(), out);
+    }
+
+    private static Factor createInner(ParameterSource in) {
+        return fromCode(in.nextInt()).create(in);
+    }
+
+    private static void configureInner(ProxyFactor proxy, List<Object> neighbors,
+            ParameterSource in)
+    {
+        of(proxy.getInnerFactor()).configure(proxy.getInnerFactor(), neighbors, in);
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-precision version of the {@link CompiledEngine}.
+ * <p/>
+ * Messages and the potentials used by the specialized kernels are stored as
+ * <code>float</code> values, which halves the memory traffic of each iteration at the
+ * expense of precision. Any factor type without a specialized kernel is still run by a
+ * factor object in double precision, although its messages are rounded to single
+ * precision when stored.
+ * <p/>
+ * Use a {@link PrecisionValidator} to measure how far the messages of this engine deviate
+ * from the double-precision ones on a particular graph.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class FloatEngine {
+
+    private final CompiledGraph graph;
+    private final MaxOperator op;
+    private final float[] parameters;
+    private final Factor<Object>[] objects;
+    private final CaptureAdapter capture = new CaptureAdapter();
+    private float[] messages;
+    private float[] next;
+    private float[] scratch = new float[0];
+    private long iterations;
+
+    /**
+     * Build a new engine to run the given graph.
+     * <p/>
+     * All messages are initially zero.
+     *
+     * @param graph graph to run.
+     */
+    @SuppressWarnings("unchecked")
+    public FloatEngine(CompiledGraph graph) {
+        this.graph = graph;
+        this.op = graph.getMaxOperator();
+        this.objects = (Factor<Object>[]) new Factor<?>[graph.getNumberOfFactors()];
+        this.messages = new float[graph.getNumberOfEdges()];
+        this.next = new float[graph.getNumberOfEdges()];
+
+        final DoubleBuffer doubles = graph.getDoubleParameters();
+        parameters = new float[doubles.limit()];
+        for (int i=0; i<parameters.length; i++) {
+            parameters[i] = (float) doubles.get(i);
+        }
+    }
+
+    /**
+     * Get the graph run by this engine.
+     *
+     * @return compiled graph.
+     */
+    public CompiledGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Get the last message received through the given edge.
+     *
+     * @param edge index of the edge.
+     * @return last message received by the owner of the edge from its neighbor.
+     */
+    public double getMessage(int edge) {
+        return messages[edge];
+    }
+
+    /**
+     * Set the last message received through the given edge, as if its neighbor had
+     * sent it in the previous iteration.
+     *
+     * @param edge index of the edge.
+     * @param message message to set (rounded to single precision).
+     */
+    public void setMessage(int edge, double message) {
+        messages[edge] = (float) message;
+    }
+
+    /**
+     * Get a copy of the last messages received through all the edges.
+     *
+     * @return messages, indexed by edge.
+     */
+    public float[] getMessages() {
+        return messages.clone();
+    }
+
+    /**
+     * Get the number of iterations run by this engine.
+     *
+     * @return number of iterations.
+     */
+    public long getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Set the number of iterations run by this engine.
+     *
+     * @param iterations number of iterations.
+     */
+    public void setIterations(long iterations) {
+        if (iterations < 0) {
+            throw new IllegalArgumentException("The number of iterations can not be negative");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Run a single iteration, in which every factor receives the messages sent in the
+     * previous one and sends its new messages.
+     *
+     * @return number of constraint checks performed.
+     */
+    public long run() {
+        System.arraycopy(messages, 0, next, 0, messages.length);
+
+        long constraintChecks = 0;
+        for (int factor=0, n=graph.getNumberOfFactors(); factor<n; factor++) {
+            final int start = graph.getEdgeOffset(factor);
+            final int degree = graph.getEdgeOffset(factor + 1) - start;
+            switch (graph.getType(factor)) {
+                case VARIABLE:
+                case EQUALITY:
+                    constraintChecks += runVariable(0, start, degree);
+                    break;
+                case BIASED_VARIABLE:
+                case BIASED_EQUALITY:
+                    constraintChecks += runVariable(
+                            parameters[graph.getDoubleParameterOffset(factor)], start, degree);
+                    break;
+                case INDEPENDENT:
+                    constraintChecks += runIndependent(factor, start, degree);
+                    break;
+                case STANDARD:
+                case PAIRWISE:
+                    constraintChecks += runStandard(factor, start, degree);
+                    break;
+                case SELECTOR:
+                    constraintChecks += runSelector(start, degree);
+                    break;
+                default:
+                    constraintChecks += runObject(factor, start);
+            }
+        }
+
+        final float[] swap = messages;
+        messages = next;
+        next = swap;
+        iterations++;
+        return constraintChecks;
+    }
+
+    private void send(float message, int edge) {
+        next[graph.getReverse(edge)] = message;
+    }
+
+    private long runVariable(float bias, int start, int degree) {
+        final int end = start + degree;
+        float belief = bias;
+        for (int edge=start; edge<end; edge++) {
+            belief += messages[edge];
+        }
+        for (int edge=start; edge<end; edge++) {
+            send(belief - messages[edge], edge);
+        }
+        return degree * 2;
+    }
+
+    private long runIndependent(int factor, int start, int degree) {
+        final int potentials = graph.getDoubleParameterOffset(factor);
+        for (int i=0; i<degree; i++) {
+            send(parameters[potentials + i], start + i);
+        }
+        return degree;
+    }
+
+    private long runStandard(int factor, int start, int degree) {
+        final int potentials = graph.getDoubleParameterOffset(factor);
+        final int nConfigurations = 1 << degree;
+        if (scratch.length < nConfigurations) {
+            scratch = new float[nConfigurations];
+        }
+        final float worst = (float) op.getWorstValue();
+
+        // See CompiledEngine#runStandard for the details of this kernel
+        for (int i=0; i<degree; i++) {
+            final int excluded = 1 << (degree - 1 - i);
+            scratch[0] = 0;
+            float m0 = worst, m1 = worst;
+            for (int idx=0; idx<nConfigurations; idx++) {
+                if (idx > 0) {
+                    final int lowest = idx & -idx;
+                    scratch[idx] = scratch[idx ^ lowest] + (lowest == excluded ? 0 :
+                            messages[start + degree - 1 - Integer.numberOfTrailingZeros(lowest)]);
+                }
+                final float util = parameters[potentials + idx] + scratch[idx];
+                if ((idx & excluded) != 0) {
+                    m1 = (float) op.max(util, m1);
+                } else {
+                    m0 = (float) op.max(util, m0);
+                }
+            }
+            send(m1 - m0, start + i);
+        }
+
+        return degree * degree;
+    }
+
+    private long runSelector(int start, int degree) {
+        final int end = start + degree;
+        final float worst = (float) op.getWorstValue();
+        float best = worst, second = worst;
+        int bestEdge = -1;
+        for (int edge=start; edge<end; edge++) {
+            final float value = messages[edge];
+            if (op.max(value, best) == value) {
+                second = best;
+                best = value;
+                bestEdge = edge;
+            } else if (op.max(value, second) == value) {
+                second = value;
+            }
+        }
+        for (int edge=start; edge<end; edge++) {
+            send(-(edge != bestEdge ? best : second), edge);
+        }
+        return degree * 2;
+    }
+
+    private long runObject(int factor, int start) {
+        Factor<Object> object = objects[factor];
+        if (object == null) {
+            final List<Object> neighbors = new ArrayList<Object>();
+            for (int i=0, len=graph.getDegree(factor); i<len; i++) {
+                neighbors.add(i);
+            }
+            object = graph.instantiate(factor, neighbors);
+            object.setIdentity(factor);
+            object.setCommunicationAdapter(capture);
+            objects[factor] = object;
+        }
+
+        final List<Object> neighbors = object.getNeighbors();
+        for (int i=0, len=neighbors.size(); i<len; i++) {
+            object.receive(messages[start + i], neighbors.get(i));
+        }
+        capture.start = start;
+        return object.run();
+    }
+
+    /**
+     * Adapter that forwards the messages sent by factor objects (whose neighbors are
+     * their positions) to the engine's message array.
+     */
+    private class CaptureAdapter implements CommunicationAdapter<Object> {
+        private int start;
+
+        @Override
+        public void send(double message, Object sender, Object recipient) {
+            FloatEngine.this.send((float) message, start + (Integer) recipient);
+        }
+    }
+
+}
@@ -0,0 +1,502 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.MaxOperator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Builds a {@link CompiledGraph} from a stream of factors and links, without ever
+ * having the whole graph (nor any factor objects) in memory.
+ * <p/>
+ * Factors are identified by dense indices starting at zero, and can be added in any
+ * order along with their parameters, laid out as described by their {@link FactorType}.
+ * Links can be added in any order too, even before the factors they join. The neighbors
+ * of each factor are ordered as their links were added, so parameters that depend on
+ * the order of the neighbors (such as a {@link FactorType#STANDARD} table) must follow
+ * that same order. Standard factors that end up with exactly two neighbors are stored
+ * as {@link FactorType#PAIRWISE}.
+ * <p/>
+ * Factors and links are buffered in memory until the configured budget is exhausted,
+ * and then spilled to sorted temporary files. Building the graph merges those files
+ * straight into a {@link GraphFile} through a memory mapping, and loads the result.
+ * Hence, the heap used by the builder stays within its budget regardless of the size
+ * of the graph.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class GraphBuilder {
+
+    /** Default memory budget, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final MaxOperator maxOperator;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private File directory;
+
+    private ExternalSorter links;
+    private ExternalSorter factors;
+    private File records;
+    private DataOutputStream recordStream;
+    private long recordBytes;
+
+    private int nLinks;
+    private int nFactors;
+    private int maxIndex = -1;
+    private long nInts;
+    private long nDoubles;
+    private boolean built;
+
+    /**
+     * Build a new graph builder.
+     *
+     * @param maxOperator maximization operator of the graph.
+     */
+    public GraphBuilder(MaxOperator maxOperator) {
+        this.maxOperator = maxOperator;
+    }
+
+    /**
+     * Get the memory budget of this builder.
+     *
+     * @return approximate maximum number of bytes of heap used by this builder.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory budget of this builder.
+     * <p/>
+     * Half of the budget is used to buffer links, and a quarter to buffer factors. The
+     * remaining quarter is used to pair up the two directions of each link when building.
+     *
+     * @param memoryBudget approximate maximum number of bytes of heap to use.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        checkNotStarted();
+        if (memoryBudget < 4 * ExternalSorter.RECORD_SIZE) {
+            throw new IllegalArgumentException("The memory budget is too small");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Get the directory where temporary files are created.
+     *
+     * @return directory for temporary files, or <code>null</code> if the system's default
+     * one is used.
+     */
+    public File getTemporaryDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the directory where temporary files are created.
+     *
+     * @param directory directory for temporary files, or <code>null</code> to use the
+     *                  system's default one.
+     */
+    public void setTemporaryDirectory(File directory) {
+        checkNotStarted();
+        this.directory = directory;
+    }
+
+    private void checkNotStarted() {
+        if (links != null) {
+            throw new IllegalStateException("The builder can not be configured once started");
+        }
+    }
+
+    private void start() throws IOException {
+        if (built) {
+            throw new IllegalStateException("This graph has already been built");
+        }
+        if (links != null) {
+            return;
+        }
+        links = new ExternalSorter(getCapacity(2), directory);
+        factors = new ExternalSorter(getCapacity(4), directory);
+        records = File.createTempFile("bms-factors", ".tmp", directory);
+        recordStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(records), STREAM_BUFFER_SIZE));
+    }
+
+    private int getCapacity(int fraction) {
+        return (int) Math.min(Integer.MAX_VALUE - 8,
+                memoryBudget / fraction / ExternalSorter.RECORD_SIZE);
+    }
+
+    /**
+     * Add a factor to the graph.
+     *
+     * @param factor index of the factor.
+     * @param type type of the factor.
+     * @param intParameters integer parameters of the factor, or <code>null</code> if it
+     *                      has none.
+     * @param doubleParameters double parameters of the factor, or <code>null</code> if it
+     *                         has none.
+     * @throws IOException if the factor can not be spilled to disk.
+     */
+    public void addFactor(int factor, FactorType type, int[] intParameters,
+            double[] doubleParameters) throws IOException
+    {
+        if (factor < 0) {
+            throw new IllegalArgumentException("Invalid factor index " + factor);
+        }
+        start();
+
+        if (intParameters == null) {
+            intParameters = new int[0];
+        }
+        if (doubleParameters == null) {
+            doubleParameters = new double[0];
+        }
+
+        factors.add(factor, recordBytes);
+        recordStream.writeInt(type.getCode());
+        recordStream.writeInt(intParameters.length);
+        for (int value : intParameters) {
+            recordStream.writeInt(value);
+        }
+        recordStream.writeInt(doubleParameters.length);
+        for (double value : doubleParameters) {
+            recordStream.writeDouble(value);
+        }
+        recordBytes += 12 + 4L * intParameters.length + 8L * doubleParameters.length;
+
+        nFactors++;
+        maxIndex = Math.max(maxIndex, factor);
+        nInts += intParameters.length;
+        nDoubles += doubleParameters.length;
+    }
+
+    /**
+     * Link two factors of the graph.
+     * <p/>
+     * Each factor gets the other one appended to its list of neighbors.
+     *
+     * @param factor1 index of the first factor.
+     * @param factor2 index of the second factor.
+     * @throws IOException if the link can not be spilled to disk.
+     */
+    public void addLink(int factor1, int factor2) throws IOException {
+        if (factor1 < 0 || factor2 < 0 || factor1 == factor2) {
+            throw new IllegalArgumentException("Invalid link between " + factor1 + " and "
+                    + factor2);
+        }
+        if (nLinks == Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Too many links");
+        }
+        start();
+
+        links.add(((long) factor1 << 32) | nLinks, factor2);
+        links.add(((long) factor2 << 32) | nLinks, factor1);
+        nLinks++;
+    }
+
+    /**
+     * Get the number of factors added so far.
+     *
+     * @return number of factors added.
+     */
+    public int getNumberOfFactors() {
+        return nFactors;
+    }
+
+    /**
+     * Get the number of links added so far.
+     *
+     * @return number of links added.
+     */
+    public int getNumberOfLinks() {
+        return nLinks;
+    }
+
+    /**
+     * Build the graph, writing it to the given file and loading it from there.
+     * <p/>
+     * The builder can not be used anymore after calling this method, and all its
+     * temporary files are removed.
+     *
+     * @param file file where to write the graph.
+     * @return graph backed by the written file.
+     * @throws IOException if the graph can not be written.
+     * @throws IllegalArgumentException if some factor is missing or duplicated, or a link
+     * refers to a factor that has not been added.
+     */
+    public CompiledGraph build(File file) throws IOException {
+        start();
+        built = true;
+
+        try {
+            recordStream.close();
+            if (nFactors != maxIndex + 1) {
+                throw new IllegalArgumentException("Factors must be indexed from 0 to "
+                        + (nFactors - 1) + " without gaps nor repetitions");
+            }
+            if (nInts > Integer.MAX_VALUE || nDoubles > Integer.MAX_VALUE) {
+                throw new IOException("Too many parameters for a single graph file");
+            }
+
+            final GraphFile.Layout layout = new GraphFile.Layout(nFactors, 2 * nLinks,
+                    (int) nInts, (int) nDoubles);
+            if (layout.size > Integer.MAX_VALUE) {
+                throw new IOException("The graph is too large for a single graph file");
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(layout.size);
+                final MappedByteBuffer buffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, layout.size);
+                GraphFile.writeHeader(buffer, maxOperator, nFactors, 2 * nLinks,
+                        (int) nInts, (int) nDoubles);
+                writeFactors(buffer, layout);
+                writeEdges(buffer, layout);
+                specializePairwise(buffer, layout);
+                buffer.force();
+            } finally {
+                raf.close();
+            }
+        } finally {
+            links.close();
+            factors.close();
+            records.delete();
+        }
+
+        return GraphFile.load(file);
+    }
+
+    private void writeFactors(MappedByteBuffer buffer, GraphFile.Layout layout)
+            throws IOException
+    {
+        final IntBuffer types = GraphFile.ints(buffer, layout.types, nFactors);
+        final IntBuffer intOffsets = GraphFile.ints(buffer, layout.intOffsets, nFactors + 1);
+        final IntBuffer intParameters = GraphFile.ints(buffer, layout.intParameters, (int) nInts);
+        final IntBuffer doubleOffsets = GraphFile.ints(buffer, layout.doubleOffsets, nFactors + 1);
+        final DoubleBuffer doubleParameters = GraphFile.doubles(buffer,
+                layout.doubleParameters, (int) nDoubles);
+
+        final RecordReader reader = new RecordReader(records);
+        final ExternalSorter.Cursor cursor = factors.sort();
+        try {
+            for (int factor=0; cursor.next(); factor++) {
+                if (cursor.getKey() != factor) {
+                    throw new IllegalArgumentException("Factor " + cursor.getKey()
+                            + " has been added more than once");
+                }
+
+                final DataInputStream in = reader.seek(cursor.getValue());
+                types.put(in.readInt());
+                intOffsets.put(intParameters.position());
+                final int nRecordInts = in.readInt();
+                for (int i=0; i<nRecordInts; i++) {
+                    intParameters.put(in.readInt());
+                }
+                doubleOffsets.put(doubleParameters.position());
+                final int nRecordDoubles = in.readInt();
+                for (int i=0; i<nRecordDoubles; i++) {
+                    doubleParameters.put(in.readDouble());
+                }
+            }
+            intOffsets.put(intParameters.position());
+            doubleOffsets.put(doubleParameters.position());
+        } finally {
+            cursor.close();
+            reader.close();
+        }
+    }
+
+    private void writeEdges(MappedByteBuffer buffer, GraphFile.Layout layout)
+            throws IOException
+    {
+        final int nEdges = 2 * nLinks;
+        final IntBuffer edgeOffsets = GraphFile.ints(buffer, layout.edgeOffsets, nFactors + 1);
+        final IntBuffer neighbors = GraphFile.ints(buffer, layout.neighbors, nEdges);
+        final IntBuffer reverse = GraphFile.ints(buffer, layout.reverse, nEdges);
+
+        // Edges come sorted by owner and then by link, so they can be laid out in order.
+        // Each one is then keyed by its link (and side) to find its reverse.
+        final ExternalSorter sides = new ExternalSorter(getCapacity(4), directory);
+        try {
+            ExternalSorter.Cursor cursor = links.sort();
+            try {
+                int owner = 0;
+                edgeOffsets.put(0, 0);
+                for (int edge=0; cursor.next(); edge++) {
+                    final int from = (int) (cursor.getKey() >>> 32);
+                    final long link = cursor.getKey() & 0xFFFFFFFFL;
+                    final int to = (int) cursor.getValue();
+                    if (from >= nFactors || to >= nFactors) {
+                        throw new IllegalArgumentException("Link between " + from + " and "
+                                + to + " refers to a factor that has not been added");
+                    }
+                    while (owner < from) {
+                        edgeOffsets.put(++owner, edge);
+                    }
+                    neighbors.put(edge, to);
+                    sides.add(link * 2 + (from < to ? 0 : 1), edge);
+                }
+                while (owner < nFactors) {
+                    edgeOffsets.put(++owner, nEdges);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            cursor = sides.sort();
+            try {
+                while (cursor.next()) {
+                    final int edge1 = (int) cursor.getValue();
+                    cursor.next();
+                    final int edge2 = (int) cursor.getValue();
+                    reverse.put(edge1, edge2);
+                    reverse.put(edge2, edge1);
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            sides.close();
+        }
+    }
+
+    /**
+     * Turns the standard factors that have ended up with exactly two neighbors into
+     * pairwise ones, which share the same parameters.
+     */
+    private void specializePairwise(MappedByteBuffer buffer, GraphFile.Layout layout) {
+        final IntBuffer types = GraphFile.ints(buffer, layout.types, nFactors);
+        final IntBuffer edgeOffsets = GraphFile.ints(buffer, layout.edgeOffsets, nFactors + 1);
+        for (int factor=0; factor<nFactors; factor++) {
+            if (types.get(factor) == FactorType.STANDARD.getCode()
+                    && edgeOffsets.get(factor + 1) - edgeOffsets.get(factor) == 2) {
+                types.put(factor, FactorType.PAIRWISE.getCode());
+            }
+        }
+    }
+
+    /**
+     * Reads factor records from the records file through a single buffer, which is only
+     * refilled when a record lies outside of it. Hence, records are read without copies nor
+     * allocations as long as they are read sequentially (which is the case when factors were
+     * added in order), and out of order records cost a single read from the file.
+     */
+    private static class RecordReader extends InputStream {
+        private final RandomAccessFile file;
+        private final DataInputStream in;
+        private final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        private long start;
+        private int limit;
+        private int position;
+
+        public RecordReader(File records) throws IOException {
+            file = new RandomAccessFile(records, "r");
+            in = new DataInputStream(this);
+        }
+
+        public DataInputStream seek(long offset) {
+            if (offset >= start && offset <= start + limit) {
+                position = (int) (offset - start);
+            } else {
+                start = offset;
+                limit = 0;
+                position = 0;
+            }
+            return in;
+        }
+
+        /**
+         * Refills the buffer with the bytes that follow its current contents.
+         */
+        private boolean fill() throws IOException {
+            start += limit;
+            limit = 0;
+            position = 0;
+            file.seek(start);
+            final int n = file.read(buffer);
+            if (n <= 0) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary file format for {@link CompiledGraph}s.
+ * <p/>
+ * Files are big-endian and start with a header of eight integers: the magic number
+ * {@link #MAGIC}, the format {@link #VERSION}, the max operator (0 for maximize, 1 for
+ * minimize), the number of factors <em>n</em>, the number of directed edges <em>e</em>,
+ * the number of integer parameters <em>i</em>, the number of double parameters
+ * <em>d</em> and a reserved zero. The header is followed by these sections:
+ * <ol>
+ * <li>factor type codes (<em>n</em> ints),</li>
+ * <li>edge offsets (<em>n+1</em> ints),</li>
+ * <li>edge neighbors (<em>e</em> ints),</li>
+ * <li>reverse edges (<em>e</em> ints),</li>
+ * <li>integer parameter offsets (<em>n+1</em> ints),</li>
+ * <li>integer parameters (<em>i</em> ints),</li>
+ * <li>double parameter offsets (<em>n+1</em> ints),</li>
+ * <li>padding up to a multiple of eight bytes, and</li>
+ * <li>double parameters (<em>d</em> doubles).</li>
+ * </ol>
+ * Loading a file maps it into memory and wraps each section in a buffer view, so the
+ * resulting graph is built without copying or parsing its contents.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class GraphFile {
+
+    /** Magic number at the start of every graph file ("BMSG") */
+    public static final int MAGIC = 0x424D5347;
+
+    /** Version of the format written by this class */
+    public static final int VERSION = 1;
+
+    /** Size of the file header, in bytes */
+    public static final int HEADER_SIZE = 32;
+
+    private static final int OPERATOR_MAXIMIZE = 0;
+    private static final int OPERATOR_MINIMIZE = 1;
+
+    private GraphFile() {}
+
+    /**
+     * Write the given graph to a file.
+     *
+     * @param graph graph to write.
+     * @param file file where to write it.
+     * @throws IOException if the file can not be written.
+     */
+    public static void write(CompiledGraph graph, File file) throws IOException {
+        final int nFactors = graph.getNumberOfFactors();
+        final int nEdges = graph.getNumberOfEdges();
+        final int nInts = graph.getIntParameters().limit();
+        final int nDoubles = graph.getDoubleParameters().limit();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(getOperatorCode(graph.getMaxOperator()));
+            out.writeInt(nFactors);
+            out.writeInt(nEdges);
+            out.writeInt(nInts);
+            out.writeInt(nDoubles);
+            out.writeInt(0);
+
+            writeInts(out, graph.getTypes());
+            writeInts(out, graph.getEdgeOffsets());
+            writeInts(out, graph.getNeighbors());
+            writeInts(out, graph.getReverses());
+            writeInts(out, graph.getIntOffsets());
+            writeInts(out, graph.getIntParameters());
+            writeInts(out, graph.getDoubleOffsets());
+            if (new Layout(nFactors, nEdges, nInts, nDoubles).padding != 0) {
+                out.writeInt(0);
+            }
+
+            final DoubleBuffer doubles = graph.getDoubleParameters();
+            for (int i=0; i<nDoubles; i++) {
+                out.writeDouble(doubles.get(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, IntBuffer values) throws IOException {
+        for (int i=0, len=values.limit(); i<len; i++) {
+            out.writeInt(values.get(i));
+        }
+    }
+
+    /**
+     * Load a graph from a file, mapping it into memory.
+     * <p/>
+     * The returned graph reads its data straight from the mapped file, which must not
+     * be modified while the graph is in use.
+     *
+     * @param file file to load.
+     * @return graph backed by the mapped file.
+     * @throws IOException if the file can not be read or is not a valid graph file.
+     */
+    public static CompiledGraph load(File file) throws IOException {
+        final MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("File " + file + " is too short to be a graph file");
+            }
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " is too large to be mapped");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("File " + file + " is not a graph file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported graph file version " + buffer.getInt(4));
+        }
+        final MaxOperator op = getOperator(buffer.getInt(8));
+        final int nFactors = buffer.getInt(12);
+        final int nEdges = buffer.getInt(16);
+        final int nInts = buffer.getInt(20);
+        final int nDoubles = buffer.getInt(24);
+        if (nFactors < 0 || nEdges < 0 || nInts < 0 || nDoubles < 0) {
+            throw new IOException("Corrupted graph file header");
+        }
+
+        final Layout layout = new Layout(nFactors, nEdges, nInts, nDoubles);
+        if (layout.size != buffer.capacity()) {
+            throw new IOException("The size of file " + file + " does not match its header");
+        }
+
+        final IntBuffer types = ints(buffer, layout.types, nFactors);
+        final IntBuffer edgeOffsets = ints(buffer, layout.edgeOffsets, nFactors + 1);
+        final IntBuffer neighbors = ints(buffer, layout.neighbors, nEdges);
+        final IntBuffer reverse = ints(buffer, layout.reverse, nEdges);
+        final IntBuffer intOffsets = ints(buffer, layout.intOffsets, nFactors + 1);
+        final IntBuffer intParameters = ints(buffer, layout.intParameters, nInts);
+        final IntBuffer doubleOffsets = ints(buffer, layout.doubleOffsets, nFactors + 1);
+        final DoubleBuffer doubleParameters = doubles(buffer, layout.doubleParameters, nDoubles);
+
+        if (edgeOffsets.get(nFactors) != nEdges || intOffsets.get(nFactors) != nInts
+                || doubleOffsets.get(nFactors) != nDoubles) {
+            throw new IOException("Corrupted graph file " + file);
+        }
+
+        return new CompiledGraph(op, types, edgeOffsets, neighbors, reverse, intOffsets,
+                intParameters, doubleOffsets, doubleParameters);
+    }
+
+    static IntBuffer ints(ByteBuffer buffer, long position, int count) {
+        return slice(buffer, position, 4L * count).asIntBuffer();
+    }
+
+    static DoubleBuffer doubles(ByteBuffer buffer, long position, int count) {
+        return slice(buffer, position, 8L * count).asDoubleBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long position, long length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) position);
+        view.limit((int) (position + length));
+        return view.slice();
+    }
+
+    static void writeHeader(ByteBuffer buffer, MaxOperator op, int nFactors, int nEdges,
+            int nInts, int nDoubles)
+    {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, getOperatorCode(op));
+        buffer.putInt(12, nFactors);
+        buffer.putInt(16, nEdges);
+        buffer.putInt(20, nInts);
+        buffer.putInt(24, nDoubles);
+        buffer.putInt(28, 0);
+    }
+
+    private static int getOperatorCode(MaxOperator op) {
+        if (op instanceof Maximize) {
+            return OPERATOR_MAXIMIZE;
+        }
+        if (op instanceof Minimize) {
+            return OPERATOR_MINIMIZE;
+        }
+        throw new IllegalArgumentException("Unsupported max operator " + op.getClass().getName());
+    }
+
+    private static MaxOperator getOperator(int code) throws IOException {
+        switch (code) {
+            case OPERATOR_MAXIMIZE:
+                return new Maximize();
+            case OPERATOR_MINIMIZE:
+                return new Minimize();
+            default:
+                throw new IOException("Unknown max operator code " + code);
+        }
+    }
+
+    /**
+     * Byte positions of each section in a graph file with the given element counts.
+     */
+    static class Layout {
+        final long types;
+        final long edgeOffsets;
+        final long neighbors;
+        final long reverse;
+        final long intOffsets;
+        final long intParameters;
+        final long doubleOffsets;
+        final long doubleParameters;
+        final long size;
+        final int padding;
+
+        Layout(int nFactors, int nEdges, int nInts, int nDoubles) {
+            types = HEADER_SIZE;
+            edgeOffsets = types + 4L * nFactors;
+            neighbors = edgeOffsets + 4L * (nFactors + 1);
+            reverse = neighbors + 4L * nEdges;
+            intOffsets = reverse + 4L * nEdges;
+            intParameters = intOffsets + 4L * (nFactors + 1);
+            doubleOffsets = intParameters + 4L * nInts;
+            final long end = doubleOffsets + 4L * (nFactors + 1);
+            padding = (int) (end % 8);
+            doubleParameters = end + padding;
+            size = doubleParameters + 8L * nDoubles;
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import java.util.Arrays;
+
+/**
+ * Growable streams of integer and double parameters, where factor types dump their
+ * parameters when a graph gets compiled.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+class ParameterSink {
+
+    private int[] ints = new int[16];
+    private int nInts;
+    private double[] doubles = new double[16];
+    private int nDoubles;
+
+    public void addInt(int value) {
+        if (nInts == ints.length) {
+            ints = Arrays.copyOf(ints, ints.length * 2);
+        }
+        ints[nInts++] = value;
+    }
+
+    public void addDouble(double value) {
+        if (nDoubles == doubles.length) {
+            doubles = Arrays.copyOf(doubles, doubles.length * 2);
+        }
+        doubles[nDoubles++] = value;
+    }
+
+    public int getIntCount() {
+        return nInts;
+    }
+
+    public int getDoubleCount() {
+        return nDoubles;
+    }
+
+    public int[] getInts() {
+        return Arrays.copyOf(ints, nInts);
+    }
+
+    public double[] getDoubles() {
+        return Arrays.copyOf(doubles, nDoubles);
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a {@link FloatEngine} in lockstep with a double-precision {@link CompiledEngine}
+ * on the same graph, tracking the largest deviation between their messages.
+ * <p/>
+ * This allows checking whether single precision is enough for a given kind of problem
+ * before switching to it.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class PrecisionValidator {
+    private static final Logger LOG = Logger.getLogger(PrecisionValidator.class.getName());
+
+    private final CompiledEngine reference;
+    private final FloatEngine engine;
+    private double maxDeviation;
+    private int worstEdge = -1;
+    private long worstIteration = -1;
+
+    /**
+     * Build a new validator for the given graph.
+     *
+     * @param graph graph to run.
+     */
+    public PrecisionValidator(CompiledGraph graph) {
+        reference = new CompiledEngine(graph);
+        engine = new FloatEngine(graph);
+    }
+
+    /**
+     * Get the double-precision engine used as reference.
+     *
+     * @return reference engine.
+     */
+    public CompiledEngine getReference() {
+        return reference;
+    }
+
+    /**
+     * Get the single-precision engine being validated.
+     *
+     * @return single-precision engine.
+     */
+    public FloatEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Run the given number of iterations on both engines, comparing their messages after
+     * each one.
+     *
+     * @param nIterations number of iterations to run.
+     * @return largest absolute deviation found in these iterations.
+     */
+    public double run(int nIterations) {
+        double deviation = 0;
+        for (int i=0; i<nIterations; i++) {
+            reference.run();
+            engine.run();
+
+            double iterationDeviation = 0;
+            int iterationEdge = -1;
+            for (int edge=0, n=reference.getGraph().getNumberOfEdges(); edge<n; edge++) {
+                final double d = Math.abs(reference.getMessage(edge) - engine.getMessage(edge));
+                if (d > iterationDeviation) {
+                    iterationDeviation = d;
+                    iterationEdge = edge;
+                }
+            }
+            LOG.log(Level.FINE, "Iteration {0}: maximum deviation {1} at edge {2}",
+                    new Object[]{reference.getIterations(), iterationDeviation, iterationEdge});
+
+            deviation = Math.max(deviation, iterationDeviation);
+            if (iterationDeviation > maxDeviation) {
+                maxDeviation = iterationDeviation;
+                worstEdge = iterationEdge;
+                worstIteration = reference.getIterations();
+            }
+        }
+        return deviation;
+    }
+
+    /**
+     * Get the largest absolute deviation found so far.
+     *
+     * @return largest deviation.
+     */
+    public double getMaxDeviation() {
+        return maxDeviation;
+    }
+
+    /**
+     * Get the edge where the largest deviation was found.
+     *
+     * @return edge of the largest deviation, or -1 if there has not been any.
+     */
+    public int getWorstEdge() {
+        return worstEdge;
+    }
+
+    /**
+     * Get the iteration where the largest deviation was found.
+     *
+     * @return iteration of the largest deviation, or -1 if there has not been any.
+     */
+    public long getWorstIteration() {
+        return worstIteration;
+    }
+
+}
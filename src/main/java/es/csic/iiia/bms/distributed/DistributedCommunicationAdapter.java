@@ -0,0 +1,283 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Base class of the communication adapters that deliver messages by rounds (like the
+ * {@link es.csic.iiia.bms.TickCommunicationAdapter}) between factors running in different
+ * processes.
+ * <p/>
+ * Every factor of the graph is identified by a global integer id, and is owned (run) by a single
+ * process. Each process registers its own factors through
+ * {@link #addLocalFactor(int, Factor)}, and the identities of the remote factors that are
+ * neighbors of its local ones through {@link #addRemoteFactor(int, int, Object)} (or
+ * {@link #addRemoteFactor(int, int)} to get a {@link RemoteFactor} stub).
+ * <p/>
+ * Once connected, ticking the adapter acts as a distributed barrier: it blocks until all the
+ * processes have ticked, and then delivers all the messages sent during the round to the local
+ * factors. These adapters are not thread-safe: all the local factors must be run from the same
+ * thread.
+ *
+ * @see DistributedEngine
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public abstract class DistributedCommunicationAdapter implements CommunicationAdapter<Object> {
+
+    /**
+     * Lexicographic order of edges given as pairs of factor ids, which lets two processes
+     * agree on the numbering of the edges between their factors.
+     */
+    protected static final Comparator<int[]> EDGE_COMPARATOR = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] e1, int[] e2) {
+            if (e1[0] != e2[0]) {
+                return e1[0] < e2[0] ? -1 : 1;
+            }
+            return e1[1] == e2[1] ? 0 : (e1[1] < e2[1] ? -1 : 1);
+        }
+    };
+
+    private final int rank;
+    private final int nProcesses;
+    private long delivered;
+    private final Map<Object, Endpoint> endpoints = new HashMap<Object, Endpoint>();
+    private final Map<Integer, Endpoint> endpointsById = new HashMap<Integer, Endpoint>();
+
+    /**
+     * Build a new distributed communication adapter.
+     *
+     * @param rank rank of this process.
+     * @param nProcesses total number of processes.
+     */
+    public DistributedCommunicationAdapter(int rank, int nProcesses) {
+        if (rank < 0 || rank >= nProcesses) {
+            throw new IllegalArgumentException("Invalid rank " + rank + " for " + nProcesses + " processes");
+        }
+        this.rank = rank;
+        this.nProcesses = nProcesses;
+    }
+
+    /**
+     * Get the rank of this process.
+     *
+     * @return rank of this process.
+     */
+    public int getRank() {
+        return rank;
+    }
+
+    /**
+     * Get the total number of processes.
+     *
+     * @return number of processes.
+     */
+    public int getNumberOfProcesses() {
+        return nProcesses;
+    }
+
+    /**
+     * Registers a factor run by this process.
+     *
+     * @param id global identifier of the factor.
+     * @param factor local factor.
+     */
+    public void addLocalFactor(int id, Factor<?> factor) {
+        register(new Endpoint(id, rank, factor.getIdentity(), factor));
+    }
+
+    /**
+     * Registers the identity of a factor run by another process.
+     *
+     * @param id global identifier of the factor.
+     * @param owner rank of the process that runs the factor.
+     * @param identity identity used by the local factors to refer to the remote one.
+     */
+    public void addRemoteFactor(int id, int owner, Object identity) {
+        if (owner < 0 || owner >= nProcesses || owner == rank) {
+            throw new IllegalArgumentException("Invalid owner " + owner + " for remote factor " + id);
+        }
+        register(new Endpoint(id, owner, identity, null));
+    }
+
+    /**
+     * Registers a factor run by another process, creating a stub to represent it.
+     *
+     * @param id global identifier of the factor.
+     * @param owner rank of the process that runs the factor.
+     * @return stub to be used as neighbor of the local factors.
+     */
+    public RemoteFactor<Object> addRemoteFactor(int id, int owner) {
+        RemoteFactor<Object> stub = new RemoteFactor<Object>(id, owner);
+        stub.setIdentity(stub);
+        addRemoteFactor(id, owner, stub);
+        return stub;
+    }
+
+    private void register(Endpoint endpoint) {
+        if (endpointsById.containsKey(endpoint.id)) {
+            throw new IllegalArgumentException("Duplicated factor id " + endpoint.id);
+        }
+        endpoints.put(endpoint.identity, endpoint);
+        endpointsById.put(endpoint.id, endpoint);
+    }
+
+    /**
+     * Get the registered factor with the given identity.
+     *
+     * @param identity identity of the factor.
+     * @return registration of that factor.
+     */
+    protected Endpoint getEndpoint(Object identity) {
+        final Endpoint endpoint = endpoints.get(identity);
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Factor " + identity + " has not been registered");
+        }
+        return endpoint;
+    }
+
+    /**
+     * Get the registered factor with the given global identifier.
+     *
+     * @param id global identifier of the factor.
+     * @return registration of that factor, or <code>null</code> if there is none.
+     */
+    protected Endpoint getEndpoint(int id) {
+        return endpointsById.get(id);
+    }
+
+    /**
+     * Get all the registered factors.
+     *
+     * @return registrations of all the local and remote factors.
+     */
+    protected Collection<Endpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(endpointsById.values());
+    }
+
+    /**
+     * Delivers a message to a local factor.
+     *
+     * @param message message to deliver.
+     * @param sender registration of the sender.
+     * @param recipient registration of the (local) recipient.
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    protected void deliver(double message, Endpoint sender, Endpoint recipient) {
+        if (recipient.factor == null) {
+            throw new IllegalStateException("Process " + rank + " received a message for remote factor " + recipient.id);
+        }
+        ((Factor)recipient.factor).receive(message, sender.identity);
+        delivered++;
+    }
+
+    /**
+     * Get the number of messages delivered to local factors since the creation of this adapter.
+     *
+     * @return number of messages delivered.
+     */
+    public long getMessagesDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Get a key that identifies the edge from the given sender to the given recipient.
+     *
+     * @param sender global identifier of the sender.
+     * @param recipient global identifier of the recipient.
+     * @return key of the edge.
+     */
+    protected static long getEdgeKey(int sender, int recipient) {
+        return ((long)sender << 32) | (recipient & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Establishes the connections with all the other processes.
+     *
+     * @param timeout maximum time (in milliseconds) to wait for the other processes.
+     * @throws IOException if the connections can not be established.
+     */
+    public abstract void connect(long timeout) throws IOException;
+
+    /**
+     * Exchanges the messages sent since the last tick with all the other processes, and delivers
+     * them (along with the local ones) to the local factors.
+     * <p/>
+     * This method blocks until all the other processes have ticked too.
+     *
+     * @throws IOException if the messages can not be exchanged.
+     */
+    public abstract void tick() throws IOException;
+
+    /**
+     * Closes all the connections with the other processes.
+     *
+     * @throws IOException if the connections can not be closed.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Factor of the distributed graph, along with the process that owns it.
+     */
+    protected static class Endpoint {
+        /** Global identifier of the factor */
+        public final int id;
+        /** Rank of the process that runs the factor */
+        public final int owner;
+        /** Identity of the factor in this process */
+        public final Object identity;
+        /** The factor itself, or <code>null</code> if it is a remote one */
+        public final Factor<?> factor;
+
+        public Endpoint(int id, int owner, Object identity, Factor<?> factor) {
+            this.id = id;
+            this.owner = owner;
+            this.identity = identity;
+            this.factor = factor;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.Factor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Engine that runs the part of a max-sum graph owned by this process, exchanging messages with
+ * the processes that run the rest of the graph.
+ * <p/>
+ * Typical usage is:
+ * <pre>
+ * DistributedEngine engine = new DistributedEngine(rank, addresses);
+ * // Register the local and remote factors (or split a whole graph with split())
+ * engine.addFactor(id, factor);
+ * engine.getCommunicationAdapter().addRemoteFactor(neighborId, neighborOwner, neighbor);
+ * ...
+ * engine.connect(timeout);
+ * for (int i=0; i&lt;nIterations; i++) {
+ *     engine.run();
+ * }
+ * engine.close();
+ * </pre>
+ * All processes must run the same number of iterations, because each iteration ends with a
+ * distributed barrier.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class DistributedEngine {
+    private static final Logger LOG = Logger.getLogger(DistributedEngine.class.getName());
+
+    private final DistributedCommunicationAdapter adapter;
+    private final List<Factor<?>> factors = new ArrayList<Factor<?>>();
+
+    /**
+     * Build a new distributed engine, whose processes communicate through sockets.
+     *
+     * @param rank rank of this process.
+     * @param addresses addresses where each process (indexed by rank) listens for connections.
+     */
+    public DistributedEngine(int rank, InetSocketAddress[] addresses) {
+        this(new SocketCommunicationAdapter(rank, addresses));
+    }
+
+    /**
+     * Build a new distributed engine that uses the given communication adapter.
+     *
+     * @param adapter communication adapter to use.
+     */
+    public DistributedEngine(DistributedCommunicationAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Get the communication adapter used by the local factors.
+     *
+     * @return communication adapter of this engine.
+     */
+    public DistributedCommunicationAdapter getCommunicationAdapter() {
+        return adapter;
+    }
+
+    /**
+     * Get the factors run by this process.
+     *
+     * @return list of local factors.
+     */
+    public List<Factor<?>> getFactors() {
+        return Collections.unmodifiableList(factors);
+    }
+
+    /**
+     * Adds a factor to be run by this process, setting its communication adapter.
+     *
+     * @param id global identifier of the factor.
+     * @param factor factor to run.
+     */
+    public void addFactor(int id, Factor<?> factor) {
+        install(factor);
+        adapter.addLocalFactor(id, factor);
+        factors.add(factor);
+    }
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private void install(Factor factor) {
+        factor.setCommunicationAdapter(adapter);
+    }
+
+    /**
+     * Splits a whole graph among the processes, taking the position of each factor in the list
+     * as its global identifier.
+     * <p/>
+     * This is a convenience method for when every process can build the whole graph. The factors
+     * owned by this process are added to the engine, whereas all the other ones are registered as
+     * remote factors (and never run).
+     *
+     * @param graph all the factors of the graph.
+     * @param owners rank of the process that owns each factor.
+     * @return factors owned by this process.
+     */
+    public List<Factor<?>> split(List<? extends Factor<?>> graph, int[] owners) {
+        if (graph.size() != owners.length) {
+            throw new IllegalArgumentException("There must be exactly one owner for each factor");
+        }
+
+        final int rank = adapter.getRank();
+        for (int i=0; i<owners.length; i++) {
+            final Factor<?> factor = graph.get(i);
+            if (owners[i] == rank) {
+                addFactor(i, factor);
+            } else {
+                adapter.addRemoteFactor(i, owners[i], factor.getIdentity());
+            }
+        }
+
+        return getFactors();
+    }
+
+    /**
+     * Establishes the connections with all the other processes.
+     *
+     * @param timeout maximum time (in milliseconds) to wait for the other processes.
+     * @throws IOException if the connections can not be established.
+     */
+    public void connect(long timeout) throws IOException {
+        adapter.connect(timeout);
+    }
+
+    /**
+     * Run an iteration, in which every local factor is run once and the resulting messages are
+     * exchanged with the other processes.
+     *
+     * @return number of constraint checks performed by the local factors.
+     * @throws IOException if the messages can not be exchanged.
+     */
+    public long run() throws IOException {
+        long constraintChecks = 0;
+        for (Factor<?> factor : factors) {
+            constraintChecks += factor.run();
+        }
+        adapter.tick();
+
+        LOG.log(Level.FINE, "Process {0} finished an iteration with {1} constraint checks",
+                new Object[]{adapter.getRank(), constraintChecks});
+        return constraintChecks;
+    }
+
+    /**
+     * Closes all the connections with the other processes.
+     *
+     * @throws IOException if the connections can not be closed.
+     */
+    public void close() throws IOException {
+        adapter.close();
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of the messages sent through one direction of a connection between two
+ * processes, whose edges have been numbered the same way by both of them.
+ * <p/>
+ * The messages of each tick are encoded as a batch, ordered by edge index. The batch starts
+ * with its scale (an 8-byte double), followed by each message encoded as the gap from the
+ * previous edge index (as a varint) and the difference between the new message and the last
+ * one received through that edge, quantized to a 16-bit multiple of the scale. The scale is
+ * chosen so that the quantization error never exceeds the error bound, and differences that
+ * can not be quantized within it (or are not finite) are escaped and sent as the full 8-byte
+ * value instead. Empty batches are encoded as zero bytes.
+ * <p/>
+ * Since both ends keep the last value received through each edge, quantization errors do not
+ * accumulate over ticks: every decoded message is within the error bound of the sent one.
+ * <p/>
+ * Each instance holds the state of one end of the connection, so a process needs one codec
+ * to encode its outgoing messages and another one to decode the incoming ones.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+final class QuantizedCodec {
+
+    /** Quantized value that marks an escaped message */
+    static final short ESCAPE = Short.MIN_VALUE;
+
+    /** Largest quantized difference */
+    static final int MAX_QUANTUM = Short.MAX_VALUE;
+
+    /** Maximum size of an encoded message, in bytes */
+    static final int MAX_MESSAGE_SIZE = 5 + 2 + 8;
+
+    private final double errorBound;
+    private final double[] reference;
+    private final double[] pending;
+    private final boolean[] present;
+    private final int[] touched;
+    private int nTouched;
+
+    /**
+     * Receives the messages decoded by a codec.
+     */
+    interface Receiver {
+        void receive(int edge, double message);
+    }
+
+    /**
+     * Build a new codec.
+     *
+     * @param nEdges number of edges of the connection direction.
+     * @param errorBound maximum absolute error of the decoded messages.
+     */
+    QuantizedCodec(int nEdges, double errorBound) {
+        this.errorBound = errorBound;
+        reference = new double[nEdges];
+        pending = new double[nEdges];
+        present = new boolean[nEdges];
+        touched = new int[nEdges];
+    }
+
+    /**
+     * Queue a message to be encoded in the next batch, replacing any previous message queued
+     * for the same edge.
+     */
+    void put(int edge, double message) {
+        if (!present[edge]) {
+            present[edge] = true;
+            touched[nTouched++] = edge;
+        }
+        pending[edge] = message;
+    }
+
+    /**
+     * Get the number of messages queued for the next batch.
+     */
+    int getPendingCount() {
+        return nTouched;
+    }
+
+    /**
+     * Get the maximum size of the next batch, in bytes.
+     */
+    int getMaxEncodedSize() {
+        return nTouched == 0 ? 0 : 8 + nTouched * MAX_MESSAGE_SIZE;
+    }
+
+    /**
+     * Encode the queued messages into the given buffer, which must have at least
+     * {@link #getMaxEncodedSize()} bytes remaining.
+     */
+    void encode(ByteBuffer out) {
+        if (nTouched == 0) {
+            return;
+        }
+        Arrays.sort(touched, 0, nTouched);
+
+        double maxDifference = 0;
+        for (int i=0; i<nTouched; i++) {
+            final double difference = Math.abs(pending[touched[i]] - reference[touched[i]]);
+            if (difference <= Double.MAX_VALUE) {
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+        final double scale = Math.min(maxDifference / MAX_QUANTUM, 2 * errorBound);
+        out.putDouble(scale);
+
+        int previous = 0;
+        for (int i=0; i<nTouched; i++) {
+            final int edge = touched[i];
+            putVarint(out, edge - previous);
+            previous = edge;
+
+            final double difference = pending[edge] - reference[edge];
+            final long q = scale > 0 ? Math.round(difference / scale) : 0;
+            if (difference == 0) {
+                out.putShort((short) 0);
+            } else if (scale > 0 && Math.abs(difference) <= Double.MAX_VALUE
+                    && Math.abs(q) <= MAX_QUANTUM) {
+                out.putShort((short) q);
+                reference[edge] += q * scale;
+            } else {
+                out.putShort(ESCAPE);
+                out.putDouble(pending[edge]);
+                reference[edge] = pending[edge];
+            }
+            present[edge] = false;
+        }
+        nTouched = 0;
+    }
+
+    /**
+     * Decode a whole batch from the given buffer, passing each message to the receiver.
+     */
+    void decode(ByteBuffer in, Receiver receiver) {
+        if (!in.hasRemaining()) {
+            return;
+        }
+
+        final double scale = in.getDouble();
+        int edge = 0;
+        while (in.hasRemaining()) {
+            edge += getVarint(in);
+            if (edge >= reference.length) {
+                throw new IllegalStateException("Received a message through unknown edge " + edge);
+            }
+            final short q = in.getShort();
+            if (q == ESCAPE) {
+                reference[edge] = in.getDouble();
+            } else {
+                reference[edge] += q * scale;
+            }
+            receiver.receive(edge, reference[edge]);
+        }
+    }
+
+    /**
+     * Writes a non-negative integer using 7 bits per byte, lowest bits first, with the highest
+     * bit of each byte marking whether more bytes follow.
+     */
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a non-negative integer written by {@link #putVarint(ByteBuffer, int)}.
+     */
+    static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift=0; shift<32; shift+=7) {
+            final byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.factors.AbstractFactor;
+
+import java.util.Map;
+
+/**
+ * Stub representing a factor that lives in another process.
+ * <p/>
+ * Remote factors are only meant to be used as neighbors (identities) of the local factors, so
+ * that messages sent to them get routed to their owner process. They can not be run nor
+ * evaluated locally.
+ *
+ * @param <T> type of the factor's identity.
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class RemoteFactor<T> extends AbstractFactor<T> {
+
+    private final int id;
+    private final int owner;
+
+    /**
+     * Build a new remote factor stub.
+     *
+     * @param id global identifier of the factor.
+     * @param owner rank of the process that runs the factor.
+     */
+    public RemoteFactor(int id, int owner) {
+        this.id = id;
+        this.owner = owner;
+    }
+
+    /**
+     * Get the global identifier of this factor.
+     *
+     * @return global identifier of this factor.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the rank of the process that runs this factor.
+     *
+     * @return rank of the owner process.
+     */
+    public int getOwner() {
+        return owner;
+    }
+
+    @Override
+    protected double eval(Map<T, Boolean> values) {
+        throw new UnsupportedOperationException("Remote factors can not be evaluated locally");
+    }
+
+    @Override
+    public long run() {
+        throw new UnsupportedOperationException("Remote factors can not be run locally");
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteFactor[" + id + "@" + owner + "]";
+    }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.metrics.SolverTrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Distributed communication adapter for processes running in the same host, which exchange
+ * their messages through memory-mapped files.
+ * <p/>
+ * Every pair of processes that share some edge of the graph maps a common file, where each
+ * directed edge between them owns a fixed slot. Messages are kept as they are sent, and written
+ * into the slots of their edges when the process ticks, so they are never serialized. Slots are
+ * double-buffered (ticks alternate between two regions), so a process can start writing the
+ * messages of the next tick while its neighbors are still reading the ones of the current tick.
+ * <p/>
+ * The Java memory model does not order the accesses of different processes to a mapped file, so
+ * readers never rely on the order in which the writes of another process become visible.
+ * Instead, each slot holds the message, the tick in which it has been written and a checksum of
+ * both, and each region starts with a header (in the same format) that holds the number of slots
+ * written in that tick. Readers only accept entries of the current tick with a valid checksum,
+ * and keep re-reading the region until they have accepted as many slots as announced by its
+ * header. Hence, edges without any message in a tick are not delivered, and stale or partially
+ * visible entries are never delivered either.
+ * <p/>
+ * The tick barrier is implemented in another mapped file, where each process announces the last
+ * tick it has reached and then spins until all the others have reached it too. Announcements
+ * only grow, so reading a stale one just delays the barrier.
+ * <p/>
+ * All the processes must use the same (initially empty) directory to hold these files, and the
+ * directory should be removed once all of them have finished.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class SharedMemoryCommunicationAdapter extends DistributedCommunicationAdapter {
+    private static final Logger LOG = Logger.getLogger(SharedMemoryCommunicationAdapter.class.getName());
+
+    /** Size of each edge slot (message, tick and checksum), in bytes */
+    public static final int SLOT_SIZE = 24;
+
+    /** Size of the barrier entry of each process, in bytes (one cache line to avoid false sharing) */
+    public static final int BARRIER_ENTRY_SIZE = 64;
+
+    private final File directory;
+    private final List<double[]> localMessages = new ArrayList<double[]>();
+    private final List<Endpoint[]> localEndpoints = new ArrayList<Endpoint[]>();
+    private Channel[] channels;
+    private MappedByteBuffer barrier;
+    private long timeout;
+    private int tick;
+    private volatile long fence;
+
+    /**
+     * Build a new shared memory communication adapter.
+     *
+     * @param rank rank of this process.
+     * @param nProcesses total number of processes.
+     * @param directory directory where the shared files are placed.
+     */
+    public SharedMemoryCommunicationAdapter(int rank, int nProcesses, File directory) {
+        super(rank, nProcesses);
+        this.directory = directory;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All the factors must have been registered (and linked to their neighbors) before
+     * connecting, because the layout of the shared files is computed from the graph's edges.
+     * The timeout is also applied to each subsequent tick barrier.
+     */
+    @Override
+    public void connect(long timeout) throws IOException {
+        this.timeout = timeout;
+        final int rank = getRank();
+        final int nProcesses = getNumberOfProcesses();
+
+        // Collect the edges shared with each other process
+        List<List<int[]>> edges = new ArrayList<List<int[]>>(nProcesses);
+        for (int i=0; i<nProcesses; i++) {
+            edges.add(new ArrayList<int[]>());
+        }
+        for (Endpoint local : getEndpoints()) {
+            if (local.factor == null) {
+                continue;
+            }
+            for (Object neighbor : local.factor.getNeighbors()) {
+                final Endpoint remote = getEndpoint(neighbor);
+                if (remote.owner != rank) {
+                    // Edges are identified by the id of the lower ranked process' factor first
+                    edges.get(remote.owner).add(rank < remote.owner
+                            ? new int[]{local.id, remote.id} : new int[]{remote.id, local.id});
+                }
+            }
+        }
+
+        channels = new Channel[nProcesses];
+        for (int i=0; i<nProcesses; i++) {
+            if (!edges.get(i).isEmpty()) {
+                channels[i] = new Channel(i, edges.get(i));
+            }
+        }
+
+        barrier = map(new File(directory, "barrier"), nProcesses * BARRIER_ENTRY_SIZE);
+        await(1);
+        LOG.log(Level.FINE, "Process {0} connected through {1}", new Object[]{rank, directory});
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping remains valid after closing the file
+            raf.close();
+        }
+    }
+
+    /**
+     * Announces that this process has reached the given step, and waits until all the other
+     * processes reach it too.
+     */
+    private void await(long step) throws IOException {
+        fence = step;
+        barrier.putLong(getRank() * BARRIER_ENTRY_SIZE, step);
+
+        // The volatile read of the fence in every iteration keeps the compiler from hoisting the
+        // shared reads out of the loop
+        final long deadline = System.currentTimeMillis() + timeout;
+        for (int i=0; i<getNumberOfProcesses(); i++) {
+            while (fence == step && barrier.getLong(i * BARRIER_ENTRY_SIZE) < step) {
+                checkDeadline(deadline, "process " + i + " at the barrier");
+                Thread.yield();
+            }
+        }
+    }
+
+    private static void checkDeadline(long deadline, String what) throws IOException {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IOException("Timed out waiting for " + what);
+        }
+    }
+
+    /**
+     * Checksum of an entry written in the given tick, mixed so that neither a stale value nor a
+     * stale tick can pass for a current entry.
+     */
+    static long checksum(long bits, long stamp) {
+        long h = bits * 0x9E3779B97F4A7C15L + stamp;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    @Override
+    public void send(double message, Object sender, Object recipient) {
+        LOG.log(Level.FINEST, "Message from {0} to {1} : {2}", new Object[]{sender, recipient, message});
+        final Endpoint from = getEndpoint(sender);
+        final Endpoint to = getEndpoint(recipient);
+
+        if (to.owner == getRank()) {
+            localMessages.add(new double[]{message});
+            localEndpoints.add(new Endpoint[]{from, to});
+            return;
+        }
+
+        final Channel channel = channels[to.owner];
+        final Integer slot = channel == null ? null : channel.slots.get(getEdgeKey(from.id, to.id));
+        if (slot == null) {
+            throw new IllegalArgumentException("Factor " + sender + " is not a neighbor of " + recipient);
+        }
+        channel.write(slot, message);
+    }
+
+    @Override
+    public void tick() throws IOException {
+        if (barrier == null) {
+            throw new IllegalStateException("The adapter must be connected before ticking");
+        }
+        final boolean trace = SolverTrace.isTickEnabled();
+        final long start = trace ? System.nanoTime() : 0;
+        final long initialDelivered = getMessagesDelivered();
+        for (Channel channel : channels) {
+            if (channel != null) {
+                channel.flush();
+            }
+        }
+        await(tick + 2);
+
+        for (int i=0; i<localMessages.size(); i++) {
+            final Endpoint[] endpoints = localEndpoints.get(i);
+            deliver(localMessages.get(i)[0], endpoints[0], endpoints[1]);
+        }
+        localMessages.clear();
+        localEndpoints.clear();
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        for (Channel channel : channels) {
+            if (channel != null) {
+                channel.deliver(deadline);
+            }
+        }
+        tick++;
+
+        if (trace) {
+            SolverTrace.tickDelivered("SharedMemoryCommunicationAdapter",
+                    getMessagesDelivered() - initialDelivered, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mapped buffers are released when garbage collected
+        channels = null;
+        barrier = null;
+    }
+
+    /**
+     * Shared file between this process and another one. Its layout consists of four regions of
+     * a header followed by one slot per edge: two (double-buffered) regions for the messages from
+     * the lower ranked process to the higher ranked one, followed by two regions for the opposite
+     * direction.
+     */
+    private class Channel {
+        private final MappedByteBuffer buffer;
+        private final int nEdges;
+        private final int writeRegion;
+        private final int readRegion;
+        private final Map<Long, Integer> slots = new HashMap<Long, Integer>();
+        private final Endpoint[] senders;
+        private final Endpoint[] recipients;
+        private final double[] pending;
+        private final boolean[] written;
+        private final int[] writtenSlots;
+        private int nWritten;
+        private final boolean[] received;
+
+        public Channel(int peer, List<int[]> edges) throws IOException {
+            final int rank = getRank();
+            nEdges = edges.size();
+            writeRegion = rank < peer ? 0 : 2;
+            readRegion = rank < peer ? 2 : 0;
+
+            // Both processes must agree on the slot of each edge
+            Collections.sort(edges, EDGE_COMPARATOR);
+
+            senders = new Endpoint[nEdges];
+            recipients = new Endpoint[nEdges];
+            for (int i=0; i<nEdges; i++) {
+                final int lower = edges.get(i)[0];
+                final int higher = edges.get(i)[1];
+                final int local = rank < peer ? lower : higher;
+                final int remote = rank < peer ? higher : lower;
+                slots.put(getEdgeKey(local, remote), i);
+                senders[i] = getEndpoint(remote);
+                recipients[i] = getEndpoint(local);
+            }
+
+            final String name = "channel-" + Math.min(rank, peer) + "-" + Math.max(rank, peer);
+            buffer = map(new File(directory, name), 4L * (nEdges + 1) * SLOT_SIZE);
+
+            pending = new double[nEdges];
+            written = new boolean[nEdges];
+            writtenSlots = new int[nEdges];
+            received = new boolean[nEdges];
+        }
+
+        /**
+         * Get the offset of a slot in the region of the current tick, where slot -1 is the
+         * header of the region.
+         */
+        public int getOffset(int region, int slot) {
+            return ((region + (tick & 1)) * (nEdges + 1) + slot + 1) * SLOT_SIZE;
+        }
+
+        public void write(int slot, double message) {
+            if (!written[slot]) {
+                written[slot] = true;
+                writtenSlots[nWritten++] = slot;
+            }
+            pending[slot] = message;
+        }
+
+        /**
+         * Writes the messages sent during this tick to their slots, and then the header that
+         * announces how many of them there are.
+         */
+        public void flush() {
+            final long stamp = tick + 1;
+            for (int i=0; i<nWritten; i++) {
+                final int slot = writtenSlots[i];
+                put(getOffset(writeRegion, slot), Double.doubleToRawLongBits(pending[slot]),
+                        stamp);
+                written[slot] = false;
+            }
+            put(getOffset(writeRegion, -1), nWritten, stamp);
+            nWritten = 0;
+        }
+
+        private void put(int offset, long bits, long stamp) {
+            buffer.putLong(offset, bits);
+            buffer.putLong(offset + 8, stamp);
+            buffer.putLong(offset + 16, checksum(bits, stamp));
+        }
+
+        /**
+         * Delivers the messages sent by the peer during this tick, re-reading its region until
+         * all the slots announced by the header are visible and valid.
+         */
+        public void deliver(long deadline) throws IOException {
+            final long stamp = tick + 1;
+            final int header = getOffset(readRegion, -1);
+            long remaining;
+            while ((remaining = getCount(header, stamp)) < 0) {
+                checkDeadline(deadline, "the messages of tick " + tick);
+                Thread.yield();
+            }
+
+            while (remaining > 0) {
+                for (int i=0; i<nEdges; i++) {
+                    if (received[i]) {
+                        continue;
+                    }
+                    final int offset = getOffset(readRegion, i);
+                    final long bits = buffer.getLong(offset);
+                    if (buffer.getLong(offset + 8) == stamp
+                            && buffer.getLong(offset + 16) == checksum(bits, stamp)) {
+                        received[i] = true;
+                        remaining--;
+                        SharedMemoryCommunicationAdapter.this.deliver(
+                                Double.longBitsToDouble(bits), senders[i], recipients[i]);
+                    }
+                }
+                if (remaining > 0) {
+                    checkDeadline(deadline, "the messages of tick " + tick);
+                    Thread.yield();
+                }
+            }
+            Arrays.fill(received, false);
+        }
+
+        /**
+         * Get the number of slots announced by a header, or -1 if it is not valid yet.
+         */
+        private long getCount(int offset, long stamp) {
+            final long count = buffer.getLong(offset);
+            if (buffer.getLong(offset + 8) == stamp
+                    && buffer.getLong(offset + 16) == checksum(count, stamp)) {
+                return count;
+            }
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,603 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.metrics.SolverTrace;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Distributed communication adapter that exchanges the messages between processes through TCP
+ * connections, so that the processes can run on different hosts.
+ * <p/>
+ * The messages sent during a tick are encoded in one binary frame for each process, consisting
+ * of an 8-byte header (tick number and size of the body in bytes) followed by 16 bytes per
+ * message (sender id, recipient id and value). When ticked, each process sends its frame to every
+ * other process (even if empty) and waits for the frames of all of them, which makes the tick a
+ * distributed barrier.
+ * <p/>
+ * Alternatively, the adapter can be {@link #setCompressed(boolean) set} to send the messages
+ * between processes quantized, trading a bounded error for much smaller frames. In this mode,
+ * the edges between each pair of processes are numbered when connecting (so all the factors must
+ * have been registered and linked to their neighbors by then), and each message takes a varint
+ * with the gap from the previous edge index plus a 16-bit quantized difference with the previous
+ * message sent through that edge. Typically, this is 3 bytes per message instead of 16. All the
+ * processes must use the same mode, although each one may use a different error bound.
+ *
+ * @see DistributedEngine
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class SocketCommunicationAdapter extends DistributedCommunicationAdapter {
+    private static final Logger LOG = Logger.getLogger(SocketCommunicationAdapter.class.getName());
+
+    /** Size of the header of each frame, in bytes */
+    public static final int HEADER_SIZE = 8;
+
+    /** Size of each uncompressed message, in bytes */
+    public static final int MESSAGE_SIZE = 16;
+
+    /** Default maximum error of the messages sent in compressed mode */
+    public static final double DEFAULT_ERROR_BOUND = 1e-6;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final long RETRY_DELAY = 50;
+
+    private final int rank;
+    private final InetSocketAddress[] addresses;
+    private final ByteBuffer[] outgoing;
+    private final Peer[] peers;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private int tick;
+    private boolean compressed;
+    private double errorBound = DEFAULT_ERROR_BOUND;
+
+    // Compressed mode state (indexed by rank)
+    private List<Map<Long, Integer>> outgoingEdges;
+    private QuantizedCodec[] encoders;
+    private QuantizedCodec[] decoders;
+    private Incoming[] incoming;
+
+    // Statistics
+    private long bytesSent;
+    private long messagesSent;
+
+    /**
+     * Build a new socket communication adapter.
+     *
+     * @param rank rank of this process.
+     * @param addresses addresses where each process (indexed by rank) listens for connections.
+     */
+    public SocketCommunicationAdapter(int rank, InetSocketAddress[] addresses) {
+        super(rank, addresses.length);
+        this.rank = rank;
+        this.addresses = addresses.clone();
+
+        outgoing = new ByteBuffer[addresses.length];
+        for (int i=0; i<outgoing.length; i++) {
+            outgoing[i] = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            outgoing[i].position(HEADER_SIZE);
+        }
+        peers = new Peer[addresses.length];
+    }
+
+    /**
+     * Get whether messages are sent to other processes in compressed form.
+     *
+     * @return <code>true</code> if the messages are compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Set whether messages are sent to other processes in compressed form.
+     * <p/>
+     * All the processes must use the same setting, which can not be changed once connected.
+     *
+     * @param compressed <code>true</code> to compress the messages.
+     */
+    public void setCompressed(boolean compressed) {
+        checkNotConnected();
+        this.compressed = compressed;
+    }
+
+    /**
+     * Get the maximum error of the messages sent in compressed mode.
+     *
+     * @return maximum absolute error.
+     */
+    public double getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * Set the maximum error of the messages sent in compressed mode.
+     * <p/>
+     * Larger bounds allow more messages to be quantized instead of sent in full, whereas a
+     * zero bound sends all the changed messages in full.
+     *
+     * @param errorBound maximum absolute error.
+     */
+    public void setErrorBound(double errorBound) {
+        checkNotConnected();
+        if (!(errorBound >= 0)) {
+            throw new IllegalArgumentException("The error bound can not be negative");
+        }
+        this.errorBound = errorBound;
+    }
+
+    private void checkNotConnected() {
+        if (selector != null) {
+            throw new IllegalStateException("The adapter is already connected");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Each process listens at its own address, connects to the processes with lower ranks and
+     * accepts the connections from the processes with higher ranks.
+     */
+    @Override
+    public void connect(long timeout) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        if (compressed) {
+            numberEdges();
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(addresses[rank]);
+
+        for (int i=0; i<rank; i++) {
+            SocketChannel channel = connect(addresses[i], deadline);
+            ByteBuffer handshake = ByteBuffer.allocate(8);
+            handshake.putInt(rank).putInt(compressed ? 1 : 0).flip();
+            while (handshake.hasRemaining()) {
+                channel.write(handshake);
+            }
+            addPeer(i, channel);
+        }
+
+        for (int accepted = rank+1; accepted < addresses.length; accepted++) {
+            SocketChannel channel = accept(deadline);
+            ByteBuffer handshake = ByteBuffer.allocate(8);
+            readFully(channel, handshake);
+            final int peer = handshake.getInt(0);
+            if (peer <= rank || peer >= addresses.length || peers[peer] != null) {
+                channel.close();
+                throw new IOException("Unexpected connection from process " + peer);
+            }
+            if ((handshake.getInt(4) != 0) != compressed) {
+                channel.close();
+                throw new IOException("Process " + peer + " uses a different message encoding");
+            }
+            addPeer(peer, channel);
+        }
+
+        LOG.log(Level.FINE, "Process {0} connected to {1} peers", new Object[]{rank, addresses.length - 1});
+    }
+
+    /**
+     * Numbers the edges between the local factors and the remote ones, in the same way as the
+     * other processes do, and builds the codecs of each connection.
+     */
+    private void numberEdges() {
+        final int nProcesses = addresses.length;
+        List<List<int[]>> outgoingList = new ArrayList<List<int[]>>(nProcesses);
+        List<List<int[]>> incomingList = new ArrayList<List<int[]>>(nProcesses);
+        for (int i=0; i<nProcesses; i++) {
+            outgoingList.add(new ArrayList<int[]>());
+            incomingList.add(new ArrayList<int[]>());
+        }
+        for (Endpoint local : getEndpoints()) {
+            if (local.factor == null) {
+                continue;
+            }
+            for (Object neighbor : local.factor.getNeighbors()) {
+                final Endpoint remote = getEndpoint(neighbor);
+                if (remote.owner != rank) {
+                    outgoingList.get(remote.owner).add(new int[]{local.id, remote.id});
+                    incomingList.get(remote.owner).add(new int[]{remote.id, local.id});
+                }
+            }
+        }
+
+        outgoingEdges = new ArrayList<Map<Long, Integer>>(nProcesses);
+        encoders = new QuantizedCodec[nProcesses];
+        decoders = new QuantizedCodec[nProcesses];
+        incoming = new Incoming[nProcesses];
+        for (int i=0; i<nProcesses; i++) {
+            final List<int[]> outgoingPairs = outgoingList.get(i);
+            Collections.sort(outgoingPairs, EDGE_COMPARATOR);
+            final Map<Long, Integer> edges = new HashMap<Long, Integer>(outgoingPairs.size() * 2);
+            for (int j=0; j<outgoingPairs.size(); j++) {
+                edges.put(getEdgeKey(outgoingPairs.get(j)[0], outgoingPairs.get(j)[1]), j);
+            }
+            outgoingEdges.add(edges);
+            encoders[i] = new QuantizedCodec(outgoingPairs.size(), errorBound);
+
+            final List<int[]> incomingPairs = incomingList.get(i);
+            Collections.sort(incomingPairs, EDGE_COMPARATOR);
+            decoders[i] = new QuantizedCodec(incomingPairs.size(), errorBound);
+            incoming[i] = new Incoming(incomingPairs);
+        }
+    }
+
+    private SocketChannel connect(InetSocketAddress address, long deadline) throws IOException {
+        while (true) {
+            try {
+                return SocketChannel.open(address);
+            } catch (ConnectException e) {
+                // The other process may not be listening yet
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting to " + address);
+                }
+            }
+        }
+    }
+
+    private SocketChannel accept(long deadline) throws IOException {
+        server.configureBlocking(false);
+        SelectionKey key = server.register(selector, SelectionKey.OP_ACCEPT);
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    return channel;
+                }
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for the other processes to connect");
+                }
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            key.cancel();
+            selector.selectNow();
+        }
+    }
+
+    private void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+        }
+    }
+
+    private void addPeer(int peerRank, SocketChannel channel) throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        channel.configureBlocking(false);
+        Peer peer = new Peer(peerRank, channel);
+        peer.key = channel.register(selector, 0, peer);
+        peers[peerRank] = peer;
+    }
+
+    @Override
+    public void send(double message, Object sender, Object recipient) {
+        LOG.log(Level.FINEST, "Message from {0} to {1} : {2}", new Object[]{sender, recipient, message});
+        final Endpoint from = getEndpoint(sender);
+        final Endpoint to = getEndpoint(recipient);
+
+        if (compressed && to.owner != rank) {
+            if (encoders == null) {
+                throw new IllegalStateException("The adapter must be connected before sending messages");
+            }
+            final Integer edge = outgoingEdges.get(to.owner).get(getEdgeKey(from.id, to.id));
+            if (edge == null) {
+                throw new IllegalArgumentException("Factor " + sender + " is not a neighbor of " + recipient);
+            }
+            encoders[to.owner].put(edge, message);
+            return;
+        }
+
+        reserve(to.owner, MESSAGE_SIZE).putInt(from.id).putInt(to.id).putDouble(message);
+    }
+
+    /**
+     * Get the outgoing buffer for the given process, making sure that it has room for at least
+     * the given number of bytes.
+     */
+    private ByteBuffer reserve(int process, int size) {
+        ByteBuffer buffer = outgoing[process];
+        if (buffer.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                    buffer.position() + size));
+            buffer.flip();
+            larger.put(buffer);
+            outgoing[process] = buffer = larger;
+        }
+        return buffer;
+    }
+
+    @Override
+    public void tick() throws IOException {
+        if (addresses.length > 1 && selector == null) {
+            throw new IllegalStateException("The adapter must be connected before ticking");
+        }
+        final boolean trace = SolverTrace.isTickEnabled();
+        final long start = trace ? System.nanoTime() : 0;
+        final long initialDelivered = getMessagesDelivered();
+
+        for (int i=0; i<outgoing.length; i++) {
+            ByteBuffer buffer = outgoing[i];
+            final int nMessages;
+            if (compressed && i != rank) {
+                nMessages = encoders[i].getPendingCount();
+                buffer = reserve(i, encoders[i].getMaxEncodedSize());
+                encoders[i].encode(buffer);
+            } else {
+                nMessages = (buffer.position() - HEADER_SIZE) / MESSAGE_SIZE;
+            }
+            buffer.putInt(0, tick);
+            buffer.putInt(4, buffer.position() - HEADER_SIZE);
+            buffer.flip();
+            if (i != rank) {
+                bytesSent += buffer.remaining();
+                messagesSent += nMessages;
+            }
+        }
+
+        exchange();
+
+        deliver((ByteBuffer)outgoing[rank].position(HEADER_SIZE));
+        for (Peer peer : peers) {
+            if (peer == null) {
+                continue;
+            }
+            if (compressed) {
+                decoders[peer.rank].decode(peer.body, incoming[peer.rank]);
+            } else {
+                deliver(peer.body);
+            }
+        }
+
+        for (ByteBuffer buffer : outgoing) {
+            buffer.clear();
+            buffer.position(HEADER_SIZE);
+        }
+        tick++;
+
+        if (trace) {
+            SolverTrace.tickDelivered("SocketCommunicationAdapter",
+                    getMessagesDelivered() - initialDelivered, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Simultaneously writes the outgoing frames and reads the incoming ones, so that no process
+     * can block another one by filling up the network buffers.
+     */
+    private void exchange() throws IOException {
+        int pending = 0;
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.start(outgoing[peer.rank]);
+                pending++;
+            }
+        }
+
+        while (pending > 0) {
+            selector.select();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                final SelectionKey key = it.next();
+                it.remove();
+                final Peer peer = (Peer)key.attachment();
+                if (key.isValid() && key.isWritable()) {
+                    peer.write();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    peer.read();
+                }
+                if (peer.isDone()) {
+                    pending--;
+                }
+            }
+        }
+    }
+
+    private void deliver(ByteBuffer frame) {
+        while (frame.hasRemaining()) {
+            final Endpoint sender = getEndpoint(frame.getInt());
+            final Endpoint recipient = getEndpoint(frame.getInt());
+            final double message = frame.getDouble();
+            if (sender == null || recipient == null) {
+                throw new IllegalStateException("Process " + rank + " received a message between unknown factors");
+            }
+            deliver(message, sender, recipient);
+        }
+    }
+
+    /**
+     * Get the number of bytes sent to other processes since the creation of this adapter.
+     *
+     * @return number of bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Get the number of messages sent to other processes since the creation of this adapter.
+     *
+     * @return number of messages sent.
+     */
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.channel.close();
+            }
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (selector != null) {
+            selector.close();
+        }
+    }
+
+    /**
+     * Connection to another process, along with the state of the current frame exchange.
+     */
+    private class Peer {
+        private final int rank;
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer body = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ByteBuffer frame;
+        private SelectionKey key;
+        private boolean written;
+        private boolean received;
+
+        public Peer(int rank, SocketChannel channel) {
+            this.rank = rank;
+            this.channel = channel;
+        }
+
+        public void start(ByteBuffer outgoingFrame) {
+            frame = outgoingFrame.duplicate();
+            header.clear();
+            body.clear().limit(0);
+            written = false;
+            received = false;
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        public void write() throws IOException {
+            channel.write(frame);
+            if (!frame.hasRemaining()) {
+                written = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        public void read() throws IOException {
+            if (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new EOFException("Connection closed by process " + rank);
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+
+                final int peerTick = header.getInt(0);
+                if (peerTick != tick) {
+                    throw new IOException("Process " + rank + " is at tick " + peerTick + " instead of " + tick);
+                }
+                final int size = header.getInt(4);
+                if (size < 0) {
+                    throw new IOException("Process " + rank + " sent a frame of size " + size);
+                }
+                if (body.capacity() < size) {
+                    body = ByteBuffer.allocate(Math.max(size, body.capacity() * 2));
+                }
+                body.clear().limit(size);
+            }
+
+            if (body.hasRemaining() && channel.read(body) < 0) {
+                throw new EOFException("Connection closed by process " + rank);
+            }
+            if (!body.hasRemaining()) {
+                body.flip();
+                received = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Returns true once both the outgoing and the incoming frames have been completely
+         * transferred. From then on, the peer is not selected anymore during this exchange.
+         */
+        public boolean isDone() {
+            return written && received;
+        }
+    }
+
+    /**
+     * Delivers the messages decoded from another process in compressed mode.
+     */
+    private class Incoming implements QuantizedCodec.Receiver {
+        private final Endpoint[] senders;
+        private final Endpoint[] recipients;
+
+        public Incoming(List<int[]> edges) {
+            senders = new Endpoint[edges.size()];
+            recipients = new Endpoint[edges.size()];
+            for (int i=0; i<senders.length; i++) {
+                senders[i] = getEndpoint(edges.get(i)[0]);
+                recipients[i] = getEndpoint(edges.get(i)[1]);
+            }
+        }
+
+        @Override
+        public void receive(int edge, double message) {
+            deliver(message, senders[edge], recipients[edge]);
+        }
+    }
+
+}
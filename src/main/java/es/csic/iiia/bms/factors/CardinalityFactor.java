@@ -37,9 +37,11 @@
 package es.csic.iiia.bms.factors;
 
 import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.parallel.ParallelOperations;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -49,7 +51,9 @@ import java.util.logging.Logger;
  * Cardinality factor.
  * <p/>
  * Outgoing messages are computed in <em>O(n*log(n))</em> time, where <em>n</em>
- * is the number of variables connected to this factor.
+ * is the number of variables connected to this factor. When this factor has very many
+ * neighbors, this computation can be split among several threads by setting its
+ * {@link #setParallelOperations(ParallelOperations) parallel operations}.
  *
  * @param <T> Type of the factor's identity.
  * @author Marc Pujol <mpujol@iiia.csic.es>
@@ -61,6 +65,30 @@ public class CardinalityFactor<T> extends AbstractFactor<T> {
 
     private long constraintChecks;
 
+    private ParallelOperations parallelOperations;
+
+    /**
+     * Get the parallel operations used to split the computation of this factor's messages.
+     *
+     * @return parallel operations used by this factor, or <code>null</code> if none.
+     */
+    public ParallelOperations getParallelOperations() {
+        return parallelOperations;
+    }
+
+    /**
+     * Set the parallel operations used to split the computation of this factor's messages
+     * when it has many neighbors.
+     * <p/>
+     * Notice that, in this case, the cardinality function is evaluated from multiple threads.
+     *
+     * @param parallelOperations parallel operations to use, or <code>null</code> to always run
+     *                           sequentially.
+     */
+    public void setParallelOperations(ParallelOperations parallelOperations) {
+        this.parallelOperations = parallelOperations;
+    }
+
     /**
      * Set the workload function f that returns the cost depending on the
      * number of active variables.
@@ -71,6 +99,16 @@ public class CardinalityFactor<T> extends AbstractFactor<T> {
         function = f;
     }
 
+    /**
+     * Get the workload function f that returns the cost depending on the
+     * number of active variables.
+     *
+     * @return function used by this factor.
+     */
+    public CardinalityFunction getFunction() {
+        return function;
+    }
+
     @Override
     protected double eval(Map<T, Boolean> values) {
         int nActive = 0;
@@ -88,6 +126,10 @@ public class CardinalityFactor<T> extends AbstractFactor<T> {
         final MaxOperator operator = getMaxOperator();
         final int size = getNeighbors().size();
 
+        if (parallelOperations != null && parallelOperations.isWorthSplitting(size)) {
+            return runParallel();
+        }
+
         // Group incoming message data for sorting
         int i = 0;
         List<Triplet> values = new ArrayList<Triplet>(size);
@@ -182,6 +224,107 @@ public class CardinalityFactor<T> extends AbstractFactor<T> {
         return constraintChecks;
     }
 
+    /**
+     * Parallel version of {@link #run()}, where the sorting, the cumulative sums and maximums,
+     * and the computation of the outgoing messages are split among several threads.
+     */
+    private long runParallel() {
+        final MaxOperator operator = getMaxOperator();
+        final List<T> neighbors = getNeighbors();
+        final int size = neighbors.size();
+
+        // Group incoming message data for sorting
+        @SuppressWarnings("unchecked")
+        final Triplet[] values = (Triplet[])new CardinalityFactor<?>.Triplet[size];
+        parallelOperations.forEach(size, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    final T f = neighbors.get(i);
+                    values[i] = new Triplet(f, getMessage(f), i);
+                }
+            }
+        });
+        constraintChecks += size;
+
+        // Sort them from best to worst (Triplet#compareTo is not used because it is not
+        // thread-safe, but the resulting order is the same)
+        constraintChecks += parallelOperations.sort(values, new Comparator<Triplet>() {
+            @Override
+            public int compare(Triplet t1, Triplet t2) {
+                return operator.compare(t2.cost, t1.cost);
+            }
+        });
+
+        // Prepare the reverse index and the sorted costs
+        final int[] reverseIndex = new int[size];
+        final double[] costs = new double[size];
+        parallelOperations.forEach(size, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    reverseIndex[values[i].idx] = i;
+                    costs[i] = values[i].cost;
+                }
+            }
+        });
+
+        // Cumulative sums
+        final double[] cum_ws    = new double[size+1];
+        final double[] cum_w_s_1 = new double[size+1];
+        final double[] cum_w_s0  = new double[size+1];
+        final double[] cum_w_s1  = new double[size+1];
+        parallelOperations.prefixSum(costs, cum_ws);
+        parallelOperations.forEach(size+1, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    cum_w_s0[i]  = cum_ws[i] + function.getCost(i);
+                    cum_w_s_1[i] = i > 0 ? cum_ws[i] + function.getCost(i-1) : operator.getWorstValue();
+                    cum_w_s1[i]  = i < size ? cum_ws[i] + function.getCost(i+1) : operator.getWorstValue();
+                }
+            }
+        });
+        constraintChecks += size*4;
+
+        // Cumulative maxes
+        final double[] m_1 = new double[size+1];
+        final double[] m0R = new double[size+1];
+        final double[] m0L = new double[size+1];
+        final double[] m1  = new double[size+1];
+        parallelOperations.maxScan(cum_w_s1, m1, operator, false);
+        parallelOperations.maxScan(cum_w_s0, m0L, operator, false);
+        parallelOperations.maxScan(cum_w_s0, m0R, operator, true);
+        parallelOperations.maxScan(cum_w_s_1, m_1, operator, true);
+        constraintChecks += size*4;
+
+        // Outgoing messages
+        final double[] messages = new double[size];
+        parallelOperations.forEach(size, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    final int pos = reverseIndex[i];
+                    double msg0 = operator.getWorstValue();
+                    double msg1 = operator.getWorstValue();
+
+                    if (pos > 0) {
+                        msg0 = operator.max(msg0, m0L[pos-1]);
+                        msg1 = operator.max(msg1, m1[pos-1]);
+                    }
+
+                    msg0 = operator.max(msg0, m_1[pos+1] - costs[pos]);
+                    msg1 = operator.max(msg1, m0R[pos+1] - costs[pos]);
+                    messages[i] = msg1 - msg0;
+                }
+            }
+        });
+        parallelOperations.send(this, neighbors, messages);
+        constraintChecks += size*3;
+
+        return constraintChecks;
+    }
+
     private class Triplet implements Comparable<Triplet> {
         public final T factor;
         public final Double cost;
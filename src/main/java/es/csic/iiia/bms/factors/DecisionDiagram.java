@@ -0,0 +1,166 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+/**
+ * Reduced ordered algebraic decision diagram over a list of binary variables.
+ * <p/>
+ * Every node is either a terminal, holding a cost/utility, or a decision node that tests the
+ * variable at its level and continues to its <em>low</em> (false) or <em>high</em> (true)
+ * child. Variables are tested in order (the first one at level 0), children always belong to
+ * a deeper level, and terminals sit at level <em>nVariables</em>. A variable whose level is
+ * skipped by an edge does not affect the outcome along that path.
+ * <p/>
+ * Nodes are stored in topological order, so that children always come before their parents
+ * and the root is the last node. Diagrams are immutable, and must be built through a
+ * {@link DecisionDiagramBuilder}.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public final class DecisionDiagram {
+
+    private final int nVariables;
+    private final int[] levels;
+    private final int[] lows;
+    private final int[] highs;
+    private final double[] values;
+
+    DecisionDiagram(int nVariables, int[] levels, int[] lows, int[] highs, double[] values) {
+        this.nVariables = nVariables;
+        this.levels = levels;
+        this.lows = lows;
+        this.highs = highs;
+        this.values = values;
+    }
+
+    /**
+     * Get the number of variables of this diagram.
+     *
+     * @return number of variables.
+     */
+    public int getNumberOfVariables() {
+        return nVariables;
+    }
+
+    /**
+     * Get the number of (terminal and decision) nodes of this diagram.
+     *
+     * @return number of nodes.
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * Get the root node of this diagram.
+     *
+     * @return index of the root node.
+     */
+    public int getRoot() {
+        return levels.length - 1;
+    }
+
+    /**
+     * Check whether the given node is a terminal.
+     *
+     * @param node index of the node.
+     * @return <em>true</em> if the node is a terminal, or <em>false</em> otherwise.
+     */
+    public boolean isTerminal(int node) {
+        return levels[node] == nVariables;
+    }
+
+    /**
+     * Get the level of the given node, which is the index of the variable it tests.
+     *
+     * @param node index of the node.
+     * @return level of the node, or the number of variables if it is a terminal.
+     */
+    public int getLevel(int node) {
+        return levels[node];
+    }
+
+    /**
+     * Get the child followed when the node's variable is false.
+     *
+     * @param node index of a decision node.
+     * @return index of the low child.
+     */
+    public int getLow(int node) {
+        return lows[node];
+    }
+
+    /**
+     * Get the child followed when the node's variable is true.
+     *
+     * @param node index of a decision node.
+     * @return index of the high child.
+     */
+    public int getHigh(int node) {
+        return highs[node];
+    }
+
+    /**
+     * Get the cost/utility of the given terminal.
+     *
+     * @param node index of a terminal node.
+     * @return cost/utility of the terminal.
+     */
+    public double getValue(int node) {
+        return values[node];
+    }
+
+    /**
+     * Evaluate this diagram for the given assignment.
+     *
+     * @param assignment value of each variable.
+     * @return cost/utility of the assignment.
+     */
+    public double evaluate(boolean[] assignment) {
+        if (assignment.length != nVariables) {
+            throw new IllegalArgumentException("Expected " + nVariables + " values, but got "
+                    + assignment.length + ".");
+        }
+
+        int node = getRoot();
+        while (!isTerminal(node)) {
+            node = assignment[levels[node]] ? highs[node] : lows[node];
+        }
+        return values[node];
+    }
+
+}
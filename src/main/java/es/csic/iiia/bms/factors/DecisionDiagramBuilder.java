@@ -0,0 +1,234 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds reduced {@link DecisionDiagram}s bottom-up.
+ * <p/>
+ * The builder keeps a unique table of the nodes created so far, so that equal terminals and
+ * equal decision nodes are shared, and decision nodes whose children are equal are skipped
+ * altogether. Hence, diagrams built through it are always reduced.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class DecisionDiagramBuilder {
+
+    private final int nVariables;
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final Map<Node, Integer> unique = new HashMap<Node, Integer>();
+
+    /**
+     * Build a new decision diagram builder.
+     *
+     * @param nVariables number of variables of the diagrams to build.
+     */
+    public DecisionDiagramBuilder(int nVariables) {
+        if (nVariables < 0) {
+            throw new IllegalArgumentException("The number of variables can not be negative.");
+        }
+        this.nVariables = nVariables;
+    }
+
+    /**
+     * Get (or create) the terminal node with the given cost/utility.
+     *
+     * @param value cost/utility of the terminal.
+     * @return index of the terminal node.
+     */
+    public int terminal(double value) {
+        return intern(new Node(nVariables, -1, -1, value));
+    }
+
+    /**
+     * Get (or create) the decision node that tests the variable at the given level.
+     *
+     * @param level index of the variable tested by this node.
+     * @param low child to follow when the variable is false.
+     * @param high child to follow when the variable is true.
+     * @return index of the decision node, or of the children if both are the same.
+     */
+    public int node(int level, int low, int high) {
+        if (level < 0 || level >= nVariables) {
+            throw new IllegalArgumentException("Invalid level " + level + " for a diagram with "
+                    + nVariables + " variables.");
+        }
+        if (getNode(low).level <= level || getNode(high).level <= level) {
+            throw new IllegalArgumentException("The children of a node must be at deeper levels.");
+        }
+
+        if (low == high) {
+            return low;
+        }
+        return intern(new Node(level, low, high, 0));
+    }
+
+    /**
+     * Build the diagram rooted at the given node.
+     * <p/>
+     * Only the nodes reachable from the root are included in the resulting diagram.
+     *
+     * @param root index of the root node.
+     * @return the decision diagram.
+     */
+    public DecisionDiagram build(int root) {
+        getNode(root);
+
+        // Nodes are created bottom-up, so reachable ones can be collected in a single pass
+        boolean[] reachable = new boolean[root + 1];
+        reachable[root] = true;
+        int size = 0;
+        for (int i=root; i>=0; i--) {
+            if (reachable[i]) {
+                size++;
+                final Node node = nodes.get(i);
+                if (node.level < nVariables) {
+                    reachable[node.low] = true;
+                    reachable[node.high] = true;
+                }
+            }
+        }
+
+        int[] renumbering = new int[root + 1];
+        int[] levels = new int[size];
+        int[] lows = new int[size];
+        int[] highs = new int[size];
+        double[] values = new double[size];
+        for (int i=0, next=0; i<=root; i++) {
+            if (!reachable[i]) {
+                continue;
+            }
+            final Node node = nodes.get(i);
+            renumbering[i] = next;
+            levels[next] = node.level;
+            if (node.level < nVariables) {
+                lows[next] = renumbering[node.low];
+                highs[next] = renumbering[node.high];
+            }
+            values[next] = node.value;
+            next++;
+        }
+
+        return new DecisionDiagram(nVariables, levels, lows, highs, values);
+    }
+
+    /**
+     * Convert a dense table of costs/utilities, laid out as the potential of a
+     * {@link StandardFactor}, to a reduced decision diagram.
+     *
+     * @param table array of cost/utilities, one for each combination of values.
+     * @return the equivalent decision diagram.
+     */
+    public static DecisionDiagram fromTable(double[] table) {
+        final int nVariables = Integer.numberOfTrailingZeros(table.length);
+        if (table.length == 0 || table.length != 1 << nVariables) {
+            throw new IllegalArgumentException("Expected a power of two number of values, but the "
+                    + "table contains " + table.length + " values.");
+        }
+
+        DecisionDiagramBuilder builder = new DecisionDiagramBuilder(nVariables);
+        return builder.build(builder.fromTable(table, 0, 0, table.length));
+    }
+
+    private int fromTable(double[] table, int level, int offset, int length) {
+        if (length == 1) {
+            return terminal(table[offset]);
+        }
+
+        // The first variable is the highest bit, so its low half comes first
+        final int half = length >> 1;
+        final int low = fromTable(table, level + 1, offset, half);
+        final int high = fromTable(table, level + 1, offset + half, half);
+        return node(level, low, high);
+    }
+
+    private Node getNode(int index) {
+        if (index < 0 || index >= nodes.size()) {
+            throw new IllegalArgumentException("Unknown node " + index + ".");
+        }
+        return nodes.get(index);
+    }
+
+    private int intern(Node node) {
+        Integer index = unique.get(node);
+        if (index == null) {
+            index = nodes.size();
+            nodes.add(node);
+            unique.put(node, index);
+        }
+        return index;
+    }
+
+    private static class Node {
+        private final int level;
+        private final int low;
+        private final int high;
+        private final double value;
+
+        public Node(int level, int low, int high, double value) {
+            this.level = level;
+            this.low = low;
+            this.high = high;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            final Node other = (Node) o;
+            return level == other.level && low == other.low && high == other.high
+                    && Double.compare(value, other.value) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            final long bits = Double.doubleToLongBits(value);
+            int hash = level;
+            hash = 31 * hash + low;
+            hash = 31 * hash + high;
+            hash = 31 * hash + (int)(bits ^ (bits >>> 32));
+            return hash;
+        }
+    }
+
+}
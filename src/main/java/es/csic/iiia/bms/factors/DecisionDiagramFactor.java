@@ -0,0 +1,225 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import es.csic.iiia.bms.MaxOperator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tabular factor whose potential is compressed as a {@link DecisionDiagram}.
+ * <p/>
+ * The diagram's variables are the factor's neighbors, in the same order. Because the potential
+ * is never expanded, this factor is not limited by the size of the equivalent dense table and
+ * can handle large structured potentials as long as their diagrams remain small.
+ * <p/>
+ * Messages are computed through an upward pass that finds the best completion below each node
+ * and a downward pass that finds the best path reaching each node. Both passes take time linear
+ * in the size of the diagram, counting each level skipped by an edge as one more step.
+ *
+ * @param <T> Type of the factor's identity.
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class DecisionDiagramFactor<T> extends AbstractFactor<T> {
+
+    private DecisionDiagram potential;
+
+    /**
+     * Get the potential of this factor.
+     *
+     * @return decision diagram that defines the potential.
+     */
+    public DecisionDiagram getPotential() {
+        return potential;
+    }
+
+    /**
+     * Set the potential of this factor.
+     *
+     * @param potential decision diagram that defines the potential.
+     */
+    public void setPotential(DecisionDiagram potential) {
+        final int nNeighbors = getNeighbors().size();
+        if (potential.getNumberOfVariables() != nNeighbors) {
+            throw new IllegalArgumentException("Expected a diagram over " + nNeighbors
+                    + " variables, but the diagram has " + potential.getNumberOfVariables() + ".");
+        }
+        this.potential = potential;
+    }
+
+    /**
+     * Set the potential of this factor from a dense table.
+     *
+     * @see StandardFactor
+     * @param values array of cost/utilities that define the potential.
+     */
+    public void setPotential(double[] values) {
+        setPotential(DecisionDiagramBuilder.fromTable(values));
+    }
+
+    @Override
+    protected double eval(Map<T, Boolean> values) {
+        final List<T> neighbors = getNeighbors();
+        boolean[] assignment = new boolean[neighbors.size()];
+        for (int i=0; i<assignment.length; i++) {
+            assignment[i] = values.get(neighbors.get(i));
+        }
+        return potential.evaluate(assignment);
+    }
+
+    /**
+     * Runs this factor through an upward and a downward pass over the diagram, without ever
+     * expanding its potential.
+     * <p/>
+     * A neighbor that is only reached by paths ending at the worst value has nothing to compare
+     * its best values against, so it receives a zero message.
+     *
+     * @return number of constraint checks performed, one per node and skipped level.
+     */
+    @Override
+    public long run() {
+        final MaxOperator max = getMaxOperator();
+        final double worst = max.getWorstValue();
+        final DecisionDiagram dd = potential;
+        final List<T> neighbors = getNeighbors();
+        final int nNeighbors = neighbors.size();
+        final int size = dd.size();
+        final int root = dd.getRoot();
+        long checks = size;
+
+        // Fetch the (ordered) messages, along with the best contribution of each variable when
+        // it is left free. These contributions are added up along each edge instead of being
+        // taken from prefix sums, because subtracting infinite messages would give NaN values.
+        final double[] messages = new double[nNeighbors];
+        final double[] free = new double[nNeighbors];
+        for (int i=0; i<nNeighbors; i++) {
+            messages[i] = getMessage(neighbors.get(i));
+            free[i] = max.max(messages[i], 0);
+        }
+
+        // Upward pass: best completion below each node
+        final double[] up = new double[size];
+        for (int node=0; node<size; node++) {
+            if (dd.isTerminal(node)) {
+                up[node] = dd.getValue(node);
+                continue;
+            }
+            final int level = dd.getLevel(node);
+            final int low = dd.getLow(node), high = dd.getHigh(node);
+            up[node] = max.max(
+                    up[low] + skipped(free, level, dd.getLevel(low)),
+                    up[high] + skipped(free, level, dd.getLevel(high)) + messages[level]);
+        }
+
+        // Downward pass: best path from the root to each node
+        final double[] down = new double[size];
+        Arrays.fill(down, worst);
+        down[root] = skipped(free, -1, dd.getLevel(root));
+
+        final double[] best0 = new double[nNeighbors];
+        final double[] best1 = new double[nNeighbors];
+        final double[] suffix = new double[nNeighbors + 1];
+        Arrays.fill(best0, worst);
+        Arrays.fill(best1, worst);
+        checks += freeLevels(-1, dd.getLevel(root), up[root], free, suffix, best0, best1);
+
+        for (int node=root; node>=0; node--) {
+            if (dd.isTerminal(node)) {
+                continue;
+            }
+            final int level = dd.getLevel(node);
+            final int low = dd.getLow(node), high = dd.getHigh(node);
+
+            final double throughLow = down[node] + skipped(free, level, dd.getLevel(low));
+            down[low] = max.max(throughLow, down[low]);
+            best0[level] = max.max(throughLow + up[low], best0[level]);
+            checks += freeLevels(level, dd.getLevel(low), down[node] + up[low], free, suffix,
+                    best0, best1);
+
+            final double throughHigh = down[node] + skipped(free, level, dd.getLevel(high));
+            down[high] = max.max(throughHigh + messages[level], down[high]);
+            best1[level] = max.max(throughHigh + up[high], best1[level]);
+            checks += freeLevels(level, dd.getLevel(high), down[node] + up[high] + messages[level],
+                    free, suffix, best0, best1);
+        }
+
+        for (int i=0; i<nNeighbors; i++) {
+            final boolean infeasible = best0[i] == worst && best1[i] == worst;
+            send(infeasible ? 0 : best1[i] - best0[i], neighbors.get(i));
+        }
+
+        return checks;
+    }
+
+    /**
+     * Best contribution of the variables skipped by an edge from <em>from</em> to <em>to</em>.
+     */
+    private static double skipped(double[] free, int from, int to) {
+        double sum = 0;
+        for (int i=from+1; i<to; i++) {
+            sum += free[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Updates the best values of the variables skipped by an edge, whose best path has the given
+     * value without the contributions of those variables. They are free along the edge, so
+     * both of their values are equally good and each one gets the contributions of the others,
+     * added up from both sides so that no contribution is ever subtracted.
+     */
+    private int freeLevels(int from, int to, double value, double[] free, double[] suffix,
+            double[] best0, double[] best1)
+    {
+        final MaxOperator max = getMaxOperator();
+        suffix[to] = 0;
+        for (int i=to-1; i>from; i--) {
+            suffix[i] = suffix[i+1] + free[i];
+        }
+        double prefix = value;
+        for (int i=from+1; i<to; i++) {
+            final double v = prefix + suffix[i+1];
+            best0[i] = max.max(v, best0[i]);
+            best1[i] = max.max(v, best1[i]);
+            prefix += free[i];
+        }
+        return Math.max(to - from - 1, 0);
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tabular factor whose potential is computed on demand by a {@link PotentialFunction}.
+ * <p/>
+ * Configurations are encoded just like the indices of a {@link StandardFactor}, but their
+ * costs/utilities are only computed when message computation (or evaluation) needs them, and
+ * are then kept in a bounded {@link PotentialCache}. Hence, the full table is never
+ * materialized, and expensive potentials are computed at most once as long as the cache is
+ * large enough to hold them.
+ * <p/>
+ * Running the factor sweeps all the configurations in order, which would evict every
+ * cached value before it is needed again whenever there are more configurations than
+ * cache entries. Instead, sweeps only cache the first configurations, as many as fit in
+ * the cache, and compute the remaining ones on every run.
+ *
+ * @param <T> Type of the factor's identity.
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class LazyPotentialFactor<T> extends AbstractFactor<T> {
+
+    /**
+     * Default maximum number of cached configurations.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    private PotentialFunction potential;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private PotentialCache cache;
+
+    /**
+     * Get the potential of this factor.
+     *
+     * @return function that computes the potential.
+     */
+    public PotentialFunction getPotential() {
+        return potential;
+    }
+
+    /**
+     * Set the potential of this factor, dropping any values cached from the previous one.
+     *
+     * @param potential function that computes the potential.
+     */
+    public void setPotential(PotentialFunction potential) {
+        this.potential = potential;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Get the cache of potential values of this factor, which is allocated on first use and
+     * replaced whenever the neighbors of the factor change.
+     * <p/>
+     * The cache never holds more entries than configurations of the factor's neighbors.
+     *
+     * @return cache of potential values.
+     */
+    public PotentialCache getCache() {
+        if (cache == null) {
+            final long nConfigurations = 1L << Math.min(getNeighbors().size(), 62);
+            cache = new PotentialCache((int) Math.min(cacheSize, nConfigurations));
+        }
+        return cache;
+    }
+
+    /**
+     * Set the maximum number of configurations cached by this factor, dropping any cached
+     * values.
+     *
+     * @param cacheSize maximum number of cached configurations, where zero disables caching.
+     */
+    public void setCacheSize(int cacheSize) {
+        PotentialCache.checkCapacity(cacheSize);
+        this.cacheSize = cacheSize;
+        cache = null;
+    }
+
+    /**
+     * Adds a neighbor to this factor. Cached values are dropped, because they are keyed by
+     * configurations of the previous list of neighbors.
+     */
+    @Override
+    public void addNeighbor(T factor) {
+        super.addNeighbor(factor);
+        cache = null;
+    }
+
+    @Override
+    public boolean removeNeighbor(T factor) {
+        cache = null;
+        return super.removeNeighbor(factor);
+    }
+
+    @Override
+    public void clearNeighbors() {
+        super.clearNeighbors();
+        cache = null;
+    }
+
+    @Override
+    protected double eval(Map<T, Boolean> values) {
+        final List<T> neighbors = getNeighbors();
+        final int nNeighbors = neighbors.size();
+
+        long configuration = 0;
+        for (int i=0; i<nNeighbors; i++) {
+            if (values.get(neighbors.get(i))) {
+                configuration |= 1L << (nNeighbors-i-1);
+            }
+        }
+
+        return getCache().get(configuration, potential);
+    }
+
+    /**
+     * Runs this factor, fetching the potential of every configuration of its neighbors from
+     * the cache or computing it when missing.
+     * <p/>
+     * A potential that is the worst value everywhere would give undefined (NaN) messages, so
+     * such factors send zero messages instead.
+     *
+     * @return number of constraint checks performed, one per neighbor and configuration.
+     * @throws IllegalStateException if the factor has more than 62 neighbors.
+     */
+    @Override
+    public long run() {
+        final List<T> neighbors = getNeighbors();
+        final int nNeighbors = neighbors.size();
+        if (nNeighbors > 62) {
+            throw new IllegalStateException("Lazy potentials support at most 62 neighbors.");
+        }
+
+        // Fetch the list of (ordered) messages
+        final double[] messages = new double[nNeighbors];
+        for (int i=0; i<nNeighbors; i++) {
+            messages[i] = getMessage(neighbors.get(i));
+        }
+
+        final PotentialCache sweepCache = getCache();
+        final long nConfigurations = 1L << nNeighbors;
+        final MaxMarginals marginals = new MaxMarginals(getMaxOperator(), messages);
+        for (long configuration=0; configuration<nConfigurations; configuration++) {
+            marginals.add(configuration, sweepCache.get(configuration, potential,
+                    configuration < sweepCache.getCapacity()));
+        }
+
+        for (int i=0; i<nNeighbors; i++) {
+            send(marginals.isFeasible() ? marginals.getMessage(i) : 0, neighbors.get(i));
+        }
+
+        return nConfigurations * nNeighbors;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import es.csic.iiia.bms.MaxOperator;
+
+import java.util.Arrays;
+
+/**
+ * Max-marginals of a tabular factor whose configurations are enumerated one by one.
+ * <p/>
+ * Configurations are encoded just like the indices of a {@link StandardFactor}, so the first
+ * neighbor is the highest bit. Each configuration updates, for every neighbor, the best value
+ * seen with that neighbor active or inactive, excluding the neighbor's own message. The messages
+ * of the active neighbors are summed from both sides of the recipient (as a prefix and a
+ * suffix), so that its own message is left out without subtracting (possibly infinite)
+ * messages.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+final class MaxMarginals {
+
+    private final MaxOperator max;
+    private final double[] messages;
+    private final double[] best0;
+    private final double[] best1;
+    private final int[] active;
+    private final double[] suffix;
+    private boolean feasible;
+
+    /**
+     * Build a new accumulator.
+     *
+     * @param max operator used to compare values.
+     * @param messages incoming messages, in the order of the factor's neighbors.
+     */
+    MaxMarginals(MaxOperator max, double[] messages) {
+        final int nNeighbors = messages.length;
+        this.max = max;
+        this.messages = messages;
+        best0 = new double[nNeighbors];
+        best1 = new double[nNeighbors];
+        Arrays.fill(best0, max.getWorstValue());
+        Arrays.fill(best1, max.getWorstValue());
+        active = new int[nNeighbors];
+        suffix = new double[nNeighbors + 1];
+    }
+
+    /**
+     * Update the max-marginals with one configuration.
+     *
+     * @param configuration bitmask of the active neighbors.
+     * @param value cost/utility of the configuration.
+     */
+    void add(long configuration, double value) {
+        final int nNeighbors = messages.length;
+        feasible = feasible || value != max.getWorstValue();
+
+        int nActive = 0;
+        for (long bits = configuration; bits != 0; bits &= bits - 1) {
+            active[nActive++] = nNeighbors - 1 - Long.numberOfTrailingZeros(bits);
+        }
+        suffix[nActive] = 0;
+        for (int j=nActive-1; j>=0; j--) {
+            suffix[j] = suffix[j+1] + messages[active[j]];
+        }
+
+        double prefix = value;
+        for (int j=0; j<nActive; j++) {
+            best1[active[j]] = max.max(prefix + suffix[j+1], best1[active[j]]);
+            prefix += messages[active[j]];
+        }
+
+        // Utility of this configuration including all the incoming messages
+        final double util = value + suffix[0];
+        for (int i=0; i<nNeighbors; i++) {
+            if ((configuration & (1L << (nNeighbors-i-1))) == 0) {
+                best0[i] = max.max(util, best0[i]);
+            }
+        }
+    }
+
+    /**
+     * Check whether any of the configurations added so far is feasible.
+     *
+     * @return <code>true</code> if some configuration has a value other than the worst one.
+     */
+    boolean isFeasible() {
+        return feasible;
+    }
+
+    /**
+     * Get the message for the given neighbor, that is, the difference between its best values
+     * when active and when inactive.
+     *
+     * @param neighbor index of the neighbor.
+     * @return message for that neighbor.
+     */
+    double getMessage(int neighbor) {
+        return best1[neighbor] - best0[neighbor];
+    }
+
+}
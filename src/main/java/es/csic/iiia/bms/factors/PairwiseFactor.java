@@ -0,0 +1,121 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import java.util.Map;
+
+/**
+ * Standard factor specialized for exactly two neighbors <em>x</em> and <em>y</em>.
+ * <p/>
+ * Its potential is the 4-entry table [f(0,0), f(0,1), f(1,0), f(1,1)], laid out as in any
+ * {@link StandardFactor} (the first neighbor is <em>x</em>). Unlike a generic standard factor,
+ * its potential can be set before linking the neighbors, and it is kept in plain fields so that
+ * running the factor just evaluates the closed-form messages:
+ * <pre>
+ * m(x) = max(f(1,1) + v(y), f(1,0)) - max(f(0,1) + v(y), f(0,0))
+ * m(y) = max(f(1,1) + v(x), f(0,1)) - max(f(1,0) + v(x), f(0,0))
+ * </pre>
+ * where <em>v</em> are the messages received from each neighbor.
+ *
+ * @param <T> Type of the factor's identity.
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class PairwiseFactor<T> extends StandardFactor<T> {
+
+    private double f00, f01, f10, f11;
+
+    /**
+     * Get the potential of this factor.
+     *
+     * @return array [f(0,0), f(0,1), f(1,0), f(1,1)].
+     */
+    @Override
+    public double[] getPotential() {
+        return new double[]{f00, f01, f10, f11};
+    }
+
+    /**
+     * Set the potential of this factor.
+     *
+     * @param values array [f(0,0), f(0,1), f(1,0), f(1,1)].
+     */
+    @Override
+    public void setPotential(double[] values) {
+        if (values.length != 4) {
+            throw new IllegalArgumentException("Expected 4 values, but the values array contains "
+                    + values.length + " values.");
+        }
+        setPotential(values[0], values[1], values[2], values[3]);
+    }
+
+    /**
+     * Set the potential of this factor.
+     *
+     * @param f00 cost/utility when both neighbors are inactive.
+     * @param f01 cost/utility when only the second neighbor is active.
+     * @param f10 cost/utility when only the first neighbor is active.
+     * @param f11 cost/utility when both neighbors are active.
+     */
+    public void setPotential(double f00, double f01, double f10, double f11) {
+        this.f00 = f00;
+        this.f01 = f01;
+        this.f10 = f10;
+        this.f11 = f11;
+    }
+
+    @Override
+    protected double eval(Map<T, Boolean> values) {
+        checkNeighbors();
+        final boolean x = values.get(getNeighbors().get(0));
+        final boolean y = values.get(getNeighbors().get(1));
+        return x ? (y ? f11 : f10) : (y ? f01 : f00);
+    }
+
+    @Override
+    public long run() {
+        checkNeighbors();
+        return runPairwise(f00, f01, f10, f11);
+    }
+
+    private void checkNeighbors() {
+        if (getNeighbors().size() != 2) {
+            throw new IllegalStateException("Pairwise factor " + getIdentity() + " has "
+                    + getNeighbors().size() + " neighbors instead of 2");
+        }
+    }
+
+}
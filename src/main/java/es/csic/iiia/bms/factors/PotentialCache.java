@@ -0,0 +1,298 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import java.util.Arrays;
+
+/**
+ * Bounded least-recently-used cache of potential values, keyed by configuration.
+ * <p/>
+ * Entries live in primitive arrays linked in recency order, and are indexed by an
+ * open-addressing hash table, so lookups never box their keys nor allocate. This class is not
+ * thread-safe; each factor is expected to own its cache.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public final class PotentialCache {
+
+    private static final int NONE = -1;
+
+    /**
+     * Maximum capacity of a cache.
+     */
+    public static final int MAX_CAPACITY = 1 << 29;
+
+    private final int capacity;
+    private final long[] keys;
+    private final double[] values;
+    private final int[] prev;
+    private final int[] next;
+    private final int[] table;
+    private final int mask;
+
+    private int size;
+    private int head = NONE;
+    private int tail = NONE;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Build a new cache.
+     *
+     * @param capacity maximum number of entries to keep, where zero disables caching.
+     */
+    public PotentialCache(int capacity) {
+        checkCapacity(capacity);
+        this.capacity = capacity;
+        keys = new long[capacity];
+        values = new double[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+
+        // Keep the table at most half full so that probe sequences remain short
+        int tableSize = 2;
+        while (tableSize < 2 * capacity) {
+            tableSize <<= 1;
+        }
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Get the value of the given configuration, computing (and caching) it if necessary.
+     *
+     * @param configuration configuration to look up.
+     * @param function function used to compute missing values.
+     * @return value of the configuration.
+     */
+    public double get(long configuration, PotentialFunction function) {
+        return get(configuration, function, true);
+    }
+
+    /**
+     * Get the value of the given configuration, computing it if necessary.
+     * <p/>
+     * Missing values are only cached when admitted. Sequential scans over more configurations
+     * than the capacity of the cache evict every entry before it is looked up again, so they
+     * should only admit as many configurations as fit in the cache.
+     *
+     * @param configuration configuration to look up.
+     * @param function function used to compute missing values.
+     * @param admit whether to cache the value if it has to be computed.
+     * @return value of the configuration.
+     */
+    public double get(long configuration, PotentialFunction function, boolean admit) {
+        final int slot = find(configuration);
+        if (slot != NONE) {
+            hits++;
+            moveToFront(slot);
+            return values[slot];
+        }
+
+        misses++;
+        final double value = function.evaluate(configuration);
+        if (admit && capacity > 0) {
+            put(configuration, value);
+        }
+        return value;
+    }
+
+    /**
+     * Get the maximum number of entries of this cache.
+     *
+     * @return capacity of the cache.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of entries currently cached.
+     *
+     * @return number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of lookups served from the cache.
+     *
+     * @return number of hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that had to compute their value.
+     *
+     * @return number of misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of entries dropped to make room for new ones.
+     *
+     * @return number of evictions.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Get the fraction of lookups served from the cache.
+     *
+     * @return hit ratio, or zero if there have been no lookups.
+     */
+    public double getHitRatio() {
+        final long lookups = hits + misses;
+        return lookups == 0 ? 0 : hits / (double) lookups;
+    }
+
+    /**
+     * Drop all the cached entries and reset the statistics.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+        head = tail = NONE;
+        hits = misses = evictions = 0;
+    }
+
+    static void checkCapacity(int capacity) {
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid cache capacity " + capacity + ".");
+        }
+    }
+
+    private void put(long configuration, double value) {
+        int slot;
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            slot = tail;
+            unlink(slot);
+            remove(keys[slot]);
+            evictions++;
+        }
+
+        keys[slot] = configuration;
+        values[slot] = value;
+        insert(configuration, slot);
+        linkFirst(slot);
+    }
+
+    private void moveToFront(int slot) {
+        if (slot != head) {
+            unlink(slot);
+            linkFirst(slot);
+        }
+    }
+
+    private void linkFirst(int slot) {
+        prev[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE) {
+            prev[head] = slot;
+        }
+        head = slot;
+        if (tail == NONE) {
+            tail = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        final int p = prev[slot], n = next[slot];
+        if (p == NONE) {
+            head = n;
+        } else {
+            next[p] = n;
+        }
+        if (n == NONE) {
+            tail = p;
+        } else {
+            prev[n] = p;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    private int find(long key) {
+        for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (keys[table[i] - 1] == key) {
+                return table[i] - 1;
+            }
+        }
+        return NONE;
+    }
+
+    private void insert(long key, int slot) {
+        int i = hash(key) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    private void remove(long key) {
+        int i = hash(key) & mask;
+        while (keys[table[i] - 1] != key) {
+            i = (i + 1) & mask;
+        }
+
+        // Shift back the following entries of the cluster so that lookups keep finding them
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            final int home = hash(keys[table[j] - 1]) & mask;
+            final boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+}
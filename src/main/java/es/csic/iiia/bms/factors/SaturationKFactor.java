@@ -114,13 +114,13 @@ public class SaturationKFactor<T> extends IndependentFactor<T> {
         return chosen.sum();
     }
 
-    // TODO: Track the number of constraint checks
     @Override
     public long run() {
         final MaxOperator max = getMaxOperator();
         max_b.reset();
         max_bv_0.reset();
         max_bv_1.reset();
+        sum = 0;
 
         // Compute the maximum lists
         for (T neighbor : getNeighbors()) {
@@ -157,7 +157,8 @@ public class SaturationKFactor<T> extends IndependentFactor<T> {
             send(m_1 - m_0, neighbor);
         }
 
-        return 0;
+        // Each neighbor is tracked by three lists and then checked against four of them
+        return getNeighbors().size()*7;
     }
 
 }
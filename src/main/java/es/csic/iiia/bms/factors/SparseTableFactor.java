@@ -0,0 +1,190 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tabular factor that only stores its feasible configurations.
+ * <p/>
+ * The potential of this factor is given as a list of configurations, each one encoded as a
+ * bitmask where the first neighbor is the highest bit (just like the indices of a
+ * {@link StandardFactor}), along with their respective costs/utilities. Every configuration not
+ * in the list is infeasible, and hence takes the max operator's worst value.
+ *
+ * For example, configurations [0, 3, 5] with values [1, 2, 4] represent the table defined below,
+ * where <em>x</em>, <em>y</em>, and <em>z</em> are the three neighbors of this factor:
+ * <pre>
+ * | x | y | z | Cost
+ * ---------------------
+ * | 0 | 0 | 0 |  1
+ * | 0 | 1 | 1 |  2
+ * | 1 | 0 | 1 |  4
+ * | otherwise |  worst
+ * </pre>
+ *
+ * Messages are computed in <em>O(n * nnz)</em> time, where <em>n</em> is the number of neighbors
+ * and <em>nnz</em> the number of feasible configurations, so this factor can handle up to 63
+ * neighbors as long as the feasible set remains small.
+ *
+ * @param <T> Type of the factor's identity.
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class SparseTableFactor<T> extends AbstractFactor<T> {
+
+    /**
+     * Maximum number of neighbors supported by this factor.
+     */
+    public static final int MAX_NEIGHBORS = 63;
+
+    private long[] configurations = new long[0];
+    private double[] values = new double[0];
+
+    /**
+     * Get the feasible configurations of this factor.
+     *
+     * @see SparseTableFactor
+     * @return bitmasks of the feasible configurations.
+     */
+    public long[] getConfigurations() {
+        return configurations;
+    }
+
+    /**
+     * Get the costs/utilities of the feasible configurations of this factor.
+     *
+     * @see SparseTableFactor
+     * @return cost/utility of each feasible configuration.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * Set the potential of this factor.
+     * <p/>
+     * The neighbors of this factor must be added before setting its potential.
+     *
+     * @see SparseTableFactor
+     * @param configurations bitmasks of the feasible configurations.
+     * @param values cost/utility of each feasible configuration.
+     */
+    public void setPotential(long[] configurations, double[] values) {
+        final int nNeighbors = getNeighbors().size();
+        if (nNeighbors > MAX_NEIGHBORS) {
+            throw new IllegalArgumentException("Sparse tables support at most " + MAX_NEIGHBORS
+                    + " neighbors, but this factor has " + nNeighbors + ".");
+        }
+        if (configurations.length != values.length) {
+            throw new IllegalArgumentException("Expected a value for each one of the "
+                    + configurations.length + " configurations, but got " + values.length + ".");
+        }
+
+        final long[] sorted = configurations.clone();
+        Arrays.sort(sorted);
+        for (int i=0; i<sorted.length; i++) {
+            // Any bit above the neighbors (including the sign bit) is out of range. Shifting
+            // instead of comparing against 1 << nNeighbors avoids overflowing at 63 neighbors.
+            if ((sorted[i] >>> nNeighbors) != 0) {
+                throw new IllegalArgumentException("Configuration " + sorted[i]
+                        + " is out of range for a factor with " + nNeighbors + " neighbors.");
+            }
+            if (i > 0 && sorted[i] == sorted[i-1]) {
+                throw new IllegalArgumentException("Duplicated configuration " + sorted[i] + ".");
+            }
+        }
+
+        this.configurations = configurations;
+        this.values = values;
+    }
+
+    @Override
+    protected double eval(Map<T, Boolean> values) {
+        final List<T> neighbors = getNeighbors();
+        final int nNeighbors = neighbors.size();
+
+        long configuration = 0;
+        for (int i=0; i<nNeighbors; i++) {
+            if (values.get(neighbors.get(i))) {
+                configuration |= 1L << (nNeighbors-i-1);
+            }
+        }
+
+        for (int k=0; k<configurations.length; k++) {
+            if (configurations[k] == configuration) {
+                return this.values[k];
+            }
+        }
+        return getMaxOperator().getWorstValue();
+    }
+
+    /**
+     * Runs this factor, visiting only the listed configurations because any other one is
+     * infeasible and can never be the best.
+     * <p/>
+     * A table without feasible configurations sends zero messages, because the difference
+     * between two worst values is undefined.
+     *
+     * @return number of constraint checks performed, one per neighbor and listed configuration.
+     */
+    @Override
+    public long run() {
+        final List<T> neighbors = getNeighbors();
+        final int nNeighbors = neighbors.size();
+        final int nConfigurations = configurations.length;
+
+        // Fetch the list of (ordered) messages
+        final double[] messages = new double[nNeighbors];
+        for (int i=0; i<nNeighbors; i++) {
+            messages[i] = getMessage(neighbors.get(i));
+        }
+
+        final MaxMarginals marginals = new MaxMarginals(getMaxOperator(), messages);
+        for (int k=0; k<nConfigurations; k++) {
+            marginals.add(configurations[k], values[k]);
+        }
+
+        for (int i=0; i<nNeighbors; i++) {
+            send(marginals.isFeasible() ? marginals.getMessage(i) : 0, neighbors.get(i));
+        }
+
+        return (long)nNeighbors * Math.max(nConfigurations, 1);
+    }
+
+}
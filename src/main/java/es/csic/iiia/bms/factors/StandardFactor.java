@@ -36,6 +36,8 @@
  */
 package es.csic.iiia.bms.factors;
 
+import es.csic.iiia.bms.MaxOperator;
+
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -63,6 +65,8 @@ import java.util.Map;
  *
  * You must ensure that there are exactly <em>2**len(neighbors)</em> costs/utilities in the
  * potential array.
+ * <p/>
+ * Factors with exactly two neighbors are run in closed form, as a {@link PairwiseFactor}.
  *
  * @param <T> Type of the factor's identity.
  * @author Marc Pujol <mpujol@iiia.csic.es>
@@ -110,6 +114,10 @@ public class StandardFactor<T> extends AbstractFactor<T> {
     public long run() {
         final List<T> neighbors = getNeighbors();
         final int nNeighbors = neighbors.size();
+        if (nNeighbors == 2) {
+            final double[] values = potential.values;
+            return runPairwise(values[0], values[1], values[2], values[3]);
+        }
 
         // Fetch the list of (ordered) messages
         double[] messages = new double[nNeighbors];
@@ -127,6 +135,22 @@ public class StandardFactor<T> extends AbstractFactor<T> {
         return nNeighbors*nNeighbors;
     }
 
+    /**
+     * Closed-form run of a factor with exactly two neighbors <em>x</em> and <em>y</em>, whose
+     * potential is the table [f(0,0), f(0,1), f(1,0), f(1,1)].
+     */
+    long runPairwise(double f00, double f01, double f10, double f11) {
+        final MaxOperator max = getMaxOperator();
+        final T x = getNeighbors().get(0);
+        final T y = getNeighbors().get(1);
+        final double mx = getMessage(x);
+        final double my = getMessage(y);
+
+        send(max.max(f11 + my, f10) - max.max(f01 + my, f00), x);
+        send(max.max(f11 + mx, f01) - max.max(f10 + mx, f00), y);
+        return 4;
+    }
+
     private double computeMu(T neighbor,  boolean value, List<T> neighbors, double[] messages) {
         Iterator<Integer> indices = potential.getIterator(neighbor, value);
         double max = getMaxOperator().getWorstValue();
@@ -36,23 +36,71 @@
  */
 package es.csic.iiia.bms.factors;
 
+import es.csic.iiia.bms.parallel.ParallelOperations;
+
 import java.util.List;
 import java.util.Map;
 
 /**
  * Factor defined over a single variable (variable node in classical MaxSum).
+ * <p/>
+ * Variables may have a <em>bias</em>, which is the cost/utility of activating them. A bias is
+ * equivalent to linking the variable to an {@link IndependentFactor}, but it is folded into the
+ * variable's own messages instead of being sent every iteration.
  *
  * @param <T> Type of the factor's identity.
  * @author Marc Pujol <mpujol@iiia.csic.es>
  */
 public class VariableFactor<T> extends AbstractFactor<T> {
 
+    private ParallelOperations parallelOperations;
+
+    private double bias;
+
+    /**
+     * Get the parallel operations used to split the computation of this factor's messages.
+     *
+     * @return parallel operations used by this factor, or <code>null</code> if none.
+     */
+    public ParallelOperations getParallelOperations() {
+        return parallelOperations;
+    }
+
+    /**
+     * Set the parallel operations used to split the computation of this factor's messages
+     * when it has many neighbors.
+     *
+     * @param parallelOperations parallel operations to use, or <code>null</code> to always run
+     *                           sequentially.
+     */
+    public void setParallelOperations(ParallelOperations parallelOperations) {
+        this.parallelOperations = parallelOperations;
+    }
+
+    /**
+     * Get the cost/utility of activating this variable.
+     *
+     * @return bias of this variable.
+     */
+    public double getBias() {
+        return bias;
+    }
+
+    /**
+     * Set the cost/utility of activating this variable.
+     *
+     * @param bias bias of this variable.
+     */
+    public void setBias(double bias) {
+        this.bias = bias;
+    }
+
     @Override
     protected double eval(Map<T, Boolean> values) {
         final List<T> neighbors = getNeighbors();
         final int nNeighbors = neighbors.size();
 
-        if (nNeighbors <= 1) {
+        if (nNeighbors == 0) {
             return 0;
         }
 
@@ -63,21 +111,26 @@ public class VariableFactor<T> extends AbstractFactor<T> {
             }
         }
 
-        return 0;
+        return value ? bias : 0;
     }
 
     /**
      * Computes and sends the messages of this factor, using the formula:
      *
-     * \nu_{n_i} =  [ \sum_{n_j \in N} \nu_{n_j} ] - \nu_{n_i}
+     * \nu_{n_i} =  b + [ \sum_{n_j \in N} \nu_{n_j} ] - \nu_{n_i}
      *
-     * where N is the set of neighbors of this factor.
+     * where N is the set of neighbors of this factor and b its bias.
      *
      * @return number of Constraint Checks performed by this node.
      */
     @Override
     public long run() {
-        double belief = 0;
+        if (parallelOperations != null
+                && parallelOperations.isWorthSplitting(getNeighbors().size())) {
+            return runParallel();
+        }
+
+        double belief = bias;
 
         for (T f : getNeighbors()) {
             belief += getMessage(f);
@@ -92,4 +145,32 @@ public class VariableFactor<T> extends AbstractFactor<T> {
         return getNeighbors().size()*2;
     }
 
+    private long runParallel() {
+        final List<T> neighbors = getNeighbors();
+        final int nNeighbors = neighbors.size();
+
+        final double[] messages = new double[nNeighbors];
+        parallelOperations.forEach(nNeighbors, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    messages[i] = getMessage(neighbors.get(i));
+                }
+            }
+        });
+
+        final double belief = bias + parallelOperations.sum(messages);
+        parallelOperations.forEach(nNeighbors, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    messages[i] = belief - messages[i];
+                }
+            }
+        });
+
+        parallelOperations.send(this, neighbors, messages);
+        return nNeighbors*2;
+    }
+
 }
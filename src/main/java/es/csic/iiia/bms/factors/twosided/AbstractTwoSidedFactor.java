@@ -37,10 +37,12 @@
 package es.csic.iiia.bms.factors.twosided;
 
 import es.csic.iiia.bms.factors.AbstractFactor;
+import es.csic.iiia.bms.parallel.ParallelOperations;
 import es.csic.iiia.bms.util.NeighborComparator;
 import es.csic.iiia.bms.util.NeighborValue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -67,6 +69,43 @@ public abstract class AbstractTwoSidedFactor<T> extends AbstractFactor<T> {
      */
     protected long constraintChecks;
 
+    /**
+     * Parallel operations used to split the computation of messages (if any).
+     */
+    protected ParallelOperations parallelOperations;
+
+    /**
+     * Get the parallel operations used to split the computation of this factor's messages.
+     *
+     * @return parallel operations used by this factor, or <code>null</code> if none.
+     */
+    public ParallelOperations getParallelOperations() {
+        return parallelOperations;
+    }
+
+    /**
+     * Set the parallel operations used to split the computation of this factor's messages
+     * when it has many neighbors.
+     *
+     * @param parallelOperations parallel operations to use, or <code>null</code> to always run
+     *                           sequentially.
+     */
+    public void setParallelOperations(ParallelOperations parallelOperations) {
+        this.parallelOperations = parallelOperations;
+    }
+
+    /**
+     * Check whether the computation of this factor's messages should be split among several
+     * threads.
+     *
+     * @return <code>true</code> if the computation should be split, or <code>false</code>
+     * otherwise.
+     */
+    protected boolean isParallel() {
+        return parallelOperations != null
+                && parallelOperations.isWorthSplitting(getNeighbors().size());
+    }
+
     /**
      * Get the number of elements in set A.
      *
@@ -131,6 +170,10 @@ public abstract class AbstractTwoSidedFactor<T> extends AbstractFactor<T> {
      * the factors in set A.
      */
     protected List<NeighborValue<T>> getSortedSetAPairs() {
+        if (isParallel()) {
+            return getSortedPairs(0, nElementsA);
+        }
+
         List<NeighborValue<T>> setAPairs = new ArrayList<NeighborValue<T>>(nElementsA);
 
         for (int i = 0; i < nElementsA; i++) {
@@ -156,6 +199,10 @@ public abstract class AbstractTwoSidedFactor<T> extends AbstractFactor<T> {
     protected List<NeighborValue<T>> getSortedSetBPairs() {
         final int nNeighbors = getNeighbors().size();
         final int nElementsB = nNeighbors - nElementsA;
+        if (isParallel()) {
+            return getSortedPairs(nElementsA, nNeighbors);
+        }
+
         List<NeighborValue<T>> setBPairs = new ArrayList<NeighborValue<T>>(nElementsB);
 
         for (int i = nElementsA; i < nNeighbors; i++) {
@@ -171,6 +218,34 @@ public abstract class AbstractTwoSidedFactor<T> extends AbstractFactor<T> {
         return setBPairs;
     }
 
+    /**
+     * Parallel version of the pair sorting, for the neighbors in the [from, to) range.
+     */
+    private List<NeighborValue<T>> getSortedPairs(final int from, int to) {
+        final List<T> neighbors = getNeighbors();
+        final int size = to - from;
+
+        @SuppressWarnings("unchecked")
+        final NeighborValue<T>[] pairs = (NeighborValue<T>[])new NeighborValue<?>[size];
+        parallelOperations.forEach(size, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                for (int i=start; i<end; i++) {
+                    final T neighbor = neighbors.get(from + i);
+                    pairs[i] = new NeighborValue<T>(neighbor, getMessage(neighbor));
+                }
+            }
+        });
+        constraintChecks += size;
+
+        // The comparisons are counted by the parallel sort, because the comparator's own
+        // counter is not thread-safe.
+        NeighborComparator<T> cmp = new NeighborComparator<T>(getMaxOperator());
+        constraintChecks += parallelOperations.sort(pairs, Collections.reverseOrder(cmp));
+
+        return Arrays.asList(pairs);
+    }
+
     /**
      * Get the difference between the number of active neighbors in set A and
      * the number of active neighbors in set B.
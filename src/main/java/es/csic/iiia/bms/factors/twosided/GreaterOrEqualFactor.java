@@ -37,8 +37,10 @@
 package es.csic.iiia.bms.factors.twosided;
 
 import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.parallel.ParallelOperations;
 import es.csic.iiia.bms.util.NeighborValue;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -103,7 +105,10 @@ public class GreaterOrEqualFactor<T> extends AbstractTwoSidedFactor<T> {
         constraintChecks += 6;
 
         final int nPositiveA = getNPositive(setAPairs);
-        if (nPositiveA > theta) {
+        if (isParallel()) {
+            sendParallel(setAPairs, setBPairs, nPositiveA > theta, Math.max(theta, nPositiveA),
+                    theta, A, B);
+        } else if (nPositiveA > theta) {
             for (T neighbor : getNeighbors()) {
                 send(0, neighbor);
             }
@@ -134,6 +139,37 @@ public class GreaterOrEqualFactor<T> extends AbstractTwoSidedFactor<T> {
         return constraintChecks;
     }
 
+    /**
+     * Parallel version of the message emission.
+     */
+    private void sendParallel(final List<NeighborValue<T>> setAPairs,
+            final List<NeighborValue<T>> setBPairs, final boolean allZero, final int nActiveA,
+            final int theta, final double A, final double B)
+    {
+        final int nNeighbors = getNeighbors().size();
+        @SuppressWarnings("unchecked")
+        final T[] recipients = (T[])new Object[nNeighbors];
+        final double[] messages = new double[nNeighbors];
+
+        parallelOperations.forEach(nNeighbors, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    if (i < nElementsA) {
+                        recipients[i] = setAPairs.get(i).neighbor;
+                        messages[i] = allZero ? 0 : (i < nActiveA ? -A : B);
+                    } else {
+                        final int j = i - nElementsA;
+                        recipients[i] = setBPairs.get(j).neighbor;
+                        messages[i] = allZero ? 0 : (j < theta ? -B : A);
+                    }
+                }
+            }
+        });
+
+        parallelOperations.send(this, Arrays.asList(recipients), messages);
+    }
+
     @Override
     protected double eval(Map<T, Boolean> values) {
         final int reserve = getReserve(values);
@@ -0,0 +1,114 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+/**
+ * Counters of the work done by all the factors of a single type.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class FactorMetrics implements FactorMetricsMBean {
+
+    private final String type;
+    private final StripedCounter runs = new StripedCounter();
+    private final StripedCounter messages = new StripedCounter();
+    private final StripedCounter constraintChecks = new StripedCounter();
+    private final StripedCounter nanos = new StripedCounter();
+
+    /**
+     * Build new (zeroed) metrics for the given factor type.
+     *
+     * @param type name of the factor type.
+     */
+    public FactorMetrics(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Record a single run of a factor of this type.
+     *
+     * @param messages number of messages sent during the run.
+     * @param constraintChecks number of constraint checks performed during the run.
+     * @param nanos time spent in the run, in nanoseconds.
+     */
+    public void record(long messages, long constraintChecks, long nanos) {
+        runs.increment();
+        this.messages.add(messages);
+        this.constraintChecks.add(constraintChecks);
+        this.nanos.add(nanos);
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getConstraintChecks() {
+        return constraintChecks.sum();
+    }
+
+    @Override
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    @Override
+    public void reset() {
+        runs.reset();
+        messages.reset();
+        constraintChecks.reset();
+        nanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return type + "[runs=" + getRuns() + ", messages=" + getMessages() + ", checks="
+                + getConstraintChecks() + ", nanos=" + getNanos() + "]";
+    }
+
+}
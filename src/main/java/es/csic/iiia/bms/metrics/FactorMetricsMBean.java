@@ -0,0 +1,86 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+/**
+ * Management interface through which {@link FactorMetrics} are exposed as JMX MBeans.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public interface FactorMetricsMBean {
+
+    /**
+     * Get the name of the factor type these metrics belong to.
+     *
+     * @return name of the factor type.
+     */
+    public String getType();
+
+    /**
+     * Get the number of times that factors of this type have been run.
+     *
+     * @return number of runs.
+     */
+    public long getRuns();
+
+    /**
+     * Get the number of messages sent by factors of this type.
+     *
+     * @return number of messages sent.
+     */
+    public long getMessages();
+
+    /**
+     * Get the number of constraint checks performed by factors of this type.
+     *
+     * @return number of constraint checks.
+     */
+    public long getConstraintChecks();
+
+    /**
+     * Get the time spent running factors of this type.
+     *
+     * @return time spent, in nanoseconds.
+     */
+    public long getNanos();
+
+    /**
+     * Reset all the counters of this factor type to zero.
+     */
+    public void reset();
+
+}
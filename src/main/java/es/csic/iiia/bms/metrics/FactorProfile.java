@@ -0,0 +1,171 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+/**
+ * Cost profile of a single factor, as sampled by a {@link FactorProfiler}.
+ * <p/>
+ * Each profile is updated by the single thread that runs its factor at any given time, so
+ * engines must not run the same factor concurrently. Profiles should only be read once the
+ * engine has returned.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class FactorProfile {
+
+    private final Object identity;
+    private final String type;
+    private final int degree;
+    private final int samplingInterval;
+    private long runs;
+    private long sampledRuns;
+    private long sampledNanos;
+    private long constraintChecks;
+
+    FactorProfile(Object identity, String type, int degree, int samplingInterval) {
+        this.identity = identity;
+        this.type = type;
+        this.degree = degree;
+        this.samplingInterval = samplingInterval;
+    }
+
+    /**
+     * Check whether the next run of this factor has to be timed, and account for it.
+     *
+     * @return <code>true</code> if the engine must time the next run.
+     */
+    public boolean sample() {
+        return runs++ % samplingInterval == 0;
+    }
+
+    /**
+     * Record the outcome of a run of this factor.
+     *
+     * @param checks number of constraint checks performed during the run.
+     * @param nanos duration of the run if it was sampled, or a negative value otherwise.
+     */
+    public void record(long checks, long nanos) {
+        constraintChecks += checks;
+        if (nanos >= 0) {
+            sampledRuns++;
+            sampledNanos += nanos;
+        }
+    }
+
+    /**
+     * Get the identity of the factor.
+     *
+     * @return identity of the factor.
+     */
+    public Object getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Get the name of the factor's type.
+     *
+     * @return name of the factor's type.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Get the number of neighbors of the factor.
+     *
+     * @return degree of the factor.
+     */
+    public int getDegree() {
+        return degree;
+    }
+
+    /**
+     * Get the number of times the factor has run.
+     *
+     * @return number of runs.
+     */
+    public long getRuns() {
+        return runs;
+    }
+
+    /**
+     * Get the number of runs that have been timed.
+     *
+     * @return number of sampled runs.
+     */
+    public long getSampledRuns() {
+        return sampledRuns;
+    }
+
+    /**
+     * Get the total number of constraint checks performed by the factor.
+     *
+     * @return number of constraint checks.
+     */
+    public long getConstraintChecks() {
+        return constraintChecks;
+    }
+
+    /**
+     * Get the average duration of the sampled runs.
+     *
+     * @return average duration of a run, in nanoseconds.
+     */
+    public double getMeanNanos() {
+        return sampledRuns == 0 ? 0 : sampledNanos / (double)sampledRuns;
+    }
+
+    /**
+     * Get the estimated time spent running the factor, extrapolated from the sampled runs.
+     *
+     * @return estimated total duration of all the runs, in nanoseconds.
+     */
+    public double getEstimatedNanos() {
+        return getMeanNanos() * runs;
+    }
+
+    void reset() {
+        runs = sampledRuns = sampledNanos = constraintChecks = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-30s %-28s %8d %12.0f %14d", identity, type, degree,
+                getMeanNanos(), constraintChecks);
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import es.csic.iiia.bms.Factor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Profiler that samples the cost of every factor run by an engine, to find the handful of
+ * factors that dominate the iteration time.
+ * <p/>
+ * Engines register a {@link FactorProfile} for each factor they run, count the constraint
+ * checks of every run and time one out of every {@link #getSamplingInterval()} runs. Then,
+ * {@link #getHottest(int)} ranks the factors by their estimated total time, and
+ * {@link #getReport(int)} formats that ranking as a table.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class FactorProfiler {
+
+    /** Default number of runs between two sampled runs of the same factor */
+    public static final int DEFAULT_SAMPLING_INTERVAL = 1;
+
+    private static final Comparator<FactorProfile> BY_TIME = new Comparator<FactorProfile>() {
+        @Override
+        public int compare(FactorProfile p1, FactorProfile p2) {
+            return Double.compare(p2.getEstimatedNanos(), p1.getEstimatedNanos());
+        }
+    };
+
+    private static final Comparator<FactorProfile> BY_CHECKS = new Comparator<FactorProfile>() {
+        @Override
+        public int compare(FactorProfile p1, FactorProfile p2) {
+            final long c1 = p1.getConstraintChecks(), c2 = p2.getConstraintChecks();
+            return c1 == c2 ? 0 : (c1 > c2 ? -1 : 1);
+        }
+    };
+
+    private final int samplingInterval;
+    private final List<FactorProfile> profiles = new ArrayList<FactorProfile>();
+
+    /**
+     * Build a new profiler that times every factor run.
+     */
+    public FactorProfiler() {
+        this(DEFAULT_SAMPLING_INTERVAL);
+    }
+
+    /**
+     * Build a new profiler that times one out of every <em>samplingInterval</em> runs of
+     * each factor.
+     *
+     * @param samplingInterval number of runs between two sampled runs of the same factor.
+     */
+    public FactorProfiler(int samplingInterval) {
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException("The sampling interval must be positive");
+        }
+        this.samplingInterval = samplingInterval;
+    }
+
+    /**
+     * Get the number of runs between two sampled runs of the same factor.
+     *
+     * @return sampling interval.
+     */
+    public int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    /**
+     * Register a new factor to profile.
+     *
+     * @param identity identity of the factor.
+     * @param type name of the factor's type.
+     * @param degree number of neighbors of the factor.
+     * @return profile of the factor, to be updated by the engine that runs it.
+     */
+    public synchronized FactorProfile register(Object identity, String type, int degree) {
+        final FactorProfile profile = new FactorProfile(identity, type, degree, samplingInterval);
+        profiles.add(profile);
+        return profile;
+    }
+
+    /**
+     * Register a new factor object to profile.
+     *
+     * @param factor factor to profile.
+     * @return profile of the factor, to be updated by the engine that runs it.
+     */
+    public FactorProfile register(Factor<?> factor) {
+        return register(factor.getIdentity(), MetricsRegistry.getTypeName(factor),
+                factor.getNeighbors().size());
+    }
+
+    /**
+     * Get the profiles of all the registered factors.
+     *
+     * @return list of profiles, in registration order.
+     */
+    public synchronized List<FactorProfile> getProfiles() {
+        return new ArrayList<FactorProfile>(profiles);
+    }
+
+    /**
+     * Get the profiles of the factors with the highest estimated running time.
+     *
+     * @param n maximum number of profiles to get.
+     * @return most expensive profiles, in decreasing order of estimated time.
+     */
+    public List<FactorProfile> getHottest(int n) {
+        return top(n, BY_TIME);
+    }
+
+    /**
+     * Get the profiles of the factors that have performed the most constraint checks.
+     *
+     * @param n maximum number of profiles to get.
+     * @return most expensive profiles, in decreasing order of constraint checks.
+     */
+    public List<FactorProfile> getHottestByConstraintChecks(int n) {
+        return top(n, BY_CHECKS);
+    }
+
+    private List<FactorProfile> top(int n, Comparator<FactorProfile> comparator) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The number of factors can not be negative");
+        }
+        final List<FactorProfile> sorted = getProfiles();
+        Collections.sort(sorted, comparator);
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    /**
+     * Format the ranking of the factors with the highest estimated running time as a table.
+     *
+     * @param n maximum number of factors to include.
+     * @return report of the most expensive factors.
+     */
+    public String getReport(int n) {
+        final List<FactorProfile> hottest = getHottest(n);
+        double total = 0;
+        for (FactorProfile profile : getProfiles()) {
+            total += profile.getEstimatedNanos();
+        }
+
+        StringBuilder buf = new StringBuilder(String.format("%4s %6s %-30s %-28s %8s %12s %14s%n",
+                "rank", "time%", "identity", "type", "degree", "mean ns", "checks"));
+        for (int i=0; i<hottest.size(); i++) {
+            final FactorProfile profile = hottest.get(i);
+            final double share = total == 0 ? 0 : 100 * profile.getEstimatedNanos() / total;
+            buf.append(String.format("%4d %6.2f %s%n", i + 1, share, profile));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Reset the profiles of all the registered factors.
+     */
+    public synchronized void reset() {
+        for (FactorProfile profile : profiles) {
+            profile.reset();
+        }
+    }
+
+}
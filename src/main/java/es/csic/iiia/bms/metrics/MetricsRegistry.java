@@ -0,0 +1,345 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import es.csic.iiia.bms.Factor;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the metrics collected while running a max-sum graph.
+ * <p/>
+ * The registry holds a {@link FactorMetrics} for each factor type, which engines update
+ * after every factor run, and a {@link ResidualHistogram} for the ongoing iteration, which
+ * engines fill as they send messages and close through {@link #endIteration()}. The histograms
+ * of the last {@link #getHistorySize()} iterations are kept, so that convergence can be
+ * followed over time.
+ * <p/>
+ * Object-based engines name each factor type after the simple name of its class, whereas the
+ * {@link es.csic.iiia.bms.compiled.CompiledEngine} names them after their
+ * {@link es.csic.iiia.bms.compiled.FactorType}.
+ * <p/>
+ * All the metrics can be exported as a JSON document through {@link #toJson()}, or as JMX
+ * MBeans through {@link #registerMBeans(MBeanServer, String)}.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class MetricsRegistry {
+    private static final Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+
+    /** Default number of residual histograms kept */
+    public static final int DEFAULT_HISTORY_SIZE = 100;
+
+    private final ConcurrentMap<String, FactorMetrics> factors =
+            new ConcurrentHashMap<String, FactorMetrics>();
+    private final LinkedList<ResidualHistogram> history = new LinkedList<ResidualHistogram>();
+    private volatile ResidualHistogram residuals = new ResidualHistogram(0);
+    private int historySize = DEFAULT_HISTORY_SIZE;
+
+    // JMX registration (guarded by this registry's lock)
+    private MBeanServer server;
+    private String domain;
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Get the metrics of the given factor type, creating them if they don't exist yet.
+     *
+     * @param type name of the factor type.
+     * @return metrics of that factor type.
+     */
+    public FactorMetrics getFactorMetrics(String type) {
+        FactorMetrics metrics = factors.get(type);
+        if (metrics == null) {
+            final FactorMetrics created = new FactorMetrics(type);
+            metrics = factors.putIfAbsent(type, created);
+            if (metrics == null) {
+                metrics = created;
+                registerCreated(created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the metrics of the type of the given factor, creating them if they don't exist yet.
+     *
+     * @param factor factor whose type metrics to get.
+     * @return metrics of the factor's type.
+     */
+    public FactorMetrics getFactorMetrics(Factor<?> factor) {
+        return getFactorMetrics(getTypeName(factor));
+    }
+
+    /**
+     * Get the name of the type of the given factor.
+     *
+     * @param factor factor whose type name to get.
+     * @return simple name of the factor's class, or its full name if the class is anonymous.
+     */
+    public static String getTypeName(Factor<?> factor) {
+        final Class<?> type = factor.getClass();
+        final String name = type.getSimpleName();
+        return name.isEmpty() ? type.getName() : name;
+    }
+
+    /**
+     * Get the names of all the factor types with metrics.
+     *
+     * @return sorted list of factor type names.
+     */
+    public List<String> getTypes() {
+        List<String> types = new ArrayList<String>(factors.keySet());
+        Collections.sort(types);
+        return types;
+    }
+
+    /**
+     * Get the histogram where residuals of the ongoing iteration are recorded.
+     *
+     * @return histogram of the ongoing iteration.
+     */
+    public ResidualHistogram getResiduals() {
+        return residuals;
+    }
+
+    /**
+     * Close the ongoing iteration, moving its histogram to the history and starting a new one.
+     * <p/>
+     * Engines must call this method when no residuals are being recorded.
+     *
+     * @return histogram of the iteration just closed.
+     */
+    public synchronized ResidualHistogram endIteration() {
+        final ResidualHistogram closed = residuals;
+        residuals = new ResidualHistogram(closed.getIteration() + 1);
+        history.addLast(closed);
+        while (history.size() > historySize) {
+            history.removeFirst();
+        }
+        return closed;
+    }
+
+    /**
+     * Get the histograms of the last closed iterations.
+     *
+     * @return list of histograms, oldest first.
+     */
+    public synchronized List<ResidualHistogram> getResidualHistory() {
+        return new ArrayList<ResidualHistogram>(history);
+    }
+
+    /**
+     * Get the maximum number of residual histograms kept.
+     *
+     * @return number of histograms kept.
+     */
+    public synchronized int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Set the maximum number of residual histograms kept.
+     *
+     * @param historySize number of histograms to keep.
+     */
+    public synchronized void setHistorySize(int historySize) {
+        if (historySize < 0) {
+            throw new IllegalArgumentException("The history size can not be negative");
+        }
+        this.historySize = historySize;
+        while (history.size() > historySize) {
+            history.removeFirst();
+        }
+    }
+
+    /**
+     * Reset all the factor counters to zero and drop the residual history.
+     */
+    public synchronized void reset() {
+        for (FactorMetrics metrics : factors.values()) {
+            metrics.reset();
+        }
+        history.clear();
+        residuals = new ResidualHistogram(0);
+    }
+
+    /**
+     * Export all the metrics as a JSON document.
+     * <p/>
+     * The document holds a <code>factors</code> object with the counters of each factor type,
+     * and a <code>residuals</code> array with the histograms of the last closed iterations
+     * (oldest first), whose <code>buckets</code> are laid out as explained in
+     * {@link ResidualHistogram}. JSON numbers can not be infinite nor NaN, so such maximum
+     * residuals are written as <code>null</code>.
+     *
+     * @return JSON representation of the metrics.
+     */
+    public String toJson() {
+        StringBuilder buf = new StringBuilder("{\"factors\":{");
+        String separator = "";
+        for (String type : getTypes()) {
+            final FactorMetrics metrics = factors.get(type);
+            buf.append(separator);
+            appendString(buf, type);
+            buf.append(":{\"runs\":").append(metrics.getRuns())
+                    .append(",\"messages\":").append(metrics.getMessages())
+                    .append(",\"constraintChecks\":").append(metrics.getConstraintChecks())
+                    .append(",\"nanos\":").append(metrics.getNanos())
+                    .append('}');
+            separator = ",";
+        }
+
+        buf.append("},\"residuals\":[");
+        separator = "";
+        for (ResidualHistogram histogram : getResidualHistory()) {
+            buf.append(separator)
+                    .append("{\"iteration\":").append(histogram.getIteration())
+                    .append(",\"total\":").append(histogram.getTotal())
+                    .append(",\"max\":");
+            final double max = histogram.getMax();
+            buf.append(Double.isInfinite(max) || Double.isNaN(max) ? "null" : String.valueOf(max));
+            buf.append(",\"buckets\":[");
+            final long[] counts = histogram.getCounts();
+            for (int i=0; i<counts.length; i++) {
+                buf.append(i == 0 ? "" : ",").append(counts[i]);
+            }
+            buf.append("]}");
+            separator = ",";
+        }
+        return buf.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder buf, String value) {
+        buf.append('"');
+        for (int i=0; i<value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int)c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Register the metrics of every factor type as an MBean in the given server, under the
+     * given domain. The metrics of factor types that appear later on are registered as well,
+     * until {@link #unregisterMBeans()} is called.
+     *
+     * @param server server where to register the MBeans.
+     * @param domain domain of the MBean names.
+     * @throws JMException if any of the MBeans can not be registered.
+     * @throws IllegalStateException if the MBeans are already registered.
+     */
+    public synchronized void registerMBeans(MBeanServer server, String domain) throws JMException {
+        if (this.server != null) {
+            throw new IllegalStateException("The MBeans of this registry are already registered");
+        }
+        this.server = server;
+        this.domain = domain;
+        try {
+            for (FactorMetrics metrics : factors.values()) {
+                register(metrics);
+            }
+        } catch (JMException e) {
+            unregisterMBeans();
+            throw e;
+        }
+    }
+
+    /**
+     * Unregister all the MBeans registered by this registry.
+     */
+    public synchronized void unregisterMBeans() {
+        if (server == null) {
+            return;
+        }
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOG.log(Level.WARNING, "Unable to unregister MBean " + name, e);
+            }
+        }
+        registered.clear();
+        server = null;
+        domain = null;
+    }
+
+    /**
+     * Get the name under which the metrics of the given factor type are registered.
+     *
+     * @param domain domain of the MBean names.
+     * @param type name of the factor type.
+     * @return MBean name of that type's metrics.
+     * @throws JMException if the resulting name is not valid.
+     */
+    public static ObjectName getObjectName(String domain, String type) throws JMException {
+        return new ObjectName(domain + ":type=FactorMetrics,name=" + ObjectName.quote(type));
+    }
+
+    private synchronized void registerCreated(FactorMetrics metrics) {
+        if (server == null) {
+            return;
+        }
+        try {
+            register(metrics);
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "Unable to register the metrics of " + metrics.getType(), e);
+        }
+    }
+
+    private void register(FactorMetrics metrics) throws JMException {
+        final ObjectName name = getObjectName(domain, metrics.getType());
+        server.registerMBean(metrics, name);
+        registered.add(name);
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the residuals (absolute differences between the new and the previous message
+ * sent through an edge) observed during a single iteration.
+ * <p/>
+ * Residuals are counted in buckets of one order of magnitude each. The first bucket holds the
+ * residuals below {@code 10^MIN_EXPONENT} (including exact zeros), bucket <em>i</em> holds those
+ * in {@code [10^(MIN_EXPONENT+i-1), 10^(MIN_EXPONENT+i))}, and the last one holds those of
+ * {@code 10^MAX_EXPONENT} or more, as well as infinite or undefined ones.
+ * <p/>
+ * Residuals can be recorded concurrently from several threads.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ResidualHistogram {
+
+    /** Exponent of the upper bound of the first bucket */
+    public static final int MIN_EXPONENT = -12;
+
+    /** Exponent of the lower bound of the last bucket */
+    public static final int MAX_EXPONENT = 3;
+
+    /** Number of buckets of every histogram */
+    public static final int NUMBER_OF_BUCKETS = MAX_EXPONENT - MIN_EXPONENT + 2;
+
+    private static final double MIN_RESIDUAL = Math.pow(10, MIN_EXPONENT);
+    private static final double MAX_RESIDUAL = Math.pow(10, MAX_EXPONENT);
+
+    private final long iteration;
+    private final AtomicLongArray counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    private final AtomicLong max = new AtomicLong(Double.doubleToLongBits(0));
+
+    /**
+     * Build a new empty histogram.
+     *
+     * @param iteration iteration whose residuals are recorded in this histogram.
+     */
+    public ResidualHistogram(long iteration) {
+        this.iteration = iteration;
+    }
+
+    /**
+     * Get the bucket where the given residual is counted.
+     *
+     * @param residual residual to count.
+     * @return index of the bucket.
+     */
+    public static int getBucket(double residual) {
+        if (residual < MIN_RESIDUAL) {
+            return 0;
+        }
+        if (!(residual < MAX_RESIDUAL)) {
+            return NUMBER_OF_BUCKETS - 1;
+        }
+        final int bucket = (int)Math.floor(Math.log10(residual)) - MIN_EXPONENT + 1;
+        return Math.max(1, Math.min(NUMBER_OF_BUCKETS - 2, bucket));
+    }
+
+    /**
+     * Record the residual between a new message and the previous one.
+     *
+     * @param residual absolute difference between both messages.
+     */
+    public void record(double residual) {
+        counts.incrementAndGet(getBucket(residual));
+
+        // Non-negative doubles are ordered as their bit representations, with NaN above
+        // infinity, so undefined residuals are kept as the maximum
+        if (residual > 0 || Double.isNaN(residual)) {
+            final long bits = Double.doubleToLongBits(residual);
+            long current = max.get();
+            while (bits > current && !max.compareAndSet(current, bits)) {
+                current = max.get();
+            }
+        }
+    }
+
+    /**
+     * Get the iteration whose residuals are recorded in this histogram.
+     *
+     * @return iteration number.
+     */
+    public long getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Get the number of residuals counted in the given bucket.
+     *
+     * @param bucket index of the bucket.
+     * @return number of residuals in that bucket.
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Get the number of residuals counted in each bucket.
+     *
+     * @return array with the count of each bucket.
+     */
+    public long[] getCounts() {
+        long[] result = new long[NUMBER_OF_BUCKETS];
+        for (int i=0; i<NUMBER_OF_BUCKETS; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the total number of residuals recorded.
+     *
+     * @return number of residuals.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i=0; i<NUMBER_OF_BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get the largest residual recorded, where undefined (NaN) residuals are larger than any
+     * other one.
+     *
+     * @return largest residual, or 0 if none has been recorded.
+     */
+    public double getMax() {
+        return Double.longBitsToDouble(max.get());
+    }
+
+}
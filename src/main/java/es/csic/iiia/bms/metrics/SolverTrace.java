@@ -0,0 +1,244 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Events emitted by the solver to trace where time goes during a run, without attaching a
+ * profiler.
+ * <p/>
+ * Events are published as {@link Level#FINE} records of three dedicated loggers, so they can be
+ * enabled, filtered and routed independently through the standard logging configuration:
+ * <ul>
+ * <li>{@value #ITERATION_LOGGER}: start and end of every iteration of the synchronous engines,
+ * with the number of messages sent and the largest residual (when known).</li>
+ * <li>{@value #FACTOR_LOGGER}: factor runs that take at least {@link #getSlowFactorThreshold()}
+ * nanoseconds, with the type and degree of the factor.</li>
+ * <li>{@value #TICK_LOGGER}: message deliveries of the tick-based communication adapters, with
+ * the number of messages delivered.</li>
+ * </ul>
+ * The parameters of each record are the values listed in its message, in the same order, so
+ * handlers can process them without parsing.
+ * <p/>
+ * Emitters check whether each event is enabled once per iteration (or tick), and skip all the
+ * timing and bookkeeping otherwise, so disabled events cost nothing on the hot path. The
+ * {@value #TEMPLATE} resource is a logging configuration that records all these events to a
+ * file, which can be installed through {@link #loadTemplate()} or passed to the JVM through the
+ * <code>java.util.logging.config.file</code> system property.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public final class SolverTrace {
+
+    /** Name of the logger of iteration events */
+    public static final String ITERATION_LOGGER = "es.csic.iiia.bms.trace.iteration";
+
+    /** Name of the logger of slow factor run events */
+    public static final String FACTOR_LOGGER = "es.csic.iiia.bms.trace.factor";
+
+    /** Name of the logger of tick delivery events */
+    public static final String TICK_LOGGER = "es.csic.iiia.bms.trace.tick";
+
+    /** Logging property holding the threshold (in nanoseconds) of slow factor runs */
+    public static final String THRESHOLD_PROPERTY = FACTOR_LOGGER + ".threshold";
+
+    /** Default threshold of slow factor runs (one millisecond) */
+    public static final long DEFAULT_SLOW_FACTOR_THRESHOLD = 1000000;
+
+    /** Name of the logging configuration resource that records all the solver events */
+    public static final String TEMPLATE = "maxsum-trace.properties";
+
+    // Keep strong references, so that their configuration is never lost
+    private static final Logger ITERATIONS = Logger.getLogger(ITERATION_LOGGER);
+    private static final Logger FACTORS = Logger.getLogger(FACTOR_LOGGER);
+    private static final Logger TICKS = Logger.getLogger(TICK_LOGGER);
+
+    private static volatile long slowFactorThreshold = readThreshold();
+
+    private SolverTrace() {}
+
+    /**
+     * Check whether the iteration events are enabled.
+     *
+     * @return <code>true</code> if iteration events are being recorded.
+     */
+    public static boolean isIterationEnabled() {
+        return ITERATIONS.isLoggable(Level.FINE);
+    }
+
+    /**
+     * Check whether the slow factor run events are enabled.
+     *
+     * @return <code>true</code> if slow factor runs are being recorded.
+     */
+    public static boolean isFactorEnabled() {
+        return FACTORS.isLoggable(Level.FINE);
+    }
+
+    /**
+     * Check whether the tick delivery events are enabled.
+     *
+     * @return <code>true</code> if tick deliveries are being recorded.
+     */
+    public static boolean isTickEnabled() {
+        return TICKS.isLoggable(Level.FINE);
+    }
+
+    /**
+     * Emit the start of an iteration.
+     *
+     * @param source name of the engine running the iteration.
+     * @param iteration number of the iteration.
+     */
+    public static void iterationStarted(String source, long iteration) {
+        ITERATIONS.log(Level.FINE, "{0} started iteration {1}", new Object[]{source, iteration});
+    }
+
+    /**
+     * Emit the end of an iteration.
+     *
+     * @param source name of the engine running the iteration.
+     * @param iteration number of the iteration.
+     * @param nanos duration of the iteration, in nanoseconds.
+     * @param messages number of messages sent during the iteration.
+     * @param maxResidual largest residual of the iteration, or <code>NaN</code> if unknown.
+     */
+    public static void iterationFinished(String source, long iteration, long nanos, long messages,
+            double maxResidual) {
+        ITERATIONS.log(Level.FINE, "{0} finished iteration {1} in {2} ns, sending {3} messages "
+                + "with a max residual of {4}",
+                new Object[]{source, iteration, nanos, messages, maxResidual});
+    }
+
+    /**
+     * Emit a factor run, provided that it took at least {@link #getSlowFactorThreshold()}
+     * nanoseconds.
+     *
+     * @param type name of the factor's type.
+     * @param degree number of neighbors of the factor.
+     * @param nanos duration of the run, in nanoseconds.
+     */
+    public static void factorRun(String type, int degree, long nanos) {
+        if (nanos >= slowFactorThreshold) {
+            FACTORS.log(Level.FINE, "Slow run of {0} with {1} neighbors took {2} ns",
+                    new Object[]{type, degree, nanos});
+        }
+    }
+
+    /**
+     * Emit the delivery of the messages buffered by a communication adapter.
+     *
+     * @param source name of the communication adapter.
+     * @param messages number of messages delivered.
+     * @param nanos duration of the delivery, in nanoseconds.
+     */
+    public static void tickDelivered(String source, long messages, long nanos) {
+        TICKS.log(Level.FINE, "{0} delivered {1} messages in {2} ns",
+                new Object[]{source, messages, nanos});
+    }
+
+    /**
+     * Get the minimum duration of the factor runs that are recorded.
+     *
+     * @return threshold of slow factor runs, in nanoseconds.
+     */
+    public static long getSlowFactorThreshold() {
+        return slowFactorThreshold;
+    }
+
+    /**
+     * Set the minimum duration of the factor runs that are recorded.
+     *
+     * @param threshold threshold of slow factor runs, in nanoseconds.
+     */
+    public static void setSlowFactorThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("The threshold can not be negative");
+        }
+        slowFactorThreshold = threshold;
+    }
+
+    /**
+     * Replace the logging configuration with the given one, taking the threshold of slow factor
+     * runs from its {@value #THRESHOLD_PROPERTY} property (if present).
+     *
+     * @param configuration logging configuration, in properties format.
+     * @throws IOException if the configuration can not be read.
+     */
+    public static void configure(InputStream configuration) throws IOException {
+        LogManager.getLogManager().readConfiguration(configuration);
+        slowFactorThreshold = readThreshold();
+    }
+
+    /**
+     * Replace the logging configuration with the {@value #TEMPLATE} template, which records
+     * all the solver events to a file.
+     *
+     * @throws IOException if the template can not be read.
+     */
+    public static void loadTemplate() throws IOException {
+        final InputStream template = SolverTrace.class.getResourceAsStream(TEMPLATE);
+        if (template == null) {
+            throw new IOException("Unable to find the " + TEMPLATE + " resource");
+        }
+        try {
+            configure(template);
+        } finally {
+            template.close();
+        }
+    }
+
+    private static long readThreshold() {
+        final String value = LogManager.getLogManager().getProperty(THRESHOLD_PROPERTY);
+        if (value == null) {
+            return DEFAULT_SLOW_FACTOR_THRESHOLD;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(SolverTrace.class.getName()).log(Level.WARNING,
+                    "Invalid slow factor threshold {0}", value);
+            return DEFAULT_SLOW_FACTOR_THRESHOLD;
+        }
+    }
+
+}
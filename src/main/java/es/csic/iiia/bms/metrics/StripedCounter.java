@@ -0,0 +1,116 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that many threads can increase concurrently without contending on a single memory
+ * location.
+ * <p/>
+ * The count is split among several stripes, each one placed in its own cache line, and every
+ * thread adds to the stripe picked by its identifier. Hence, adding is cheap, whereas reading
+ * the total has to sum all the stripes.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class StripedCounter {
+
+    /** Number of longs between two stripes, so that each one gets its own cache line */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+
+    /**
+     * Build a new counter with enough stripes for the available processors.
+     */
+    public StripedCounter() {
+        int nStripes = 1;
+        while (nStripes < Runtime.getRuntime().availableProcessors() * 2) {
+            nStripes <<= 1;
+        }
+        mask = nStripes - 1;
+        stripes = new AtomicLongArray(nStripes * PADDING);
+    }
+
+    /**
+     * Add the given amount to this counter.
+     *
+     * @param amount amount to add.
+     */
+    public void add(long amount) {
+        stripes.addAndGet(stripe(), amount);
+    }
+
+    /**
+     * Add one to this counter.
+     */
+    public void increment() {
+        stripes.incrementAndGet(stripe());
+    }
+
+    private int stripe() {
+        final long id = Thread.currentThread().getId();
+        return ((int)(id ^ (id >>> 16)) & mask) * PADDING;
+    }
+
+    /**
+     * Get the current count.
+     * <p/>
+     * The count is not an atomic snapshot when other threads are adding to it concurrently.
+     *
+     * @return sum of all the amounts added since the creation of this counter or its last reset.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i=0, len=stripes.length(); i<len; i+=PADDING) {
+            sum += stripes.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Reset this counter to zero.
+     */
+    public void reset() {
+        for (int i=0, len=stripes.length(); i<len; i+=PADDING) {
+            stripes.set(i, 0);
+        }
+    }
+
+}
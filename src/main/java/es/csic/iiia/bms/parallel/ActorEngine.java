@@ -0,0 +1,814 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.WeightingFactor;
+import es.csic.iiia.bms.metrics.FactorMetrics;
+import es.csic.iiia.bms.metrics.FactorProfile;
+import es.csic.iiia.bms.metrics.FactorProfiler;
+import es.csic.iiia.bms.metrics.MetricsRegistry;
+import es.csic.iiia.bms.metrics.SolverTrace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Engine that runs a max-sum graph fully asynchronously, treating each factor as an actor.
+ * <p/>
+ * Every factor gets a mailbox with a single slot per neighbor, holding the latest message
+ * received from that neighbor. Hence, mailboxes are bounded by the factor's degree no matter how
+ * fast its neighbors send, and posting a message only overwrites a primitive {@code double}. A
+ * factor is scheduled to run (on a shared pool of worker threads) once at least a given fraction
+ * of its neighbors have posted new messages since its last run. Messages identical (up to the
+ * configured tolerance) to the last one delivered to the factor are not considered new, so the
+ * graph eventually becomes quiescent when max-sum converges.
+ * <p/>
+ * The engine installs itself as the communication adapter of all the given factors, whose
+ * identities must be the factors themselves.
+ * <p/>
+ * The graph can be changed between runs (or while another thread is running it, in which case
+ * the changes wait for the current run to return) through an {@link Update}. Only the factors
+ * whose neighborhood or parameters change are rebuilt and rescheduled, while all other
+ * mailboxes keep their messages.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ActorEngine {
+    private static final Logger LOG = Logger.getLogger(ActorEngine.class.getName());
+
+    /** Default fraction of neighbors that must send a new message to trigger a factor run */
+    public static final double DEFAULT_ACTIVATION_FRACTION = 0.5;
+
+    /** Default tolerance under which received messages are not considered new */
+    public static final double DEFAULT_TOLERANCE = 1e-9;
+
+    private final Map<Object, Actor> actors = new HashMap<Object, Actor>();
+    private Actor[] actorList;
+    private final int nThreads;
+    private final ExecutorService executor;
+    private final Mailboxes mailboxes = new Mailboxes();
+
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final AtomicLong activations = new AtomicLong();
+    private final AtomicLong constraintChecks = new AtomicLong();
+    private final Object idle = new Object();
+    private volatile long activationLimit;
+    private volatile RuntimeException failure;
+    private volatile MetricsRegistry metrics;
+    private volatile FactorProfiler profiler;
+    private boolean started;
+
+    private double activationFraction = DEFAULT_ACTIVATION_FRACTION;
+    private double tolerance = DEFAULT_TOLERANCE;
+
+    /**
+     * Build a new actor engine that runs the given factors using the specified number of worker
+     * threads.
+     *
+     * @param factors factors to run.
+     * @param nThreads number of worker threads to use.
+     */
+    public ActorEngine(List<? extends Factor<?>> factors, int nThreads) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        this.nThreads = nThreads;
+
+        actorList = new Actor[factors.size()];
+        for (int i=0; i<actorList.length; i++) {
+            final Factor<?> factor = factors.get(i);
+            actorList[i] = new Actor(factor);
+            actors.put(factor.getIdentity(), actorList[i]);
+            install(factor);
+        }
+        updateThresholds();
+
+        executor = Executors.newFixedThreadPool(nThreads, new DaemonThreadFactory("bms-actor"));
+    }
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private void install(Factor factor) {
+        factor.setCommunicationAdapter(mailboxes);
+    }
+
+    /**
+     * Get the number of worker threads used by this engine.
+     *
+     * @return number of worker threads.
+     */
+    public int getNumberOfThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Get the fraction of neighbors that must send a new message before a factor is run.
+     *
+     * @return activation fraction.
+     */
+    public double getActivationFraction() {
+        return activationFraction;
+    }
+
+    /**
+     * Set the fraction of neighbors that must send a new message before a factor is run.
+     * <p/>
+     * Lower fractions propagate information faster, whereas higher fractions save factor runs
+     * by batching more messages into each run. Regardless of this value, a factor is always run
+     * when it has at least one new message and nothing else is running, so it only affects the
+     * scheduling order and not the final state of the graph.
+     *
+     * @param activationFraction activation fraction, in the (0, 1] range.
+     */
+    public void setActivationFraction(double activationFraction) {
+        if (!(activationFraction > 0 && activationFraction <= 1)) {
+            throw new IllegalArgumentException("The activation fraction must be in the (0, 1] range");
+        }
+        this.activationFraction = activationFraction;
+        updateThresholds();
+    }
+
+    /**
+     * Get the tolerance under which received messages are not considered new.
+     *
+     * @return message tolerance.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Set the tolerance under which received messages are not considered new.
+     * <p/>
+     * Beware that a zero tolerance may prevent the graph from ever becoming quiescent, because
+     * rounding errors keep bouncing between neighboring factors.
+     *
+     * @param tolerance message tolerance.
+     */
+    public void setTolerance(double tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("The tolerance can not be negative");
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Get the registry where the metrics of the factor runs are recorded.
+     *
+     * @return metrics registry, or <code>null</code> if metrics are not collected.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the registry where the metrics of the factor runs are recorded.
+     * <p/>
+     * The residual of every posted message is measured against the previous message posted
+     * by the same neighbor, and each call to {@link #run(long)} closes one iteration of the
+     * registry. Each factor run is accounted as sending one message per neighbor.
+     *
+     * @param metrics metrics registry, or <code>null</code> to stop collecting metrics.
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the profiler that samples the cost of each factor.
+     *
+     * @return factor profiler, or <code>null</code> if factors are not profiled.
+     */
+    public FactorProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Set the profiler that samples the cost of each factor. Factors are registered in the
+     * profiler the first time they run, with the degree they have at that point.
+     *
+     * @param profiler factor profiler, or <code>null</code> to stop profiling factors.
+     */
+    public synchronized void setProfiler(FactorProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    private void updateThresholds() {
+        for (Actor actor : actorList) {
+            actor.threshold = Math.max(1, (int)Math.ceil(activationFraction * actor.neighbors.length));
+        }
+    }
+
+    /**
+     * Get the number of factor runs performed since the creation of this engine.
+     *
+     * @return number of factor runs.
+     */
+    public long getActivations() {
+        return activations.get();
+    }
+
+    /**
+     * Run the graph until it becomes quiescent (no factor has any new message to process).
+     * <p/>
+     * Beware that max-sum is not guaranteed to converge in cyclic graphs, in which case this
+     * method never returns. Use {@link #run(long)} to bound the number of factor runs instead.
+     *
+     * @return total number of constraint checks performed by the factors.
+     */
+    public long run() {
+        return run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Run the graph until it becomes quiescent, or until the given number of factor runs have
+     * been performed. In the latter case, pending messages are kept in the mailboxes, so calling
+     * this method again resumes the execution.
+     * <p/>
+     * The first call to this method runs all the factors once to bootstrap the computation, and
+     * later calls also run the factors affected by any {@link Update} committed in between.
+     *
+     * @param maxActivations maximum number of factor runs to perform.
+     * @return total number of constraint checks performed by the factors.
+     */
+    public synchronized long run(long maxActivations) {
+        if (maxActivations < 1) {
+            throw new IllegalArgumentException("The number of activations must be positive");
+        }
+
+        final long initialChecks = constraintChecks.get();
+        final long initialActivations = activations.get();
+        activationLimit = Long.MAX_VALUE - initialActivations < maxActivations
+                ? Long.MAX_VALUE : initialActivations + maxActivations;
+        failure = null;
+
+        boolean pending = true;
+        while (pending) {
+            pending = false;
+            for (Actor actor : actorList) {
+                if (actor.activate(!started)) {
+                    pending = true;
+                }
+            }
+            started = true;
+            awaitIdle();
+
+            if (failure != null) {
+                throw failure;
+            }
+            if (activations.get() >= activationLimit) {
+                break;
+            }
+        }
+
+        final MetricsRegistry registry = metrics;
+        if (registry != null) {
+            registry.endIteration();
+        }
+
+        final long checks = constraintChecks.get() - initialChecks;
+        LOG.log(Level.FINE, "Run finished after {0} activations with {1} constraint checks",
+                new Object[]{activations.get() - initialActivations, checks});
+        return checks;
+    }
+
+    /**
+     * Accounts for a new factor run, unless the activation limit has already been reached.
+     */
+    private boolean reserveActivation() {
+        long current;
+        do {
+            current = activations.get();
+            if (current >= activationLimit) {
+                return false;
+            }
+        } while (!activations.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private void schedule(Actor actor) {
+        scheduled.incrementAndGet();
+        executor.execute(actor);
+    }
+
+    private void finished() {
+        if (scheduled.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private void awaitIdle() {
+        try {
+            synchronized (idle) {
+                while (scheduled.get() > 0) {
+                    idle.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the actors", e);
+        }
+    }
+
+    /**
+     * Start a new set of changes to the graph run by this engine.
+     *
+     * @return new (empty) update.
+     */
+    public Update beginUpdate() {
+        return new Update();
+    }
+
+    /**
+     * Stops the worker threads of this engine. The engine can not be run anymore afterwards.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Communication adapter that posts the messages to the recipient's mailbox.
+     */
+    private class Mailboxes implements CommunicationAdapter<Object> {
+        @Override
+        public void send(double message, Object sender, Object recipient) {
+            final Actor actor = actors.get(recipient);
+            if (actor == null) {
+                throw new IllegalArgumentException("Unknown recipient " + recipient);
+            }
+            actor.post(sender, message);
+        }
+    }
+
+    /**
+     * Wrapper of a factor, holding its mailbox and its scheduling state.
+     */
+    private class Actor implements Runnable {
+        private final Factor<?> factor;
+        private Object[] neighbors;
+        private Map<Object, Integer> neighborIndex;
+
+        // Mailbox (guarded by this actor's lock)
+        private double[] posted;
+        private double[] delivered;
+        private boolean[] fresh;
+        private int nFresh;
+        private boolean running;
+        private boolean forced;
+        private int threshold;
+
+        // Metrics of this factor's type, resolved from the registry they belong to
+        private MetricsRegistry metricsOwner;
+        private FactorMetrics factorMetrics;
+        private FactorProfiler profileOwner;
+        private FactorProfile profile;
+
+        public Actor(Factor<?> factor) {
+            this.factor = factor;
+            rebuild();
+        }
+
+        /**
+         * Rebuilds the mailbox after the neighbors of the factor have changed, keeping the
+         * slots of the neighbors that remain.
+         */
+        public synchronized void rebuild() {
+            final Object[] oldNeighbors = neighbors;
+            final Map<Object, Integer> oldIndex = neighborIndex;
+            final double[] oldPosted = posted, oldDelivered = delivered;
+            final boolean[] oldFresh = fresh;
+
+            neighbors = factor.getNeighbors().toArray();
+            neighborIndex = new HashMap<Object, Integer>(neighbors.length * 2);
+            posted = new double[neighbors.length];
+            delivered = new double[neighbors.length];
+            fresh = new boolean[neighbors.length];
+            nFresh = 0;
+            for (int i=0; i<neighbors.length; i++) {
+                neighborIndex.put(neighbors[i], i);
+                final Integer old = oldNeighbors == null ? null : oldIndex.get(neighbors[i]);
+                if (old != null) {
+                    posted[i] = oldPosted[old];
+                    delivered[i] = oldDelivered[old];
+                    fresh[i] = oldFresh[old];
+                    nFresh += fresh[i] ? 1 : 0;
+                }
+            }
+        }
+
+        /**
+         * Stores the given message in the mailbox, scheduling the factor if enough of its
+         * neighbors have sent new messages.
+         */
+        public void post(Object sender, double message) {
+            final Integer index = neighborIndex.get(sender);
+            if (index == null) {
+                throw new IllegalArgumentException("Unknown sender " + sender);
+            }
+
+            boolean activate = false;
+            final double previous;
+            synchronized (this) {
+                previous = posted[index];
+                posted[index] = message;
+                final boolean isNew = !(Math.abs(message - delivered[index]) <= tolerance);
+                if (isNew != fresh[index]) {
+                    fresh[index] = isNew;
+                    nFresh += isNew ? 1 : -1;
+                }
+                if (!running && nFresh >= threshold && activations.get() < activationLimit) {
+                    running = activate = true;
+                }
+            }
+
+            final MetricsRegistry registry = metrics;
+            if (registry != null) {
+                registry.getResiduals().record(Math.abs(message - previous));
+            }
+            if (activate) {
+                schedule(this);
+            }
+        }
+
+        /**
+         * Schedules this factor if it has any new message, or unconditionally if forced.
+         *
+         * @return <code>true</code> if the factor has been scheduled.
+         */
+        public boolean activate(boolean force) {
+            synchronized (this) {
+                if (running || !(force || forced || nFresh > 0)) {
+                    return false;
+                }
+                running = true;
+                forced = false;
+            }
+            schedule(this);
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked","rawtypes"})
+        public void run() {
+            try {
+                if (failure != null || !reserveActivation()) {
+                    synchronized (this) {
+                        running = false;
+                    }
+                    return;
+                }
+
+                synchronized (this) {
+                    for (int i=0; i<neighbors.length; i++) {
+                        if (fresh[i]) {
+                            ((Factor)factor).receive(posted[i], neighbors[i]);
+                            delivered[i] = posted[i];
+                            fresh[i] = false;
+                        }
+                    }
+                    nFresh = 0;
+                }
+
+                final MetricsRegistry registry = metrics;
+                final FactorProfiler currentProfiler = profiler;
+                final boolean traceFactor = SolverTrace.isFactorEnabled();
+                if (registry == null && !traceFactor && currentProfiler == null) {
+                    constraintChecks.addAndGet(factor.run());
+                } else {
+                    if (currentProfiler != null && profileOwner != currentProfiler) {
+                        profile = currentProfiler.register(factor);
+                        profileOwner = currentProfiler;
+                    }
+                    final boolean sampled = currentProfiler != null && profile.sample();
+                    final boolean timed = sampled || registry != null || traceFactor;
+                    final long start = timed ? System.nanoTime() : 0;
+                    final long checks = factor.run();
+                    final long nanos = timed ? System.nanoTime() - start : -1;
+                    if (currentProfiler != null) {
+                        profile.record(checks, sampled ? nanos : -1);
+                    }
+                    if (registry != null) {
+                        if (metricsOwner != registry) {
+                            factorMetrics = registry.getFactorMetrics(factor);
+                            metricsOwner = registry;
+                        }
+                        factorMetrics.record(neighbors.length, checks, nanos);
+                    }
+                    if (traceFactor) {
+                        SolverTrace.factorRun(MetricsRegistry.getTypeName(factor), neighbors.length,
+                                nanos);
+                    }
+                    constraintChecks.addAndGet(checks);
+                }
+
+                boolean again;
+                synchronized (this) {
+                    again = nFresh >= threshold && activations.get() < activationLimit;
+                    running = again;
+                }
+                if (again) {
+                    schedule(this);
+                }
+            } catch (RuntimeException e) {
+                // Only the first error is reported to the caller of run()
+                if (failure == null) {
+                    failure = e;
+                }
+                synchronized (this) {
+                    running = false;
+                }
+            } finally {
+                finished();
+            }
+        }
+    }
+
+    /**
+     * Set of changes to the graph run by an {@link ActorEngine}, applied atomically when
+     * committed.
+     * <p/>
+     * Changes are only recorded until {@link #commit()} is called, which waits for any ongoing
+     * run to return and then applies all of them. New links start with zero messages (as usual),
+     * and the factors that get new neighbors, lose neighbors or have their parameters changed are
+     * run during the next call to {@link ActorEngine#run(long)}.
+     */
+    public class Update {
+        private final List<Factor<?>> added = new ArrayList<Factor<?>>();
+        private final List<Factor<?>> removed = new ArrayList<Factor<?>>();
+        private final List<Factor<?>[]> links = new ArrayList<Factor<?>[]>();
+        private final List<Factor<?>[]> unlinks = new ArrayList<Factor<?>[]>();
+        private final List<Factor<?>> modified = new ArrayList<Factor<?>>();
+        private final List<Runnable> changes = new ArrayList<Runnable>();
+        private boolean committed;
+
+        private Update() {}
+
+        /**
+         * Add a new factor to the graph. Its identity must be the factor itself, and its links
+         * must be added through {@link #link(Factor, Factor)}.
+         *
+         * @param factor factor to add.
+         */
+        public void addFactor(Factor<?> factor) {
+            added.add(factor);
+        }
+
+        /**
+         * Remove a factor from the graph, unlinking it from all its neighbors.
+         *
+         * @param factor factor to remove.
+         */
+        public void removeFactor(Factor<?> factor) {
+            removed.add(factor);
+        }
+
+        /**
+         * Link two factors of the graph.
+         *
+         * @param factor1 first factor.
+         * @param factor2 second factor.
+         */
+        public void link(Factor<?> factor1, Factor<?> factor2) {
+            links.add(new Factor<?>[]{factor1, factor2});
+        }
+
+        /**
+         * Unlink two neighboring factors of the graph.
+         *
+         * @param factor1 first factor.
+         * @param factor2 second factor.
+         */
+        public void unlink(Factor<?> factor1, Factor<?> factor2) {
+            unlinks.add(new Factor<?>[]{factor1, factor2});
+        }
+
+        /**
+         * Change the potential of activating the given neighbor of an independent factor.
+         *
+         * @param factor factor to change.
+         * @param neighbor neighbor whose potential to change.
+         * @param value new potential.
+         */
+        @SuppressWarnings({"unchecked","rawtypes"})
+        public void setPotential(final IndependentFactor factor, final Object neighbor,
+                final double value)
+        {
+            modify(factor, new Runnable() {
+                @Override
+                public void run() {
+                    factor.setPotential(neighbor, value);
+                }
+            });
+        }
+
+        /**
+         * Change the weight of the given neighbor of a weighting factor.
+         *
+         * @param factor factor to change.
+         * @param neighbor neighbor whose weight to change.
+         * @param value new weight.
+         */
+        @SuppressWarnings({"unchecked","rawtypes"})
+        public void setPotential(final WeightingFactor factor, final Object neighbor,
+                final double value)
+        {
+            modify(factor, new Runnable() {
+                @Override
+                public void run() {
+                    factor.setPotential(neighbor, value);
+                }
+            });
+        }
+
+        /**
+         * Change the potential table of a standard factor.
+         *
+         * @param factor factor to change.
+         * @param potential new potential.
+         */
+        public void setPotential(final StandardFactor<?> factor, final double[] potential) {
+            modify(factor, new Runnable() {
+                @Override
+                public void run() {
+                    factor.setPotential(potential);
+                }
+            });
+        }
+
+        /**
+         * Change the parameters of a factor in some other way.
+         * <p/>
+         * The given change is run when the update is committed, and must not alter the
+         * neighbors of the factor.
+         *
+         * @param factor factor to change.
+         * @param change code that changes the factor.
+         */
+        public void modify(Factor<?> factor, Runnable change) {
+            modified.add(factor);
+            changes.add(change);
+        }
+
+        /**
+         * Apply all the changes of this update, waiting for any ongoing run to finish first.
+         *
+         * @throws IllegalArgumentException if the changes refer to factors that are not (or no
+         * longer) in the graph, in which case the graph is left untouched.
+         */
+        public void commit() {
+            synchronized (ActorEngine.this) {
+                if (committed) {
+                    throw new IllegalStateException("This update has already been committed");
+                }
+                validate();
+                committed = true;
+                apply();
+            }
+        }
+
+        private void validate() {
+            final Set<Object> present = new HashSet<Object>(actors.keySet());
+            for (Factor<?> factor : removed) {
+                if (!present.remove(factor.getIdentity())) {
+                    throw new IllegalArgumentException("Can not remove " + factor.getIdentity()
+                            + " because it is not in the graph");
+                }
+            }
+            for (Factor<?> factor : added) {
+                if (actors.containsKey(factor.getIdentity()) || !present.add(factor.getIdentity())) {
+                    throw new IllegalArgumentException("Factor " + factor.getIdentity()
+                            + " is already in the graph");
+                }
+            }
+
+            final List<Factor<?>> referenced = new ArrayList<Factor<?>>(modified);
+            for (Factor<?>[] pair : links) {
+                referenced.add(pair[0]);
+                referenced.add(pair[1]);
+            }
+            for (Factor<?>[] pair : unlinks) {
+                referenced.add(pair[0]);
+                referenced.add(pair[1]);
+            }
+            for (Factor<?> factor : referenced) {
+                if (!present.contains(factor.getIdentity())) {
+                    throw new IllegalArgumentException("Factor " + factor.getIdentity()
+                            + " is not in the graph");
+                }
+            }
+        }
+
+        @SuppressWarnings({"unchecked","rawtypes"})
+        private void apply() {
+            final Set<Object> affected = new LinkedHashSet<Object>();
+
+            for (Factor factor : removed) {
+                actors.remove(factor.getIdentity());
+                for (Object neighbor : new ArrayList<Object>(factor.getNeighbors())) {
+                    factor.removeNeighbor(neighbor);
+                    final Actor actor = actors.get(neighbor);
+                    if (actor != null) {
+                        ((Factor)actor.factor).removeNeighbor(factor.getIdentity());
+                        affected.add(neighbor);
+                    }
+                }
+            }
+
+            for (Factor[] pair : unlinks) {
+                pair[0].removeNeighbor(pair[1].getIdentity());
+                pair[1].removeNeighbor(pair[0].getIdentity());
+                affected.add(pair[0].getIdentity());
+                affected.add(pair[1].getIdentity());
+            }
+
+            for (Factor[] pair : links) {
+                pair[0].addNeighbor(pair[1].getIdentity());
+                pair[1].addNeighbor(pair[0].getIdentity());
+                affected.add(pair[0].getIdentity());
+                affected.add(pair[1].getIdentity());
+            }
+
+            for (int i=0; i<modified.size(); i++) {
+                changes.get(i).run();
+                affected.add(modified.get(i).getIdentity());
+            }
+
+            final List<Actor> newList = new ArrayList<Actor>(actorList.length + added.size());
+            for (Actor actor : actorList) {
+                if (actors.get(actor.factor.getIdentity()) == actor) {
+                    newList.add(actor);
+                }
+            }
+            for (Factor<?> factor : added) {
+                install(factor);
+                final Actor actor = new Actor(factor);
+                actors.put(factor.getIdentity(), actor);
+                newList.add(actor);
+                affected.add(factor.getIdentity());
+            }
+
+            for (Object identity : affected) {
+                final Actor actor = actors.get(identity);
+                if (actor != null) {
+                    actor.rebuild();
+                    actor.forced = true;
+                }
+            }
+
+            actorList = newList.toArray(new Actor[newList.size()]);
+            updateThresholds();
+            LOG.log(Level.FINE, "Update committed, {0} factors rescheduled", affected.size());
+        }
+    }
+
+}
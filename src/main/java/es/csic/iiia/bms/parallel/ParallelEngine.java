@@ -0,0 +1,494 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.InboxCommunicationAdapter;
+import es.csic.iiia.bms.metrics.FactorMetrics;
+import es.csic.iiia.bms.metrics.FactorProfile;
+import es.csic.iiia.bms.metrics.FactorProfiler;
+import es.csic.iiia.bms.metrics.MetricsRegistry;
+import es.csic.iiia.bms.metrics.SolverTrace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Engine that runs the factors of a max-sum graph in parallel, balancing the load between its
+ * worker threads according to the cost of each factor.
+ * <p/>
+ * The cost of different factors varies by orders of magnitude (a {@link
+ * es.csic.iiia.bms.factors.StandardFactor} is exponential in its number of neighbors, whereas a
+ * {@link es.csic.iiia.bms.factors.VariableFactor} is linear). Hence, this engine estimates the
+ * cost of each factor from the number of constraint checks returned by its last runs, and uses
+ * these estimates to:
+ * <ol>
+ * <li>split the list of factors into contiguous chunks of (roughly) the same cost;</li>
+ * <li>assign the chunks to the workers, most expensive first, always picking the least loaded
+ * worker; and</li>
+ * <li>let any worker that runs out of chunks steal pending chunks from the other workers.</li>
+ * </ol>
+ * <p/>
+ * Each call to {@link #run()} performs a single iteration, in which every factor is run exactly
+ * once. Because factors run concurrently, they <strong>must</strong> use a thread-safe
+ * communication adapter that buffers messages, such as the
+ * {@link es.csic.iiia.bms.ConcurrentTickCommunicationAdapter}, which should then be ticked
+ * between iterations. Alternatively, factors can use an {@link InboxCommunicationAdapter} (set
+ * through {@link #setInboxes(InboxCommunicationAdapter)}), in which case each factor processes
+ * the messages available when it is run, without waiting for the next iteration.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ParallelEngine {
+    private static final Logger LOG = Logger.getLogger(ParallelEngine.class.getName());
+
+    /** Default number of chunks created for each worker thread */
+    public static final int DEFAULT_CHUNKS_PER_THREAD = 4;
+
+    private final Factor<?>[] factors;
+    private final long[] costs;
+    private final int nThreads;
+    private final ExecutorService executor;
+    private final Worker[] workers;
+    private int chunksPerThread = DEFAULT_CHUNKS_PER_THREAD;
+    private InboxCommunicationAdapter inboxes;
+    private MetricsRegistry metrics;
+    private FactorMetrics[] factorMetrics;
+    private FactorProfiler profiler;
+    private FactorProfile[] profiles;
+    private long iterations;
+
+    // Statistics
+    private long wallTime;
+
+    /**
+     * Build a new parallel engine that runs the given factors using the specified number of
+     * worker threads.
+     *
+     * @param factors factors to run.
+     * @param nThreads number of worker threads to use.
+     */
+    public ParallelEngine(List<? extends Factor<?>> factors, int nThreads) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+
+        this.factors = factors.toArray(new Factor<?>[factors.size()]);
+        this.nThreads = nThreads;
+
+        // Until the factors are run, the best estimation of their cost is their degree
+        costs = new long[this.factors.length];
+        for (int i=0; i<costs.length; i++) {
+            costs[i] = this.factors[i].getNeighbors().size() + 1;
+        }
+
+        workers = new Worker[nThreads];
+        for (int i=0; i<nThreads; i++) {
+            workers[i] = new Worker(i);
+        }
+        executor = Executors.newFixedThreadPool(nThreads, new DaemonThreadFactory("bms-parallel-worker"));
+    }
+
+    /**
+     * Get the number of worker threads used by this engine.
+     *
+     * @return number of worker threads.
+     */
+    public int getNumberOfThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Get the number of chunks to create for each worker thread.
+     *
+     * @return number of chunks to create for each worker.
+     */
+    public int getChunksPerThread() {
+        return chunksPerThread;
+    }
+
+    /**
+     * Set the number of chunks to create for each worker thread.
+     * <p/>
+     * More chunks result in a finer-grained load balancing, at the expense of a higher
+     * scheduling overhead.
+     *
+     * @param chunksPerThread number of chunks to create for each worker.
+     */
+    public void setChunksPerThread(int chunksPerThread) {
+        if (chunksPerThread < 1) {
+            throw new IllegalArgumentException("The number of chunks per thread must be positive");
+        }
+        this.chunksPerThread = chunksPerThread;
+    }
+
+    /**
+     * Get the inboxes adapter whose messages are delivered before running each factor.
+     *
+     * @return inboxes adapter, or <code>null</code> if not set.
+     */
+    public InboxCommunicationAdapter getInboxes() {
+        return inboxes;
+    }
+
+    /**
+     * Set the inboxes adapter used by the factors, so that the worker that runs each factor
+     * delivers its pending messages right before running it.
+     *
+     * @param inboxes inboxes adapter used by the factors.
+     */
+    public void setInboxes(InboxCommunicationAdapter inboxes) {
+        this.inboxes = inboxes;
+    }
+
+    /**
+     * Get the registry where the metrics of the factor runs are recorded.
+     *
+     * @return metrics registry, or <code>null</code> if metrics are not collected.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the registry where the metrics of the factor runs are recorded.
+     * <p/>
+     * Since messages go through the factors' communication adapter, this engine does not
+     * record residuals, and each run is accounted as sending one message per neighbor.
+     *
+     * @param metrics metrics registry, or <code>null</code> to stop collecting metrics.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        FactorMetrics[] resolved = null;
+        if (metrics != null) {
+            resolved = new FactorMetrics[factors.length];
+            for (int i=0; i<factors.length; i++) {
+                resolved[i] = metrics.getFactorMetrics(factors[i]);
+            }
+        }
+        this.metrics = metrics;
+        this.factorMetrics = resolved;
+    }
+
+    /**
+     * Get the profiler that samples the cost of each factor.
+     *
+     * @return factor profiler, or <code>null</code> if factors are not profiled.
+     */
+    public FactorProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Set the profiler that samples the cost of each factor, registering all the factors run
+     * by this engine in it.
+     *
+     * @param profiler factor profiler, or <code>null</code> to stop profiling factors.
+     */
+    public void setProfiler(FactorProfiler profiler) {
+        FactorProfile[] registered = null;
+        if (profiler != null) {
+            registered = new FactorProfile[factors.length];
+            for (int i=0; i<factors.length; i++) {
+                registered[i] = profiler.register(factors[i]);
+            }
+        }
+        this.profiler = profiler;
+        this.profiles = registered;
+    }
+
+    /**
+     * Get the current cost estimation of the given factor.
+     *
+     * @param index index of the factor (in the list given to this engine).
+     * @return estimated cost of running that factor.
+     */
+    public long getEstimatedCost(int index) {
+        return costs[index];
+    }
+
+    /**
+     * Run an iteration, in which every factor is run once.
+     *
+     * @return total number of constraint checks performed by the factors.
+     */
+    public long run() {
+        final long start = System.nanoTime();
+        final boolean traceIteration = SolverTrace.isIterationEnabled();
+        if (traceIteration) {
+            SolverTrace.iterationStarted("ParallelEngine", iterations);
+        }
+        final boolean traceFactors = SolverTrace.isFactorEnabled();
+        for (Worker worker : workers) {
+            worker.traceFactors = traceFactors;
+        }
+        schedule(buildChunks());
+
+        List<Future<Long>> results = new ArrayList<Future<Long>>(nThreads);
+        for (Worker worker : workers) {
+            results.add(executor.submit(worker));
+        }
+
+        long constraintChecks = 0;
+        try {
+            for (Future<Long> result : results) {
+                constraintChecks += result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the workers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error while running a factor", e.getCause());
+        }
+
+        final long nanos = System.nanoTime() - start;
+        wallTime += nanos;
+        LOG.log(Level.FINE, "Iteration finished with {0} constraint checks", constraintChecks);
+        if (traceIteration) {
+            long messages = 0;
+            for (Factor<?> factor : factors) {
+                messages += factor.getNeighbors().size();
+            }
+            SolverTrace.iterationFinished("ParallelEngine", iterations, nanos, messages, Double.NaN);
+        }
+        iterations++;
+        return constraintChecks;
+    }
+
+    /**
+     * Splits the list of factors into contiguous chunks of roughly the same estimated cost.
+     */
+    private List<Chunk> buildChunks() {
+        long totalCost = 0;
+        for (long cost : costs) {
+            totalCost += cost;
+        }
+        final long target = Math.max(1, totalCost / (nThreads * chunksPerThread));
+
+        List<Chunk> chunks = new ArrayList<Chunk>(nThreads * chunksPerThread + 1);
+        int from = 0;
+        long cost = 0;
+        for (int i=0; i<factors.length; i++) {
+            cost += costs[i];
+            if (cost >= target) {
+                chunks.add(new Chunk(from, i+1, cost));
+                from = i+1;
+                cost = 0;
+            }
+        }
+        if (from < factors.length) {
+            chunks.add(new Chunk(from, factors.length, cost));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Distributes the chunks among the workers, assigning the most expensive chunks first to the
+     * least loaded worker.
+     */
+    private void schedule(List<Chunk> chunks) {
+        Collections.sort(chunks, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk c1, Chunk c2) {
+                return c1.cost == c2.cost ? 0 : (c1.cost > c2.cost ? -1 : 1);
+            }
+        });
+
+        long[] load = new long[nThreads];
+        for (Chunk chunk : chunks) {
+            int target = 0;
+            for (int i=1; i<nThreads; i++) {
+                if (load[i] < load[target]) {
+                    target = i;
+                }
+            }
+            load[target] += chunk.cost;
+            workers[target].queue.addLast(chunk);
+        }
+    }
+
+    /**
+     * Get the fraction of time that each worker thread has spent running factors, since the
+     * creation of this engine or the last call to {@link #resetStatistics()}.
+     *
+     * @return array with the utilization (in the [0, 1] range) of each worker thread.
+     */
+    public double[] getUtilization() {
+        double[] utilization = new double[nThreads];
+        for (int i=0; i<nThreads; i++) {
+            utilization[i] = wallTime == 0 ? 0 : Math.min(1, workers[i].busyTime / (double)wallTime);
+        }
+        return utilization;
+    }
+
+    /**
+     * Get the number of chunks that each worker thread has stolen from the others, since the
+     * creation of this engine or the last call to {@link #resetStatistics()}.
+     *
+     * @return array with the number of chunks stolen by each worker thread.
+     */
+    public long[] getStolenChunks() {
+        long[] stolen = new long[nThreads];
+        for (int i=0; i<nThreads; i++) {
+            stolen[i] = workers[i].stolenChunks;
+        }
+        return stolen;
+    }
+
+    /**
+     * Resets the utilization statistics of this engine.
+     */
+    public void resetStatistics() {
+        wallTime = 0;
+        for (Worker worker : workers) {
+            worker.busyTime = 0;
+            worker.stolenChunks = 0;
+        }
+    }
+
+    /**
+     * Stops the worker threads of this engine. The engine can not be run anymore afterwards.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Contiguous range of factors to be run by the same worker.
+     */
+    private static class Chunk {
+        public final int from;
+        public final int to;
+        public final long cost;
+        public Chunk(int from, int to, long cost) {
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Worker that runs the chunks in its own queue, and then steals chunks from the other ones.
+     */
+    private class Worker implements Callable<Long> {
+        private final int id;
+        private final LinkedBlockingDeque<Chunk> queue = new LinkedBlockingDeque<Chunk>();
+        private long busyTime;
+        private long stolenChunks;
+        private boolean traceFactors;
+
+        public Worker(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public Long call() {
+            final long start = System.nanoTime();
+            long constraintChecks = 0;
+
+            Chunk chunk = queue.pollFirst();
+            while (chunk != null) {
+                constraintChecks += run(chunk);
+                chunk = queue.pollFirst();
+                if (chunk == null) {
+                    chunk = steal();
+                }
+            }
+
+            busyTime += System.nanoTime() - start;
+            return constraintChecks;
+        }
+
+        private long run(Chunk chunk) {
+            final FactorMetrics[] factorMetrics = ParallelEngine.this.factorMetrics;
+            final FactorProfile[] profiles = ParallelEngine.this.profiles;
+            long constraintChecks = 0;
+            for (int i=chunk.from; i<chunk.to; i++) {
+                if (inboxes != null) {
+                    inboxes.deliver(factors[i]);
+                }
+                final long checks;
+                if (factorMetrics == null && !traceFactors && profiles == null) {
+                    checks = factors[i].run();
+                } else {
+                    final boolean sampled = profiles != null && profiles[i].sample();
+                    final boolean timed = sampled || factorMetrics != null || traceFactors;
+                    final long start = timed ? System.nanoTime() : 0;
+                    checks = factors[i].run();
+                    final long nanos = timed ? System.nanoTime() - start : -1;
+                    if (profiles != null) {
+                        profiles[i].record(checks, sampled ? nanos : -1);
+                    }
+                    final int degree = factors[i].getNeighbors().size();
+                    if (factorMetrics != null) {
+                        factorMetrics[i].record(degree, checks, nanos);
+                    }
+                    if (traceFactors) {
+                        SolverTrace.factorRun(MetricsRegistry.getTypeName(factors[i]), degree,
+                                nanos);
+                    }
+                }
+                costs[i] = Math.max(1, (costs[i] + checks) / 2);
+                constraintChecks += checks;
+            }
+            return constraintChecks;
+        }
+
+        private Chunk steal() {
+            for (int i=1; i<nThreads; i++) {
+                final Chunk chunk = workers[(id + i) % nThreads].queue.pollLast();
+                if (chunk != null) {
+                    stolenChunks++;
+                    return chunk;
+                }
+            }
+            return null;
+        }
+    }
+
+}
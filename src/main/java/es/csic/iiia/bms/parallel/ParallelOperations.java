@@ -0,0 +1,519 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Data-parallel operations used to split the computation of a single (very high degree) factor
+ * among several threads.
+ * <p/>
+ * Factors such as the {@link es.csic.iiia.bms.factors.CardinalityFactor}, the
+ * {@link es.csic.iiia.bms.factors.twosided.GreaterOrEqualFactor} or the
+ * {@link es.csic.iiia.bms.factors.VariableFactor} compute their messages by sorting, accumulating
+ * and scanning their incoming messages. When such factors are given an instance of this class
+ * and their degree is at least the configured {@link #getThreshold() threshold}, they use the
+ * parallel versions of these operations provided here.
+ * <p/>
+ * All operations split their input into (at most) one contiguous block per thread. The calling
+ * thread processes the first block, so that a single instance can be shared by many factors.
+ * However, the operations must <strong>not</strong> be invoked from within a task of the same
+ * instance.
+ * <p/>
+ * Sorts and maximum scans give exactly the same results as their sequential counterparts. Sums
+ * and prefix sums, however, add up each block separately and then combine the partial results,
+ * so they may differ from a sequential loop by rounding errors. Blocks only depend on the size
+ * of the input and the number of threads, and are always combined in the same order, so these
+ * results are reproducible for a given number of threads.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ParallelOperations {
+
+    /** Default minimum number of neighbors for a factor to split its computation */
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    private final int nThreads;
+    private final ExecutorService executor;
+    private int threshold = DEFAULT_THRESHOLD;
+    private boolean parallelEmission;
+
+    /**
+     * Build a new set of parallel operations that split their work among the given number of
+     * threads.
+     *
+     * @param nThreads number of threads to use.
+     */
+    public ParallelOperations(int nThreads) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        this.nThreads = nThreads;
+        executor = Executors.newFixedThreadPool(Math.max(1, nThreads - 1),
+                new DaemonThreadFactory("bms-parallel-operations"));
+    }
+
+    /**
+     * Get the number of threads used by these operations.
+     *
+     * @return number of threads.
+     */
+    public int getNumberOfThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Get the minimum number of neighbors for a factor to split its computation.
+     *
+     * @return minimum number of neighbors to split a factor's computation.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Set the minimum number of neighbors for a factor to split its computation.
+     *
+     * @param threshold minimum number of neighbors to split a factor's computation.
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Check whether the outgoing messages of factors are sent from multiple threads.
+     *
+     * @return <code>true</code> if messages are sent from multiple threads.
+     */
+    public boolean isParallelEmission() {
+        return parallelEmission;
+    }
+
+    /**
+     * Set whether the outgoing messages of factors should be sent from multiple threads.
+     * <p/>
+     * This is disabled by default, because it requires that the factors' communication adapter is
+     * thread-safe (such as the {@link es.csic.iiia.bms.ConcurrentTickCommunicationAdapter}).
+     *
+     * @param parallelEmission <code>true</code> to send messages from multiple threads.
+     */
+    public void setParallelEmission(boolean parallelEmission) {
+        this.parallelEmission = parallelEmission;
+    }
+
+    /**
+     * Check whether it is worth splitting an operation over the given number of elements.
+     *
+     * @param size number of elements (neighbors) to process.
+     * @return <code>true</code> if the operation should be split, or <code>false</code> otherwise.
+     */
+    public boolean isWorthSplitting(int size) {
+        return nThreads > 1 && size >= threshold;
+    }
+
+    /**
+     * Runs the given task over the [0, size) range, split in blocks that are processed
+     * concurrently.
+     *
+     * @param size number of elements to process.
+     * @param task task to run over each block.
+     */
+    public void forEach(int size, final RangeTask task) {
+        final int nBlocks = getNumberOfBlocks(size);
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(nBlocks);
+        for (int b=0; b<nBlocks; b++) {
+            final int from = getBlockStart(b, nBlocks, size);
+            final int to = getBlockStart(b+1, nBlocks, size);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    task.run(from, to);
+                    return 0L;
+                }
+            });
+        }
+        invoke(tasks);
+    }
+
+    /**
+     * Sends the given messages from a factor to its corresponding neighbors, either sequentially
+     * or concurrently depending on whether {@link #isParallelEmission()} is enabled.
+     *
+     * @param <T> Type of the factor's identity.
+     * @param factor sender factor.
+     * @param recipients recipients of the messages.
+     * @param messages messages to send (<code>messages[i]</code> is sent to the i-th recipient).
+     */
+    public <T> void send(final Factor<T> factor, final List<T> recipients, final double[] messages) {
+        if (!parallelEmission) {
+            for (int i=0; i<messages.length; i++) {
+                factor.send(messages[i], recipients.get(i));
+            }
+            return;
+        }
+
+        forEach(messages.length, new RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    factor.send(messages[i], recipients.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the sum of the given values, adding up the partial sums of the blocks in order.
+     *
+     * @param values values to sum.
+     * @return sum of the values.
+     */
+    public double sum(final double[] values) {
+        final int nBlocks = getNumberOfBlocks(values.length);
+        final double[] partials = new double[nBlocks];
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(nBlocks);
+        for (int b=0; b<nBlocks; b++) {
+            final int block = b;
+            final int from = getBlockStart(b, nBlocks, values.length);
+            final int to = getBlockStart(b+1, nBlocks, values.length);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    double partial = 0;
+                    for (int i=from; i<to; i++) {
+                        partial += values[i];
+                    }
+                    partials[block] = partial;
+                    return 0L;
+                }
+            });
+        }
+        invoke(tasks);
+
+        double sum = 0;
+        for (double partial : partials) {
+            sum += partial;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the (exclusive) prefix sums of the given values. That is,
+     * <code>result[0] = 0</code> and <code>result[i] = values[0] + ... + values[i-1]</code>.
+     *
+     * @param values values to accumulate.
+     * @param result array (of size <code>values.length + 1</code>) where to store the sums.
+     */
+    public void prefixSum(double[] values, double[] result) {
+        result[0] = 0;
+        scan(values, result, 1, new Operation() {
+            @Override
+            public double apply(double value1, double value2) {
+                return value1 + value2;
+            }
+        }, false);
+    }
+
+    /**
+     * Computes the (inclusive) cumulative maximums of the given values, according to the given
+     * maximization operator.
+     * <p/>
+     * When scanning forward, <code>result[i] = max(values[0], ..., values[i])</code>. Otherwise,
+     * <code>result[i] = max(values[i], ..., values[n-1])</code>.
+     *
+     * @param values values to scan.
+     * @param result array (of the same size as <code>values</code>) where to store the maximums.
+     * @param operator maximization operator to use.
+     * @param reverse <code>true</code> to scan from the last to the first value.
+     */
+    public void maxScan(double[] values, double[] result, final MaxOperator operator,
+            boolean reverse)
+    {
+        scan(values, result, 0, new Operation() {
+            @Override
+            public double apply(double value1, double value2) {
+                return operator.max(value1, value2);
+            }
+        }, reverse);
+    }
+
+    /**
+     * Sorts the given array using a stable parallel merge sort.
+     *
+     * @param <E> Type of the elements to sort.
+     * @param items array to sort.
+     * @param comparator comparator that defines the order of the elements.
+     * @return number of comparisons performed.
+     */
+    public <E> long sort(final E[] items, final Comparator<? super E> comparator) {
+        final int size = items.length;
+        final int nBlocks = getNumberOfBlocks(size);
+
+        // Sort the blocks
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(nBlocks);
+        for (int b=0; b<nBlocks; b++) {
+            final int from = getBlockStart(b, nBlocks, size);
+            final int to = getBlockStart(b+1, nBlocks, size);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    CountingComparator<E> cmp = new CountingComparator<E>(comparator);
+                    Arrays.sort(items, from, to, cmp);
+                    return cmp.count;
+                }
+            });
+        }
+        long comparisons = invoke(tasks);
+
+        // Merge them pairwise, doubling the size of the sorted runs in each round
+        final Object[] buffer = new Object[size];
+        for (int width=1; width<nBlocks; width*=2) {
+            tasks.clear();
+            for (int b=0; b+width<nBlocks; b+=2*width) {
+                final int from = getBlockStart(b, nBlocks, size);
+                final int middle = getBlockStart(b+width, nBlocks, size);
+                final int to = getBlockStart(Math.min(b+2*width, nBlocks), nBlocks, size);
+                tasks.add(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return merge(items, buffer, from, middle, to, comparator);
+                    }
+                });
+            }
+            comparisons += invoke(tasks);
+        }
+
+        return comparisons;
+    }
+
+    /**
+     * Stops the threads used by these operations. They can not be used anymore afterwards.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stable merge of the sorted ranges [from, middle) and [middle, to).
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> long merge(E[] items, Object[] buffer, int from, int middle, int to,
+            Comparator<? super E> comparator)
+    {
+        long comparisons = 0;
+        int i = from, j = middle, k = from;
+        while (i < middle && j < to) {
+            comparisons++;
+            if (comparator.compare(items[j], items[i]) < 0) {
+                buffer[k++] = items[j++];
+            } else {
+                buffer[k++] = items[i++];
+            }
+        }
+        while (i < middle) {
+            buffer[k++] = items[i++];
+        }
+        while (j < to) {
+            buffer[k++] = items[j++];
+        }
+        for (k=from; k<to; k++) {
+            items[k] = (E)buffer[k];
+        }
+        return comparisons;
+    }
+
+    /**
+     * Blocked parallel (inclusive) scan, in three phases: each block is scanned independently,
+     * then the carry of each block is computed sequentially, and finally the carries are
+     * applied to the blocks.
+     */
+    private void scan(final double[] values, final double[] result, final int offset,
+            final Operation operation, final boolean reverse)
+    {
+        final int size = values.length;
+        final int nBlocks = getNumberOfBlocks(size);
+        if (nBlocks == 0) {
+            return;
+        }
+
+        // Scan each block
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(nBlocks);
+        for (int b=0; b<nBlocks; b++) {
+            final int from = getBlockStart(b, nBlocks, size);
+            final int to = getBlockStart(b+1, nBlocks, size);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    if (reverse) {
+                        result[offset + to - 1] = values[to - 1];
+                        for (int i=to-2; i>=from; i--) {
+                            result[offset + i] = operation.apply(values[i], result[offset + i + 1]);
+                        }
+                    } else {
+                        result[offset + from] = values[from];
+                        for (int i=from+1; i<to; i++) {
+                            result[offset + i] = operation.apply(values[i], result[offset + i - 1]);
+                        }
+                    }
+                    return 0L;
+                }
+            });
+        }
+        invoke(tasks);
+
+        // Compute the carry of each block
+        final double[] carries = new double[nBlocks];
+        for (int k=1; k<nBlocks; k++) {
+            final int b = reverse ? nBlocks - 1 - k : k;
+            final double previous = reverse
+                    ? result[offset + getBlockStart(b+1, nBlocks, size)]
+                    : result[offset + getBlockStart(b, nBlocks, size) - 1];
+            carries[b] = k == 1 ? previous : operation.apply(carries[reverse ? b+1 : b-1], previous);
+        }
+
+        // Apply the carries
+        tasks.clear();
+        for (int k=1; k<nBlocks; k++) {
+            final int b = reverse ? nBlocks - 1 - k : k;
+            final int from = getBlockStart(b, nBlocks, size);
+            final int to = getBlockStart(b+1, nBlocks, size);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    final double carry = carries[b];
+                    for (int i=from; i<to; i++) {
+                        result[offset + i] = operation.apply(result[offset + i], carry);
+                    }
+                    return 0L;
+                }
+            });
+        }
+        invoke(tasks);
+    }
+
+    /**
+     * Runs the given tasks concurrently (the first one in the calling thread), and returns the
+     * sum of their results.
+     */
+    private long invoke(List<Callable<Long>> tasks) {
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+
+        List<Future<Long>> futures = new ArrayList<Future<Long>>(tasks.size() - 1);
+        for (int i=1; i<tasks.size(); i++) {
+            futures.add(executor.submit(tasks.get(i)));
+        }
+
+        try {
+            long result = tasks.get(0).call();
+            for (Future<Long> future : futures) {
+                result += future.get();
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a parallel operation", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error in a parallel operation", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Error in a parallel operation", e);
+        }
+    }
+
+    private int getNumberOfBlocks(int size) {
+        return Math.min(nThreads, size);
+    }
+
+    private static int getBlockStart(int block, int nBlocks, int size) {
+        return (int)((long)block * size / nBlocks);
+    }
+
+    /**
+     * Task to run over a range of elements.
+     */
+    public interface RangeTask {
+
+        /**
+         * Process the elements in the [from, to) range.
+         *
+         * @param from first element to process (inclusive).
+         * @param to last element to process (exclusive).
+         */
+        public void run(int from, int to);
+
+    }
+
+    /**
+     * Associative operation used in scans.
+     */
+    private interface Operation {
+        public double apply(double value1, double value2);
+    }
+
+    /**
+     * Comparator wrapper that counts the comparisons performed by a single thread.
+     */
+    private static class CountingComparator<E> implements Comparator<E> {
+        private final Comparator<? super E> comparator;
+        private long count;
+
+        public CountingComparator(Comparator<? super E> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public int compare(E o1, E o2) {
+            count++;
+            return comparator.compare(o1, o2);
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.ConditionedSelectorFactor;
+import es.csic.iiia.bms.factors.ImplicationFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Constraint propagation phase to be interleaved with max-sum iterations, which fixes the
+ * variables forced by hard constraints and removes them from further message passing.
+ * <p/>
+ * Hard constraints send the operator's worst value to a variable when one of its values is
+ * infeasible. Hence, after delivering the messages of an iteration, {@link #propagate()} fixes
+ * every {@link VariableFactor} that has received such an infinite message, and shrinks the
+ * graph accordingly:
+ * <ul>
+ * <li>Fixed variables are unlinked from the factors that can be conditioned on their value
+ * (independent and standard factors, selectors and "at most one" factors for inactive
+ * variables, conditioned selectors and the endpoints of implication chains). A conditioned
+ * selector whose condition is active becomes a plain {@link SelectorFactor}.</li>
+ * <li>Any other factor keeps the link, and receives a constant infinite message that stands for
+ * the fixed value.</li>
+ * <li>Fixed variables, and factors left without any free variable, stop running. The latter
+ * must be satisfied by the fixed values, or the graph is infeasible.</li>
+ * </ul>
+ * Iterating must then continue over {@link #getActiveFactors()}:
+ * <pre>
+ * ConstraintPropagator propagator = new ConstraintPropagator(factors);
+ * for (int i=0; i&lt;nIterations; i++) {
+ *     for (Factor f : propagator.getActiveFactors()) {
+ *         f.run();
+ *     }
+ *     adapter.tick();
+ *     propagator.propagate();
+ * }
+ * </pre>
+ * The values of the removed variables are then given by {@link #getFixedValues()}. Factors
+ * that are not their own identities are never conditioned (see {@link GraphRewriter}).
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ConstraintPropagator {
+    private static final Logger LOG = Logger.getLogger(ConstraintPropagator.class.getName());
+
+    private List<Factor<?>> active;
+    private final Map<Factor<?>, Boolean> fixed = new LinkedHashMap<Factor<?>, Boolean>();
+    private final Map<Factor<?>, Factor<?>> replacements =
+            new IdentityHashMap<Factor<?>, Factor<?>>();
+    private int removedFactors;
+    private int unlinkedEdges;
+
+    /**
+     * Build a new propagator over the given graph.
+     *
+     * @param factors factors of the graph.
+     */
+    public ConstraintPropagator(List<? extends Factor<?>> factors) {
+        active = new ArrayList<Factor<?>>(factors);
+    }
+
+    /**
+     * Get the factors that must still run.
+     *
+     * @return list of active factors, in their original order.
+     */
+    public List<Factor<?>> getActiveFactors() {
+        return Collections.unmodifiableList(active);
+    }
+
+    /**
+     * Get the variables fixed so far, along with their values.
+     *
+     * @return map of fixed variables to their values.
+     */
+    public Map<Factor<?>, Boolean> getFixedValues() {
+        return Collections.unmodifiableMap(fixed);
+    }
+
+    /**
+     * Get the number of (non-variable) factors deactivated so far.
+     *
+     * @return number of deactivated factors.
+     */
+    public int getRemovedFactors() {
+        return removedFactors;
+    }
+
+    /**
+     * Get the number of links between fixed variables and their factors removed so far.
+     *
+     * @return number of removed links.
+     */
+    public int getUnlinkedEdges() {
+        return unlinkedEdges;
+    }
+
+    /**
+     * Fix the variables forced by the messages received so far, and remove them from the
+     * active graph.
+     *
+     * @return number of variables fixed by this call.
+     * @throws IllegalStateException if some variable has no feasible value.
+     */
+    public int propagate() {
+        // Detect all the forced variables before rewiring anything
+        final Map<Factor<?>, Boolean> forced = new LinkedHashMap<Factor<?>, Boolean>();
+        for (Factor<?> factor : active) {
+            if (isVariable(factor)) {
+                final Boolean value = getForcedValue(factor);
+                if (value != null) {
+                    forced.put(factor, value);
+                }
+            }
+        }
+        if (forced.isEmpty()) {
+            return 0;
+        }
+
+        for (Map.Entry<Factor<?>, Boolean> entry : forced.entrySet()) {
+            fix(entry.getKey(), entry.getValue());
+        }
+        rebuild();
+
+        LOG.log(Level.FINE, "{0} variables fixed, {1} factors remain active",
+                new Object[]{forced.size(), active.size()});
+        return forced.size();
+    }
+
+    private Boolean getForcedValue(Factor<?> factor) {
+        final Factor<Object> variable = GraphRewriter.asObjectFactor(factor);
+        final double worst = variable.getMaxOperator().getWorstValue();
+        boolean canBeActive = true, canBeInactive = true;
+        for (Object neighbor : variable.getNeighbors()) {
+            final double message = variable.getMessage(neighbor);
+            if (message == worst) {
+                canBeActive = false;
+            } else if (message == -worst) {
+                canBeInactive = false;
+            }
+        }
+
+        if (!canBeActive && !canBeInactive) {
+            throw new IllegalStateException("Infeasible graph: variable " + variable
+                    + " can be neither active nor inactive");
+        }
+        return canBeActive == canBeInactive ? null : canBeActive;
+    }
+
+    private void fix(Factor<?> variable, boolean value) {
+        final double worst = variable.getMaxOperator().getWorstValue();
+        final double clamp = value ? -worst : worst;
+        for (Object neighbor : new ArrayList<Object>(variable.getNeighbors())) {
+            final Factor<?> factor = (Factor<?>) neighbor;
+            if (condition(factor, variable, value)) {
+                unlinkedEdges++;
+            } else {
+                GraphRewriter.asObjectFactor(factor).receive(clamp, variable);
+            }
+        }
+        fixed.put(variable, value);
+    }
+
+    /**
+     * Conditions a factor on the value of one of its variables, removing the link between both.
+     *
+     * @return <em>true</em> if the factor has been conditioned, or <em>false</em> if it must
+     *         remain linked to the variable.
+     */
+    private boolean condition(Factor<?> factor, Factor<?> variable, boolean value) {
+        if (!GraphRewriter.isRewirable(factor)) {
+            return false;
+        }
+
+        final Class<?> type = factor.getClass();
+        final List<?> neighbors = factor.getNeighbors();
+        if (type == IndependentFactor.class) {
+            GraphRewriter.unlink(factor, variable);
+        } else if (type == StandardFactor.class) {
+            final StandardFactor<?> standard = (StandardFactor<?>) factor;
+            final double[] table = GraphSimplifier.slice(standard.getPotential(),
+                    neighbors.size(), neighbors.indexOf(variable), value);
+            GraphRewriter.unlink(standard, variable);
+            standard.setPotential(table);
+        } else if (type == SelectorFactor.class || type == AtMostOneFactor.class) {
+            // Active variables satisfy the factor as long as the others are inactive
+            if (value) {
+                return false;
+            }
+            GraphRewriter.unlink(factor, variable);
+            if (type == SelectorFactor.class && neighbors.isEmpty()) {
+                throw new IllegalStateException("Infeasible graph: selector " + factor
+                        + " has no variables left to select");
+            }
+        } else if (type == ConditionedSelectorFactor.class) {
+            final boolean condition =
+                    ((ConditionedSelectorFactor<?>) factor).getConditionNeighbor() == variable;
+            if (condition != value) {
+                return false;
+            }
+            GraphRewriter.unlink(factor, variable);
+            if (condition) {
+                final SelectorFactor<Object> selector = new SelectorFactor<Object>();
+                GraphRewriter.replace(factor, selector);
+                replacements.put(factor, selector);
+            }
+        } else if (type == ImplicationFactor.class) {
+            // Once a variable is active, so are all the following ones
+            final int last = neighbors.size() - 1;
+            if (neighbors.get(value ? last : 0) != variable) {
+                return false;
+            }
+            GraphRewriter.unlink(factor, variable);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void rebuild() {
+        final List<Factor<?>> result = new ArrayList<Factor<?>>(active.size());
+        for (Factor<?> factor : active) {
+            Factor<?> current = factor;
+            while (replacements.containsKey(current)) {
+                current = replacements.get(current);
+            }
+            if (fixed.containsKey(current)) {
+                continue;
+            }
+            if (!isVariable(current) && !hasFreeNeighbor(current)) {
+                checkSatisfied(current);
+                removedFactors++;
+                continue;
+            }
+            result.add(current);
+        }
+        replacements.clear();
+        active = result;
+    }
+
+    /**
+     * Checks that a factor whose variables have all been fixed is satisfied, because variables
+     * fixed at the same time may violate a constraint that still links them.
+     */
+    private void checkSatisfied(Factor<?> factor) {
+        final double value = GraphRewriter.asObjectFactor(factor).evaluate(
+                new HashMap<Object, Boolean>(fixed));
+        if (value == factor.getMaxOperator().getWorstValue()) {
+            throw new IllegalStateException("Infeasible graph: factor " + factor
+                    + " is violated by the fixed values");
+        }
+    }
+
+    private boolean hasFreeNeighbor(Factor<?> factor) {
+        for (Object neighbor : factor.getNeighbors()) {
+            if (!fixed.containsKey(neighbor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVariable(Factor<?> factor) {
+        return factor.getClass() == VariableFactor.class && GraphRewriter.isRewirable(factor);
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers to rewire factor graphs whose factors are their own identities, as built by most
+ * clients of this library (<code>factor.setIdentity(factor)</code>).
+ * <p/>
+ * Rewiring keeps the messages already exchanged through each link, so graphs can be rewritten
+ * between iterations as well as before the first one. The preprocessing passes of this
+ * package rewire factors through this class, so they only rewrite factors that are their own
+ * identities.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public final class GraphRewriter {
+
+    private GraphRewriter() {}
+
+    /**
+     * Check whether the given factor can be rewired, which requires it to be its own identity.
+     *
+     * @param factor factor to check.
+     * @return <em>true</em> if the factor can be rewired, or <em>false</em> otherwise.
+     */
+    public static boolean isRewirable(Factor<?> factor) {
+        return factor.getIdentity() == factor;
+    }
+
+    /**
+     * Replace a factor by another one, linking the replacement to all the neighbors of the
+     * original factor (in the same order) and unlinking the original one from them.
+     * <p/>
+     * The replacement inherits the maximization operator and communication adapter of the
+     * original factor, and becomes its own identity.
+     *
+     * @param original factor to replace.
+     * @param replacement factor that takes its place.
+     */
+    public static void replace(Factor<?> original, Factor<?> replacement) {
+        checkRewirable(original);
+        final Factor<Object> from = asObjectFactor(original);
+        final Factor<Object> to = asObjectFactor(replacement);
+        to.setIdentity(to);
+        to.setMaxOperator(from.getMaxOperator());
+        to.setCommunicationAdapter(from.getCommunicationAdapter());
+
+        for (Object n : new ArrayList<Object>(from.getNeighbors())) {
+            final Factor<Object> neighbor = asObjectFactor((Factor<?>) n);
+            final double received = from.getMessage(neighbor);
+            final double sent = neighbor.getMessage(from);
+            unlink(from, neighbor);
+
+            to.addNeighbor(neighbor);
+            to.receive(received, neighbor);
+            neighbor.addNeighbor(to);
+            neighbor.receive(sent, to);
+        }
+    }
+
+    /**
+     * Link two factors, in both directions.
+     *
+     * @param factor first factor.
+     * @param neighbor second factor.
+     */
+    public static void link(Factor<?> factor, Factor<?> neighbor) {
+        asObjectFactor(factor).addNeighbor(neighbor);
+        asObjectFactor(neighbor).addNeighbor(factor);
+    }
+
+    /**
+     * Remove the link between two factors, in both directions.
+     *
+     * @param factor first factor.
+     * @param neighbor second factor.
+     */
+    public static void unlink(Factor<?> factor, Factor<?> neighbor) {
+        asObjectFactor(factor).removeNeighbor(neighbor);
+        asObjectFactor(neighbor).removeNeighbor(factor);
+    }
+
+    /**
+     * Remove all the links of a factor, in both directions.
+     *
+     * @param factor factor to isolate.
+     */
+    public static void isolate(Factor<?> factor) {
+        for (Object neighbor : new ArrayList<Object>(factor.getNeighbors())) {
+            unlink(factor, (Factor<?>) neighbor);
+        }
+    }
+
+    /**
+     * Build the list of factors that results from replacing (or removing) some factors of a
+     * graph, preserving the order of the remaining ones.
+     *
+     * @param factors original list of factors.
+     * @param originals factors that have been replaced or removed.
+     * @param replacements factor that replaces each original one, or <code>null</code> if it
+     *                     has been removed.
+     * @return list of factors of the rewritten graph.
+     */
+    public static List<Factor<?>> rebuild(List<? extends Factor<?>> factors,
+            List<? extends Factor<?>> originals, List<? extends Factor<?>> replacements)
+    {
+        final Map<Factor<?>, Factor<?>> substitutions =
+                new IdentityHashMap<Factor<?>, Factor<?>>();
+        for (int i=0; i<originals.size(); i++) {
+            substitutions.put(originals.get(i), replacements.get(i));
+        }
+
+        List<Factor<?>> result = new ArrayList<Factor<?>>(factors.size());
+        for (Factor<?> factor : factors) {
+            if (!substitutions.containsKey(factor)) {
+                result.add(factor);
+            } else if (substitutions.get(factor) != null) {
+                result.add(substitutions.get(factor));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * View a factor as one identified by plain objects, as are the rewirable factors and
+     * their neighbors.
+     */
+    @SuppressWarnings("unchecked")
+    static Factor<Object> asObjectFactor(Factor<?> factor) {
+        return (Factor<Object>) factor;
+    }
+
+    private static void checkRewirable(Factor<?> factor) {
+        if (!isRewirable(factor)) {
+            throw new IllegalArgumentException("Factor " + factor + " can not be rewired because "
+                    + "it is not its own identity.");
+        }
+    }
+
+}
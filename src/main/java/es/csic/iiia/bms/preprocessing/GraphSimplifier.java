@@ -0,0 +1,739 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.ConditionedDeactivationFactor;
+import es.csic.iiia.bms.factors.EqualityFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Graph preprocessing pipeline that removes trivially determined variables and redundant
+ * factors before iterating.
+ * <p/>
+ * Variables are the {@link VariableFactor}s of the graph, and the following reductions are
+ * applied until none of them changes the graph:
+ * <ul>
+ * <li>Variables whose only neighbors are {@link IndependentFactor}s are fixed to their best
+ * value.</li>
+ * <li>Variables whose neighbors are a single {@link StandardFactor} plus any number of
+ * {@link IndependentFactor}s are maximized out of the table, which keeps the best value of
+ * the variable for each configuration of the rest of the table's variables. Tables left over
+ * a single variable are folded into its bias, so chains and trees of tables are eliminated
+ * from their leaves. Single-variable tables that rule out a value fix the variable
+ * instead.</li>
+ * <li>Hard constraints that force a value are propagated: a {@link SelectorFactor} with a single
+ * neighbor fixes it to active, an active variable deactivates the other neighbors of its
+ * selectors and "at most one" factors, and the exemplar of a
+ * {@link ConditionedDeactivationFactor} decides whether the other neighbors must be inactive.
+ * Fixed variables are removed, and their factors are conditioned on their values.</li>
+ * <li>Equality constraints ({@link EqualityFactor}s linked to variables only) merge their
+ * variables into the first one, so chains of equalities collapse into a single variable.
+ * The bias of an equality factor is added to the variable that replaces them.</li>
+ * <li>Duplicated selectors and "at most one" factors over the same variables are dropped, and
+ * duplicated independent or standard factors are summed into one.</li>
+ * </ul>
+ * Fixing a variable may force others, so all the implied values are computed first and only
+ * committed when every involved factor can be conditioned. Otherwise the variables are left in
+ * the graph, which is still correct but less reduced. Contradicting implications mean that the
+ * problem is infeasible, and raise an {@link IllegalStateException}.
+ * <p/>
+ * Once the reduced graph has been solved, {@link #reconstruct(Map)} extends its assignment to
+ * all the variables of the original one, whose value is that of the reduced solution plus
+ * {@link #getOffset()}. This pass should run before iterating, and factors that are not
+ * their own identities are left untouched (see {@link GraphRewriter}).
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class GraphSimplifier {
+    private static final Logger LOG = Logger.getLogger(GraphSimplifier.class.getName());
+
+    private final Set<Factor<?>> variables = new LinkedHashSet<Factor<?>>();
+    private final Map<Factor<?>, Boolean> fixed = new LinkedHashMap<Factor<?>, Boolean>();
+    private final Map<Factor<?>, Factor<?>> merged = new LinkedHashMap<Factor<?>, Factor<?>>();
+    private final List<Elimination> eliminations = new ArrayList<Elimination>();
+    private double offset;
+    private int removedFactors;
+    private int mergedDuplicates;
+
+    private Set<Factor<?>> alive;
+
+    /**
+     * Get the variables fixed so far, along with their values.
+     *
+     * @return map of fixed variables to their values.
+     */
+    public Map<Factor<?>, Boolean> getFixedValues() {
+        return Collections.unmodifiableMap(fixed);
+    }
+
+    /**
+     * Get the variables merged so far, along with the variable they have been merged into.
+     *
+     * @return map of merged variables to their representatives.
+     */
+    public Map<Factor<?>, Factor<?>> getMergedVariables() {
+        return Collections.unmodifiableMap(merged);
+    }
+
+    /**
+     * Get the variables maximized out of their only table so far, in elimination order.
+     *
+     * @return list of eliminated variables.
+     */
+    public List<Factor<?>> getEliminatedVariables() {
+        List<Factor<?>> result = new ArrayList<Factor<?>>(eliminations.size());
+        for (Elimination elimination : eliminations) {
+            result.add(elimination.variable);
+        }
+        return result;
+    }
+
+    /**
+     * Get the utility (or cost) of the removed parts of the graph, which must be added to the
+     * value of any solution of the simplified graph to obtain its value in the original one.
+     *
+     * @return value of the removed parts of the graph.
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the number of (non-variable) factors removed so far.
+     *
+     * @return number of removed factors, including duplicates.
+     */
+    public int getRemovedFactors() {
+        return removedFactors;
+    }
+
+    /**
+     * Get the number of duplicated factors dropped or merged so far.
+     *
+     * @return number of duplicated factors.
+     */
+    public int getMergedDuplicates() {
+        return mergedDuplicates;
+    }
+
+    /**
+     * Simplify a graph.
+     *
+     * @param factors factors of the graph.
+     * @return factors of the simplified graph.
+     * @throws IllegalStateException if the graph is found to be infeasible.
+     */
+    public List<Factor<?>> apply(List<? extends Factor<?>> factors) {
+        alive = new LinkedHashSet<Factor<?>>(factors);
+        for (Factor<?> factor : factors) {
+            if (isVariable(factor)) {
+                variables.add(factor);
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = reduceConstraints() | fixUnaryVariables() | eliminateLeafVariables()
+                    | mergeDuplicates();
+        }
+
+        List<Factor<?>> result = new ArrayList<Factor<?>>(alive);
+        alive = null;
+        LOG.log(Level.FINE, "{0} variables fixed, {1} merged, {2} eliminated and {3} factors "
+                + "removed", new Object[]{fixed.size(), merged.size(), eliminations.size(),
+                removedFactors});
+        return result;
+    }
+
+    /**
+     * Extend an assignment of the simplified graph to all the variables of the original one.
+     *
+     * @param assignment value of each variable of the simplified graph.
+     * @return value of each variable of the original graph.
+     */
+    public Map<Factor<?>, Boolean> reconstruct(Map<? extends Factor<?>, Boolean> assignment) {
+        // Eliminated variables depend on the ones left in their tables, which are either in
+        // the simplified graph or eliminated later on
+        final Map<Factor<?>, Boolean> eliminated = new HashMap<Factor<?>, Boolean>();
+        for (int i=eliminations.size()-1; i>=0; i--) {
+            final Elimination elimination = eliminations.get(i);
+            int idx = 0;
+            for (Factor<?> neighbor : elimination.scope) {
+                idx = idx << 1 | (getValue(neighbor, assignment, eliminated) ? 1 : 0);
+            }
+            eliminated.put(elimination.variable, elimination.choices[idx]);
+        }
+
+        Map<Factor<?>, Boolean> result = new LinkedHashMap<Factor<?>, Boolean>();
+        for (Factor<?> variable : variables) {
+            result.put(variable, getValue(variable, assignment, eliminated));
+        }
+        return result;
+    }
+
+    private boolean getValue(Factor<?> variable, Map<? extends Factor<?>, Boolean> assignment,
+            Map<Factor<?>, Boolean> eliminated)
+    {
+        while (!fixed.containsKey(variable) && merged.containsKey(variable)) {
+            variable = merged.get(variable);
+        }
+        if (fixed.containsKey(variable)) {
+            return fixed.get(variable);
+        }
+        if (eliminated.containsKey(variable)) {
+            return eliminated.get(variable);
+        }
+
+        final Boolean value = assignment.get(variable);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing value for variable " + variable);
+        }
+        return value;
+    }
+
+    private boolean reduceConstraints() {
+        boolean changed = false;
+        for (Factor<?> factor : new ArrayList<Factor<?>>(alive)) {
+            if (!alive.contains(factor) || !GraphRewriter.isRewirable(factor)) {
+                continue;
+            }
+
+            final List<?> neighbors = factor.getNeighbors();
+            final Class<?> type = factor.getClass();
+            if (type == SelectorFactor.class) {
+                if (neighbors.isEmpty()) {
+                    throw new IllegalStateException("Infeasible graph: selector " + factor
+                            + " has no variables left to select");
+                }
+                if (neighbors.size() == 1) {
+                    changed |= fix((Factor<?>) neighbors.get(0), true);
+                }
+            } else if (type == AtMostOneFactor.class
+                    || type == ConditionedDeactivationFactor.class
+                    || type == EqualityFactor.class && isConstraint(factor)) {
+                if (neighbors.size() <= 1) {
+                    // An equality over a single variable just adds its bias to it
+                    if (type == EqualityFactor.class) {
+                        addBias((Factor<?>) neighbors.get(0), getBias(factor));
+                    }
+                    remove(factor);
+                    changed = true;
+                } else if (type == EqualityFactor.class) {
+                    changed |= merge(factor);
+                }
+            } else if (type == IndependentFactor.class || type == StandardFactor.class) {
+                if (neighbors.isEmpty()) {
+                    if (type == StandardFactor.class) {
+                        offset += ((StandardFactor<?>) factor).getPotential()[0];
+                    }
+                    remove(factor);
+                    changed = true;
+                } else if (type == StandardFactor.class && neighbors.size() == 1
+                        && isVariable(neighbors.get(0))) {
+                    changed |= foldUnaryTable((StandardFactor<?>) factor,
+                            (Factor<?>) neighbors.get(0));
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Folds a table over a single variable into its bias, unless the table is a hard
+     * constraint. Then the variable is fixed to its only feasible value (which conditions the
+     * table as well), or the table is left in place if the variable can not be fixed.
+     */
+    private boolean foldUnaryTable(StandardFactor<?> factor, Factor<?> variable) {
+        final double[] table = factor.getPotential();
+        final double worst = factor.getMaxOperator().getWorstValue();
+        if (table[0] == worst && table[1] == worst) {
+            throw new IllegalStateException("Infeasible graph: factor " + factor
+                    + " rules out both values of variable " + variable);
+        }
+        if (table[0] == worst || table[1] == worst) {
+            return fix(variable, table[0] == worst);
+        }
+        if (Double.isInfinite(table[0]) || Double.isInfinite(table[1])) {
+            return false;
+        }
+
+        addBias(variable, table[1] - table[0]);
+        offset += table[0];
+        remove(factor);
+        return true;
+    }
+
+    private boolean fixUnaryVariables() {
+        boolean changed = false;
+        for (Factor<?> variable : new ArrayList<Factor<?>>(alive)) {
+            if (!alive.contains(variable) || !isVariable(variable)) {
+                continue;
+            }
+
+            double utility = ((VariableFactor<?>) variable).getBias();
+            boolean unary = true;
+            for (Object neighbor : variable.getNeighbors()) {
+                if (neighbor.getClass() != IndependentFactor.class) {
+                    unary = false;
+                    break;
+                }
+                utility += asIndependent(neighbor).getPotential(variable);
+            }
+
+            if (unary) {
+                changed |= fix(variable, variable.getMaxOperator().compare(utility, 0) > 0);
+            }
+        }
+        return changed;
+    }
+
+    private boolean eliminateLeafVariables() {
+        boolean changed = false;
+        for (Factor<?> variable : new ArrayList<Factor<?>>(alive)) {
+            if (!alive.contains(variable) || !isVariable(variable)) {
+                continue;
+            }
+
+            StandardFactor<?> table = null;
+            boolean leaf = true;
+            for (Object neighbor : variable.getNeighbors()) {
+                final Class<?> type = neighbor.getClass();
+                if (type == StandardFactor.class && table == null
+                        && GraphRewriter.isRewirable((Factor<?>) neighbor)) {
+                    table = (StandardFactor<?>) neighbor;
+                } else if (type != IndependentFactor.class) {
+                    leaf = false;
+                    break;
+                }
+            }
+
+            if (leaf && table != null) {
+                eliminate(variable, table);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Maximizes a variable out of its only table, after folding its bias and unary potentials
+     * into the table entries where it is active.
+     */
+    private void eliminate(Factor<?> variable, StandardFactor<?> table) {
+        double utility = ((VariableFactor<?>) variable).getBias();
+        for (Object neighbor : new ArrayList<Object>(variable.getNeighbors())) {
+            if (neighbor != table) {
+                utility += asIndependent(neighbor).getPotential(variable);
+                GraphRewriter.unlink((Factor<?>) neighbor, variable);
+            }
+        }
+
+        final MaxOperator op = variable.getMaxOperator();
+        final int nNeighbors = table.getNeighbors().size();
+        final int position = table.getNeighbors().indexOf(variable);
+        final double[] result = slice(table.getPotential(), nNeighbors, position, false);
+        final double[] active = slice(table.getPotential(), nNeighbors, position, true);
+        final boolean[] choices = new boolean[result.length];
+        for (int idx=0; idx<result.length; idx++) {
+            final double value = active[idx] + utility;
+            if (op.compare(value, result[idx]) > 0) {
+                result[idx] = value;
+                choices[idx] = true;
+            }
+        }
+
+        GraphRewriter.unlink(table, variable);
+        table.setPotential(result);
+        final List<Factor<?>> scope = new ArrayList<Factor<?>>();
+        for (Object neighbor : table.getNeighbors()) {
+            scope.add((Factor<?>) neighbor);
+        }
+        eliminations.add(new Elimination(variable, scope, choices));
+        alive.remove(variable);
+    }
+
+    private boolean mergeDuplicates() {
+        boolean changed = false;
+        Map<List<Object>, Factor<?>> seen = new HashMap<List<Object>, Factor<?>>();
+        for (Factor<?> factor : new ArrayList<Factor<?>>(alive)) {
+            final Class<?> type = factor.getClass();
+            final List<?> neighbors = factor.getNeighbors();
+            if (type != SelectorFactor.class && type != AtMostOneFactor.class
+                    && type != IndependentFactor.class && type != StandardFactor.class
+                    || neighbors.isEmpty() || !GraphRewriter.isRewirable(factor)) {
+                continue;
+            }
+
+            // Standard tables depend on the order of their neighbors, but the rest do not
+            List<Object> key = new ArrayList<Object>();
+            key.add(type);
+            if (type == StandardFactor.class) {
+                key.addAll(neighbors);
+            } else {
+                key.add(new HashSet<Object>(neighbors));
+            }
+
+            final Factor<?> first = seen.get(key);
+            if (first == null) {
+                seen.put(key, factor);
+                continue;
+            }
+
+            if (type == IndependentFactor.class) {
+                final IndependentFactor<Object> independent = asIndependent(first);
+                for (Object neighbor : neighbors) {
+                    independent.setPotential(neighbor, independent.getPotential(neighbor)
+                            + asIndependent(factor).getPotential(neighbor));
+                }
+            } else if (type == StandardFactor.class) {
+                final double[] table = ((StandardFactor<?>) first).getPotential().clone();
+                final double[] other = ((StandardFactor<?>) factor).getPotential();
+                for (int i=0; i<table.length; i++) {
+                    table[i] += other[i];
+                }
+                ((StandardFactor<?>) first).setPotential(table);
+            }
+            remove(factor);
+            mergedDuplicates++;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Fixes a variable and all the values implied by it, unless some of the involved factors
+     * can not be conditioned.
+     *
+     * @return <em>true</em> if the variables have been fixed.
+     */
+    private boolean fix(Factor<?> variable, boolean value) {
+        final Map<Factor<?>, Boolean> closure = new LinkedHashMap<Factor<?>, Boolean>();
+        final Deque<Factor<?>> queue = new ArrayDeque<Factor<?>>();
+        closure.put(variable, value);
+        queue.add(variable);
+
+        while (!queue.isEmpty()) {
+            final Factor<?> x = queue.poll();
+            final boolean v = closure.get(x);
+            for (Object neighbor : x.getNeighbors()) {
+                final Factor<?> factor = (Factor<?>) neighbor;
+                final Class<?> type = factor.getClass();
+                boolean implied = true;
+                if (type == SelectorFactor.class || type == AtMostOneFactor.class) {
+                    if (v) {
+                        implied = implyOthers(factor, x, false, closure, queue);
+                    }
+                } else if (type == ConditionedDeactivationFactor.class) {
+                    final Object exemplar =
+                            ((ConditionedDeactivationFactor<?>) factor).getExemplar();
+                    if (x == exemplar && !v) {
+                        implied = implyOthers(factor, x, false, closure, queue);
+                    } else if (x != exemplar && v) {
+                        implied = imply(exemplar, true, closure, queue);
+                    }
+                } else if (type == EqualityFactor.class && isConstraint(factor)) {
+                    implied = implyOthers(factor, x, v, closure, queue);
+                } else if (type != IndependentFactor.class && type != StandardFactor.class) {
+                    implied = false;
+                }
+
+                if (!implied) {
+                    return false;
+                }
+            }
+        }
+
+        for (Map.Entry<Factor<?>, Boolean> entry : closure.entrySet()) {
+            final Factor<?> x = entry.getKey();
+            for (Object neighbor : new ArrayList<Object>(x.getNeighbors())) {
+                condition((Factor<?>) neighbor, x, entry.getValue());
+            }
+            if (entry.getValue()) {
+                offset += ((VariableFactor<?>) x).getBias();
+            }
+            alive.remove(x);
+            fixed.put(x, entry.getValue());
+        }
+        return true;
+    }
+
+    private boolean implyOthers(Factor<?> factor, Factor<?> x, boolean value,
+            Map<Factor<?>, Boolean> closure, Deque<Factor<?>> queue)
+    {
+        for (Object neighbor : factor.getNeighbors()) {
+            if (neighbor != x && !imply(neighbor, value, closure, queue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean imply(Object variable, boolean value, Map<Factor<?>, Boolean> closure,
+            Deque<Factor<?>> queue)
+    {
+        final Boolean previous = closure.get(variable);
+        if (previous != null) {
+            if (previous != value) {
+                throw new IllegalStateException("Infeasible graph: variable " + variable
+                        + " must be both active and inactive");
+            }
+            return true;
+        }
+        if (!isVariable(variable)) {
+            return false;
+        }
+
+        closure.put((Factor<?>) variable, value);
+        queue.add((Factor<?>) variable);
+        return true;
+    }
+
+    /**
+     * Conditions a factor on the value of one of its variables, removing the link between both.
+     */
+    private void condition(Factor<?> factor, Factor<?> variable, boolean value) {
+        final Class<?> type = factor.getClass();
+        if (type == StandardFactor.class) {
+            final StandardFactor<?> standard = (StandardFactor<?>) factor;
+            final int nNeighbors = standard.getNeighbors().size();
+            final int position = standard.getNeighbors().indexOf(variable);
+            final double[] table = slice(standard.getPotential(), nNeighbors, position, value);
+            GraphRewriter.unlink(standard, variable);
+            standard.setPotential(table);
+        } else if (type == SelectorFactor.class || type == AtMostOneFactor.class) {
+            // Active variables satisfy the factor, as long as the rest are fixed to inactive
+            if (value) {
+                remove(factor);
+            } else {
+                GraphRewriter.unlink(factor, variable);
+            }
+        } else if (type == ConditionedDeactivationFactor.class) {
+            // Unless an inactive non-exemplar is unlinked, the other values are implied too
+            final Object exemplar = ((ConditionedDeactivationFactor<?>) factor).getExemplar();
+            if (variable == exemplar || value) {
+                remove(factor);
+            } else {
+                GraphRewriter.unlink(factor, variable);
+            }
+        } else if (type == EqualityFactor.class) {
+            // The rest of its variables are fixed to the same value
+            if (value) {
+                offset += getBias(factor);
+            }
+            remove(factor);
+        } else {
+            if (value) {
+                offset += asIndependent(factor).getPotential(variable);
+            }
+            GraphRewriter.unlink(factor, variable);
+        }
+    }
+
+    /**
+     * Merges all the variables of an equality constraint into its first one, provided that
+     * they do not share any other factor and all their factors can be relinked.
+     */
+    private boolean merge(Factor<?> equality) {
+        final List<Factor<?>> vars = new ArrayList<Factor<?>>();
+        for (Object neighbor : equality.getNeighbors()) {
+            vars.add((Factor<?>) neighbor);
+        }
+        final Set<Object> seen = new HashSet<Object>();
+        for (Factor<?> variable : vars) {
+            for (Object neighbor : variable.getNeighbors()) {
+                if (neighbor != equality
+                        && (!seen.add(neighbor) || !isRelinkable((Factor<?>) neighbor))) {
+                    return false;
+                }
+            }
+        }
+
+        remove(equality);
+        final VariableFactor<?> representative = (VariableFactor<?>) vars.get(0);
+        addBias(representative, getBias(equality));
+        for (Factor<?> variable : vars.subList(1, vars.size())) {
+            for (Object neighbor : new ArrayList<Object>(variable.getNeighbors())) {
+                relink((Factor<?>) neighbor, variable, representative);
+            }
+            addBias(representative, getBias(variable));
+            alive.remove(variable);
+            merged.put(variable, representative);
+        }
+        return true;
+    }
+
+    private boolean isRelinkable(Factor<?> factor) {
+        final Class<?> type = factor.getClass();
+        return GraphRewriter.isRewirable(factor) && (type == IndependentFactor.class
+                || type == StandardFactor.class || type == SelectorFactor.class
+                || type == AtMostOneFactor.class || type == CardinalityFactor.class
+                || type == ConditionedDeactivationFactor.class
+                || type == EqualityFactor.class && isConstraint(factor));
+    }
+
+    /**
+     * Replaces a neighbor of a factor by another variable, which becomes its last neighbor.
+     */
+    private void relink(Factor<?> factor, Factor<?> previous, Factor<?> variable) {
+        final Class<?> type = factor.getClass();
+        if (type == IndependentFactor.class) {
+            final IndependentFactor<Object> independent = asIndependent(factor);
+            final double potential = independent.getPotential(previous);
+            GraphRewriter.unlink(factor, previous);
+            GraphRewriter.link(factor, variable);
+            independent.setPotential(variable, potential);
+        } else if (type == StandardFactor.class) {
+            final StandardFactor<?> standard = (StandardFactor<?>) factor;
+            final int nNeighbors = standard.getNeighbors().size();
+            final int position = standard.getNeighbors().indexOf(previous);
+            final double[] table = moveToEnd(standard.getPotential(), nNeighbors, position);
+            GraphRewriter.unlink(factor, previous);
+            GraphRewriter.link(factor, variable);
+            standard.setPotential(table);
+        } else {
+            final boolean exemplar = type == ConditionedDeactivationFactor.class
+                    && ((ConditionedDeactivationFactor<?>) factor).getExemplar() == previous;
+            GraphRewriter.unlink(factor, previous);
+            GraphRewriter.link(factor, variable);
+            if (exemplar) {
+                ((ConditionedDeactivationFactor<Object>) GraphRewriter.asObjectFactor(factor))
+                        .setExemplar(variable);
+            }
+        }
+    }
+
+    /**
+     * Table of a standard factor once the neighbor at the given position is fixed.
+     */
+    static double[] slice(double[] table, int nNeighbors, int position, boolean value) {
+        final int bit = nNeighbors - 1 - position;
+        final int lowMask = (1 << bit) - 1;
+        final double[] result = new double[table.length >> 1];
+        for (int idx=0; idx<result.length; idx++) {
+            final int high = idx >> bit, low = idx & lowMask;
+            result[idx] = table[(high << (bit + 1)) | (value ? 1 << bit : 0) | low];
+        }
+        return result;
+    }
+
+    /**
+     * Table of a standard factor once the neighbor at the given position becomes the last one.
+     */
+    static double[] moveToEnd(double[] table, int nNeighbors, int position) {
+        final int bit = nNeighbors - 1 - position;
+        final int lowMask = (1 << bit) - 1;
+        final double[] result = new double[table.length];
+        for (int idx=0; idx<result.length; idx++) {
+            final int moved = idx & 1, rest = idx >> 1;
+            final int high = rest >> bit, low = rest & lowMask;
+            result[idx] = table[(high << (bit + 1)) | (moved << bit) | low];
+        }
+        return result;
+    }
+
+    private void remove(Factor<?> factor) {
+        GraphRewriter.isolate(factor);
+        alive.remove(factor);
+        removedFactors++;
+    }
+
+    private static double getBias(Factor<?> factor) {
+        return ((VariableFactor<?>) factor).getBias();
+    }
+
+    private static void addBias(Factor<?> factor, double bias) {
+        final VariableFactor<?> variable = (VariableFactor<?>) factor;
+        variable.setBias(variable.getBias() + bias);
+    }
+
+    private static IndependentFactor<Object> asIndependent(Object factor) {
+        return (IndependentFactor<Object>) GraphRewriter.asObjectFactor((Factor<?>) factor);
+    }
+
+    private static boolean isVariable(Object factor) {
+        return factor != null && factor.getClass() == VariableFactor.class
+                && GraphRewriter.isRewirable((Factor<?>) factor);
+    }
+
+    private static boolean isConstraint(Factor<?> factor) {
+        final List<?> neighbors = factor.getNeighbors();
+        for (Object neighbor : neighbors) {
+            if (!isVariable(neighbor)) {
+                return false;
+            }
+        }
+        return !neighbors.isEmpty();
+    }
+
+    /**
+     * Variable maximized out of its only table, along with its best value for each
+     * configuration of the variables left in the table.
+     */
+    private static final class Elimination {
+        private final Factor<?> variable;
+        private final List<Factor<?>> scope;
+        private final boolean[] choices;
+
+        private Elimination(Factor<?> variable, List<Factor<?>> scope, boolean[] choices) {
+            this.variable = variable;
+            this.scope = scope;
+            this.choices = choices;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+
+/**
+ * Record of a dense factor replaced by an equivalent tractable one.
+ * <p/>
+ * Costs are estimated as the number of table entries visited by each run of the factor:
+ * <em>n 2^n</em> for the dense table, which computes <em>n</em> messages by maximizing over
+ * all its <em>2^n</em> entries, <em>12 n</em> plus the comparisons of sorting the neighbors
+ * (about <em>n log n</em>) for cardinality factors, <em>2 n</em> for selectors and "at most
+ * one" factors, and <em>n</em> for independent factors, where <em>n</em> is the degree of the
+ * factor. Dense costs that do not fit in a <code>long</code> saturate at
+ * {@link Long#MAX_VALUE}. The sorting comparisons depend on the messages, so the cardinality
+ * cost is only an estimate.
+ *
+ * @see TractableStructureDetector
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public final class Substitution {
+
+    private final Factor<?> original;
+    private final Factor<?> replacement;
+    private final TractableStructureDetector.Structure structure;
+    private final int degree;
+
+    Substitution(Factor<?> original, Factor<?> replacement,
+            TractableStructureDetector.Structure structure)
+    {
+        this.original = original;
+        this.replacement = replacement;
+        this.structure = structure;
+        this.degree = replacement.getNeighbors().size();
+    }
+
+    /**
+     * Get the factor that has been replaced.
+     *
+     * @return the original factor.
+     */
+    public Factor<?> getOriginal() {
+        return original;
+    }
+
+    /**
+     * Get the factor that replaces the original one.
+     *
+     * @return the replacement factor.
+     */
+    public Factor<?> getReplacement() {
+        return replacement;
+    }
+
+    /**
+     * Get the structure detected in the original factor.
+     *
+     * @return detected structure.
+     */
+    public TractableStructureDetector.Structure getStructure() {
+        return structure;
+    }
+
+    /**
+     * Get the degree of the replaced factor.
+     *
+     * @return number of neighbors of the factor.
+     */
+    public int getDegree() {
+        return degree;
+    }
+
+    /**
+     * Get the estimated cost of running the original dense factor.
+     *
+     * @return estimated constraint checks per run.
+     */
+    public long getDenseCost() {
+        return getDenseCost(degree);
+    }
+
+    /**
+     * Get the estimated cost of running the replacement factor.
+     *
+     * @return estimated constraint checks per run.
+     */
+    public long getTractableCost() {
+        return getTractableCost(structure, degree);
+    }
+
+    /**
+     * Get the estimated savings of this substitution.
+     *
+     * @return estimated constraint checks saved per run.
+     */
+    public long getSavings() {
+        return getDenseCost() - getTractableCost();
+    }
+
+    static long getDenseCost(int degree) {
+        // n << n only fits while the shifted bits stay clear of the sign bit
+        if (degree >= Long.numberOfLeadingZeros(degree)) {
+            return Long.MAX_VALUE;
+        }
+        return (long) degree << degree;
+    }
+
+    static long getTractableCost(TractableStructureDetector.Structure structure, int degree) {
+        switch (structure) {
+            case CARDINALITY:
+                final int log = 32 - Integer.numberOfLeadingZeros(Math.max(degree - 1, 1));
+                return (12L + log) * degree;
+            case INDEPENDENT:
+                return degree;
+            default:
+                return 2L * degree;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-30.30s %-12s %8d %12d %12d", original, structure, degree,
+                getDenseCost(), getTractableCost());
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Graph preprocessing pass that replaces dense {@link StandardFactor} tables by equivalent
+ * tractable factors.
+ * <p/>
+ * Each table is checked, in this order, for being a selector ({@link SelectorFactor}), an "at
+ * most one" constraint ({@link AtMostOneFactor}), a separable potential without constant term
+ * ({@link IndependentFactor}), or a function of the number of active variables
+ * ({@link CardinalityFactor}, only for finite tables). Tables that match one of these
+ * structures are replaced by the corresponding factor, which computes the same messages
+ * without enumerating the table. Finite values are compared with a small tolerance, whereas
+ * infinite ones must match exactly.
+ * <p/>
+ * Tables over two variables are never replaced, because standard factors already run them in
+ * closed form. Other tables are only replaced when the replacement is expected to visit
+ * fewer entries per run, which excludes cardinality tables over three variables. Each
+ * replacement is recorded as a {@link Substitution}, which includes its estimated savings,
+ * and factors that are not their own identities are left untouched (see
+ * {@link GraphRewriter}).
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class TractableStructureDetector {
+    private static final Logger LOG = Logger.getLogger(TractableStructureDetector.class.getName());
+
+    /** Default tolerance used to compare finite potential values */
+    public static final double DEFAULT_TOLERANCE = 1e-9;
+
+    /**
+     * Tractable structures recognized by this detector.
+     */
+    public enum Structure {
+        /** Exactly one active variable */
+        SELECTOR,
+        /** At most one active variable */
+        AT_MOST_ONE,
+        /** Sum of independent costs/utilities for each active variable */
+        INDEPENDENT,
+        /** Function of the number of active variables */
+        CARDINALITY,
+    }
+
+    private double tolerance = DEFAULT_TOLERANCE;
+    private final List<Substitution> substitutions = new ArrayList<Substitution>();
+
+    /**
+     * Get the tolerance used to compare finite potential values.
+     *
+     * @return comparison tolerance.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Set the tolerance used to compare finite potential values.
+     *
+     * @param tolerance comparison tolerance.
+     */
+    public void setTolerance(double tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("The tolerance can not be negative.");
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Get the substitutions performed by this detector so far.
+     *
+     * @return list of substitutions.
+     */
+    public List<Substitution> getSubstitutions() {
+        return Collections.unmodifiableList(substitutions);
+    }
+
+    /**
+     * Get the estimated number of constraint checks saved per iteration by all the
+     * substitutions performed so far.
+     *
+     * @return estimated savings per iteration.
+     */
+    public long getEstimatedSavings() {
+        long savings = 0;
+        for (Substitution substitution : substitutions) {
+            savings += substitution.getSavings();
+        }
+        return savings;
+    }
+
+    /**
+     * Get a human-readable report of the substitutions performed so far.
+     *
+     * @return report of the substitutions.
+     */
+    public String getReport() {
+        StringBuilder buf = new StringBuilder(String.format("%-30s %-12s %8s %12s %12s%n",
+                "factor", "structure", "degree", "dense", "tractable"));
+        for (Substitution substitution : substitutions) {
+            buf.append(substitution).append(String.format("%n"));
+        }
+        buf.append(String.format("%d substitutions, %d estimated checks saved per iteration%n",
+                substitutions.size(), getEstimatedSavings()));
+        return buf.toString();
+    }
+
+    /**
+     * Find out the tractable structure of a dense table.
+     *
+     * @see StandardFactor
+     * @param table array of cost/utilities, one for each combination of values.
+     * @param op maximization operator used by the factor.
+     * @return structure of the table, or <code>null</code> if it has none.
+     */
+    public Structure analyze(double[] table, MaxOperator op) {
+        final int nVariables = Integer.numberOfTrailingZeros(table.length);
+        if (nVariables == 0 || table.length != 1 << nVariables) {
+            return null;
+        }
+
+        if (isCardinality(table, nVariables)) {
+            final double worst = op.getWorstValue();
+            if (same(table[0], worst) && isHardCardinality(table, nVariables, worst)) {
+                return Structure.SELECTOR;
+            }
+            if (same(table[0], 0) && isHardCardinality(table, nVariables, worst)) {
+                return Structure.AT_MOST_ONE;
+            }
+        }
+        if (isIndependent(table, nVariables)) {
+            return Structure.INDEPENDENT;
+        }
+        if (isCardinality(table, nVariables) && isFinite(table)) {
+            return Structure.CARDINALITY;
+        }
+        return null;
+    }
+
+    /**
+     * Replace all the standard factors of a graph that have a tractable structure.
+     *
+     * @param factors factors of the graph.
+     * @return factors of the rewritten graph.
+     */
+    public List<Factor<?>> apply(List<? extends Factor<?>> factors) {
+        List<Factor<?>> originals = new ArrayList<Factor<?>>();
+        List<Factor<?>> replacements = new ArrayList<Factor<?>>();
+
+        for (Factor<?> factor : factors) {
+            if (!(factor instanceof StandardFactor) || !GraphRewriter.isRewirable(factor)) {
+                continue;
+            }
+
+            // Tables over two variables already run in closed form
+            final StandardFactor<?> standard = (StandardFactor<?>) factor;
+            final int nVariables = standard.getNeighbors().size();
+            if (nVariables <= 2) {
+                continue;
+            }
+
+            final Structure structure = analyze(standard.getPotential(),
+                    standard.getMaxOperator());
+            if (structure == null || Substitution.getTractableCost(structure, nVariables)
+                    >= Substitution.getDenseCost(nVariables)) {
+                continue;
+            }
+
+            final Factor<?> replacement = substitute(standard, structure);
+            originals.add(standard);
+            replacements.add(replacement);
+
+            final Substitution substitution = new Substitution(standard, replacement, structure);
+            substitutions.add(substitution);
+            LOG.log(Level.FINE, "Substituted {0}", substitution);
+        }
+
+        LOG.log(Level.FINE, "{0} tractable factors found, saving {1} checks per iteration",
+                new Object[]{originals.size(), getEstimatedSavings()});
+        return GraphRewriter.rebuild(factors, originals, replacements);
+    }
+
+    private Factor<?> substitute(StandardFactor<?> original, Structure structure) {
+        final double[] table = original.getPotential();
+        final int nVariables = original.getNeighbors().size();
+        final Factor<?> replacement;
+        switch (structure) {
+            case SELECTOR:
+                replacement = new SelectorFactor<Object>();
+                break;
+            case AT_MOST_ONE:
+                replacement = new AtMostOneFactor<Object>();
+                break;
+            case INDEPENDENT:
+                final IndependentFactor<Object> independent = new IndependentFactor<Object>();
+                GraphRewriter.replace(original, independent);
+                for (int i=0; i<nVariables; i++) {
+                    independent.setPotential(independent.getNeighbors().get(i),
+                            table[1 << (nVariables - i - 1)]);
+                }
+                return independent;
+            default:
+                final double[] costs = new double[nVariables + 1];
+                for (int k=0; k<=nVariables; k++) {
+                    costs[k] = table[(1 << k) - 1];
+                }
+                final CardinalityFactor<Object> cardinality = new CardinalityFactor<Object>();
+                cardinality.setFunction(new TableFunction(costs));
+                replacement = cardinality;
+        }
+
+        GraphRewriter.replace(original, replacement);
+        return replacement;
+    }
+
+    /**
+     * Checks whether the value of the table only depends on the number of active variables.
+     */
+    private boolean isCardinality(double[] table, int nVariables) {
+        for (int idx=1; idx<table.length; idx++) {
+            final int count = Integer.bitCount(idx);
+            if (!same(table[idx], table[(1 << count) - 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a cardinality table is zero with one active variable, and the worst value
+     * with more than one.
+     */
+    private boolean isHardCardinality(double[] table, int nVariables, double worst) {
+        if (!same(table[1], 0)) {
+            return false;
+        }
+        for (int k=2; k<=nVariables; k++) {
+            if (!same(table[(1 << k) - 1], worst)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the table is the sum of the values with a single active variable.
+     */
+    private boolean isIndependent(double[] table, int nVariables) {
+        if (!same(table[0], 0)) {
+            return false;
+        }
+        for (int idx=1; idx<table.length; idx++) {
+            final int lowest = Integer.lowestOneBit(idx);
+            if (Double.isInfinite(table[idx])
+                    || !same(table[idx], table[lowest] + table[idx ^ lowest])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFinite(double[] table) {
+        for (double value : table) {
+            if (Double.isInfinite(value) || Double.isNaN(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean same(double v1, double v2) {
+        if (Double.isInfinite(v1) || Double.isInfinite(v2)) {
+            return v1 == v2;
+        }
+        return Math.abs(v1 - v2) <= tolerance;
+    }
+
+    /**
+     * Cardinality function backed by the costs extracted from a table.
+     */
+    private static class TableFunction implements CardinalityFactor.CardinalityFunction {
+        private final double[] costs;
+
+        public TableFunction(double[] costs) {
+            this.costs = costs;
+        }
+
+        @Override
+        public double getCost(int nActiveVariables) {
+            return costs[nActiveVariables];
+        }
+    }
+
+}
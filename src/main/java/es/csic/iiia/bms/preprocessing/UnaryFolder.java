@@ -0,0 +1,220 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.factors.WeightingFactor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Graph preprocessing pass that folds unary potentials into the bias of the variables they
+ * are attached to.
+ * <p/>
+ * The pass performs two kinds of rewrites:
+ * <ul>
+ * <li>Every {@link IndependentFactor} potential over a {@link VariableFactor} is added to the
+ * variable's bias, and the link between both is removed. Independent factors left without
+ * neighbors are removed from the graph, so their messages disappear from the iterations.</li>
+ * <li>Chains of {@link WeightingFactor} proxies are replaced by their innermost factor, adding
+ * the per-neighbor weights to the neighboring variables' biases. Hence, messages reach the
+ * inner factor directly, without going through any proxy.</li>
+ * </ul>
+ * Both rewrites yield exactly the same messages and beliefs, except when they are applied
+ * before the first iteration: then unary potentials just reach the variables one iteration
+ * earlier than they would have through messages. Variables whose only neighbor is
+ * the unary factor are left untouched, because they would become disconnected. Likewise,
+ * {@link es.csic.iiia.bms.factors.SingleWeightFactor} proxies are kept: they shift outgoing
+ * messages only, which is not equivalent to any unary potential.
+ * <p/>
+ * Only the exact built-in classes are folded, because subclasses may change their behavior,
+ * and factors that are not their own identities are left untouched (see
+ * {@link GraphRewriter}).
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class UnaryFolder {
+    private static final Logger LOG = Logger.getLogger(UnaryFolder.class.getName());
+
+    private int foldedPotentials;
+    private int flattenedProxies;
+    private int removedFactors;
+
+    /**
+     * Get the number of unary potentials folded into variables so far.
+     *
+     * @return number of folded potentials, which is the number of links removed.
+     */
+    public int getFoldedPotentials() {
+        return foldedPotentials;
+    }
+
+    /**
+     * Get the number of proxies flattened so far.
+     *
+     * @return number of flattened proxies.
+     */
+    public int getFlattenedProxies() {
+        return flattenedProxies;
+    }
+
+    /**
+     * Get the number of factors removed from the graph so far.
+     *
+     * @return number of removed factors.
+     */
+    public int getRemovedFactors() {
+        return removedFactors;
+    }
+
+    /**
+     * Get the number of messages per iteration eliminated by the folds performed so far.
+     *
+     * @return number of eliminated messages per iteration.
+     */
+    public long getEliminatedMessages() {
+        return 2L * foldedPotentials;
+    }
+
+    /**
+     * Fold the unary potentials of a graph into its variables.
+     *
+     * @param factors factors of the graph.
+     * @return factors of the rewritten graph.
+     */
+    public List<Factor<?>> apply(List<? extends Factor<?>> factors) {
+        List<Factor<?>> originals = new ArrayList<Factor<?>>();
+        List<Factor<?>> replacements = new ArrayList<Factor<?>>();
+
+        for (Factor<?> factor : factors) {
+            if (!GraphRewriter.isRewirable(factor)) {
+                continue;
+            }
+
+            if (factor.getClass() == WeightingFactor.class) {
+                final Factor<?> inner = flatten((WeightingFactor<?>) factor);
+                if (inner != null) {
+                    originals.add(factor);
+                    replacements.add(inner);
+                }
+            } else if (factor.getClass() == IndependentFactor.class) {
+                if (fold((IndependentFactor<?>) factor)) {
+                    originals.add(factor);
+                    replacements.add(null);
+                    removedFactors++;
+                }
+            }
+        }
+
+        LOG.log(Level.FINE, "{0} unary potentials folded, {1} proxies flattened",
+                new Object[]{foldedPotentials, flattenedProxies});
+        return GraphRewriter.rebuild(factors, originals, replacements);
+    }
+
+    /**
+     * Folds the potentials of an independent factor into its neighbors.
+     *
+     * @return <em>true</em> if the factor has been left without neighbors.
+     */
+    private boolean fold(IndependentFactor<?> factor) {
+        @SuppressWarnings("unchecked")
+        final IndependentFactor<Object> unary = (IndependentFactor<Object>) factor;
+        for (Object neighbor : new ArrayList<Object>(unary.getNeighbors())) {
+            if (!isFoldable(neighbor) || ((Factor<?>) neighbor).getNeighbors().size() < 2) {
+                continue;
+            }
+
+            final VariableFactor<?> variable = (VariableFactor<?>) neighbor;
+            variable.setBias(variable.getBias() + unary.getPotential(variable));
+            GraphRewriter.unlink(unary, variable);
+            foldedPotentials++;
+        }
+        return unary.getNeighbors().isEmpty();
+    }
+
+    /**
+     * Replaces a chain of weighting factors by its innermost factor.
+     *
+     * @return the innermost factor, or <code>null</code> if the chain can not be flattened.
+     */
+    private Factor<?> flatten(WeightingFactor<?> factor) {
+        @SuppressWarnings("unchecked")
+        final WeightingFactor<Object> proxy = (WeightingFactor<Object>) factor;
+        final List<Object> neighbors = proxy.getNeighbors();
+        for (Object neighbor : neighbors) {
+            if (!isFoldable(neighbor)) {
+                return null;
+            }
+        }
+
+        // Collect the weights of the whole chain before unlinking anything
+        final double[] weights = new double[neighbors.size()];
+        Factor<Object> inner = proxy;
+        while (inner.getClass() == WeightingFactor.class) {
+            final WeightingFactor<Object> weighting = (WeightingFactor<Object>) inner;
+            for (int i=0; i<weights.length; i++) {
+                weights[i] += weighting.getPotential(neighbors.get(i));
+            }
+            inner = weighting.getInnerFactor();
+            flattenedProxies++;
+        }
+        final Object[] variables = neighbors.toArray();
+
+        // Variables now send their biased messages to the inner factor, which no longer adds
+        // the weights to the messages it sends back
+        GraphRewriter.replace(proxy, inner);
+        for (int i=0; i<weights.length; i++) {
+            @SuppressWarnings("unchecked")
+            final VariableFactor<Object> variable = (VariableFactor<Object>) variables[i];
+            variable.setBias(variable.getBias() + weights[i]);
+            inner.receive(inner.getMessage(variable) + weights[i], variable);
+            variable.receive(variable.getMessage(inner) - weights[i], inner);
+        }
+        return inner;
+    }
+
+    private static boolean isFoldable(Object neighbor) {
+        return neighbor != null && neighbor.getClass() == VariableFactor.class
+                && GraphRewriter.isRewirable((Factor<?>) neighbor);
+    }
+
+}
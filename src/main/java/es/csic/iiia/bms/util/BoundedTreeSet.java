@@ -121,6 +121,12 @@ public class BoundedTreeSet<E> extends TreeSet<E> {
         return change;
     }
 
+    @Override
+    public void clear() {
+        super.clear();
+        members.clear();
+    }
+
     @Override
     public boolean contains(Object o) {
         return members.contains(o);
@@ -0,0 +1,119 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.util;
+
+import es.csic.iiia.bms.MaxOperator;
+
+/**
+ * Version of the {@link BestValuesTracker} for elements identified by non-negative integers
+ * (typically neighbor positions), which avoids boxing them.
+ * <p/>
+ * Ties are resolved in the same way as in {@link BestValuesTracker}, so both trackers always
+ * pick the same elements when fed the same values in the same order.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class IntBestValuesTracker {
+
+    private final MaxOperator operator;
+    private double bestValue;
+    private double secondValue;
+    private int best = -1;
+
+    /**
+     * Build a new tracker of best values.
+     *
+     * @param operator maximization operator to use.
+     */
+    public IntBestValuesTracker(MaxOperator operator) {
+        this.operator = operator;
+        reset();
+    }
+
+    /**
+     * Cleanup all values tracked until now.
+     */
+    public void reset() {
+        bestValue = secondValue = operator.getWorstValue();
+        best = -1;
+    }
+
+    /**
+     * Get the best value among all tracked elements except the given one.
+     *
+     * @param element element to exclude.
+     * @return best value excluding the given element.
+     */
+    public double getComplementary(int element) {
+        return element != best ? bestValue : secondValue;
+    }
+
+    /**
+     * Get the best element.
+     *
+     * @return best element, or -1 if nothing has been tracked.
+     */
+    public int getBest() {
+        return best;
+    }
+
+    /**
+     * Get the best value.
+     *
+     * @return best value.
+     */
+    public double getBestValue() {
+        return bestValue;
+    }
+
+    /**
+     * Track the given element and value.
+     *
+     * @param element element to track.
+     * @param value value of the element.
+     */
+    public void track(int element, double value) {
+        if (operator.max(value, bestValue) == value) {
+            secondValue = bestValue;
+            bestValue = value;
+            best = element;
+        } else if (operator.max(value, secondValue) == value) {
+            secondValue = value;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms;
+
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class InboxCommunicationAdapterTest {
+
+    private Factor sender1;
+    private Factor sender2;
+    private Factor recipient;
+    private InboxCommunicationAdapter instance;
+
+    @Before
+    public void setUp() {
+        sender1 = mock(Factor.class);
+        sender2 = mock(Factor.class);
+        recipient = mock(Factor.class);
+        when(recipient.getIdentity()).thenReturn(recipient);
+        when(recipient.getNeighbors()).thenReturn(Arrays.asList(sender1, sender2));
+
+        instance = new InboxCommunicationAdapter();
+        instance.register(recipient);
+    }
+
+    /**
+     * Test of deliver method, of class InboxCommunicationAdapter.
+     */
+    @Test
+    public void testDeliver() {
+        instance.send(1d, sender1, recipient);
+        verify(recipient, never()).receive(anyDouble(), any());
+
+        // This should deliver the first message
+        assertEquals(1, instance.deliver(recipient));
+        verify(recipient, times(1)).receive(1d, sender1);
+
+        // This should do nothing (no messages sent since the last delivery)
+        reset(recipient);
+        when(recipient.getIdentity()).thenReturn(recipient);
+        assertEquals(0, instance.deliver(recipient));
+        verify(recipient, never()).receive(anyDouble(), any());
+    }
+
+    /**
+     * Only the latest message from each sender must be delivered.
+     */
+    @Test
+    public void testLatestMessageWins() {
+        instance.send(1d, sender1, recipient);
+        instance.send(2d, sender2, recipient);
+        instance.send(3d, sender1, recipient);
+
+        assertEquals(2, instance.deliver(recipient));
+        verify(recipient, never()).receive(1d, sender1);
+        verify(recipient, times(1)).receive(3d, sender1);
+        verify(recipient, times(1)).receive(2d, sender2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownSender() {
+        instance.send(1d, mock(Factor.class), recipient);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnregisteredRecipient() {
+        instance.send(1d, recipient, sender1);
+    }
+
+    /**
+     * Concurrent senders must never lose the last message they send, even while the recipient's
+     * inbox is being delivered.
+     */
+    @Test
+    public void testConcurrentSenders() throws InterruptedException {
+        final int nSenders = 8;
+        final int nMessages = 10000;
+        final Factor[] senders = new Factor[nSenders];
+        final VariableFactor variable = new VariableFactor();
+        variable.setIdentity(variable);
+        for (int i=0; i<nSenders; i++) {
+            senders[i] = mock(Factor.class);
+            variable.addNeighbor(senders[i]);
+        }
+        instance.register(variable);
+
+        Thread[] threads = new Thread[nSenders];
+        for (int i=0; i<nSenders; i++) {
+            final Factor sender = senders[i];
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j=1; j<=nMessages; j++) {
+                        instance.send(j, sender, variable);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        // Keep delivering (as the single consumer) while the senders are running
+        boolean running = true;
+        while (running) {
+            instance.deliver(variable);
+            running = false;
+            for (Thread thread : threads) {
+                running = running || thread.isAlive();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        instance.deliver(variable);
+        for (Factor sender : senders) {
+            assertEquals(nMessages, variable.getMessage(sender), Constants.DELTA);
+        }
+    }
+
+}
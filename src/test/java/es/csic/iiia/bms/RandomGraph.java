@@ -0,0 +1,184 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms;
+
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random factor graph, used to test the engines and communication adapters with a mix of
+ * different factor types.
+ * <p/>
+ * Given the same seed, two instances of this class build exactly the same graph.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class RandomGraph {
+
+    /** Maximum number of variables linked to each (non-variable) factor */
+    public static final int MAX_DEGREE = 5;
+
+    private final Random generator;
+    private final List<Factor<?>> variables = new ArrayList<Factor<?>>();
+    private final List<Factor<?>> factors = new ArrayList<Factor<?>>();
+
+    /**
+     * Builds a new random graph.
+     *
+     * @param seed seed of the random generator.
+     * @param nVariables number of variables of the graph.
+     * @param nFactors number of (non-variable) factors of the graph.
+     * @param op maximization operator to use.
+     * @param adapter communication adapter to use.
+     */
+    public RandomGraph(long seed, int nVariables, int nFactors, MaxOperator op,
+            CommunicationAdapter adapter)
+    {
+        generator = new Random(seed);
+
+        for (int i=0; i<nVariables; i++) {
+            Factor variable = new VariableFactor();
+            initialize(variable, op, adapter);
+            variables.add(variable);
+
+            IndependentFactor unary = new IndependentFactor();
+            initialize(unary, op, adapter);
+            link(unary, variable);
+            unary.setPotential(variable, generator.nextDouble() - 0.5);
+        }
+
+        for (int i=0; i<nFactors; i++) {
+            final int degree = Math.min(nVariables, 2 + generator.nextInt(MAX_DEGREE - 1));
+            Factor factor = buildFactor(degree);
+            initialize(factor, op, adapter);
+
+            List<Factor<?>> candidates = new ArrayList<Factor<?>>(variables);
+            for (int j=0; j<degree; j++) {
+                link(factor, candidates.remove(generator.nextInt(candidates.size())));
+            }
+
+            if (factor instanceof StandardFactor) {
+                double[] potential = new double[1 << degree];
+                for (int j=0; j<potential.length; j++) {
+                    potential[j] = generator.nextDouble() - 0.5;
+                }
+                ((StandardFactor)factor).setPotential(potential);
+            }
+        }
+    }
+
+    private Factor buildFactor(int degree) {
+        switch (generator.nextInt(3)) {
+            case 0:
+                return new SelectorFactor();
+            case 1:
+                CardinalityFactor cardinality = new CardinalityFactor();
+                final double[] costs = new double[degree + 1];
+                for (int i=0; i<costs.length; i++) {
+                    costs[i] = generator.nextDouble() - 0.5;
+                }
+                cardinality.setFunction(new CardinalityFactor.CardinalityFunction() {
+                    @Override
+                    public double getCost(int nActiveVariables) {
+                        return costs[nActiveVariables];
+                    }
+                });
+                return cardinality;
+            default:
+                return new StandardFactor();
+        }
+    }
+
+    private void initialize(Factor factor, MaxOperator op, CommunicationAdapter adapter) {
+        factor.setIdentity(factor);
+        factor.setMaxOperator(op);
+        factor.setCommunicationAdapter(adapter);
+        factors.add(factor);
+    }
+
+    private void link(Factor factor, Factor variable) {
+        factor.addNeighbor(variable);
+        variable.addNeighbor(factor);
+    }
+
+    /**
+     * Get all the factors of this graph (including the variables).
+     *
+     * @return list of all factors.
+     */
+    public List<Factor<?>> getFactors() {
+        return factors;
+    }
+
+    /**
+     * Get the variables of this graph.
+     *
+     * @return list of variables.
+     */
+    public List<Factor<?>> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Get the last messages received by all the factors, in a deterministic order.
+     *
+     * @return last messages received by all factors.
+     */
+    public double[] getMessages() {
+        List<Double> messages = new ArrayList<Double>();
+        for (Factor factor : factors) {
+            for (Object neighbor : factor.getNeighbors()) {
+                messages.add(factor.getMessage(neighbor));
+            }
+        }
+
+        double[] result = new double[messages.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = messages.get(i);
+        }
+        return result;
+    }
+
+}
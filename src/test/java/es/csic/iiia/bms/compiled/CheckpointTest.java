@@ -0,0 +1,192 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for message checkpoints.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class CheckpointTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", ".bms");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testCompiledRoundTrip() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(1, 30, 60, new Maximize(), null).getFactors());
+        CompiledEngine solved = new CompiledEngine(graph);
+        for (int i=0; i<10; i++) {
+            solved.run();
+        }
+
+        Checkpoint checkpoint = Checkpoint.capture(solved, null);
+        assertEquals(graph.getNumberOfEdges(), checkpoint.size());
+        checkpoint.write(file);
+        assertEquals(12 + 24L * checkpoint.size(), file.length());
+
+        CompiledEngine warm = new CompiledEngine(graph);
+        assertEquals(graph.getNumberOfEdges(), Checkpoint.read(file).restore(warm, null));
+        assertArrayEquals(solved.getMessages(), warm.getMessages(), 0);
+
+        // Both engines continue exactly in the same way
+        solved.run();
+        warm.run();
+        assertArrayEquals(solved.getMessages(), warm.getMessages(), 0);
+    }
+
+    @Test
+    public void testObjects() {
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        MixedGraph solved = new MixedGraph(2, 30, 60, new Maximize(), adapter);
+        for (int i=0; i<10; i++) {
+            for (Factor f : solved.getFactors()) {
+                f.run();
+            }
+            adapter.tick();
+        }
+        Checkpoint checkpoint = Checkpoint.capture(solved.getFactors(), null);
+
+        MixedGraph warm = new MixedGraph(2, 30, 60, new Maximize(), adapter);
+        int restored = checkpoint.restore(warm.getFactors(), null);
+        assertEquals(checkpoint.size(), restored);
+        assertArrayEquals(solved.getMessages(), warm.getMessages(), 0);
+
+        // The checkpoint can also be restored onto the compiled graph
+        CompiledEngine engine = new CompiledEngine(CompiledGraph.compile(warm.getFactors()));
+        checkpoint.restore(engine, null);
+        assertArrayEquals(warm.getMessages(), engine.getMessages(), 0);
+
+        for (Factor f : warm.getFactors()) {
+            f.run();
+        }
+        adapter.tick();
+        engine.run();
+        assertArrayEquals(warm.getMessages(), engine.getMessages(), Constants.DELTA);
+    }
+
+    @Test
+    public void testStableIds() {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(3, 20, 30, new Maximize(), null).getFactors());
+        final int n = graph.getNumberOfFactors();
+        CompiledEngine solved = new CompiledEngine(graph);
+        for (int i=0; i<5; i++) {
+            solved.run();
+        }
+
+        long[] ids = new long[n];
+        for (int i=0; i<n; i++) {
+            ids[i] = 1000L * i;
+        }
+        Checkpoint checkpoint = Checkpoint.capture(solved, ids);
+
+        // Factor 0 is replaced by a new one, whose edges start from zero
+        long[] newIds = ids.clone();
+        newIds[0] = -1;
+        CompiledEngine warm = new CompiledEngine(graph);
+        warm.run();
+        final int degree = graph.getDegree(0);
+        assertEquals(graph.getNumberOfEdges() - 2 * degree, checkpoint.restore(warm, newIds));
+
+        for (int edge=0; edge<graph.getNumberOfEdges(); edge++) {
+            final int owner = getOwner(graph, edge);
+            if (owner == 0 || graph.getNeighbor(edge) == 0) {
+                assertEquals(0, warm.getMessage(edge), 0);
+            } else {
+                assertEquals(solved.getMessage(edge), warm.getMessage(edge), 0);
+                assertEquals(solved.getMessage(edge),
+                        checkpoint.getMessage(ids[owner], ids[graph.getNeighbor(edge)]), 0);
+            }
+        }
+        assertEquals(0, checkpoint.getMessage(-1, 0), 0);
+    }
+
+    private int getOwner(CompiledGraph graph, int edge) {
+        int owner = 0;
+        while (graph.getEdgeOffset(owner + 1) <= edge) {
+            owner++;
+        }
+        return owner;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongIds() {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(4, 5, 3, new Maximize(), null).getFactors());
+        Checkpoint.capture(new CompiledEngine(graph), new long[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatedIds() {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(4, 5, 3, new Maximize(), null).getFactors());
+        Checkpoint.capture(new CompiledEngine(graph), new long[graph.getNumberOfFactors()]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotACheckpoint() throws IOException {
+        GraphFile.write(CompiledGraph.compile(
+                new MixedGraph(4, 5, 3, new Maximize(), null).getFactors()), file);
+        Checkpoint.read(file);
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.factors.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the background writer of recovery files.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class CheckpointWriterTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("recovery", ".bms");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".bak").delete();
+    }
+
+    @Test
+    public void testResumeContinuesTheSolve() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(3, 30, 60, new Maximize(), null).getFactors());
+
+        // Crash after the seventh iteration, with snapshots every three
+        CompiledEngine crashed = new CompiledEngine(graph);
+        CheckpointWriter writer = new CheckpointWriter(file, null);
+        writer.setInterval(3);
+        int nSnapshots = 0;
+        for (int i=0; i<7; i++) {
+            crashed.run();
+            nSnapshots += writer.offer(crashed) ? 1 : 0;
+        }
+        writer.close();
+        assertEquals(3, nSnapshots);
+        assertEquals(7, writer.getWrittenIteration());
+
+        CompiledEngine resumed = new CompiledEngine(graph);
+        assertTrue(CheckpointWriter.resume(resumed, file, null));
+        assertEquals(7, resumed.getIterations());
+        assertArrayEquals(crashed.getMessages(), resumed.getMessages(), Constants.DELTA);
+
+        CompiledEngine reference = new CompiledEngine(graph);
+        for (int i=0; i<10; i++) {
+            reference.run();
+        }
+        for (int i=0; i<3; i++) {
+            resumed.run();
+        }
+        assertEquals(10, resumed.getIterations());
+        assertArrayEquals(reference.getMessages(), resumed.getMessages(), Constants.DELTA);
+    }
+
+    @Test
+    public void testLatestSnapshotWins() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(4, 20, 40, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+        CheckpointWriter writer = new CheckpointWriter(file, null);
+        for (int i=0; i<20; i++) {
+            engine.run();
+            assertTrue(writer.offer(engine));
+        }
+        writer.flush();
+        assertEquals(20, writer.getWrittenIteration());
+        writer.close();
+
+        CompiledEngine resumed = new CompiledEngine(graph);
+        CheckpointWriter.resume(resumed, file, null);
+        assertArrayEquals(engine.getMessages(), resumed.getMessages(), Constants.DELTA);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testResumeFromBackup() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(8, 20, 40, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+        engine.run();
+        CheckpointWriter writer = new CheckpointWriter(file, null);
+        writer.offer(engine);
+        writer.close();
+
+        // Crash while the writer had moved the previous snapshot aside
+        assertTrue(file.renameTo(new File(file.getPath() + ".bak")));
+        CompiledEngine resumed = new CompiledEngine(graph);
+        assertTrue(CheckpointWriter.resume(resumed, file, null));
+        assertEquals(1, resumed.getIterations());
+        assertArrayEquals(engine.getMessages(), resumed.getMessages(), Constants.DELTA);
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(5, 10, 10, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+        assertFalse(CheckpointWriter.resume(engine, file, null));
+        assertEquals(0, engine.getIterations());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailuresAreReported() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(6, 10, 10, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+        engine.run();
+
+        CheckpointWriter writer = new CheckpointWriter(new File(file, "missing"), null);
+        writer.offer(engine);
+        writer.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotARecoveryFile() throws IOException {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(7, 10, 10, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+        Checkpoint.capture(engine, null).write(file);
+        CheckpointWriter.resume(engine, file, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() throws IOException {
+        CheckpointWriter writer = new CheckpointWriter(file, null);
+        try {
+            writer.setInterval(0);
+        } finally {
+            writer.close();
+        }
+    }
+
+}
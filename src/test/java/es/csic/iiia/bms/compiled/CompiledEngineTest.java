@@ -0,0 +1,200 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.RandomGraph;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.metrics.FactorMetrics;
+import es.csic.iiia.bms.metrics.FactorProfile;
+import es.csic.iiia.bms.metrics.FactorProfiler;
+import es.csic.iiia.bms.metrics.MetricsRegistry;
+import es.csic.iiia.bms.metrics.ResidualHistogram;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compiled engine.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class CompiledEngineTest {
+
+    private static final int N_ITERATIONS = 10;
+
+    @Test
+    public void testSameMessagesAsObjects() {
+        for (int seed=0; seed<5; seed++) {
+            compareAgainstObjects(seed, new Maximize());
+            compareAgainstObjects(seed, new Minimize());
+        }
+    }
+
+    private void compareAgainstObjects(long seed, MaxOperator op) {
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        MixedGraph graph = new MixedGraph(seed, 30, 60, op, adapter);
+        CompiledEngine engine = new CompiledEngine(CompiledGraph.compile(graph.getFactors()));
+
+        for (int i=0; i<N_ITERATIONS; i++) {
+            for (Factor f : graph.getFactors()) {
+                f.run();
+            }
+            adapter.tick();
+
+            assertTrue(engine.run() > 0);
+            assertArrayEquals(graph.getMessages(), engine.getMessages(), Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testSameMessagesAsRandomGraph() {
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        RandomGraph graph = new RandomGraph(7, 100, 150, new Maximize(), adapter);
+        CompiledEngine engine = new CompiledEngine(CompiledGraph.compile(graph.getFactors()));
+
+        for (int i=0; i<N_ITERATIONS; i++) {
+            for (Factor f : graph.getFactors()) {
+                f.run();
+            }
+            adapter.tick();
+            engine.run();
+        }
+
+        assertArrayEquals(graph.getMessages(), engine.getMessages(), Constants.DELTA);
+    }
+
+    @Test
+    public void testMetrics() {
+        CompiledGraph compiled = CompiledGraph.compile(
+                new MixedGraph(2, 30, 60, new Maximize(), null).getFactors());
+        CompiledEngine reference = new CompiledEngine(compiled);
+        CompiledEngine engine = new CompiledEngine(compiled);
+        MetricsRegistry metrics = new MetricsRegistry();
+        engine.setMetrics(metrics);
+        assertSame(metrics, engine.getMetrics());
+
+        long constraintChecks = 0;
+        for (int i=0; i<N_ITERATIONS; i++) {
+            final double[] previous = engine.getMessages();
+            final long checks = engine.run();
+            assertEquals(reference.run(), checks);
+            constraintChecks += checks;
+            assertArrayEquals(reference.getMessages(), engine.getMessages(), 0);
+
+            // The histogram of this iteration holds the residual of every edge
+            final ResidualHistogram residuals = metrics.getResidualHistory().get(i);
+            assertEquals(i, residuals.getIteration());
+            assertEquals(compiled.getNumberOfEdges(), residuals.getTotal());
+            double max = 0;
+            for (int edge=0; edge<previous.length; edge++) {
+                max = Math.max(max, Math.abs(engine.getMessage(edge) - previous[edge]));
+            }
+            assertEquals(max, residuals.getMax(), 0);
+        }
+
+        long runs = 0, messages = 0, recordedChecks = 0;
+        for (String type : metrics.getTypes()) {
+            final FactorMetrics typeMetrics = metrics.getFactorMetrics(type);
+            runs += typeMetrics.getRuns();
+            messages += typeMetrics.getMessages();
+            recordedChecks += typeMetrics.getConstraintChecks();
+        }
+        assertEquals(constraintChecks, recordedChecks);
+        assertEquals(compiled.getNumberOfFactors() * N_ITERATIONS, runs);
+        assertEquals(compiled.getNumberOfEdges() * N_ITERATIONS, messages);
+        assertTrue(metrics.getFactorMetrics(FactorType.VARIABLE.name()).getNanos() > 0);
+    }
+
+    @Test
+    public void testProfiler() {
+        CompiledGraph compiled = CompiledGraph.compile(
+                new MixedGraph(4, 30, 60, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(compiled);
+        FactorProfiler profiler = new FactorProfiler(3);
+        engine.setProfiler(profiler);
+        assertSame(profiler, engine.getProfiler());
+
+        long constraintChecks = 0;
+        for (int i=0; i<N_ITERATIONS; i++) {
+            constraintChecks += engine.run();
+        }
+
+        assertEquals(compiled.getNumberOfFactors(), profiler.getProfiles().size());
+        long profiledChecks = 0;
+        for (FactorProfile profile : profiler.getProfiles()) {
+            final int factor = (Integer)profile.getIdentity();
+            assertEquals(compiled.getType(factor).name(), profile.getType());
+            assertEquals(compiled.getDegree(factor), profile.getDegree());
+            assertEquals(N_ITERATIONS, profile.getRuns());
+            assertEquals(4, profile.getSampledRuns());
+            profiledChecks += profile.getConstraintChecks();
+        }
+        assertEquals(constraintChecks, profiledChecks);
+
+        final List<FactorProfile> hottest = profiler.getHottestByConstraintChecks(5);
+        assertEquals(5, hottest.size());
+        for (int i=1; i<hottest.size(); i++) {
+            assertTrue(hottest.get(i-1).getConstraintChecks() >= hottest.get(i).getConstraintChecks());
+        }
+    }
+
+    @Test
+    public void testGetMessage() {
+        RandomGraph graph = new RandomGraph(3, 10, 10, new Minimize(), null);
+        CompiledEngine engine = new CompiledEngine(CompiledGraph.compile(graph.getFactors()));
+        assertEquals(0, engine.getMessage(0), Constants.DELTA);
+
+        engine.run();
+        double[] messages = engine.getMessages();
+        for (int edge=0; edge<messages.length; edge++) {
+            assertEquals(messages[edge], engine.getMessage(edge), 0);
+        }
+
+        // The returned array is a copy
+        messages[0] = 1e9;
+        assertFalse(1e9 == engine.getMessage(0));
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.factors.WeightingFactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compiled graph representation.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class CompiledGraphTest {
+
+    @Test
+    public void testStructure() {
+        MixedGraph graph = new MixedGraph(1, 20, 40, new Minimize(), null);
+        List<Factor<?>> factors = graph.getFactors();
+        CompiledGraph compiled = CompiledGraph.compile(factors);
+
+        assertEquals(factors.size(), compiled.getNumberOfFactors());
+        assertTrue(compiled.getMaxOperator() instanceof Minimize);
+
+        int nEdges = 0;
+        for (int i=0; i<factors.size(); i++) {
+            final Factor<?> factor = factors.get(i);
+            assertSame(FactorType.of(factor), compiled.getType(i));
+            assertEquals(factor.getNeighbors().size(), compiled.getDegree(i));
+            assertEquals(nEdges, compiled.getEdgeOffset(i));
+
+            for (int k=0; k<compiled.getDegree(i); k++) {
+                final int edge = compiled.getEdgeOffset(i) + k;
+                assertSame(factor.getNeighbors().get(k), factors.get(compiled.getNeighbor(edge)));
+
+                // The reverse edge points back to this factor
+                final int back = compiled.getReverse(edge);
+                assertEquals(i, compiled.getNeighbor(back));
+                assertEquals(edge, compiled.getReverse(back));
+            }
+            nEdges += factor.getNeighbors().size();
+        }
+        assertEquals(nEdges, compiled.getNumberOfEdges());
+    }
+
+    @Test
+    public void testAllTypesPresent() {
+        MixedGraph graph = new MixedGraph(2, 20, 40, new Maximize(), null);
+        CompiledGraph compiled = CompiledGraph.compile(graph.getFactors());
+
+        boolean[] seen = new boolean[FactorType.values().length];
+        for (int i=0; i<compiled.getNumberOfFactors(); i++) {
+            seen[compiled.getType(i).getCode()] = true;
+        }
+        for (FactorType type : FactorType.values()) {
+            assertTrue(type.toString(), seen[type.getCode()]);
+            assertSame(type, FactorType.fromCode(type.getCode()));
+        }
+    }
+
+    @Test
+    public void testInstantiate() {
+        MixedGraph graph = new MixedGraph(3, 20, 40, new Maximize(), null);
+        List<Factor<?>> factors = graph.getFactors();
+        CompiledGraph compiled = CompiledGraph.compile(factors);
+
+        Random random = new Random(0);
+        for (int i=0; i<factors.size(); i++) {
+            final Factor original = factors.get(i);
+            final Factor<Object> copy = compiled.instantiate(i);
+            assertSame(compiled.getType(i), FactorType.of(copy));
+            assertEquals(i, copy.getIdentity());
+
+            // Both factors evaluate every assignment the same way
+            Map originalValues = new HashMap();
+            Map<Object, Boolean> copyValues = new HashMap<Object, Boolean>();
+            for (int k=0; k<copy.getNeighbors().size(); k++) {
+                assertEquals(compiled.getNeighbor(compiled.getEdgeOffset(i) + k),
+                        copy.getNeighbors().get(k));
+                final boolean value = random.nextBoolean();
+                originalValues.put(original.getNeighbors().get(k), value);
+                copyValues.put(copy.getNeighbors().get(k), value);
+            }
+            assertEquals(original.evaluate(originalValues), copy.evaluate(copyValues), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedClass() {
+        List<Factor<?>> factors = link(new VariableFactor() {}, new IndependentFactor());
+        CompiledGraph.compile(factors);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingNeighbor() {
+        List<Factor<?>> factors = link(new VariableFactor(), new IndependentFactor());
+        factors.remove(1);
+        CompiledGraph.compile(factors);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonMutualLink() {
+        List<Factor<?>> factors = link(new VariableFactor(), new IndependentFactor());
+        factors.get(1).clearNeighbors();
+        CompiledGraph.compile(factors);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMixedOperators() {
+        List<Factor<?>> factors = link(new VariableFactor(), new IndependentFactor());
+        factors.get(1).setMaxOperator(new Minimize());
+        CompiledGraph.compile(factors);
+    }
+
+    @Test
+    public void testProxyIdentity() {
+        WeightingFactor proxy = new WeightingFactor(new IndependentFactor());
+        List<Factor<?>> factors = link(new VariableFactor(), proxy);
+        proxy.setPotential(factors.get(0), 2);
+        ((IndependentFactor) proxy.getInnerFactor()).setPotential(factors.get(0), 1);
+
+        CompiledGraph compiled = CompiledGraph.compile(factors);
+        assertSame(FactorType.WEIGHTING, compiled.getType(1));
+        assertEquals(0, compiled.getNeighbor(compiled.getEdgeOffset(1)));
+
+        // The weighting adds its potential to the inner factor's messages
+        CompiledEngine engine = new CompiledEngine(compiled);
+        engine.run();
+        assertEquals(3, engine.getMessage(0), 0);
+    }
+
+    private List<Factor<?>> link(Factor a, Factor b) {
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        for (Factor f : new Factor[]{a, b}) {
+            f.setIdentity(f);
+            f.setMaxOperator(new Maximize());
+            factors.add(f);
+        }
+        a.addNeighbor(b);
+        b.addNeighbor(a);
+        return factors;
+    }
+
+}
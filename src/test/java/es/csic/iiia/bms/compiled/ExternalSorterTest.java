@@ -0,0 +1,114 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the external sorter.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ExternalSorterTest {
+
+    @Test
+    public void testInMemory() throws IOException {
+        checkSort(10000, 100000);
+    }
+
+    @Test
+    public void testSpilled() throws IOException {
+        checkSort(10000, 64);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ExternalSorter sorter = new ExternalSorter(10, null);
+        assertFalse(sorter.sort().next());
+    }
+
+    private void checkSort(int nRecords, int capacity) throws IOException {
+        Random random = new Random(nRecords + capacity);
+        long[] keys = new long[nRecords];
+        ExternalSorter sorter = new ExternalSorter(capacity, null);
+        for (int i=0; i<nRecords; i++) {
+            // Unique keys in random order, with values derived from them
+            keys[i] = ((long) random.nextInt() << 32) | i;
+            sorter.add(keys[i], ~keys[i]);
+        }
+        assertEquals(nRecords / capacity, sorter.getSpilledRuns());
+
+        Arrays.sort(keys);
+        ExternalSorter.Cursor cursor = sorter.sort();
+        for (long key : keys) {
+            assertTrue(cursor.next());
+            assertEquals(key, cursor.getKey());
+            assertEquals(~key, cursor.getValue());
+        }
+        assertFalse(cursor.next());
+        cursor.close();
+        sorter.close();
+    }
+
+    @Test
+    public void testSortArrays() {
+        Random random = new Random(0);
+        for (int n : new int[]{0, 1, 2, 15, 16, 17, 1000}) {
+            long[] keys = new long[n];
+            long[] values = new long[n];
+            for (int i=0; i<n; i++) {
+                // Few distinct values, to exercise equal keys too
+                keys[i] = random.nextInt(10);
+                values[i] = keys[i] * 3;
+            }
+            ExternalSorter.sort(keys, values, 0, n);
+            for (int i=0; i<n; i++) {
+                assertEquals(keys[i] * 3, values[i]);
+                if (i > 0) {
+                    assertTrue(keys[i - 1] <= keys[i]);
+                }
+            }
+        }
+    }
+
+}
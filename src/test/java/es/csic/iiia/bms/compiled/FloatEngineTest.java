@@ -0,0 +1,183 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the single-precision compiled engine, cross-checking its messages against the
+ * double-precision ones.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class FloatEngineTest {
+
+    /** Number of random factors to cross-test */
+    private static final int NUMBER_OF_RUNS = 250;
+
+    /** Maximum number of neighbors of the cross-tested factors */
+    private static final int MAX_NEIGHBORS = 10;
+
+    /** Maximum deviation allowed between single and double precision messages */
+    private static final double FLOAT_DELTA = 1e-5;
+
+    private final Random generator = new Random(0);
+
+    @Test
+    public void crossTestKernels() {
+        for (int i=0; i<NUMBER_OF_RUNS; i++) {
+            final int degree = generator.nextInt(MAX_NEIGHBORS) + 1;
+            for (int kind=0; kind<4; kind++) {
+                runAgainstDouble(new Maximize(), kind, degree);
+                runAgainstDouble(new Minimize(), kind, degree);
+            }
+        }
+    }
+
+    /**
+     * Runs a single factor of the given kind that receives random messages from its
+     * neighbors in both engines, and compares the messages it sends.
+     */
+    private void runAgainstDouble(MaxOperator op, int kind, int degree) {
+        CompiledGraph graph = CompiledGraph.compile(buildStar(op, kind, degree));
+        CompiledEngine reference = new CompiledEngine(graph);
+        FloatEngine engine = new FloatEngine(graph);
+
+        // The edges of the central factor (the first one) carry its incoming messages
+        for (int edge=0; edge<degree; edge++) {
+            final double message = generator.nextDouble() - 0.5;
+            reference.setMessage(edge, message);
+            engine.setMessage(edge, message);
+        }
+        reference.run();
+        engine.run();
+
+        for (int edge=0; edge<degree; edge++) {
+            final int reverse = graph.getReverse(edge);
+            assertEquals("Failed with kind " + kind + " and neighbor " + edge,
+                    reference.getMessage(reverse), engine.getMessage(reverse), FLOAT_DELTA);
+        }
+    }
+
+    private List<Factor<?>> buildStar(MaxOperator op, int kind, int degree) {
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor center;
+        switch (kind) {
+            case 0:  center = new VariableFactor(); break;
+            case 1:  center = new IndependentFactor(); break;
+            case 2:  center = new StandardFactor(); break;
+            default: center = new SelectorFactor();
+        }
+        initialize(center, op, factors);
+
+        for (int i=0; i<degree; i++) {
+            Factor variable = new VariableFactor();
+            initialize(variable, op, factors);
+            center.addNeighbor(variable);
+            variable.addNeighbor(center);
+            if (kind == 1) {
+                ((IndependentFactor)center).setPotential(variable, generator.nextDouble() - 0.5);
+            }
+        }
+
+        if (kind == 2) {
+            double[] potential = new double[1 << degree];
+            for (int i=0; i<potential.length; i++) {
+                potential[i] = generator.nextDouble() - 0.5;
+            }
+            ((StandardFactor)center).setPotential(potential);
+        }
+        return factors;
+    }
+
+    private void initialize(Factor factor, MaxOperator op, List<Factor<?>> factors) {
+        factor.setIdentity(factor);
+        factor.setMaxOperator(op);
+        factors.add(factor);
+    }
+
+    @Test
+    public void testMixedGraph() {
+        for (int seed=0; seed<3; seed++) {
+            CompiledGraph graph = CompiledGraph.compile(
+                    new MixedGraph(seed, 30, 60, new Maximize(), null).getFactors());
+            PrecisionValidator validator = new PrecisionValidator(graph);
+            assertEquals(0, validator.getMaxDeviation(), 0);
+            assertEquals(-1, validator.getWorstEdge());
+
+            final double deviation = validator.run(10);
+            assertEquals(deviation, validator.getMaxDeviation(), 0);
+            assertTrue(deviation < Constants.DELTA);
+            assertTrue(validator.getWorstIteration() >= 1 && validator.getWorstIteration() <= 10);
+            assertEquals(10, validator.getEngine().getIterations());
+        }
+    }
+
+    @Test
+    public void testGetMessage() {
+        CompiledGraph graph = CompiledGraph.compile(
+                new MixedGraph(4, 10, 10, new Minimize(), null).getFactors());
+        FloatEngine engine = new FloatEngine(graph);
+        assertEquals(0, engine.getMessage(0), 0);
+
+        engine.setMessage(0, 0.1);
+        assertEquals((float) 0.1, engine.getMessage(0), 0);
+
+        engine.run();
+        float[] messages = engine.getMessages();
+        assertEquals(graph.getNumberOfEdges(), messages.length);
+        messages[0] = 42;
+        assertFalse(engine.getMessage(0) == 42);
+    }
+
+}
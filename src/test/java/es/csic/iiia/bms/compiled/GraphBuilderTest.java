@@ -0,0 +1,260 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the streaming graph builder.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class GraphBuilderTest {
+
+    private File directory;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("bms-builder", "");
+        directory.delete();
+        directory.mkdir();
+        output = new File(directory, "graph.bms");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSameAsCompiled() throws IOException {
+        checkAgainstCompiled(GraphBuilder.DEFAULT_MEMORY_BUDGET, 40, 80);
+    }
+
+    @Test
+    public void testSpilled() throws IOException {
+        checkAgainstCompiled(16 * ExternalSorter.RECORD_SIZE, 40, 80);
+    }
+
+    /**
+     * Factor records that do not fit in the reader's buffer must be read out of order too.
+     */
+    @Test
+    public void testLargeRecords() throws IOException {
+        checkAgainstCompiled(GraphBuilder.DEFAULT_MEMORY_BUDGET, 2000, 4000);
+    }
+
+    private void checkAgainstCompiled(long memoryBudget, int nVariables, int nFactors)
+            throws IOException
+    {
+        final CompiledGraph expected = CompiledGraph.compile(
+                new MixedGraph(11, nVariables, nFactors, new Minimize(), null).getFactors());
+
+        GraphBuilder builder = new GraphBuilder(new Minimize());
+        builder.setMemoryBudget(memoryBudget);
+        builder.setTemporaryDirectory(directory);
+
+        // Factors in random order
+        final int n = expected.getNumberOfFactors();
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i=0; i<n; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(0));
+        for (int factor : order) {
+            addFactor(builder, expected, factor);
+        }
+
+        // Links in the order they were created by the mixed graph, which is the order
+        // of the neighbors of whichever of their factors was created later
+        for (int factor=0; factor<n; factor++) {
+            for (int edge=expected.getEdgeOffset(factor); edge<expected.getEdgeOffset(factor+1); edge++) {
+                if (expected.getNeighbor(edge) < factor) {
+                    builder.addLink(factor, expected.getNeighbor(edge));
+                }
+            }
+        }
+        assertEquals(n, builder.getNumberOfFactors());
+        assertEquals(expected.getNumberOfEdges() / 2, builder.getNumberOfLinks());
+
+        CompiledGraph built = builder.build(output);
+        assertEquals(1, directory.listFiles().length);
+        assertTrue(built.getMaxOperator() instanceof Minimize);
+        assertEquals(n, built.getNumberOfFactors());
+        for (int i=0; i<n; i++) {
+            assertSame(expected.getType(i), built.getType(i));
+            assertEquals(expected.getEdgeOffset(i), built.getEdgeOffset(i));
+        }
+        for (int edge=0; edge<expected.getNumberOfEdges(); edge++) {
+            assertEquals(expected.getNeighbor(edge), built.getNeighbor(edge));
+            assertEquals(expected.getReverse(edge), built.getReverse(edge));
+        }
+
+        CompiledEngine expectedEngine = new CompiledEngine(expected);
+        CompiledEngine builtEngine = new CompiledEngine(built);
+        for (int i=0; i<5; i++) {
+            expectedEngine.run();
+            builtEngine.run();
+        }
+        assertArrayEquals(expectedEngine.getMessages(), builtEngine.getMessages(), 0);
+    }
+
+    private void addFactor(GraphBuilder builder, CompiledGraph graph, int factor)
+            throws IOException
+    {
+        int[] ints = new int[graph.getIntParameterOffset(factor + 1)
+                - graph.getIntParameterOffset(factor)];
+        for (int i=0; i<ints.length; i++) {
+            ints[i] = graph.getIntParameters().get(graph.getIntParameterOffset(factor) + i);
+        }
+        double[] doubles = new double[graph.getDoubleParameterOffset(factor + 1)
+                - graph.getDoubleParameterOffset(factor)];
+        for (int i=0; i<doubles.length; i++) {
+            doubles[i] = graph.getDoubleParameters().get(graph.getDoubleParameterOffset(factor) + i);
+        }
+        builder.addFactor(factor, graph.getType(factor), ints, doubles);
+    }
+
+    @Test
+    public void testNeighborOrder() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.setTemporaryDirectory(directory);
+        builder.addLink(2, 0);
+        builder.addLink(1, 2);
+        builder.addLink(0, 1);
+        builder.addFactor(1, FactorType.VARIABLE, null, null);
+        builder.addFactor(0, FactorType.INDEPENDENT, null, new double[]{1, 2});
+        builder.addFactor(2, FactorType.VARIABLE, null, null);
+
+        CompiledGraph graph = builder.build(output);
+        assertEquals(6, graph.getNumberOfEdges());
+        assertSame(FactorType.INDEPENDENT, graph.getType(0));
+        assertEquals(2, graph.getNeighbor(graph.getEdgeOffset(0)));
+        assertEquals(1, graph.getNeighbor(graph.getEdgeOffset(0) + 1));
+        assertEquals(2, graph.getNeighbor(graph.getEdgeOffset(1)));
+        assertEquals(0, graph.getNeighbor(graph.getEdgeOffset(1) + 1));
+
+        // The independent factor sends its potentials in neighbor order
+        CompiledEngine engine = new CompiledEngine(graph);
+        engine.run();
+        assertEquals(1, engine.getMessage(graph.getReverse(graph.getEdgeOffset(0))), 0);
+        assertEquals(2, engine.getMessage(graph.getReverse(graph.getEdgeOffset(0) + 1)), 0);
+    }
+
+    @Test
+    public void testPairwiseSubstitution() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.setTemporaryDirectory(directory);
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.addFactor(1, FactorType.VARIABLE, null, null);
+        builder.addFactor(2, FactorType.STANDARD, null, new double[]{0, 1, 2, 4});
+        builder.addLink(2, 0);
+        builder.addLink(2, 1);
+
+        CompiledGraph graph = builder.build(output);
+        assertSame(FactorType.PAIRWISE, graph.getType(2));
+
+        // Messages for x: max(4+0, 2) - max(1+0, 0), and for y: max(4+0, 1) - max(2+0, 0)
+        CompiledEngine engine = new CompiledEngine(graph);
+        engine.run();
+        assertEquals(3, engine.getMessage(graph.getReverse(graph.getEdgeOffset(2))), 0);
+        assertEquals(2, engine.getMessage(graph.getReverse(graph.getEdgeOffset(2) + 1)), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingFactor() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.addFactor(2, FactorType.VARIABLE, null, null);
+        builder.build(output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatedFactor() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.addFactor(1, FactorType.VARIABLE, null, null);
+        builder.build(output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLinkToMissingFactor() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.addLink(0, 1);
+        builder.build(output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSelfLink() throws IOException {
+        new GraphBuilder(new Maximize()).addLink(3, 3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuildTwice() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.build(output);
+        builder.build(output);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConfigureAfterStart() throws IOException {
+        GraphBuilder builder = new GraphBuilder(new Maximize());
+        builder.addFactor(0, FactorType.VARIABLE, null, null);
+        builder.setMemoryBudget(1 << 20);
+    }
+
+}
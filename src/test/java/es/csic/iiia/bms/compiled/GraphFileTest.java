@@ -0,0 +1,145 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary graph file format.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class GraphFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("graph", ".bms");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        CompiledGraph original = CompiledGraph.compile(
+                new MixedGraph(5, 30, 60, new Minimize(), null).getFactors());
+        GraphFile.write(original, file);
+        assertEquals(0, file.length() % 8);
+
+        CompiledGraph loaded = GraphFile.load(file);
+        assertTrue(loaded.getMaxOperator() instanceof Minimize);
+        assertEquals(original.getNumberOfFactors(), loaded.getNumberOfFactors());
+        assertEquals(original.getNumberOfEdges(), loaded.getNumberOfEdges());
+        for (int i=0; i<original.getNumberOfFactors(); i++) {
+            assertSame(original.getType(i), loaded.getType(i));
+            assertEquals(original.getEdgeOffset(i), loaded.getEdgeOffset(i));
+            assertEquals(original.getIntParameterOffset(i), loaded.getIntParameterOffset(i));
+            assertEquals(original.getDoubleParameterOffset(i), loaded.getDoubleParameterOffset(i));
+        }
+        for (int edge=0; edge<original.getNumberOfEdges(); edge++) {
+            assertEquals(original.getNeighbor(edge), loaded.getNeighbor(edge));
+            assertEquals(original.getReverse(edge), loaded.getReverse(edge));
+        }
+        assertEquals(original.getIntParameters(), loaded.getIntParameters());
+        assertEquals(original.getDoubleParameters(), loaded.getDoubleParameters());
+
+        // Running both graphs yields exactly the same messages
+        CompiledEngine originalEngine = new CompiledEngine(original);
+        CompiledEngine loadedEngine = new CompiledEngine(loaded);
+        for (int i=0; i<5; i++) {
+            assertEquals(originalEngine.run(), loadedEngine.run());
+        }
+        assertArrayEquals(originalEngine.getMessages(), loadedEngine.getMessages(), 0);
+    }
+
+    @Test
+    public void testMaximize() throws IOException {
+        GraphFile.write(CompiledGraph.compile(
+                new MixedGraph(6, 5, 3, new Maximize(), null).getFactors()), file);
+        assertTrue(GraphFile.load(file).getMaxOperator() instanceof Maximize);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadMagic() throws IOException {
+        writeAndCorrupt(0, 0x12345678);
+        GraphFile.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadVersion() throws IOException {
+        writeAndCorrupt(4, GraphFile.VERSION + 1);
+        GraphFile.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadSize() throws IOException {
+        writeAndCorrupt(12, 1000);
+        GraphFile.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooShort() throws IOException {
+        GraphFile.load(file);
+    }
+
+    private void writeAndCorrupt(int position, int value) throws IOException {
+        GraphFile.write(CompiledGraph.compile(
+                new MixedGraph(7, 5, 3, new Maximize(), null).getFactors()), file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+}
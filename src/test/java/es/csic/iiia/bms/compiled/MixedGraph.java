@@ -0,0 +1,258 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.compiled;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.factors.AllActiveIncentiveFactor;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.ConditionedDeactivationFactor;
+import es.csic.iiia.bms.factors.ConditionedSelectorFactor;
+import es.csic.iiia.bms.factors.EqualityFactor;
+import es.csic.iiia.bms.factors.ImplicationFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.PairwiseFactor;
+import es.csic.iiia.bms.factors.SaturationFactor;
+import es.csic.iiia.bms.factors.SaturationKFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.SingleWeightFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.factors.WeightingFactor;
+import es.csic.iiia.bms.factors.twosided.AbstractTwoSidedFactor;
+import es.csic.iiia.bms.factors.twosided.EqualFactor;
+import es.csic.iiia.bms.factors.twosided.GreaterOrEqualFactor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random factor graph that contains factors of every built-in type, used to test the
+ * compiled representation against the original factor objects.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class MixedGraph {
+
+    /** Number of different factor kinds built by this class */
+    private static final int N_KINDS = 21;
+
+    private final Random generator;
+    private final List<Factor<?>> variables = new ArrayList<Factor<?>>();
+    private final List<Factor<?>> factors = new ArrayList<Factor<?>>();
+
+    /**
+     * Builds a new random graph, with at least a factor of each kind.
+     *
+     * @param seed seed of the random generator.
+     * @param nVariables number of variables of the graph.
+     * @param nFactors number of (non-variable) factors of the graph.
+     * @param op maximization operator to use.
+     * @param adapter communication adapter to use.
+     */
+    public MixedGraph(long seed, int nVariables, int nFactors, MaxOperator op,
+            CommunicationAdapter adapter)
+    {
+        generator = new Random(seed);
+
+        for (int i=0; i<nVariables; i++) {
+            Factor variable = i % 4 == 0 ? new EqualityFactor() : new VariableFactor();
+            initialize(variable, op, adapter);
+            variables.add(variable);
+
+            IndependentFactor unary = new IndependentFactor();
+            initialize(unary, op, adapter);
+            link(unary, variable);
+            unary.setPotential(variable, random());
+            // Some variables and equality factors are biased, which is compiled as its own type
+            if (i % 4 == 2 || i % 8 == 4) {
+                ((VariableFactor) variable).setBias(random());
+            }
+        }
+
+        for (int i=0; i<nFactors; i++) {
+            // Standard factors of degree 2 are compiled as pairwise ones, which have their own kind
+            final int kind = i % N_KINDS;
+            final int degree;
+            if (kind == 20) {
+                degree = 2;
+            } else if (kind == 3) {
+                degree = 3 + generator.nextInt(3);
+            } else {
+                degree = 2 + generator.nextInt(4);
+            }
+            Factor factor = buildFactor(kind, degree);
+            initialize(factor, op, adapter);
+
+            List<Factor<?>> candidates = new ArrayList<Factor<?>>(variables);
+            for (int j=0; j<degree; j++) {
+                link(factor, candidates.remove(generator.nextInt(candidates.size())));
+            }
+            configure(factor, kind, degree);
+        }
+    }
+
+    private double random() {
+        return generator.nextDouble() - 0.5;
+    }
+
+    private Factor buildFactor(int kind, int degree) {
+        switch (kind) {
+            case 0:  return new IndependentFactor();
+            case 1:  return new SaturationFactor();
+            case 2:  return new SaturationKFactor(2 + generator.nextInt(degree - 1));
+            case 3:  return new StandardFactor();
+            case 4:  return new SelectorFactor();
+            case 5:  return new AtMostOneFactor();
+            case 6:  return new CardinalityFactor();
+            case 7:  return new ConditionedSelectorFactor();
+            case 8:  return new ConditionedDeactivationFactor();
+            case 9:  return new ImplicationFactor();
+            case 10: return new AllActiveIncentiveFactor();
+            case 11: return new EqualFactor();
+            case 12: return new GreaterOrEqualFactor();
+            case 13: return newReserveFactor();
+            case 14: return new WeightingFactor(new SelectorFactor());
+            case 15: return new WeightingFactor(new StandardFactor());
+            case 16: return new SingleWeightFactor(new CardinalityFactor());
+            case 17: return new SingleWeightFactor(new SaturationKFactor(2));
+            case 18: return new VariableFactor();
+            case 20: return new PairwiseFactor();
+            default: return new WeightingFactor(new ConditionedSelectorFactor());
+        }
+    }
+
+    /**
+     * Builds a deprecated reserve factor, which must still compile to its replacement's type.
+     */
+    @SuppressWarnings("deprecation")
+    private static Factor newReserveFactor() {
+        return new es.csic.iiia.bms.factors.TwoSidedReserveFactor();
+    }
+
+    private void configure(Factor factor, int kind, int degree) {
+        final List neighbors = factor.getNeighbors();
+        final Object someNeighbor = neighbors.get(generator.nextInt(degree));
+
+        if (factor instanceof WeightingFactor) {
+            for (Object neighbor : neighbors) {
+                ((WeightingFactor) factor).setPotential(neighbor, random());
+            }
+            factor = ((WeightingFactor) factor).getInnerFactor();
+        } else if (factor instanceof SingleWeightFactor) {
+            ((SingleWeightFactor) factor).setPotential(random());
+            factor = ((SingleWeightFactor) factor).getInnerFactor();
+        }
+
+        if (factor instanceof IndependentFactor) {
+            for (Object neighbor : neighbors) {
+                ((IndependentFactor) factor).setPotential(neighbor, random());
+            }
+        } else if (factor instanceof StandardFactor) {
+            double[] potential = new double[1 << degree];
+            for (int j=0; j<potential.length; j++) {
+                potential[j] = random();
+            }
+            ((StandardFactor) factor).setPotential(potential);
+        } else if (factor instanceof CardinalityFactor) {
+            final double[] costs = new double[degree + 1];
+            for (int j=0; j<costs.length; j++) {
+                costs[j] = random();
+            }
+            ((CardinalityFactor) factor).setFunction(new CardinalityFactor.CardinalityFunction() {
+                @Override
+                public double getCost(int nActiveVariables) {
+                    return costs[nActiveVariables];
+                }
+            });
+        } else if (factor instanceof ConditionedSelectorFactor) {
+            ((ConditionedSelectorFactor) factor).setConditionNeighbor(someNeighbor);
+        } else if (factor instanceof ConditionedDeactivationFactor) {
+            ((ConditionedDeactivationFactor) factor).setExemplar(someNeighbor);
+        } else if (factor instanceof AllActiveIncentiveFactor) {
+            ((AllActiveIncentiveFactor) factor).setIncentive(random());
+        } else if (factor instanceof AbstractTwoSidedFactor) {
+            ((AbstractTwoSidedFactor) factor).setNElementsA(1 + generator.nextInt(degree - 1));
+        }
+    }
+
+    private void initialize(Factor factor, MaxOperator op, CommunicationAdapter adapter) {
+        factor.setIdentity(factor);
+        factor.setMaxOperator(op);
+        factor.setCommunicationAdapter(adapter);
+        factors.add(factor);
+    }
+
+    private void link(Factor factor, Factor variable) {
+        factor.addNeighbor(variable);
+        variable.addNeighbor(factor);
+    }
+
+    /**
+     * Get all the factors of this graph (including the variables).
+     *
+     * @return list of all factors.
+     */
+    public List<Factor<?>> getFactors() {
+        return factors;
+    }
+
+    /**
+     * Get the last messages received by all the factors, in edge order.
+     *
+     * @return last messages received by all factors.
+     */
+    public double[] getMessages() {
+        List<Double> messages = new ArrayList<Double>();
+        for (Factor factor : factors) {
+            for (Object neighbor : factor.getNeighbors()) {
+                messages.add(factor.getMessage(neighbor));
+            }
+        }
+
+        double[] result = new double[messages.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = messages.get(i);
+        }
+        return result;
+    }
+
+}
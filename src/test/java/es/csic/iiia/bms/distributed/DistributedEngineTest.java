@@ -0,0 +1,199 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the distributed engine, running several processes that communicate through sockets
+ * over the loopback interface.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class DistributedEngineTest {
+
+    private static final int N_ITERATIONS = 10;
+
+    @Test
+    public void testSingleProcess() throws Exception {
+        String output = DistributedProcess.runInThreads(buildAdapters(1), 1, N_ITERATIONS);
+        DistributedProcess.compareAgainstSequential(1, N_ITERATIONS, output);
+    }
+
+    @Test
+    public void testThreadsOverLoopback() throws Exception {
+        for (int nProcesses=2; nProcesses<=4; nProcesses++) {
+            String output = DistributedProcess.runInThreads(buildAdapters(nProcesses), nProcesses,
+                    N_ITERATIONS);
+            DistributedProcess.compareAgainstSequential(nProcesses, N_ITERATIONS, output);
+        }
+    }
+
+    @Test
+    public void testCompressedOverLoopback() throws Exception {
+        final int nProcesses = 3;
+        SocketCommunicationAdapter[] raw = buildAdapters(nProcesses, false);
+        DistributedProcess.runInThreads(raw, nProcesses, N_ITERATIONS);
+        SocketCommunicationAdapter[] compressed = buildAdapters(nProcesses, true);
+        String output = DistributedProcess.runInThreads(compressed, nProcesses, N_ITERATIONS);
+        DistributedProcess.compareAgainstSequential(nProcesses, N_ITERATIONS, output);
+
+        long rawBytes = 0, compressedBytes = 0;
+        for (int i=0; i<nProcesses; i++) {
+            assertEquals(raw[i].getMessagesSent(), compressed[i].getMessagesSent());
+            rawBytes += raw[i].getBytesSent();
+            compressedBytes += compressed[i].getBytesSent();
+        }
+        assertTrue(compressedBytes + " vs " + rawBytes, compressedBytes < rawBytes / 2);
+    }
+
+    @Test
+    public void testSeparateProcesses() throws Exception {
+        final int nProcesses = 2;
+        final long seed = 21;
+        List<String> ports = new ArrayList<String>();
+        for (InetSocketAddress address : DistributedProcess.getFreeAddresses(nProcesses)) {
+            ports.add(String.valueOf(address.getPort()));
+        }
+
+        String output = DistributedProcess.runInProcesses("socket", nProcesses, seed, N_ITERATIONS, ports);
+        DistributedProcess.compareAgainstSequential(seed, N_ITERATIONS, output);
+    }
+
+    @Test
+    public void testFrameSizes() throws Exception {
+        final InetSocketAddress[] addresses = DistributedProcess.getFreeAddresses(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<SocketCommunicationAdapter>> results =
+                new ArrayList<Future<SocketCommunicationAdapter>>();
+        for (int rank=0; rank<2; rank++) {
+            final int r = rank;
+            results.add(executor.submit(new Callable<SocketCommunicationAdapter>() {
+                @Override
+                public SocketCommunicationAdapter call() throws Exception {
+                    SocketCommunicationAdapter adapter = new SocketCommunicationAdapter(r, addresses);
+                    DistributedEngine engine = new DistributedEngine(adapter);
+                    IndependentFactor local = new IndependentFactor();
+                    local.setIdentity(local);
+                    local.setMaxOperator(new Maximize());
+                    RemoteFactor remote = adapter.addRemoteFactor(1-r, 1-r);
+                    local.addNeighbor(remote);
+                    local.setPotential(remote, r + 1);
+                    engine.addFactor(r, local);
+                    engine.connect(DistributedProcess.TIMEOUT);
+
+                    engine.run();
+                    engine.close();
+                    // The other process' factor has sent us its potential
+                    assertEquals(2 - r, local.getMessage(remote), Constants.DELTA);
+                    return adapter;
+                }
+            }));
+        }
+
+        for (Future<SocketCommunicationAdapter> result : results) {
+            SocketCommunicationAdapter adapter = result.get();
+            assertEquals(1, adapter.getMessagesSent());
+            assertEquals(SocketCommunicationAdapter.HEADER_SIZE
+                    + SocketCommunicationAdapter.MESSAGE_SIZE, adapter.getBytesSent());
+        }
+        executor.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnregisteredRecipient() throws Exception {
+        SocketCommunicationAdapter adapter =
+                new SocketCommunicationAdapter(0, DistributedProcess.getFreeAddresses(1));
+        VariableFactor local = new VariableFactor();
+        local.setIdentity(local);
+        adapter.addLocalFactor(0, local);
+        adapter.send(0, local, new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRank() throws Exception {
+        new SocketCommunicationAdapter(2, DistributedProcess.getFreeAddresses(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompressionAfterConnecting() throws Exception {
+        SocketCommunicationAdapter adapter = buildAdapters(1, false)[0];
+        adapter.connect(DistributedProcess.TIMEOUT);
+        try {
+            adapter.setCompressed(true);
+        } finally {
+            adapter.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidErrorBound() throws Exception {
+        buildAdapters(1, true)[0].setErrorBound(-1);
+    }
+
+    private SocketCommunicationAdapter[] buildAdapters(int nProcesses) throws Exception {
+        return buildAdapters(nProcesses, false);
+    }
+
+    private SocketCommunicationAdapter[] buildAdapters(int nProcesses, boolean compressed)
+            throws Exception
+    {
+        InetSocketAddress[] addresses = DistributedProcess.getFreeAddresses(nProcesses);
+        SocketCommunicationAdapter[] adapters = new SocketCommunicationAdapter[nProcesses];
+        for (int i=0; i<nProcesses; i++) {
+            adapters[i] = new SocketCommunicationAdapter(i, addresses);
+            adapters[i].setCompressed(compressed);
+        }
+        return adapters;
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.RandomGraph;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.Constants;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Process of a distributed test run, which prints the final messages received by its local
+ * factors, along with the utilities to launch such processes and check their output.
+ * <p/>
+ * Usage: {@code DistributedProcess socket rank seed nIterations port1 port2 ...} or
+ * {@code DistributedProcess shm rank seed nIterations nProcesses directory}
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class DistributedProcess {
+
+    public static final int N_VARIABLES = 30;
+    public static final int N_FACTORS = 30;
+    public static final long TIMEOUT = 30000;
+
+    private static final InetAddress LOOPBACK;
+    static {
+        try {
+            LOOPBACK = InetAddress.getByName("127.0.0.1");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int rank = Integer.parseInt(args[1]);
+        final long seed = Long.parseLong(args[2]);
+        final int nIterations = Integer.parseInt(args[3]);
+
+        DistributedCommunicationAdapter adapter;
+        if ("shm".equals(args[0])) {
+            adapter = new SharedMemoryCommunicationAdapter(rank, Integer.parseInt(args[4]),
+                    new File(args[5]));
+        } else {
+            final InetSocketAddress[] addresses = new InetSocketAddress[args.length - 4];
+            for (int i=0; i<addresses.length; i++) {
+                addresses[i] = new InetSocketAddress(LOOPBACK, Integer.parseInt(args[i+4]));
+            }
+            adapter = new SocketCommunicationAdapter(rank, addresses);
+        }
+
+        run(adapter, seed, nIterations, System.out);
+    }
+
+    /**
+     * Runs the given process of a distributed random graph, printing a line with the factor
+     * index, neighbor index and last message received for every neighbor of every local factor.
+     */
+    public static void run(DistributedCommunicationAdapter adapter, long seed, int nIterations,
+            PrintStream out) throws IOException
+    {
+        RandomGraph graph = new RandomGraph(seed, N_VARIABLES, N_FACTORS, new Maximize(), null);
+        List<Factor<?>> factors = graph.getFactors();
+
+        DistributedEngine engine = new DistributedEngine(adapter);
+        engine.split(factors, getOwners(factors.size(), adapter.getNumberOfProcesses()));
+        engine.connect(TIMEOUT);
+        for (int i=0; i<nIterations; i++) {
+            engine.run();
+        }
+        engine.close();
+
+        for (Factor factor : engine.getFactors()) {
+            final List neighbors = factor.getNeighbors();
+            for (int j=0; j<neighbors.size(); j++) {
+                out.println(factors.indexOf(factor) + " " + j + " " + factor.getMessage(neighbors.get(j)));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Round-robin assignment of factors to processes.
+     */
+    public static int[] getOwners(int nFactors, int nProcesses) {
+        int[] owners = new int[nFactors];
+        for (int i=0; i<nFactors; i++) {
+            owners[i] = i % nProcesses;
+        }
+        return owners;
+    }
+
+    /**
+     * Runs a distributed random graph with each process in its own thread.
+     *
+     * @return concatenated output of all the processes.
+     */
+    public static String runInThreads(final DistributedCommunicationAdapter[] adapters,
+            final long seed, final int nIterations) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(adapters.length);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (final DistributedCommunicationAdapter adapter : adapters) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    run(adapter, seed, nIterations, new PrintStream(output));
+                    return output.toString();
+                }
+            }));
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (Future<String> result : results) {
+            output.append(result.get());
+        }
+        executor.shutdown();
+        return output.toString();
+    }
+
+    /**
+     * Runs a distributed random graph with each process in a separate JVM.
+     *
+     * @param arguments arguments of each process, after its rank, seed and number of iterations.
+     * @return concatenated output of all the processes.
+     */
+    public static String runInProcesses(String mode, int nProcesses, long seed, int nIterations,
+            List<String> arguments) throws IOException, InterruptedException
+    {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<Process>();
+        for (int rank=0; rank<nProcesses; rank++) {
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(DistributedProcess.class.getName());
+            command.add(mode);
+            command.add(String.valueOf(rank));
+            command.add(String.valueOf(seed));
+            command.add(String.valueOf(nIterations));
+            command.addAll(arguments);
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true).start());
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (Process process : processes) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append('\n');
+            }
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Process failed with output:\n" + output);
+            }
+        }
+        return output.toString();
+    }
+
+    /**
+     * Checks that the printed messages of all the processes match the ones obtained when
+     * running the whole graph sequentially.
+     */
+    public static void compareAgainstSequential(long seed, int nIterations, String output)
+            throws IOException
+    {
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        RandomGraph graph = new RandomGraph(seed, N_VARIABLES, N_FACTORS, new Maximize(), adapter);
+        for (int i=0; i<nIterations; i++) {
+            for (Factor f : graph.getFactors()) {
+                f.run();
+            }
+            adapter.tick();
+        }
+
+        int nMessages = 0;
+        BufferedReader reader = new BufferedReader(new StringReader(output));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(" ");
+            Factor factor = graph.getFactors().get(Integer.parseInt(fields[0]));
+            Object neighbor = factor.getNeighbors().get(Integer.parseInt(fields[1]));
+            assertEquals(factor.getMessage(neighbor), Double.parseDouble(fields[2]), Constants.DELTA);
+            nMessages++;
+        }
+        assertEquals(graph.getMessages().length, nMessages);
+    }
+
+    /**
+     * Creates a new empty temporary directory.
+     */
+    public static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("bms", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create temporary directory " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Removes the given (flat) directory and its contents.
+     */
+    public static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Get the given number of currently free loopback ports.
+     */
+    public static InetSocketAddress[] getFreeAddresses(int n) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[n];
+        InetSocketAddress[] addresses = new InetSocketAddress[n];
+        for (int i=0; i<n; i++) {
+            sockets[i] = new ServerSocket(0, 1, LOOPBACK);
+            addresses[i] = new InetSocketAddress(LOOPBACK, sockets[i].getLocalPort());
+        }
+        for (ServerSocket socket : sockets) {
+            socket.close();
+        }
+        return addresses;
+    }
+
+}
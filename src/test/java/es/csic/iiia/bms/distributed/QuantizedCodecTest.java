@@ -0,0 +1,197 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the quantized encoding of messages between processes.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class QuantizedCodecTest {
+
+    private static final int N_EDGES = 200;
+
+    @Test
+    public void testErrorIsBounded() {
+        for (double bound : new double[]{1e-9, 1e-6, 1e-3, 0.1}) {
+            final Random generator = new Random(17);
+            final QuantizedCodec encoder = new QuantizedCodec(N_EDGES, bound);
+            final QuantizedCodec decoder = new QuantizedCodec(N_EDGES, bound);
+            final double[] sent = new double[N_EDGES];
+            final double[] received = new double[N_EDGES];
+
+            for (int tick=0; tick<20; tick++) {
+                for (int edge=0; edge<N_EDGES; edge++) {
+                    if (generator.nextBoolean()) {
+                        // Messages slowly converge, with some large jumps
+                        sent[edge] = generator.nextInt(10) == 0
+                                ? (generator.nextDouble() - 0.5) * 1000
+                                : sent[edge] + (generator.nextDouble() - 0.5) / (tick + 1);
+                        encoder.put(edge, sent[edge]);
+                    }
+                }
+                transfer(encoder, decoder, received);
+                for (int edge=0; edge<N_EDGES; edge++) {
+                    assertEquals(sent[edge], received[edge], bound * (1 + 1e-9));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLastMessageWins() {
+        final QuantizedCodec encoder = new QuantizedCodec(N_EDGES, 1e-6);
+        final QuantizedCodec decoder = new QuantizedCodec(N_EDGES, 1e-6);
+        final double[] received = new double[N_EDGES];
+        encoder.put(5, 1);
+        encoder.put(3, 2);
+        encoder.put(5, 3);
+        assertEquals(2, encoder.getPendingCount());
+        assertEquals(2, transfer(encoder, decoder, received));
+        assertEquals(2, received[3], 1e-6);
+        assertEquals(3, received[5], 1e-6);
+    }
+
+    @Test
+    public void testNonFiniteMessages() {
+        final QuantizedCodec encoder = new QuantizedCodec(4, 1e-6);
+        final QuantizedCodec decoder = new QuantizedCodec(4, 1e-6);
+        final double[] received = new double[4];
+        final double[] messages = {Double.NEGATIVE_INFINITY, Double.NaN, 1e300, 0.5};
+        for (int tick=0; tick<2; tick++) {
+            for (int edge=0; edge<messages.length; edge++) {
+                encoder.put(edge, messages[edge]);
+            }
+            transfer(encoder, decoder, received);
+            assertEquals(Double.NEGATIVE_INFINITY, received[0], 0);
+            assertTrue(Double.isNaN(received[1]));
+            assertEquals(1e300, received[2], 0);
+            assertEquals(0.5, received[3], 1e-6);
+        }
+    }
+
+    @Test
+    public void testZeroBoundIsLossless() {
+        final Random generator = new Random(3);
+        final QuantizedCodec encoder = new QuantizedCodec(N_EDGES, 0);
+        final QuantizedCodec decoder = new QuantizedCodec(N_EDGES, 0);
+        final double[] sent = new double[N_EDGES];
+        final double[] received = new double[N_EDGES];
+        for (int tick=0; tick<3; tick++) {
+            for (int edge=0; edge<N_EDGES; edge++) {
+                sent[edge] = tick == 2 ? sent[edge] : generator.nextDouble();
+                encoder.put(edge, sent[edge]);
+            }
+            transfer(encoder, decoder, received);
+            assertArrayEquals(sent, received, 0);
+        }
+    }
+
+    @Test
+    public void testCompression() {
+        final Random generator = new Random(5);
+        final QuantizedCodec encoder = new QuantizedCodec(N_EDGES, 1e-6);
+        final double[] sent = new double[N_EDGES];
+        for (int edge=0; edge<N_EDGES; edge++) {
+            sent[edge] = generator.nextDouble();
+            encoder.put(edge, sent[edge]);
+        }
+        encode(encoder);
+
+        // Small changes are quantized into 3 bytes per message (1 of edge gap, 2 of value)
+        for (int edge=0; edge<N_EDGES; edge++) {
+            encoder.put(edge, sent[edge] + (generator.nextDouble() - 0.5) * 0.01);
+        }
+        assertEquals(8 + 3 * N_EDGES, encode(encoder).remaining());
+
+        // Empty batches take no space at all
+        assertEquals(0, encoder.getMaxEncodedSize());
+        assertEquals(0, encode(encoder).remaining());
+    }
+
+    @Test
+    public void testVarints() {
+        final int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+        final int[] sizes = {1, 1, 1, 2, 2, 3, 5};
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (int i=0; i<values.length; i++) {
+            buffer.clear();
+            QuantizedCodec.putVarint(buffer, values[i]);
+            assertEquals(sizes[i], buffer.position());
+            buffer.flip();
+            assertEquals(values[i], QuantizedCodec.getVarint(buffer));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownEdge() {
+        final QuantizedCodec encoder = new QuantizedCodec(10, 1e-6);
+        encoder.put(9, 1);
+        new QuantizedCodec(5, 1e-6).decode(encode(encoder), new QuantizedCodec.Receiver() {
+            @Override
+            public void receive(int edge, double message) {
+            }
+        });
+    }
+
+    private ByteBuffer encode(QuantizedCodec encoder) {
+        ByteBuffer buffer = ByteBuffer.allocate(encoder.getMaxEncodedSize());
+        encoder.encode(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private int transfer(QuantizedCodec encoder, QuantizedCodec decoder, final double[] received) {
+        final int[] count = new int[1];
+        decoder.decode(encode(encoder), new QuantizedCodec.Receiver() {
+            @Override
+            public void receive(int edge, double message) {
+                received[edge] = message;
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.distributed;
+
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the shared memory communication adapter, running several processes in the same
+ * host.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class SharedMemoryCommunicationAdapterTest {
+
+    private static final int N_ITERATIONS = 10;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = DistributedProcess.createTempDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        DistributedProcess.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        for (int nProcesses=1; nProcesses<=4; nProcesses++) {
+            File runDirectory = new File(directory, String.valueOf(nProcesses));
+            assertTrue(runDirectory.mkdir());
+
+            DistributedCommunicationAdapter[] adapters = new DistributedCommunicationAdapter[nProcesses];
+            for (int i=0; i<nProcesses; i++) {
+                adapters[i] = new SharedMemoryCommunicationAdapter(i, nProcesses, runDirectory);
+            }
+            String output = DistributedProcess.runInThreads(adapters, nProcesses, N_ITERATIONS);
+            DistributedProcess.compareAgainstSequential(nProcesses, N_ITERATIONS, output);
+            DistributedProcess.deleteDirectory(runDirectory);
+        }
+    }
+
+    @Test
+    public void testSeparateProcesses() throws Exception {
+        final int nProcesses = 3;
+        final long seed = 33;
+        String output = DistributedProcess.runInProcesses("shm", nProcesses, seed, N_ITERATIONS,
+                Arrays.asList(String.valueOf(nProcesses), directory.getAbsolutePath()));
+        DistributedProcess.compareAgainstSequential(seed, N_ITERATIONS, output);
+    }
+
+    /**
+     * Edges that have not been written in a tick must not be delivered.
+     */
+    @Test
+    public void testOnlyWrittenSlotsAreDelivered() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Double> receiver = executor.submit(new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+                SharedMemoryCommunicationAdapter adapter = new SharedMemoryCommunicationAdapter(0, 2, directory);
+                VariableFactor local = new VariableFactor();
+                local.setIdentity(local);
+                local.setMaxOperator(new Maximize());
+                RemoteFactor remote = adapter.addRemoteFactor(1, 1);
+                local.addNeighbor(remote);
+                adapter.addLocalFactor(0, local);
+                adapter.connect(DistributedProcess.TIMEOUT);
+
+                // First tick: the remote factor sends its potential
+                adapter.tick();
+                assertEquals(5, local.getMessage(remote), Constants.DELTA);
+                // Then it stays silent, so the previous message must be kept
+                local.receive(-1, remote);
+                adapter.tick();
+                adapter.tick();
+                adapter.close();
+                return local.getMessage(remote);
+            }
+        });
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SharedMemoryCommunicationAdapter adapter = new SharedMemoryCommunicationAdapter(1, 2, directory);
+                IndependentFactor local = new IndependentFactor();
+                local.setIdentity(local);
+                local.setMaxOperator(new Maximize());
+                local.setCommunicationAdapter(adapter);
+                RemoteFactor remote = adapter.addRemoteFactor(0, 0);
+                local.addNeighbor(remote);
+                local.setPotential(remote, 5);
+                adapter.addLocalFactor(1, local);
+                adapter.connect(DistributedProcess.TIMEOUT);
+
+                local.run();
+                adapter.tick();
+                adapter.tick();
+                adapter.tick();
+                adapter.close();
+                return null;
+            }
+        }).get();
+
+        assertEquals(-1, receiver.get(), Constants.DELTA);
+        executor.shutdown();
+    }
+
+    /**
+     * Slots whose writes are not fully visible yet must not be delivered until they are.
+     */
+    @Test
+    public void testPartialSlotIsNotDelivered() throws Exception {
+        // Fake the peer of rank 1: it has reached the first tick's barrier and announced one
+        // message, whose checksum is not visible yet
+        final int slotSize = SharedMemoryCommunicationAdapter.SLOT_SIZE;
+        final MappedByteBuffer barrier = map(new File(directory, "barrier"),
+                2 * SharedMemoryCommunicationAdapter.BARRIER_ENTRY_SIZE);
+        barrier.putLong(SharedMemoryCommunicationAdapter.BARRIER_ENTRY_SIZE, 2);
+        final MappedByteBuffer channel = map(new File(directory, "channel-0-1"), 8 * slotSize);
+        final int header = 4 * slotSize, slot = 5 * slotSize;
+        final long bits = Double.doubleToRawLongBits(5);
+        channel.putLong(header, 1);
+        channel.putLong(header + 8, 1);
+        channel.putLong(header + 16, SharedMemoryCommunicationAdapter.checksum(1, 1));
+        channel.putLong(slot, bits);
+        channel.putLong(slot + 8, 1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Double> receiver = executor.submit(new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+                SharedMemoryCommunicationAdapter adapter = new SharedMemoryCommunicationAdapter(0, 2, directory);
+                VariableFactor local = new VariableFactor();
+                local.setIdentity(local);
+                local.setMaxOperator(new Maximize());
+                RemoteFactor remote = adapter.addRemoteFactor(1, 1);
+                local.addNeighbor(remote);
+                adapter.addLocalFactor(0, local);
+                adapter.connect(DistributedProcess.TIMEOUT);
+                adapter.tick();
+                adapter.close();
+                return local.getMessage(remote);
+            }
+        });
+
+        Thread.sleep(200);
+        assertFalse(receiver.isDone());
+        channel.putLong(slot + 16, SharedMemoryCommunicationAdapter.checksum(bits, 1));
+        assertEquals(5, receiver.get(), Constants.DELTA);
+        executor.shutdown();
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+}
@@ -111,6 +111,33 @@ public abstract class CrossFactorTestAbstract {
         }
     }
 
+    /**
+     * Prepares a factor to run on its own, linking it to new mocked neighbors that have sent it
+     * the given messages.
+     *
+     * @param f Factor to prepare
+     * @param com Communication adapter through which the factor sends its messages
+     * @param op Maximization operator to use
+     * @param messages List of incoming messages (one per neighbor)
+     * @return the mocked neighbors, in the same order as their messages
+     */
+    protected Factor[] setup(Factor<Factor> f, CommunicationAdapter<Factor> com, MaxOperator op,
+            double[] messages)
+    {
+        Factor[] neighbors = new Factor[messages.length];
+        for (int i=0; i<neighbors.length; i++) {
+            neighbors[i] = mock(Factor.class);
+        }
+        f.setCommunicationAdapter(com);
+        f.setMaxOperator(op);
+        f.setIdentity(f);
+        link(f, neighbors);
+        for (int i=0; i<neighbors.length; i++) {
+            f.receive(messages[i], neighbors[i]);
+        }
+        return neighbors;
+    }
+
     /**
      * Generates and returns a random value in the [-1, 1) range.
      *
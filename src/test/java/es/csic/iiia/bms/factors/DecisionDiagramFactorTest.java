@@ -0,0 +1,184 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the decision diagram factor and its builder.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class DecisionDiagramFactorTest extends CrossFactorTestAbstract {
+
+    /**
+     * Tables are drawn from a few values (and some variable is irrelevant) so that diagrams get
+     * reduced.
+     */
+    @Override
+    public Factor[] buildFactors(MaxOperator op, Factor[] neighbors) {
+        final int size = 1 << neighbors.length;
+        final int irrelevant = 1 << getRandomIntValue(neighbors.length);
+        double[] potential = new double[size];
+        for (int idx=0; idx<size; idx++) {
+            potential[idx] = (idx & irrelevant) == 0
+                    ? getRandomIntValue(3)
+                    : potential[idx & ~irrelevant];
+        }
+
+        DecisionDiagramFactor diagram = new DecisionDiagramFactor();
+        diagram.setMaxOperator(op);
+        link(diagram, neighbors);
+        diagram.setPotential(potential);
+
+        StandardFactor standard = new StandardFactor();
+        standard.setMaxOperator(op);
+        link(standard, neighbors);
+        standard.setPotential(potential);
+
+        return new Factor[]{diagram, standard};
+    }
+
+    @Test
+    public void testManyNeighbors() {
+        final int nNeighbors = 40;
+        double[] messages = new double[nNeighbors];
+        Arrays.fill(messages, 1);
+
+        // Rewards having both the first and the last neighbors active
+        DecisionDiagramBuilder builder = new DecisionDiagramBuilder(nNeighbors);
+        final int zero = builder.terminal(0);
+        final int last = builder.node(nNeighbors - 1, zero, builder.terminal(1));
+        final DecisionDiagram diagram = builder.build(builder.node(0, zero, last));
+        assertEquals(4, diagram.size());
+
+        DecisionDiagramFactor tested = new DecisionDiagramFactor();
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        Factor[] neighbors = setup(tested, com, new Maximize(), messages);
+        tested.setPotential(diagram);
+        tested.run();
+
+        verify(com).send(eq(1, Constants.DELTA), same(tested), same(neighbors[0]));
+        verify(com).send(eq(1, Constants.DELTA), same(tested), same(neighbors[nNeighbors-1]));
+        verify(com).send(eq(0, Constants.DELTA), same(tested), same(neighbors[5]));
+    }
+
+    /**
+     * Checks that an infinite message from a variable skipped by the diagram does not turn the
+     * message sent back to it into NaN.
+     */
+    @Test
+    public void testInfiniteMessage() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            DecisionDiagramFactor tested = new DecisionDiagramFactor();
+            CommunicationAdapter com = mock(CommunicationAdapter.class);
+            Factor[] neighbors = setup(tested, com, op,
+                    new double[]{-op.getWorstValue(), 0.3, -0.2});
+
+            // x is irrelevant, so the edge into the root skips it
+            tested.setPotential(new double[]{0, 1, 0, 2, 0, 1, 0, 2});
+            tested.run();
+            verify(com).send(eq(0, Constants.DELTA), same(tested), same(neighbors[0]));
+        }
+    }
+
+    @Test
+    public void testReduction() {
+        DecisionDiagram diagram = DecisionDiagramBuilder.fromTable(new double[]{3, 3, 3, 3});
+        assertEquals(1, diagram.size());
+        assertTrue(diagram.isTerminal(diagram.getRoot()));
+        assertEquals(2, diagram.getNumberOfVariables());
+
+        // x is irrelevant, so the root tests y: 3 terminals, 2 nodes for z and 1 for y
+        diagram = DecisionDiagramBuilder.fromTable(new double[]{0, 1, 0, 2, 0, 1, 0, 2});
+        assertEquals(6, diagram.size());
+        assertEquals(1, diagram.getLevel(diagram.getRoot()));
+        assertEquals(2, diagram.evaluate(new boolean[]{true, true, true}), 0);
+        assertEquals(1, diagram.evaluate(new boolean[]{false, false, true}), 0);
+        assertEquals(0, diagram.evaluate(new boolean[]{true, true, false}), 0);
+    }
+
+    @Test
+    public void testEvaluate() {
+        DecisionDiagramFactor<Object> factor = new DecisionDiagramFactor<Object>();
+        factor.addNeighbor("x");
+        factor.addNeighbor("y");
+        factor.setPotential(new double[]{1, 2, 3, 4});
+
+        Map<Object, Boolean> values = new HashMap<Object, Boolean>();
+        values.put("x", true);
+        values.put("y", false);
+        assertEquals(3, factor.evaluate(values), 0);
+        values.put("x", false);
+        values.put("y", true);
+        assertEquals(2, factor.evaluate(values), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongNumberOfVariables() {
+        DecisionDiagramFactor<Object> factor = new DecisionDiagramFactor<Object>();
+        factor.addNeighbor("x");
+        factor.setPotential(new double[]{1, 2, 3, 4});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTable() {
+        DecisionDiagramBuilder.fromTable(new double[3]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidOrder() {
+        DecisionDiagramBuilder builder = new DecisionDiagramBuilder(2);
+        final int child = builder.node(0, builder.terminal(0), builder.terminal(1));
+        builder.node(1, child, builder.terminal(2));
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the lazy potential factor.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class LazyPotentialFactorTest extends CrossFactorTestAbstract {
+
+    private static class TableFunction implements PotentialFunction {
+        private final double[] table;
+        private int calls;
+
+        public TableFunction(double[] table) {
+            this.table = table;
+        }
+
+        @Override
+        public double evaluate(long configuration) {
+            calls++;
+            return table[(int) configuration];
+        }
+    }
+
+    @Override
+    public Factor[] buildFactors(MaxOperator op, Factor[] neighbors) {
+        double[] potential = new double[1 << neighbors.length];
+        for (int i=0; i<potential.length; i++) {
+            potential[i] = getRandomValue();
+        }
+
+        LazyPotentialFactor lazy = new LazyPotentialFactor();
+        lazy.setMaxOperator(op);
+        link(lazy, neighbors);
+        lazy.setPotential(new TableFunction(potential));
+
+        StandardFactor standard = new StandardFactor();
+        standard.setMaxOperator(op);
+        link(standard, neighbors);
+        standard.setPotential(potential);
+
+        return new Factor[]{lazy, standard};
+    }
+
+    /**
+     * Hard constraints send the worst value to rule out activating a neighbor.
+     */
+    @Test
+    public void testWorstMessage() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (int nNeighbors=1; nNeighbors<=6; nNeighbors++) {
+                double[] messages = new double[nNeighbors];
+                for (int i=0; i<nNeighbors; i++) {
+                    messages[i] = getRandomValue();
+                }
+                messages[getRandomIntValue(nNeighbors)] = op.getWorstValue();
+                runAgainstGeneric(op, messages);
+            }
+        }
+    }
+
+    @Test
+    public void testCachedRuns() {
+        LazyPotentialFactor tested = new LazyPotentialFactor();
+        setup(tested, mock(CommunicationAdapter.class), new Maximize(), new double[]{1, 2, 3});
+        TableFunction function = new TableFunction(new double[]{0, 1, 2, 3, 4, 5, 6, 7});
+        tested.setPotential(function);
+        assertEquals(3 << 3, tested.run());
+
+        // Every entry has been computed exactly once, and later runs hit the cache
+        assertEquals(8, function.calls);
+        tested.run();
+        assertEquals(8, function.calls);
+        assertEquals(8, tested.getCache().getHits());
+    }
+
+    @Test
+    public void testBoundedCache() {
+        LazyPotentialFactor tested = new LazyPotentialFactor();
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        setup(tested, com, new Maximize(), new double[]{1, 2, 3});
+        tested.setCacheSize(4);
+        TableFunction function = new TableFunction(new double[]{0, 1, 2, 3, 4, 5, 6, 7});
+        tested.setPotential(function);
+
+        // Configurations are scanned in order, so only the first ones are cached
+        tested.run();
+        tested.run();
+        assertEquals(12, function.calls);
+        assertEquals(4, tested.getCache().size());
+        assertEquals(4, tested.getCache().getHits());
+        assertEquals(0, tested.getCache().getEvictions());
+    }
+
+    @Test
+    public void testCacheFitsConfigurations() {
+        LazyPotentialFactor tested = new LazyPotentialFactor();
+        setup(tested, mock(CommunicationAdapter.class), new Maximize(), new double[]{1, 2});
+        assertEquals(4, tested.getCache().getCapacity());
+
+        tested.addNeighbor(mock(Factor.class));
+        assertEquals(8, tested.getCache().getCapacity());
+        tested.setCacheSize(5);
+        assertEquals(5, tested.getCache().getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCacheSize() {
+        new LazyPotentialFactor().setCacheSize(-1);
+    }
+
+    @Test
+    public void testInfeasible() {
+        LazyPotentialFactor tested = new LazyPotentialFactor();
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        final Maximize op = new Maximize();
+        Factor[] neighbors = setup(tested, com, op, new double[]{1, 2});
+        final double worst = op.getWorstValue();
+        tested.setPotential(new TableFunction(new double[]{worst, worst, worst, worst}));
+
+        tested.run();
+        for (Factor neighbor : neighbors) {
+            verify(com).send(0d, tested, neighbor);
+        }
+    }
+
+    @Test
+    public void testEvaluate() {
+        LazyPotentialFactor<Object> factor = new LazyPotentialFactor<Object>();
+        factor.addNeighbor("x");
+        factor.addNeighbor("y");
+        TableFunction function = new TableFunction(new double[]{1, 2, 3, 4});
+        factor.setPotential(function);
+
+        Map<Object, Boolean> values = new HashMap<Object, Boolean>();
+        values.put("x", true);
+        values.put("y", false);
+        assertEquals(3, factor.evaluate(values), 0);
+        assertEquals(3, factor.evaluate(values), 0);
+        assertEquals(1, function.calls);
+        assertEquals(1, factor.getCache().getHits());
+    }
+
+}
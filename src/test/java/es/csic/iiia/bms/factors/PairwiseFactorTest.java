@@ -0,0 +1,159 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the pairwise factor.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class PairwiseFactorTest {
+
+    @Test
+    public void testRun() {
+        MaxOperator op = new Maximize();
+        run(new PairwiseFactor(), op, new double[]{0, op.getWorstValue(), 0, 0},
+                new double[]{9, 6}, new double[]{6, 0});
+    }
+
+    /**
+     * Checks the closed-form messages of pairwise (and two-neighbor standard) factors against
+     * the ones obtained by enumerating all the configurations of the potential.
+     */
+    @Test
+    public void testAgainstEnumeration() {
+        Random generator = new Random(0);
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (int i=0; i<100; i++) {
+                double[] potential = new double[4];
+                for (int j=0; j<4; j++) {
+                    potential[j] = generator.nextDouble() - 0.5;
+                }
+                double[] values = new double[]{generator.nextDouble() - 0.5,
+                        generator.nextDouble() - 0.5};
+
+                final double[] results = enumerate(op, potential, values);
+                run(new PairwiseFactor(), op, potential, values, results);
+                run(new StandardFactor(), op, potential, values, results);
+            }
+        }
+    }
+
+    private double[] enumerate(MaxOperator op, double[] potential, double[] values) {
+        double[] results = new double[2];
+        for (int target=0; target<2; target++) {
+            double[] best = new double[]{op.getWorstValue(), op.getWorstValue()};
+            for (int idx=0; idx<4; idx++) {
+                final int x = idx >> 1, y = idx & 1;
+                final int own = target == 0 ? x : y, other = target == 0 ? y : x;
+                final double util = potential[idx] + other * values[1 - target];
+                best[own] = op.max(util, best[own]);
+            }
+            results[target] = best[1] - best[0];
+        }
+        return results;
+    }
+
+    private void run(StandardFactor tested, MaxOperator op, double[] potential, double[] values,
+            double[] results)
+    {
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        tested.setCommunicationAdapter(com);
+        tested.setMaxOperator(op);
+        tested.setIdentity(tested);
+
+        Factor[] neighbors = new Factor[2];
+        for (int i=0; i<2; i++) {
+            neighbors[i] = mock(Factor.class);
+            tested.addNeighbor(neighbors[i]);
+            tested.receive(values[i], neighbors[i]);
+        }
+        tested.setPotential(potential);
+
+        assertEquals(4, tested.run());
+        for (int i=0; i<2; i++) {
+            verify(com).send(eq(results[i], Constants.DELTA), same(tested), same(neighbors[i]));
+        }
+    }
+
+    @Test
+    public void testEvaluate() {
+        PairwiseFactor<Object> factor = new PairwiseFactor<Object>();
+        factor.setPotential(1, 2, 3, 4);
+        factor.setMaxOperator(new Maximize());
+        factor.addNeighbor("x");
+        factor.addNeighbor("y");
+        assertArrayEquals(new double[]{1, 2, 3, 4}, factor.getPotential(), 0);
+
+        Map<Object, Boolean> values = new HashMap<Object, Boolean>();
+        values.put("x", true);
+        values.put("y", false);
+        assertEquals(3, factor.evaluate(values), 0);
+        values.put("y", true);
+        assertEquals(4, factor.evaluate(values), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPotential() {
+        new PairwiseFactor().setPotential(new double[8]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidDegree() {
+        PairwiseFactor<Object> factor = new PairwiseFactor<Object>();
+        factor.setMaxOperator(new Maximize());
+        factor.addNeighbor("x");
+        factor.run();
+    }
+
+}
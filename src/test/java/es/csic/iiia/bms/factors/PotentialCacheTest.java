@@ -0,0 +1,159 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the potential cache.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class PotentialCacheTest {
+
+    private static class CountingFunction implements PotentialFunction {
+        private int calls;
+
+        @Override
+        public double evaluate(long configuration) {
+            calls++;
+            return configuration * 0.5;
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        CountingFunction function = new CountingFunction();
+        PotentialCache cache = new PotentialCache(2);
+
+        assertEquals(0.5, cache.get(1, function), 0);
+        assertEquals(1, cache.get(2, function), 0);
+        assertEquals(0.5, cache.get(1, function), 0);
+        assertEquals(2, function.calls);
+
+        // Configuration 2 is the least recently used one, so it gets evicted
+        cache.get(3, function);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        cache.get(1, function);
+        assertEquals(3, function.calls);
+        cache.get(2, function);
+        assertEquals(4, function.calls);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2 / 6d, cache.getHitRatio(), Constants.DELTA);
+    }
+
+    @Test
+    public void testNonAdmittedValues() {
+        CountingFunction function = new CountingFunction();
+        PotentialCache cache = new PotentialCache(1);
+        cache.get(1, function);
+
+        // Values that are not admitted do not evict the cached ones
+        assertEquals(1, cache.get(2, function, false), 0);
+        assertEquals(0.5, cache.get(1, function, false), 0);
+        assertEquals(1, cache.get(2, function, false), 0);
+        assertEquals(3, function.calls);
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Compares the cache against a reference model under many colliding keys, exercising the
+     * removal of entries from the middle of probe sequences.
+     */
+    @Test
+    public void testRandomAccesses() {
+        Random generator = new Random(0);
+        CountingFunction function = new CountingFunction();
+        PotentialCache cache = new PotentialCache(50);
+        LinkedHashMap<Long, Double> reference = new LinkedHashMap<Long, Double>(
+                16, 0.75f, true);
+
+        for (int i=0; i<20000; i++) {
+            final long key = generator.nextInt(120) * (1L << 40);
+            final int before = function.calls;
+            assertEquals(key * 0.5, cache.get(key, function), 0);
+
+            final boolean hit = reference.get(key) != null;
+            assertEquals(hit, before == function.calls);
+            if (!hit) {
+                if (reference.size() == 50) {
+                    reference.remove(reference.keySet().iterator().next());
+                }
+                reference.put(key, key * 0.5);
+            }
+        }
+        assertEquals(50, cache.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        CountingFunction function = new CountingFunction();
+        PotentialCache cache = new PotentialCache(0);
+        cache.get(1, function);
+        cache.get(1, function);
+        assertEquals(2, function.calls);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testClear() {
+        CountingFunction function = new CountingFunction();
+        PotentialCache cache = new PotentialCache(4);
+        cache.get(1, function);
+        cache.get(1, function);
+        cache.clear();
+        assertEquals(0, cache.getHits());
+        cache.get(1, function);
+        assertEquals(2, function.calls);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new PotentialCache(-1);
+    }
+
+}
@@ -86,7 +86,22 @@ public class SaturationKFactorTest extends CrossFactorTestAbstract {
         run(new Minimize(), 1, potentials, messages, results);
     }
 
+    @Test
+    public void testRunDoesNotDependOnPreviousRuns() {
+        double[] potentials = new double[]{0.3, -0.2, 0.4, 0.1};
+        double[] previous = new double[]{1.5, -0.7, 0.9, -1.2};
+        double[] messages = new double[]{-1.4, -0.5, -1.4, 0.8};
+        double[] results = new double[]{0.3, -0.2, 0.4, 0.1};
+        run(new Maximize(), 3, potentials, previous, messages, results);
+    }
+
     private void run(MaxOperator op, int k, double[] potentials, double[] inMessages, double[] results) {
+        run(op, k, potentials, null, inMessages, results);
+    }
+
+    private void run(MaxOperator op, int k, double[] potentials, double[] previousMessages,
+            double[] inMessages, double[] results)
+    {
         CommunicationAdapter com = mock(CommunicationAdapter.class);
 
         // Setup incoming messages
@@ -101,6 +116,19 @@ public class SaturationKFactorTest extends CrossFactorTestAbstract {
             neighbors[i] = mock(Factor.class);
             tested.addNeighbor(neighbors[i]);
             tested.setPotential(neighbors[i], potentials[i]);
+        }
+
+        // The outcome of a run must depend on the last messages only
+        if (previousMessages != null) {
+            tested.setCommunicationAdapter(mock(CommunicationAdapter.class));
+            for (int i=0; i<neighbors.length; i++) {
+                tested.receive(previousMessages[i], neighbors[i]);
+            }
+            tested.run();
+            tested.setCommunicationAdapter(com);
+        }
+
+        for (int i=0; i<neighbors.length; i++) {
             tested.receive(inMessages[i], neighbors[i]);
         }
 
@@ -0,0 +1,211 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.factors;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the sparse table factor.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class SparseTableFactorTest extends CrossFactorTestAbstract {
+
+    @Override
+    public Factor[] buildFactors(MaxOperator op, Factor[] neighbors) {
+        final int size = 1 << neighbors.length;
+        double[] potential = new double[size];
+        Arrays.fill(potential, op.getWorstValue());
+
+        // The all-false and all-true configurations keep every message finite
+        long[] configurations = new long[size];
+        double[] values = new double[size];
+        int nnz = 0;
+        for (int idx=0; idx<size; idx++) {
+            if (idx == 0 || idx == size-1 || getRandomIntValue(4) == 0) {
+                configurations[nnz] = idx;
+                values[nnz] = getRandomValue();
+                potential[idx] = values[nnz];
+                nnz++;
+            }
+        }
+
+        SparseTableFactor sparse = new SparseTableFactor();
+        sparse.setMaxOperator(op);
+        link(sparse, neighbors);
+        sparse.setPotential(Arrays.copyOf(configurations, nnz), Arrays.copyOf(values, nnz));
+
+        StandardFactor standard = new StandardFactor();
+        standard.setMaxOperator(op);
+        link(standard, neighbors);
+        standard.setPotential(potential);
+
+        return new Factor[]{sparse, standard};
+    }
+
+    /**
+     * Hard constraints send the worst value to rule out activating a neighbor.
+     */
+    @Test
+    public void testWorstMessage() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (int nNeighbors=1; nNeighbors<=6; nNeighbors++) {
+                double[] messages = new double[nNeighbors];
+                for (int i=0; i<nNeighbors; i++) {
+                    messages[i] = getRandomValue();
+                }
+                messages[getRandomIntValue(nNeighbors)] = op.getWorstValue();
+                runAgainstGeneric(op, messages);
+            }
+        }
+    }
+
+    @Test
+    public void testManyNeighbors() {
+        final int nNeighbors = 40;
+        double[] messages = new double[nNeighbors];
+        Arrays.fill(messages, 1);
+
+        SparseTableFactor tested = new SparseTableFactor();
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        Factor[] neighbors = setup(tested, com, new Maximize(), messages);
+
+        // Either everything is off, or only the first and last neighbors are on
+        final long firstAndLast = (1L << (nNeighbors-1)) | 1L;
+        tested.setPotential(new long[]{0, firstAndLast}, new double[]{1, 2});
+        assertEquals(2 * nNeighbors, tested.run());
+
+        verify(com).send(eq(2, Constants.DELTA), same(tested), same(neighbors[0]));
+        verify(com).send(eq(2, Constants.DELTA), same(tested), same(neighbors[nNeighbors-1]));
+        verify(com).send(eq(Double.NEGATIVE_INFINITY, Constants.DELTA), same(tested),
+                same(neighbors[5]));
+    }
+
+    @Test
+    public void testMaxNeighbors() {
+        final int nNeighbors = SparseTableFactor.MAX_NEIGHBORS;
+        double[] messages = new double[nNeighbors];
+        Arrays.fill(messages, 1);
+
+        SparseTableFactor tested = new SparseTableFactor();
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        Factor[] neighbors = setup(tested, com, new Maximize(), messages);
+
+        // Every neighbor on is the highest configuration in range
+        tested.setPotential(new long[]{0, Long.MAX_VALUE}, new double[]{0, 1});
+        assertEquals(2 * nNeighbors, tested.run());
+        verify(com).send(eq(nNeighbors, Constants.DELTA), same(tested),
+                same(neighbors[nNeighbors-1]));
+    }
+
+    @Test
+    public void testInfeasible() {
+        SparseTableFactor tested = new SparseTableFactor();
+        CommunicationAdapter com = mock(CommunicationAdapter.class);
+        Factor[] neighbors = setup(tested, com, new Minimize(), new double[]{1, 2});
+        tested.run();
+        for (Factor neighbor : neighbors) {
+            verify(com).send(eq(0, Constants.DELTA), same(tested), same(neighbor));
+        }
+    }
+
+    @Test
+    public void testEvaluate() {
+        SparseTableFactor<Object> factor = new SparseTableFactor<Object>();
+        factor.setMaxOperator(new Minimize());
+        factor.addNeighbor("x");
+        factor.addNeighbor("y");
+        factor.addNeighbor("z");
+        factor.setPotential(new long[]{0, 3, 5}, new double[]{1, 2, 4});
+
+        Map<Object, Boolean> values = new HashMap<Object, Boolean>();
+        values.put("x", true);
+        values.put("y", false);
+        values.put("z", true);
+        assertEquals(4, factor.evaluate(values), 0);
+        values.put("x", false);
+        values.put("y", true);
+        assertEquals(2, factor.evaluate(values), 0);
+        values.put("y", false);
+        assertEquals(Double.POSITIVE_INFINITY, factor.evaluate(values), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatedConfiguration() {
+        SparseTableFactor<Object> factor = new SparseTableFactor<Object>();
+        factor.addNeighbor("x");
+        factor.setPotential(new long[]{1, 1}, new double[]{0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRange() {
+        SparseTableFactor<Object> factor = new SparseTableFactor<Object>();
+        factor.addNeighbor("x");
+        factor.setPotential(new long[]{2}, new double[]{0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxNeighborsOutOfRange() {
+        SparseTableFactor<Object> factor = new SparseTableFactor<Object>();
+        for (int i=0; i<SparseTableFactor.MAX_NEIGHBORS; i++) {
+            factor.addNeighbor(i);
+        }
+        factor.setPotential(new long[]{Long.MIN_VALUE}, new double[]{0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedLengths() {
+        SparseTableFactor<Object> factor = new SparseTableFactor<Object>();
+        factor.addNeighbor("x");
+        factor.setPotential(new long[]{0, 1}, new double[]{0});
+    }
+
+}
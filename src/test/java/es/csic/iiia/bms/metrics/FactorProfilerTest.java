@@ -0,0 +1,123 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the factor profiler.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class FactorProfilerTest {
+
+    @Test
+    public void testRanking() {
+        FactorProfiler profiler = new FactorProfiler();
+        FactorProfile cheap = profiler.register("cheap", "VariableFactor", 2);
+        FactorProfile expensive = profiler.register("expensive", "StandardFactor", 8);
+        FactorProfile frequent = profiler.register("frequent", "SelectorFactor", 4);
+
+        run(cheap, 10, 100, 1);
+        run(expensive, 1000, 5000, 1);
+        run(frequent, 50, 20, 10);
+
+        List<FactorProfile> hottest = profiler.getHottest(2);
+        assertEquals(2, hottest.size());
+        assertSame(expensive, hottest.get(0));
+        assertSame(frequent, hottest.get(1));
+        assertEquals(500, frequent.getEstimatedNanos(), 0);
+
+        List<FactorProfile> byChecks = profiler.getHottestByConstraintChecks(5);
+        assertEquals(3, byChecks.size());
+        assertSame(expensive, byChecks.get(0));
+        assertSame(frequent, byChecks.get(1));
+        assertSame(cheap, byChecks.get(2));
+
+        final String report = profiler.getReport(1);
+        assertTrue(report, report.contains("expensive"));
+        assertTrue(report, report.contains("StandardFactor"));
+        assertFalse(report, report.contains("frequent"));
+
+        profiler.reset();
+        assertEquals(0, expensive.getRuns());
+        assertEquals(0, expensive.getEstimatedNanos(), 0);
+    }
+
+    @Test
+    public void testSampling() {
+        FactorProfiler profiler = new FactorProfiler(4);
+        FactorProfile profile = profiler.register(new VariableFactor<Object>());
+        assertEquals("VariableFactor", profile.getType());
+        assertEquals(0, profile.getDegree());
+
+        for (int i=0; i<10; i++) {
+            final boolean sampled = profile.sample();
+            assertEquals(i % 4 == 0, sampled);
+            profile.record(2, sampled ? 50 : -1);
+        }
+
+        assertEquals(10, profile.getRuns());
+        assertEquals(3, profile.getSampledRuns());
+        assertEquals(20, profile.getConstraintChecks());
+        assertEquals(50, profile.getMeanNanos(), 0);
+        assertEquals(500, profile.getEstimatedNanos(), 0);
+    }
+
+    private void run(FactorProfile profile, long nanos, long checks, int times) {
+        for (int i=0; i<times; i++) {
+            assertTrue(profile.sample());
+            profile.record(checks, nanos);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSamplingInterval() {
+        new FactorProfiler(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRankingSize() {
+        new FactorProfiler().getHottest(-1);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the metrics registry.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testFactorMetrics() {
+        MetricsRegistry registry = new MetricsRegistry();
+        FactorMetrics variables = registry.getFactorMetrics(new VariableFactor<Object>());
+        assertSame(variables, registry.getFactorMetrics("VariableFactor"));
+        registry.getFactorMetrics(new SelectorFactor<Object>());
+        assertEquals(Arrays.asList("SelectorFactor", "VariableFactor"), registry.getTypes());
+
+        variables.record(3, 6, 100);
+        variables.record(2, 4, 50);
+        assertEquals(2, variables.getRuns());
+        assertEquals(5, variables.getMessages());
+        assertEquals(10, variables.getConstraintChecks());
+        assertEquals(150, variables.getNanos());
+
+        registry.reset();
+        assertEquals(0, variables.getRuns());
+        assertEquals(0, variables.getNanos());
+    }
+
+    @Test
+    public void testResidualHistory() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setHistorySize(2);
+
+        for (int i=0; i<3; i++) {
+            registry.getResiduals().record(i);
+            assertEquals(i, registry.endIteration().getIteration());
+        }
+
+        assertEquals(3, registry.getResiduals().getIteration());
+        assertEquals(2, registry.getResidualHistory().size());
+        assertEquals(1, registry.getResidualHistory().get(0).getIteration());
+        assertEquals(2, registry.getResidualHistory().get(1).getMax(), 0);
+
+        registry.setHistorySize(1);
+        assertEquals(1, registry.getResidualHistory().size());
+        assertEquals(2, registry.getResidualHistory().get(0).getIteration());
+    }
+
+    @Test
+    public void testJson() {
+        MetricsRegistry registry = new MetricsRegistry();
+        assertEquals("{\"factors\":{},\"residuals\":[]}", registry.toJson());
+
+        registry.getFactorMetrics("A\"B").record(2, 3, 4);
+        registry.getResiduals().record(0.5);
+        registry.endIteration();
+
+        StringBuilder buckets = new StringBuilder();
+        for (int i=0; i<ResidualHistogram.NUMBER_OF_BUCKETS; i++) {
+            buckets.append(i == 0 ? "" : ",").append(i == 12 ? 1 : 0);
+        }
+        assertEquals("{\"factors\":{\"A\\\"B\":{\"runs\":1,\"messages\":2,\"constraintChecks\":3,"
+                + "\"nanos\":4}},\"residuals\":[{\"iteration\":0,\"total\":1,\"max\":0.5,"
+                + "\"buckets\":[" + buckets + "]}]}", registry.toJson());
+    }
+
+    @Test
+    public void testJsonNonFinite() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.getResiduals().record(Double.POSITIVE_INFINITY);
+        registry.endIteration();
+        registry.getResiduals().record(Double.NaN);
+        registry.endIteration();
+
+        final String json = registry.toJson();
+        assertTrue(json.contains("{\"iteration\":0,\"total\":1,\"max\":null,"));
+        assertTrue(json.contains("{\"iteration\":1,\"total\":1,\"max\":null,"));
+        assertFalse(json.contains("Infinity"));
+        assertFalse(json.contains("NaN"));
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.getFactorMetrics("VariableFactor").record(1, 2, 3);
+        registry.registerMBeans(server, "bms");
+
+        ObjectName variables = MetricsRegistry.getObjectName("bms", "VariableFactor");
+        assertEquals(1L, server.getAttribute(variables, "Runs"));
+        assertEquals(2L, server.getAttribute(variables, "ConstraintChecks"));
+
+        // Types that appear later on are registered too
+        registry.getFactorMetrics("SelectorFactor");
+        assertTrue(server.isRegistered(MetricsRegistry.getObjectName("bms", "SelectorFactor")));
+
+        registry.unregisterMBeans();
+        assertFalse(server.isRegistered(variables));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRegisterTwice() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.registerMBeans(server, "bms");
+        registry.registerMBeans(server, "bms");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHistorySize() {
+        new MetricsRegistry().setHistorySize(-1);
+    }
+
+}
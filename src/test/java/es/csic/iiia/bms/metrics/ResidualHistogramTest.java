@@ -0,0 +1,114 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import es.csic.iiia.bms.factors.Constants;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the residual histograms.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ResidualHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        final int last = ResidualHistogram.NUMBER_OF_BUCKETS - 1;
+        assertEquals(0, ResidualHistogram.getBucket(0));
+        assertEquals(0, ResidualHistogram.getBucket(1e-13));
+        assertEquals(1, ResidualHistogram.getBucket(1e-12));
+        assertEquals(12, ResidualHistogram.getBucket(0.5));
+        assertEquals(13, ResidualHistogram.getBucket(1));
+        assertEquals(last - 1, ResidualHistogram.getBucket(999));
+        assertEquals(last, ResidualHistogram.getBucket(1000));
+        assertEquals(last, ResidualHistogram.getBucket(Double.POSITIVE_INFINITY));
+        assertEquals(last, ResidualHistogram.getBucket(Double.NaN));
+    }
+
+    @Test
+    public void testRecord() {
+        ResidualHistogram histogram = new ResidualHistogram(3);
+        assertEquals(3, histogram.getIteration());
+        assertEquals(0, histogram.getMax(), 0);
+
+        histogram.record(0);
+        histogram.record(0.25);
+        histogram.record(0.5);
+        histogram.record(1e-5);
+
+        assertEquals(4, histogram.getTotal());
+        assertEquals(1, histogram.getCount(0));
+        assertEquals(2, histogram.getCount(12));
+        assertEquals(1, histogram.getCount(ResidualHistogram.getBucket(1e-5)));
+        assertEquals(0.5, histogram.getMax(), Constants.DELTA);
+        assertEquals(ResidualHistogram.NUMBER_OF_BUCKETS, histogram.getCounts().length);
+
+        histogram.record(Double.POSITIVE_INFINITY);
+        assertEquals(Double.POSITIVE_INFINITY, histogram.getMax(), 0);
+        histogram.record(Double.NaN);
+        histogram.record(1);
+        assertTrue(Double.isNaN(histogram.getMax()));
+    }
+
+    @Test
+    public void testConcurrentRecords() throws InterruptedException {
+        final ResidualHistogram histogram = new ResidualHistogram(0);
+        Thread[] threads = new Thread[4];
+        for (int i=0; i<threads.length; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j=0; j<1000; j++) {
+                        histogram.record(id + j / 1000.0);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4000, histogram.getTotal());
+        assertEquals(3.999, histogram.getMax(), Constants.DELTA);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.metrics;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.RandomGraph;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.compiled.CompiledEngine;
+import es.csic.iiia.bms.compiled.CompiledGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the solver trace events.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class SolverTraceTest {
+
+    private static final String[] LOGGERS = {
+            SolverTrace.ITERATION_LOGGER, SolverTrace.FACTOR_LOGGER, SolverTrace.TICK_LOGGER,
+    };
+
+    private final List<LogRecord> records = new ArrayList<LogRecord>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+
+    @Before
+    public void setUp() {
+        for (String name : LOGGERS) {
+            Logger.getLogger(name).addHandler(handler);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (String name : LOGGERS) {
+            Logger.getLogger(name).removeHandler(handler);
+            Logger.getLogger(name).setLevel(null);
+        }
+        SolverTrace.setSlowFactorThreshold(SolverTrace.DEFAULT_SLOW_FACTOR_THRESHOLD);
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertFalse(SolverTrace.isIterationEnabled());
+        assertFalse(SolverTrace.isFactorEnabled());
+        assertFalse(SolverTrace.isTickEnabled());
+
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        RandomGraph graph = new RandomGraph(1, 10, 10, new Maximize(), adapter);
+        for (Factor f : graph.getFactors()) {
+            f.run();
+        }
+        adapter.tick();
+        new CompiledEngine(CompiledGraph.compile(graph.getFactors())).run();
+        assertTrue(records.isEmpty());
+    }
+
+    @Test
+    public void testIterationEvents() {
+        Logger.getLogger(SolverTrace.ITERATION_LOGGER).setLevel(Level.FINE);
+        CompiledGraph graph = CompiledGraph.compile(
+                new RandomGraph(2, 10, 10, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+        engine.run();
+        engine.run();
+
+        assertEquals(4, records.size());
+        assertEquals(1L, records.get(2).getParameters()[1]);
+        final Object[] finished = records.get(3).getParameters();
+        assertEquals("CompiledEngine", finished[0]);
+        assertEquals(1L, finished[1]);
+        assertEquals((long)graph.getNumberOfEdges(), finished[3]);
+        assertTrue((Double)finished[4] >= 0);
+    }
+
+    @Test
+    public void testSlowFactorEvents() {
+        Logger.getLogger(SolverTrace.FACTOR_LOGGER).setLevel(Level.FINE);
+        CompiledGraph graph = CompiledGraph.compile(
+                new RandomGraph(3, 10, 10, new Maximize(), null).getFactors());
+        CompiledEngine engine = new CompiledEngine(graph);
+
+        // No factor takes an hour to run
+        SolverTrace.setSlowFactorThreshold(3600000000000L);
+        engine.run();
+        assertTrue(records.isEmpty());
+
+        SolverTrace.setSlowFactorThreshold(0);
+        engine.run();
+        assertEquals(graph.getNumberOfFactors(), records.size());
+        final Object[] first = records.get(0).getParameters();
+        assertEquals(graph.getType(0).name(), first[0]);
+        assertEquals(graph.getDegree(0), first[1]);
+    }
+
+    @Test
+    public void testTickEvents() {
+        Logger.getLogger(SolverTrace.TICK_LOGGER).setLevel(Level.FINE);
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        RandomGraph graph = new RandomGraph(4, 10, 10, new Maximize(), adapter);
+        for (Factor f : graph.getFactors()) {
+            f.run();
+        }
+        adapter.tick();
+
+        assertEquals(1, records.size());
+        assertEquals((long)graph.getMessages().length, records.get(0).getParameters()[1]);
+    }
+
+    @Test
+    public void testTemplate() throws Exception {
+        InputStream template = SolverTrace.class.getResourceAsStream(SolverTrace.TEMPLATE);
+        assertNotNull(template);
+        Properties properties = new Properties();
+        try {
+            properties.load(template);
+        } finally {
+            template.close();
+        }
+
+        for (String name : LOGGERS) {
+            assertEquals("FINE", properties.getProperty(name + ".level"));
+        }
+        assertEquals(String.valueOf(SolverTrace.DEFAULT_SLOW_FACTOR_THRESHOLD),
+                properties.getProperty(SolverTrace.THRESHOLD_PROPERTY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        SolverTrace.setSlowFactorThreshold(-1);
+    }
+
+}
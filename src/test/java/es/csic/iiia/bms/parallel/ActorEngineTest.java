@@ -0,0 +1,369 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.RandomGraph;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.metrics.MetricsRegistry;
+import es.csic.iiia.bms.metrics.ResidualHistogram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the actor engine.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ActorEngineTest {
+
+    private static final int N_VARIABLES = 40;
+
+    /**
+     * In acyclic graphs max-sum converges to a unique fixed point, so the asynchronous execution
+     * must end up with exactly the same messages as the synchronous one.
+     */
+    @Test
+    public void testSameFixedPointAsSynchronous() {
+        for (int nThreads=1; nThreads<=4; nThreads++) {
+            for (double fraction : new double[]{0.01, 0.5, 1}) {
+                compareAgainstSynchronous(new Maximize(), nThreads, fraction);
+                compareAgainstSynchronous(new Minimize(), nThreads, fraction);
+            }
+        }
+    }
+
+    private void compareAgainstSynchronous(MaxOperator op, int nThreads, double fraction) {
+        final long seed = 7 * nThreads;
+
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        List<Factor> synchronous = buildTree(seed, op, adapter);
+        for (int i=0; i<2*N_VARIABLES; i++) {
+            for (Factor f : synchronous) {
+                f.run();
+            }
+            adapter.tick();
+        }
+
+        List<Factor> asynchronous = buildTree(seed, op, null);
+        ActorEngine engine = new ActorEngine((List)asynchronous, nThreads);
+        engine.setActivationFraction(fraction);
+        assertTrue(engine.run() > 0);
+        assertTrue(engine.getActivations() >= asynchronous.size());
+        engine.shutdown();
+
+        assertArrayEquals(getMessages(synchronous), getMessages(asynchronous), Constants.DELTA);
+    }
+
+    @Test
+    public void testActivationLimit() {
+        RandomGraph graph = new RandomGraph(5, 30, 30, new Maximize(), null);
+        ActorEngine engine = new ActorEngine(graph.getFactors(), 3);
+
+        engine.run(100);
+        assertEquals(100, engine.getActivations());
+
+        // Resuming keeps running from the pending mailboxes
+        engine.run(50);
+        assertEquals(150, engine.getActivations());
+        engine.shutdown();
+    }
+
+    @Test
+    public void testMetrics() {
+        RandomGraph graph = new RandomGraph(8, 30, 30, new Maximize(), null);
+        ActorEngine engine = new ActorEngine(graph.getFactors(), 2);
+        MetricsRegistry metrics = new MetricsRegistry();
+        engine.setMetrics(metrics);
+        assertSame(metrics, engine.getMetrics());
+
+        final long constraintChecks = engine.run(200) + engine.run(100);
+        engine.shutdown();
+
+        long runs = 0, recordedChecks = 0;
+        for (String type : metrics.getTypes()) {
+            runs += metrics.getFactorMetrics(type).getRuns();
+            recordedChecks += metrics.getFactorMetrics(type).getConstraintChecks();
+        }
+        assertEquals(engine.getActivations(), runs);
+        assertEquals(constraintChecks, recordedChecks);
+
+        // Each run closes an iteration, whose histogram holds the residuals of all the posts
+        assertEquals(2, metrics.getResidualHistory().size());
+        final ResidualHistogram first = metrics.getResidualHistory().get(0);
+        assertTrue(first.getTotal() > 0);
+        assertTrue(first.getMax() > 0);
+    }
+
+    @Test
+    public void testErrorsArePropagated() {
+        RandomGraph graph = new RandomGraph(6, 10, 5, new Maximize(), null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>(graph.getFactors());
+        VariableFactor failing = new VariableFactor() {
+            @Override
+            public long run() {
+                throw new IllegalStateException("Failing factor");
+            }
+        };
+        failing.setIdentity(failing);
+        failing.setMaxOperator(new Maximize());
+        factors.add(failing);
+
+        ActorEngine engine = new ActorEngine(factors, 2);
+        try {
+            engine.run(1000);
+            fail("The factor error should have been propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("Failing factor", e.getMessage());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Mutating a converged graph and resuming must reach the same fixed point as solving the
+     * mutated graph from scratch, while only recomputing the affected part of the graph.
+     */
+    @Test
+    public void testIncrementalUpdate() {
+        final MaxOperator op = new Maximize();
+        TickCommunicationAdapter adapter = new TickCommunicationAdapter();
+        List<Factor> synchronous = buildTree(11, op, adapter);
+        List<Factor> asynchronous = buildTree(11, op, null);
+
+        ActorEngine engine = new ActorEngine((List)asynchronous, 3);
+        engine.run();
+        final long initialActivations = engine.getActivations();
+
+        // Change a unary and a pairwise potential
+        ActorEngine.Update update = engine.beginUpdate();
+        update.setPotential((IndependentFactor)asynchronous.get(1), asynchronous.get(0), 2.5);
+        update.setPotential((StandardFactor)asynchronous.get(7), new double[]{1, -1, 0.5, 0});
+        ((IndependentFactor)synchronous.get(1)).setPotential(synchronous.get(0), 2.5);
+        ((StandardFactor)synchronous.get(7)).setPotential(new double[]{1, -1, 0.5, 0});
+
+        // Remove the last variable (a leaf) along with its factors
+        for (int i=0; i<3; i++) {
+            update.removeFactor(asynchronous.remove(asynchronous.size() - 1));
+            remove(synchronous.remove(synchronous.size() - 1));
+        }
+
+        // Attach a new variable to the fourth one
+        List<Factor> added = addLeaf(op, null, asynchronous);
+        for (Factor factor : added) {
+            update.addFactor(factor);
+        }
+        update.link(added.get(1), added.get(0));
+        update.link(added.get(2), added.get(0));
+        update.link(added.get(2), asynchronous.get(8));
+        update.setPotential((StandardFactor)added.get(2), new double[]{0.2, -0.3, 0.1, 0.4});
+        added = addLeaf(op, adapter, synchronous);
+        link(added.get(1), added.get(0));
+        link(added.get(2), added.get(0));
+        link(added.get(2), synchronous.get(8));
+        ((StandardFactor)added.get(2)).setPotential(new double[]{0.2, -0.3, 0.1, 0.4});
+
+        update.commit();
+        assertTrue(engine.run() > 0);
+        final long updateActivations = engine.getActivations() - initialActivations;
+        assertTrue(updateActivations < initialActivations);
+        engine.shutdown();
+
+        for (int i=0; i<2*N_VARIABLES; i++) {
+            for (Factor f : synchronous) {
+                f.run();
+            }
+            adapter.tick();
+        }
+        assertArrayEquals(getMessages(synchronous), getMessages(asynchronous), Constants.DELTA);
+    }
+
+    @Test
+    public void testInvalidUpdate() {
+        List<Factor> factors = buildTree(12, new Maximize(), null);
+        ActorEngine engine = new ActorEngine((List)factors, 1);
+
+        VariableFactor outsider = new VariableFactor();
+        outsider.setIdentity(outsider);
+        StandardFactor pairwise = (StandardFactor)factors.get(4);
+        final double[] potential = pairwise.getPotential().clone();
+        ActorEngine.Update update = engine.beginUpdate();
+        update.setPotential(pairwise, new double[]{1, 1, 1, 1});
+        update.link(factors.get(0), outsider);
+        try {
+            update.commit();
+            fail("Linking to a factor outside the graph should fail");
+        } catch (IllegalArgumentException e) {
+            // Nothing has been applied
+            assertArrayEquals(potential, pairwise.getPotential(), Constants.DELTA);
+        }
+
+        final int nNeighbors = factors.get(0).getNeighbors().size();
+        update = engine.beginUpdate();
+        update.removeFactor(factors.get(0));
+        update.removeFactor(factors.get(0));
+        try {
+            update.commit();
+            fail("Removing a factor twice should fail");
+        } catch (IllegalArgumentException e) {
+            assertEquals(nNeighbors, factors.get(0).getNeighbors().size());
+        }
+        engine.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFraction() {
+        new ActorEngine(new ArrayList<Factor<?>>(), 1).setActivationFraction(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new ActorEngine(new ArrayList<Factor<?>>(), 0);
+    }
+
+    /**
+     * Builds a random tree of binary variables, with random unary and pairwise potentials.
+     */
+    private List<Factor> buildTree(long seed, MaxOperator op, CommunicationAdapter adapter) {
+        Random generator = new Random(seed);
+        List<Factor> factors = new ArrayList<Factor>();
+        List<Factor> variables = new ArrayList<Factor>();
+
+        for (int i=0; i<N_VARIABLES; i++) {
+            VariableFactor variable = new VariableFactor();
+            initialize(variable, op, adapter, factors);
+
+            IndependentFactor unary = new IndependentFactor();
+            initialize(unary, op, adapter, factors);
+            link(unary, variable);
+            unary.setPotential(variable, generator.nextDouble() - 0.5);
+
+            if (!variables.isEmpty()) {
+                StandardFactor pairwise = new StandardFactor();
+                initialize(pairwise, op, adapter, factors);
+                link(pairwise, variables.get(generator.nextInt(variables.size())));
+                link(pairwise, variable);
+                double[] potential = new double[4];
+                for (int j=0; j<potential.length; j++) {
+                    potential[j] = generator.nextDouble() - 0.5;
+                }
+                pairwise.setPotential(potential);
+            }
+            variables.add(variable);
+        }
+
+        return factors;
+    }
+
+    /**
+     * Creates (without linking them) a new variable, a unary factor with a random potential and
+     * a pairwise factor.
+     */
+    private List<Factor> addLeaf(MaxOperator op, CommunicationAdapter adapter,
+            List<Factor> factors)
+    {
+        Random generator = new Random(factors.size());
+        final int start = factors.size();
+
+        VariableFactor variable = new VariableFactor();
+        initialize(variable, op, adapter, factors);
+
+        IndependentFactor unary = new IndependentFactor();
+        initialize(unary, op, adapter, factors);
+        unary.setPotential(variable, generator.nextDouble() - 0.5);
+
+        StandardFactor pairwise = new StandardFactor();
+        initialize(pairwise, op, adapter, factors);
+
+        return new ArrayList<Factor>(factors.subList(start, factors.size()));
+    }
+
+    private void remove(Factor factor) {
+        for (Object neighbor : new ArrayList<Object>(factor.getNeighbors())) {
+            unlink(factor, (Factor)neighbor);
+        }
+    }
+
+    private void unlink(Factor factor, Factor other) {
+        factor.removeNeighbor(other);
+        other.removeNeighbor(factor);
+    }
+
+    private void initialize(Factor factor, MaxOperator op, CommunicationAdapter adapter,
+            List<Factor> factors)
+    {
+        factor.setIdentity(factor);
+        factor.setMaxOperator(op);
+        factor.setCommunicationAdapter(adapter);
+        factors.add(factor);
+    }
+
+    private void link(Factor factor, Factor variable) {
+        factor.addNeighbor(variable);
+        variable.addNeighbor(factor);
+    }
+
+    private double[] getMessages(List<Factor> factors) {
+        List<Double> messages = new ArrayList<Double>();
+        for (Factor factor : factors) {
+            for (Object neighbor : factor.getNeighbors()) {
+                messages.add(factor.getMessage(neighbor));
+            }
+        }
+
+        double[] result = new double[messages.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = messages.get(i);
+        }
+        return result;
+    }
+
+}
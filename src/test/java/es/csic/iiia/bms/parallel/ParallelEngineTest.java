@@ -0,0 +1,221 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.ConcurrentTickCommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.InboxCommunicationAdapter;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.RandomGraph;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.metrics.FactorMetrics;
+import es.csic.iiia.bms.metrics.FactorProfile;
+import es.csic.iiia.bms.metrics.FactorProfiler;
+import es.csic.iiia.bms.metrics.MetricsRegistry;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the parallel engine.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ParallelEngineTest {
+
+    private static final int N_ITERATIONS = 10;
+
+    @Test
+    public void testSameMessagesAsSequential() {
+        for (int nThreads=1; nThreads<=4; nThreads++) {
+            compareAgainstSequential(new Maximize(), nThreads);
+            compareAgainstSequential(new Minimize(), nThreads);
+        }
+    }
+
+    private void compareAgainstSequential(MaxOperator op, int nThreads) {
+        final long seed = 13 * nThreads;
+
+        TickCommunicationAdapter sequentialAdapter = new TickCommunicationAdapter();
+        RandomGraph sequential = new RandomGraph(seed, 50, 40, op, sequentialAdapter);
+        for (int i=0; i<N_ITERATIONS; i++) {
+            for (Factor f : sequential.getFactors()) {
+                f.run();
+            }
+            sequentialAdapter.tick();
+        }
+
+        ConcurrentTickCommunicationAdapter parallelAdapter = new ConcurrentTickCommunicationAdapter();
+        RandomGraph parallel = new RandomGraph(seed, 50, 40, op, parallelAdapter);
+        ParallelEngine engine = new ParallelEngine(parallel.getFactors(), nThreads);
+        engine.setChunksPerThread(3);
+        for (int i=0; i<N_ITERATIONS; i++) {
+            engine.run();
+            parallelAdapter.tick();
+        }
+        engine.shutdown();
+
+        assertArrayEquals(sequential.getMessages(), parallel.getMessages(), Constants.DELTA);
+    }
+
+    @Test
+    public void testCostEstimation() {
+        RandomGraph graph = new RandomGraph(1, 20, 20, new Maximize(),
+                new ConcurrentTickCommunicationAdapter());
+        ParallelEngine engine = new ParallelEngine(graph.getFactors(), 2);
+
+        // Initially, the cost is estimated from the factor's degree
+        final int nNeighbors = graph.getFactors().get(0).getNeighbors().size();
+        assertEquals(nNeighbors + 1, engine.getEstimatedCost(0));
+
+        long constraintChecks = engine.run();
+        assertTrue(constraintChecks > 0);
+        for (int i=0; i<graph.getFactors().size(); i++) {
+            assertTrue(engine.getEstimatedCost(i) >= 1);
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void testUtilization() {
+        RandomGraph graph = new RandomGraph(2, 30, 30, new Maximize(),
+                new ConcurrentTickCommunicationAdapter());
+        ParallelEngine engine = new ParallelEngine(graph.getFactors(), 3);
+
+        double[] utilization = engine.getUtilization();
+        assertEquals(3, utilization.length);
+        assertEquals(0, utilization[0], Constants.DELTA);
+
+        engine.run();
+        utilization = engine.getUtilization();
+        for (double u : utilization) {
+            assertTrue(Arrays.toString(utilization), u >= 0 && u <= 1);
+        }
+        assertEquals(3, engine.getStolenChunks().length);
+
+        engine.resetStatistics();
+        assertEquals(0, engine.getUtilization()[1], Constants.DELTA);
+        engine.shutdown();
+    }
+
+    @Test
+    public void testInboxes() {
+        InboxCommunicationAdapter adapter = new InboxCommunicationAdapter();
+        RandomGraph graph = new RandomGraph(4, 30, 30, new Maximize(), adapter);
+        adapter.register(graph.getFactors());
+
+        ParallelEngine engine = new ParallelEngine(graph.getFactors(), 3);
+        engine.setInboxes(adapter);
+        assertSame(adapter, engine.getInboxes());
+        for (int i=0; i<N_ITERATIONS; i++) {
+            assertTrue(engine.run() > 0);
+        }
+        engine.shutdown();
+
+        // Messages have been delivered without ever ticking anything
+        boolean delivered = false;
+        for (double message : graph.getMessages()) {
+            delivered = delivered || message != 0;
+        }
+        assertTrue(delivered);
+    }
+
+    @Test
+    public void testMetrics() {
+        RandomGraph graph = new RandomGraph(5, 30, 30, new Maximize(),
+                new ConcurrentTickCommunicationAdapter());
+        ParallelEngine engine = new ParallelEngine(graph.getFactors(), 3);
+        MetricsRegistry metrics = new MetricsRegistry();
+        engine.setMetrics(metrics);
+        assertSame(metrics, engine.getMetrics());
+
+        long constraintChecks = 0;
+        for (int i=0; i<N_ITERATIONS; i++) {
+            constraintChecks += engine.run();
+        }
+        engine.setMetrics(null);
+        engine.run();
+        engine.shutdown();
+
+        long runs = 0, recordedChecks = 0;
+        for (String type : metrics.getTypes()) {
+            final FactorMetrics typeMetrics = metrics.getFactorMetrics(type);
+            runs += typeMetrics.getRuns();
+            recordedChecks += typeMetrics.getConstraintChecks();
+        }
+        assertEquals(graph.getFactors().size() * N_ITERATIONS, runs);
+        assertEquals(constraintChecks, recordedChecks);
+    }
+
+    @Test
+    public void testProfiler() {
+        RandomGraph graph = new RandomGraph(6, 30, 30, new Maximize(),
+                new ConcurrentTickCommunicationAdapter());
+        ParallelEngine engine = new ParallelEngine(graph.getFactors(), 3);
+        FactorProfiler profiler = new FactorProfiler();
+        engine.setProfiler(profiler);
+        assertSame(profiler, engine.getProfiler());
+
+        for (int i=0; i<N_ITERATIONS; i++) {
+            engine.run();
+        }
+        engine.shutdown();
+
+        final List<FactorProfile> profiles = profiler.getProfiles();
+        assertEquals(graph.getFactors().size(), profiles.size());
+        for (int i=0; i<profiles.size(); i++) {
+            final Factor factor = graph.getFactors().get(i);
+            assertSame(factor.getIdentity(), profiles.get(i).getIdentity());
+            assertEquals(factor.getNeighbors().size(), profiles.get(i).getDegree());
+            assertEquals(N_ITERATIONS, profiles.get(i).getSampledRuns());
+        }
+        assertEquals(5, profiler.getHottest(5).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new ParallelEngine(new RandomGraph(3, 2, 1, new Maximize(), null).getFactors(), 0);
+    }
+
+}
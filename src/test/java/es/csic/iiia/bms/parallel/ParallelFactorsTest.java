@@ -0,0 +1,225 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.factors.twosided.AbstractTwoSidedFactor;
+import es.csic.iiia.bms.factors.twosided.EqualFactor;
+import es.csic.iiia.bms.factors.twosided.GreaterOrEqualFactor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the factors that can split their computation among several threads send the same
+ * messages as when running sequentially (up to rounding errors), and that these messages are
+ * reproducible.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ParallelFactorsTest {
+
+    private static final int N_NEIGHBORS = 2000;
+
+    private final Random generator = new Random(0);
+    private ParallelOperations operations;
+
+    @Before
+    public void setUp() {
+        operations = new ParallelOperations(4);
+        operations.setThreshold(100);
+    }
+
+    @After
+    public void tearDown() {
+        operations.shutdown();
+    }
+
+    @Test
+    public void testVariableFactor() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            VariableFactor sequential = new VariableFactor();
+            VariableFactor parallel = new VariableFactor();
+            parallel.setParallelOperations(operations);
+            compare(op, sequential, parallel, 0, Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testCardinalityFactor() {
+        final double[] costs = new double[N_NEIGHBORS + 1];
+        for (int i=0; i<costs.length; i++) {
+            costs[i] = generator.nextDouble() * 10;
+        }
+        CardinalityFactor.CardinalityFunction function = new CardinalityFactor.CardinalityFunction() {
+            @Override
+            public double getCost(int nActiveVariables) {
+                return costs[nActiveVariables];
+            }
+        };
+
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            CardinalityFactor sequential = new CardinalityFactor();
+            sequential.setFunction(function);
+            CardinalityFactor parallel = new CardinalityFactor();
+            parallel.setFunction(function);
+            parallel.setParallelOperations(operations);
+            compare(op, sequential, parallel, 0, Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testGreaterOrEqualFactor() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (int nElementsA : new int[]{1, N_NEIGHBORS/3, N_NEIGHBORS/2, N_NEIGHBORS-1}) {
+                GreaterOrEqualFactor sequential = new GreaterOrEqualFactor();
+                GreaterOrEqualFactor parallel = new GreaterOrEqualFactor();
+                parallel.setParallelOperations(operations);
+                compare(op, sequential, parallel, nElementsA, Constants.DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testEqualFactor() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            EqualFactor sequential = new EqualFactor();
+            EqualFactor parallel = new EqualFactor();
+            parallel.setParallelOperations(operations);
+            compare(op, sequential, parallel, N_NEIGHBORS/2, Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testParallelEmission() {
+        operations.setParallelEmission(true);
+        VariableFactor sequential = new VariableFactor();
+        VariableFactor parallel = new VariableFactor();
+        parallel.setParallelOperations(operations);
+        compare(new Maximize(), sequential, parallel, 0, Constants.DELTA);
+    }
+
+    /**
+     * Sums are split in blocks, so they may differ from the sequential ones by rounding, but
+     * they must be exactly the same whenever they are split among the same number of threads.
+     */
+    @Test
+    public void testReproducible() {
+        ParallelOperations other = new ParallelOperations(operations.getNumberOfThreads());
+        other.setThreshold(operations.getThreshold());
+        try {
+            for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+                VariableFactor first = new VariableFactor();
+                first.setParallelOperations(operations);
+                VariableFactor second = new VariableFactor();
+                second.setParallelOperations(other);
+                compare(op, first, second, 0, 0);
+            }
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    private void compare(MaxOperator op, Factor sequential, Factor parallel, int nElementsA,
+            double delta)
+    {
+        Object[] neighbors = new Object[N_NEIGHBORS];
+        for (int i=0; i<N_NEIGHBORS; i++) {
+            neighbors[i] = new Object();
+        }
+
+        CapturingAdapter sequentialAdapter = initialize(sequential, op, neighbors, nElementsA);
+        CapturingAdapter parallelAdapter = initialize(parallel, op, neighbors, nElementsA);
+        for (Object neighbor : neighbors) {
+            // Repeated values are frequent in practice, and exercise the sort's stability.
+            // They are not integers, so that sums are subject to rounding errors.
+            final double value = (generator.nextInt(50) - 25) / 7.;
+            sequential.receive(value, neighbor);
+            parallel.receive(value, neighbor);
+        }
+
+        sequential.run();
+        parallel.run();
+
+        assertEquals(N_NEIGHBORS, sequentialAdapter.messages.size());
+        assertEquals(N_NEIGHBORS, parallelAdapter.messages.size());
+        for (Object neighbor : neighbors) {
+            assertEquals(sequentialAdapter.messages.get(neighbor),
+                    parallelAdapter.messages.get(neighbor), delta);
+        }
+    }
+
+    private CapturingAdapter initialize(Factor factor, MaxOperator op, Object[] neighbors,
+            int nElementsA)
+    {
+        CapturingAdapter adapter = new CapturingAdapter();
+        factor.setMaxOperator(op);
+        factor.setCommunicationAdapter(adapter);
+        factor.setIdentity(factor);
+        for (Object neighbor : neighbors) {
+            factor.addNeighbor(neighbor);
+        }
+        if (factor instanceof AbstractTwoSidedFactor) {
+            ((AbstractTwoSidedFactor)factor).setNElementsA(nElementsA);
+        }
+        return adapter;
+    }
+
+    private static class CapturingAdapter implements CommunicationAdapter<Object> {
+        private final Map<Object, Double> messages = new HashMap<Object, Double>();
+
+        @Override
+        public synchronized void send(double message, Object sender, Object recipient) {
+            messages.put(recipient, message);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.parallel;
+
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.factors.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the parallel operations.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class ParallelOperationsTest {
+
+    private final Random generator = new Random(0);
+    private ParallelOperations operations;
+
+    @Before
+    public void setUp() {
+        operations = new ParallelOperations(3);
+    }
+
+    @After
+    public void tearDown() {
+        operations.shutdown();
+    }
+
+    private double[] getRandomValues(int size) {
+        double[] values = new double[size];
+        for (int i=0; i<size; i++) {
+            values[i] = generator.nextDouble() - 0.5;
+        }
+        return values;
+    }
+
+    @Test
+    public void testThreshold() {
+        operations.setThreshold(10);
+        assertFalse(operations.isWorthSplitting(9));
+        assertTrue(operations.isWorthSplitting(10));
+
+        ParallelOperations single = new ParallelOperations(1);
+        single.setThreshold(0);
+        assertFalse(single.isWorthSplitting(100));
+        single.shutdown();
+    }
+
+    @Test
+    public void testSum() {
+        for (int size=0; size<20; size++) {
+            double[] values = getRandomValues(size);
+            double expected = 0;
+            for (double value : values) {
+                expected += value;
+            }
+            assertEquals(expected, operations.sum(values), Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testPrefixSum() {
+        for (int size=0; size<20; size++) {
+            double[] values = getRandomValues(size);
+            double[] result = new double[size+1];
+            operations.prefixSum(values, result);
+
+            double expected = 0;
+            for (int i=0; i<=size; i++) {
+                assertEquals(expected, result[i], Constants.DELTA);
+                if (i < size) {
+                    expected += values[i];
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaxScan() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (int size=1; size<20; size++) {
+                double[] values = getRandomValues(size);
+
+                double[] forward = new double[size];
+                operations.maxScan(values, forward, op, false);
+                double expected = op.getWorstValue();
+                for (int i=0; i<size; i++) {
+                    expected = op.max(expected, values[i]);
+                    assertEquals(expected, forward[i], Constants.DELTA);
+                }
+
+                double[] backward = new double[size];
+                operations.maxScan(values, backward, op, true);
+                expected = op.getWorstValue();
+                for (int i=size-1; i>=0; i--) {
+                    expected = op.max(expected, values[i]);
+                    assertEquals(expected, backward[i], Constants.DELTA);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStableSort() {
+        final Comparator<double[]> byValue = new Comparator<double[]>() {
+            @Override
+            public int compare(double[] o1, double[] o2) {
+                return Double.compare(o1[0], o2[0]);
+            }
+        };
+
+        for (int size=0; size<50; size++) {
+            // Pairs of (value, original position), with many repeated values
+            double[][] items = new double[size][];
+            for (int i=0; i<size; i++) {
+                items[i] = new double[]{generator.nextInt(5), i};
+            }
+            double[][] expected = items.clone();
+            Arrays.sort(expected, byValue);
+
+            long comparisons = operations.sort(items, byValue);
+            assertTrue(size < 2 || comparisons > 0);
+            for (int i=0; i<size; i++) {
+                assertSame(expected[i], items[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testForEach() {
+        final int[] visits = new int[100];
+        operations.forEach(visits.length, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    visits[i]++;
+                }
+            }
+        });
+
+        for (int visit : visits) {
+            assertEquals(1, visit);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testForEachPropagatesErrors() {
+        operations.forEach(10, new ParallelOperations.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                if (from > 0) {
+                    throw new IllegalStateException("Failing block");
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.ConditionedSelectorFactor;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.ImplicationFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static es.csic.iiia.bms.preprocessing.GraphFixture.evaluate;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.link;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.solve;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the constraint propagator.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ConstraintPropagatorTest {
+
+    private static final int N_VARIABLES = 8;
+    private static final int N_ITERATIONS = 10;
+
+    private TickCommunicationAdapter adapter;
+
+    @Test
+    public void testChainedPropagation() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            adapter = new TickCommunicationAdapter();
+            final GraphFixture fixture = new GraphFixture(op, adapter);
+            List<Factor<?>> factors = new ArrayList<Factor<?>>();
+            Factor x = fixture.add(new VariableFactor(), factors);
+            Factor y = fixture.add(new VariableFactor(), factors);
+            Factor z = fixture.add(new VariableFactor(), factors);
+            link(fixture.add(new SelectorFactor(), factors), x);
+            fixture.add(new AtMostOneFactor(), factors, x, y);
+            StandardFactor standard = fixture.add(new StandardFactor(), factors, y, z);
+            standard.setPotential(new double[]{1, 3, 7, 0});
+
+            ConstraintPropagator propagator = new ConstraintPropagator(factors);
+            assertEquals(0, propagator.propagate());
+            run(propagator);
+            assertEquals(1, propagator.propagate());
+            assertEquals(Boolean.TRUE, propagator.getFixedValues().get(x));
+            run(propagator);
+            assertEquals(1, propagator.propagate());
+            assertEquals(Boolean.FALSE, propagator.getFixedValues().get(y));
+
+            // Only z and the standard factor (now a unary over z) remain, and y has been
+            // unlinked from both of its factors
+            assertEquals(2, propagator.getActiveFactors().size());
+            assertEquals(2, propagator.getRemovedFactors());
+            assertEquals(2, propagator.getUnlinkedEdges());
+            assertArrayEquals(new double[]{1, 3}, standard.getPotential(), Constants.DELTA);
+            run(propagator);
+            assertEquals(2, z.getMessage(standard), Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testConditionedSelector() {
+        final Maximize op = new Maximize();
+        adapter = new TickCommunicationAdapter();
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor c = fixture.add(new VariableFactor(), factors);
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new SelectorFactor(), factors), c);
+        ConditionedSelectorFactor selector = fixture.add(new ConditionedSelectorFactor(),
+                factors, c, a, b);
+        selector.setConditionNeighbor(c);
+
+        ConstraintPropagator propagator = new ConstraintPropagator(factors);
+        run(propagator);
+        assertEquals(1, propagator.propagate());
+
+        // The conditioned selector becomes a plain selector over the dependent variables
+        List<Factor<?>> active = propagator.getActiveFactors();
+        assertEquals(3, active.size());
+        assertSame(a, active.get(0));
+        assertSame(b, active.get(1));
+        assertSame(SelectorFactor.class, active.get(2).getClass());
+        assertEquals(2, active.get(2).getNeighbors().size());
+        assertTrue(selector.getNeighbors().isEmpty());
+        assertSame(active.get(2), a.getNeighbors().get(0));
+    }
+
+    @Test
+    public void testImplication() {
+        final Maximize op = new Maximize();
+        adapter = new TickCommunicationAdapter();
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        Factor c = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new SelectorFactor(), factors), a);
+        ImplicationFactor implication = fixture.add(new ImplicationFactor(), factors, a, b, c);
+
+        ConstraintPropagator propagator = new ConstraintPropagator(factors);
+        for (int i=0; i<3; i++) {
+            run(propagator);
+            propagator.propagate();
+        }
+
+        // Only the last variable of the chain can be unlinked once active
+        assertEquals(3, propagator.getFixedValues().size());
+        for (Boolean value : propagator.getFixedValues().values()) {
+            assertTrue(value);
+        }
+        assertEquals(2, implication.getNeighbors().size());
+        assertTrue(propagator.getActiveFactors().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInfeasible() {
+        final Maximize op = new Maximize();
+        adapter = new TickCommunicationAdapter();
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new SelectorFactor(), factors), a);
+        link(fixture.add(new SelectorFactor(), factors), b);
+        fixture.add(new AtMostOneFactor(), factors, a, b);
+
+        ConstraintPropagator propagator = new ConstraintPropagator(factors);
+        for (int i=0; i<N_ITERATIONS; i++) {
+            run(propagator);
+            propagator.propagate();
+        }
+    }
+
+    @Test
+    public void testSoundness() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (long seed=0; seed<10; seed++) {
+                checkSoundness(op, seed);
+            }
+        }
+    }
+
+    /**
+     * Checks that the fixed values never rule out the optimal solution.
+     */
+    private void checkSoundness(MaxOperator op, long seed) {
+        adapter = new TickCommunicationAdapter();
+        List<Factor<?>> factors = buildGraph(op, seed);
+        final List<Factor<?>> variables = new ArrayList<Factor<?>>(
+                factors.subList(0, N_VARIABLES));
+        final double optimum = getOptimum(op, buildGraph(op, seed), null);
+
+        ConstraintPropagator propagator = new ConstraintPropagator(factors);
+        for (int i=0; i<N_ITERATIONS; i++) {
+            run(propagator);
+            propagator.propagate();
+        }
+        assertFalse(propagator.getFixedValues().isEmpty());
+        assertTrue(propagator.getActiveFactors().size() < factors.size());
+
+        // The same optimum is reachable once the fixed values are enforced on a fresh graph
+        final List<Factor<?>> fresh = buildGraph(op, seed);
+        Map<Factor<?>, Boolean> fixed = new HashMap<Factor<?>, Boolean>();
+        for (int i=0; i<N_VARIABLES; i++) {
+            final Boolean value = propagator.getFixedValues().get(variables.get(i));
+            if (value != null) {
+                fixed.put(fresh.get(i), value);
+            }
+        }
+        assertEquals(optimum, getOptimum(op, fresh, fixed), Constants.DELTA);
+    }
+
+    private double getOptimum(MaxOperator op, List<Factor<?>> factors,
+            Map<Factor<?>, Boolean> fixed)
+    {
+        return evaluate(factors, solve(op, factors, factors.subList(0, N_VARIABLES), fixed));
+    }
+
+    private List<Factor<?>> buildGraph(MaxOperator op, long seed) {
+        final Random generator = new Random(seed);
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor[] v = new Factor[N_VARIABLES];
+        for (int i=0; i<N_VARIABLES; i++) {
+            v[i] = fixture.add(new VariableFactor(), factors);
+        }
+
+        link(fixture.add(new SelectorFactor(), factors), v[0]);
+        fixture.add(new AtMostOneFactor(), factors, v[0], v[1], v[2]);
+        fixture.add(new SelectorFactor(), factors, v[1], v[3]);
+        ConditionedSelectorFactor conditioned = fixture.add(new ConditionedSelectorFactor(),
+                factors, v[3], v[4], v[5]);
+        conditioned.setConditionNeighbor(v[3]);
+        fixture.add(new ImplicationFactor(), factors, v[2], v[6], v[7]);
+
+        for (Factor[] scope : new Factor[][]{{v[2], v[4]}, {v[5], v[6], v[7]}, {v[1], v[7]}}) {
+            StandardFactor standard = fixture.add(new StandardFactor(), factors, scope);
+            double[] potential = new double[1 << scope.length];
+            for (int i=0; i<potential.length; i++) {
+                potential[i] = generator.nextDouble() - 0.5;
+            }
+            standard.setPotential(potential);
+        }
+        for (Factor variable : v) {
+            IndependentFactor unary = fixture.add(new IndependentFactor(), factors, variable);
+            unary.setPotential(variable, generator.nextDouble() - 0.5);
+        }
+        return factors;
+    }
+
+    private void run(ConstraintPropagator propagator) {
+        GraphFixture.run(propagator.getActiveFactors(), adapter);
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.VariableFactor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers to build and run the small factor graphs used to test the preprocessing passes.
+ * <p/>
+ * Factors added through a fixture are their own identities, as required to rewire them.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class GraphFixture {
+
+    private final MaxOperator op;
+    private final CommunicationAdapter adapter;
+
+    /**
+     * Builds a new fixture.
+     *
+     * @param op maximization operator to use.
+     * @param adapter communication adapter to use, or <code>null</code> if the factors will
+     *                not exchange messages.
+     */
+    public GraphFixture(MaxOperator op, CommunicationAdapter adapter) {
+        this.op = op;
+        this.adapter = adapter;
+    }
+
+    /**
+     * Initializes a factor, links it to the given variables and adds it to a list of factors.
+     *
+     * @param factor factor to initialize.
+     * @param factors list where the factor is added.
+     * @param scope variables linked to the factor.
+     * @return the same factor.
+     */
+    public <F extends Factor> F add(F factor, List<Factor<?>> factors, Factor... scope) {
+        factor.setIdentity(factor);
+        factor.setMaxOperator(op);
+        factor.setCommunicationAdapter(adapter);
+        factors.add(factor);
+        for (Factor variable : scope) {
+            link(factor, variable);
+        }
+        return factor;
+    }
+
+    /**
+     * Links two factors, in both directions.
+     *
+     * @param factor first factor.
+     * @param variable second factor.
+     */
+    public static void link(Factor factor, Factor variable) {
+        factor.addNeighbor(variable);
+        variable.addNeighbor(factor);
+    }
+
+    /**
+     * Runs an iteration over the given factors.
+     *
+     * @param factors factors to run.
+     * @param adapter communication adapter of the factors.
+     * @return number of constraint checks reported by the factors.
+     */
+    public static long run(List<? extends Factor<?>> factors,
+            TickCommunicationAdapter adapter)
+    {
+        long constraintChecks = 0;
+        for (Factor<?> factor : factors) {
+            constraintChecks += factor.run();
+        }
+        adapter.tick();
+        return constraintChecks;
+    }
+
+    /**
+     * Finds an optimal assignment of a graph by brute force.
+     *
+     * @param op maximization operator of the graph.
+     * @param factors factors of the graph.
+     * @param variables variables to assign.
+     * @param fixed values of the variables that can not change, or <code>null</code> if none.
+     * @return an optimal assignment of the variables.
+     */
+    public static Map<Factor<?>, Boolean> solve(MaxOperator op, List<Factor<?>> factors,
+            List<Factor<?>> variables, Map<Factor<?>, Boolean> fixed)
+    {
+        Map<Factor<?>, Boolean> best = null;
+        double bestValue = op.getWorstValue();
+        for (int configuration=0; configuration < 1 << variables.size(); configuration++) {
+            Map<Factor<?>, Boolean> assignment = new HashMap<Factor<?>, Boolean>();
+            boolean allowed = true;
+            for (int i=0; i<variables.size(); i++) {
+                final Factor<?> variable = variables.get(i);
+                final boolean value = (configuration & 1 << i) != 0;
+                assignment.put(variable, value);
+                allowed = allowed && (fixed == null || !fixed.containsKey(variable)
+                        || fixed.get(variable) == value);
+            }
+            if (!allowed) {
+                continue;
+            }
+
+            final double value = evaluate(factors, assignment);
+            if (best == null || op.compare(value, bestValue) > 0) {
+                best = assignment;
+                bestValue = value;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Evaluates an assignment over all the factors of a graph, including the biases of its
+     * variables.
+     *
+     * @param factors factors of the graph.
+     * @param assignment values of the variables.
+     * @return value of the assignment.
+     */
+    public static double evaluate(List<Factor<?>> factors, Map<Factor<?>, Boolean> assignment) {
+        double value = 0;
+        for (Factor factor : factors) {
+            if (factor.getClass() == VariableFactor.class) {
+                final VariableFactor variable = (VariableFactor) factor;
+                value += assignment.get(variable) ? variable.getBias() : 0;
+            } else {
+                value += factor.evaluate(assignment);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Computes the belief of a variable, including its bias.
+     *
+     * @param variable variable factor.
+     * @return sum of its bias and the messages it has received.
+     */
+    public static double getBelief(Factor variable) {
+        double belief = ((VariableFactor) variable).getBias();
+        for (Object neighbor : variable.getNeighbors()) {
+            belief += variable.getMessage(neighbor);
+        }
+        return belief;
+    }
+
+}
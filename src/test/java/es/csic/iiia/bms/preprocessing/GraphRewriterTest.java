@@ -0,0 +1,106 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.CommunicationAdapter;
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for the graph rewriter.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class GraphRewriterTest {
+
+    @Test
+    public void testReplace() {
+        CommunicationAdapter adapter = mock(CommunicationAdapter.class);
+        Factor x = buildFactor(new VariableFactor(), adapter);
+        Factor y = buildFactor(new VariableFactor(), adapter);
+        Factor original = buildFactor(new StandardFactor(), adapter);
+        for (Factor variable : new Factor[]{x, y}) {
+            original.addNeighbor(variable);
+            variable.addNeighbor(original);
+        }
+        original.receive(1, x);
+        original.receive(2, y);
+        x.receive(3, original);
+
+        Factor replacement = new SelectorFactor();
+        GraphRewriter.replace(original, replacement);
+
+        assertSame(replacement, replacement.getIdentity());
+        assertSame(adapter, replacement.getCommunicationAdapter());
+        assertEquals(Arrays.asList(x, y), replacement.getNeighbors());
+        assertEquals(1, replacement.getMessage(x), 0);
+        assertEquals(2, replacement.getMessage(y), 0);
+        assertEquals(3, x.getMessage(replacement), 0);
+        assertEquals(Arrays.asList(replacement), x.getNeighbors());
+        assertTrue(original.getNeighbors().isEmpty());
+
+        List<Factor<?>> rebuilt = GraphRewriter.rebuild(Arrays.<Factor<?>>asList(x, original, y),
+                Arrays.<Factor<?>>asList(original, y), Arrays.<Factor<?>>asList(replacement, null));
+        assertEquals(Arrays.asList(x, replacement), rebuilt);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotRewirable() {
+        StandardFactor original = new StandardFactor();
+        original.setIdentity("original");
+        GraphRewriter.replace(original, new SelectorFactor());
+    }
+
+    private Factor buildFactor(Factor factor, CommunicationAdapter adapter) {
+        factor.setIdentity(factor);
+        factor.setMaxOperator(new Maximize());
+        factor.setCommunicationAdapter(adapter);
+        return factor;
+    }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.ConditionedDeactivationFactor;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.EqualityFactor;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static es.csic.iiia.bms.preprocessing.GraphFixture.evaluate;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.link;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.solve;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the graph simplifier.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class GraphSimplifierTest {
+
+    private static final int N_VARIABLES = 8;
+
+    @Test
+    public void testSameOptimum() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (long seed=0; seed<10; seed++) {
+                compare(op, seed);
+            }
+        }
+    }
+
+    private void compare(MaxOperator op, long seed) {
+        List<Factor<?>> original = buildGraph(op, seed);
+        List<Factor<?>> simplified = buildGraph(op, seed);
+        final List<Factor<?>> variables = simplified.subList(0, N_VARIABLES);
+        final List<Factor<?>> copies = new ArrayList<Factor<?>>(variables);
+
+        GraphSimplifier simplifier = new GraphSimplifier();
+        simplified = simplifier.apply(simplified);
+        assertTrue(simplified.size() < original.size());
+
+        // Solve the simplified graph and bring its solution back to the original variables
+        List<Factor<?>> remaining = new ArrayList<Factor<?>>();
+        for (Factor<?> factor : simplified) {
+            if (factor.getClass() == VariableFactor.class) {
+                remaining.add(factor);
+            }
+        }
+        final Map<Factor<?>, Boolean> reduced = solve(op, simplified, remaining, null);
+        final Map<Factor<?>, Boolean> reconstructed = simplifier.reconstruct(reduced);
+        assertEquals(N_VARIABLES, reconstructed.size());
+
+        Map<Factor<?>, Boolean> assignment = new HashMap<Factor<?>, Boolean>();
+        for (int i=0; i<N_VARIABLES; i++) {
+            assignment.put(original.get(i), reconstructed.get(copies.get(i)));
+        }
+        final Map<Factor<?>, Boolean> optimal = solve(op, original,
+                original.subList(0, N_VARIABLES), null);
+        assertEquals(evaluate(original, optimal), evaluate(original, assignment),
+                Constants.DELTA);
+        assertEquals(evaluate(simplified, reduced) + simplifier.getOffset(),
+                evaluate(original, assignment),
+                Constants.DELTA);
+    }
+
+    @Test
+    public void testPropagation() {
+        List<Factor<?>> factors = buildGraph(new Maximize(), 0);
+        GraphSimplifier simplifier = new GraphSimplifier();
+        simplifier.apply(factors);
+
+        // The selector forces the first variable, which deactivates the exemplar and, through
+        // it, the remaining variables of the conditioned deactivation.
+        final Map<Factor<?>, Boolean> fixed = simplifier.getFixedValues();
+        assertEquals(Boolean.TRUE, fixed.get(factors.get(0)));
+        assertEquals(Boolean.FALSE, fixed.get(factors.get(1)));
+        assertEquals(Boolean.FALSE, fixed.get(factors.get(2)));
+        assertEquals(Boolean.FALSE, fixed.get(factors.get(3)));
+
+        // The equality chain is merged, and the second equality is relinked to the first
+        // variable before being merged into its other one
+        assertSame(factors.get(4), simplifier.getMergedVariables().get(factors.get(5)));
+        assertSame(factors.get(6), simplifier.getMergedVariables().get(factors.get(4)));
+
+        // The duplicated "at most one" is dropped, and the unaries of the merged variables
+        // are summed into a single one
+        assertEquals(3, simplifier.getMergedDuplicates());
+    }
+
+    @Test
+    public void testDuplicates() {
+        final Maximize op = new Maximize();
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        Factor c = fixture.add(new VariableFactor(), factors);
+        for (int i=0; i<2; i++) {
+            Factor atMostOne = fixture.add(new AtMostOneFactor(), factors);
+            link(atMostOne, i == 0 ? a : b);
+            link(atMostOne, i == 0 ? b : a);
+            link(fixture.add(new CardinalityFactor(), factors), c);
+            StandardFactor standard = fixture.add(new StandardFactor(), factors);
+            link(standard, a);
+            link(standard, c);
+            standard.setPotential(new double[]{0, 1, 2, i});
+        }
+        link(fixture.add(new CardinalityFactor(), factors), a);
+        link(fixture.add(new CardinalityFactor(), factors), b);
+
+        GraphSimplifier simplifier = new GraphSimplifier();
+        List<Factor<?>> simplified = simplifier.apply(factors);
+        assertEquals(2, simplifier.getMergedDuplicates());
+        assertEquals(factors.size() - 2, simplified.size());
+        assertArrayEquals(new double[]{0, 2, 4, 1},
+                ((StandardFactor) factors.get(5)).getPotential(), Constants.DELTA);
+    }
+
+    @Test
+    public void testUnsupportedFactor() {
+        final Maximize op = new Maximize();
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new SelectorFactor(), factors), a);
+        Factor cardinality = fixture.add(new CardinalityFactor(), factors);
+        link(cardinality, a);
+        link(cardinality, b);
+
+        // The cardinality factor can not be conditioned, so nothing can be fixed
+        GraphSimplifier simplifier = new GraphSimplifier();
+        assertEquals(factors.size(), simplifier.apply(factors).size());
+        assertTrue(simplifier.getFixedValues().isEmpty());
+    }
+
+    @Test
+    public void testUnaryVariables() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            final GraphFixture fixture = new GraphFixture(op, null);
+            List<Factor<?>> factors = new ArrayList<Factor<?>>();
+            VariableFactor a = fixture.add(new VariableFactor(), factors);
+            a.setBias(1);
+            IndependentFactor unary = fixture.add(new IndependentFactor(), factors);
+            link(unary, a);
+            unary.setPotential(a, -2);
+
+            GraphSimplifier simplifier = new GraphSimplifier();
+            assertTrue(simplifier.apply(factors).isEmpty());
+            assertEquals(op instanceof Minimize, simplifier.getFixedValues().get(a));
+            assertEquals(1, simplifier.getRemovedFactors());
+        }
+    }
+
+    @Test
+    public void testLeafVariables() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            final GraphFixture fixture = new GraphFixture(op, null);
+            List<Factor<?>> factors = new ArrayList<Factor<?>>();
+            VariableFactor a = fixture.add(new VariableFactor(), factors);
+            a.setBias(1);
+            Factor b = fixture.add(new VariableFactor(), factors);
+            IndependentFactor unary = fixture.add(new IndependentFactor(), factors);
+            link(unary, a);
+            unary.setPotential(a, -2);
+            StandardFactor standard = fixture.add(new StandardFactor(), factors);
+            link(standard, a);
+            link(standard, b);
+            standard.setPotential(new double[]{0, 1, 3, 0});
+            link(fixture.add(new CardinalityFactor(), factors), b);
+
+            // The first variable is maximized out of the table, whose best values for each
+            // value of the second variable ({2, 1} or {0, -1}) become its bias
+            GraphSimplifier simplifier = new GraphSimplifier();
+            List<Factor<?>> simplified = simplifier.apply(factors);
+            assertEquals(2, simplified.size());
+            assertEquals(1, simplifier.getEliminatedVariables().size());
+            assertSame(a, simplifier.getEliminatedVariables().get(0));
+            assertTrue(a.getNeighbors().isEmpty());
+            final boolean max = op instanceof Maximize;
+            assertEquals(-1, ((VariableFactor) b).getBias(), Constants.DELTA);
+            assertEquals(max ? 2 : 0, simplifier.getOffset(), Constants.DELTA);
+
+            for (boolean value : new boolean[]{false, true}) {
+                Map<Factor<?>, Boolean> assignment = new HashMap<Factor<?>, Boolean>();
+                assignment.put(b, value);
+                assertEquals(max != value, simplifier.reconstruct(assignment).get(a));
+            }
+        }
+    }
+
+    @Test
+    public void testChainElimination() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            for (long seed=0; seed<10; seed++) {
+                List<Factor<?>> original = buildChain(op, seed);
+                List<Factor<?>> simplified = buildChain(op, seed);
+                final List<Factor<?>> copies = new ArrayList<Factor<?>>(
+                        simplified.subList(0, N_VARIABLES));
+
+                // Each variable becomes a leaf once its predecessor has been eliminated
+                GraphSimplifier simplifier = new GraphSimplifier();
+                assertTrue(simplifier.apply(simplified).isEmpty());
+                assertEquals(N_VARIABLES, simplifier.getEliminatedVariables().size());
+
+                final Map<Factor<?>, Boolean> reconstructed =
+                        simplifier.reconstruct(new HashMap<Factor<?>, Boolean>());
+                Map<Factor<?>, Boolean> assignment = new HashMap<Factor<?>, Boolean>();
+                for (int i=0; i<N_VARIABLES; i++) {
+                    assignment.put(original.get(i), reconstructed.get(copies.get(i)));
+                }
+                final double optimum = evaluate(original, solve(op, original,
+                        original.subList(0, N_VARIABLES), null));
+                assertEquals(optimum, evaluate(original, assignment), Constants.DELTA);
+                assertEquals(optimum, simplifier.getOffset(), Constants.DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testHardUnaryTable() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            final GraphFixture fixture = new GraphFixture(op, null);
+            List<Factor<?>> factors = new ArrayList<Factor<?>>();
+            VariableFactor a = fixture.add(new VariableFactor(), factors);
+            a.setBias(1);
+            VariableFactor b = fixture.add(new VariableFactor(), factors);
+            StandardFactor hard = fixture.add(new StandardFactor(), factors);
+            link(hard, a);
+            hard.setPotential(new double[]{op.getWorstValue(), 0});
+            StandardFactor pair = fixture.add(new StandardFactor(), factors);
+            link(pair, a);
+            link(pair, b);
+            pair.setPotential(new double[]{0, 1, 3, 5});
+            link(fixture.add(new CardinalityFactor(), factors), b);
+
+            // The hard table fixes the first variable instead of becoming an infinite bias
+            GraphSimplifier simplifier = new GraphSimplifier();
+            assertEquals(2, simplifier.apply(factors).size());
+            assertEquals(Boolean.TRUE, simplifier.getFixedValues().get(a));
+            assertEquals(2, b.getBias(), Constants.DELTA);
+            assertEquals(4, simplifier.getOffset(), Constants.DELTA);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInfeasibleUnaryTable() {
+        final Maximize op = new Maximize();
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        StandardFactor hard = fixture.add(new StandardFactor(), factors);
+        link(hard, a);
+        hard.setPotential(new double[]{op.getWorstValue(), op.getWorstValue()});
+        new GraphSimplifier().apply(factors);
+    }
+
+    @Test
+    public void testBiasedEquality() {
+        final Maximize op = new Maximize();
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        VariableFactor a = fixture.add(new VariableFactor(), factors);
+        a.setBias(1);
+        VariableFactor b = fixture.add(new VariableFactor(), factors);
+        b.setBias(0.5);
+        EqualityFactor equality = fixture.add(new EqualityFactor(), factors);
+        link(equality, a);
+        link(equality, b);
+        equality.setBias(2);
+        link(fixture.add(new CardinalityFactor(), factors), a);
+        link(fixture.add(new CardinalityFactor(), factors), b);
+
+        // Both the merged variable and the equality itself add their biases
+        GraphSimplifier simplifier = new GraphSimplifier();
+        simplifier.apply(factors);
+        assertSame(a, simplifier.getMergedVariables().get(b));
+        assertEquals(3.5, a.getBias(), Constants.DELTA);
+    }
+
+    @Test
+    public void testFixedBiasedEquality() {
+        final Maximize op = new Maximize();
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new SelectorFactor(), factors), a);
+        EqualityFactor equality = fixture.add(new EqualityFactor(), factors);
+        link(equality, a);
+        link(equality, b);
+        equality.setBias(3);
+        IndependentFactor unary = fixture.add(new IndependentFactor(), factors);
+        link(unary, b);
+        unary.setPotential(b, 0.5);
+
+        GraphSimplifier simplifier = new GraphSimplifier();
+        assertTrue(simplifier.apply(factors).isEmpty());
+        assertEquals(Boolean.TRUE, simplifier.getFixedValues().get(b));
+        assertEquals(3.5, simplifier.getOffset(), Constants.DELTA);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInfeasible() {
+        final Maximize op = new Maximize();
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor a = fixture.add(new VariableFactor(), factors);
+        Factor b = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new SelectorFactor(), factors), a);
+        link(fixture.add(new SelectorFactor(), factors), b);
+        Factor atMostOne = fixture.add(new AtMostOneFactor(), factors);
+        link(atMostOne, a);
+        link(atMostOne, b);
+        new GraphSimplifier().apply(factors);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValue() {
+        final GraphFixture fixture = new GraphFixture(new Maximize(), null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor variable = fixture.add(new VariableFactor(), factors);
+        link(fixture.add(new CardinalityFactor(), factors), variable);
+        GraphSimplifier simplifier = new GraphSimplifier();
+        simplifier.apply(factors);
+        simplifier.reconstruct(new HashMap<Factor<?>, Boolean>());
+    }
+
+    @Test
+    public void testTableOperations() {
+        final double[] table = {0, 1, 2, 3, 4, 5, 6, 7};
+        assertArrayEquals(new double[]{2, 3, 6, 7},
+                GraphSimplifier.slice(table, 3, 1, true), Constants.DELTA);
+        assertArrayEquals(new double[]{0, 1, 2, 3},
+                GraphSimplifier.slice(table, 3, 0, false), Constants.DELTA);
+        assertArrayEquals(new double[]{0, 4, 1, 5, 2, 6, 3, 7},
+                GraphSimplifier.moveToEnd(table, 3, 0), Constants.DELTA);
+        assertArrayEquals(table, GraphSimplifier.moveToEnd(table, 3, 2), Constants.DELTA);
+    }
+
+    private List<Factor<?>> buildGraph(MaxOperator op, long seed) {
+        final Random generator = new Random(seed);
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor[] v = new Factor[N_VARIABLES];
+        for (int i=0; i<N_VARIABLES; i++) {
+            VariableFactor variable = fixture.add(new VariableFactor(), factors);
+            variable.setBias(generator.nextDouble() - 0.5);
+            v[i] = variable;
+        }
+
+        fixture.add(new SelectorFactor(), factors, v[0]);
+        fixture.add(new AtMostOneFactor(), factors, v[0], v[1]);
+        ConditionedDeactivationFactor deactivation = fixture.add(
+                new ConditionedDeactivationFactor(), factors, v[1], v[2], v[3]);
+        deactivation.setExemplar(v[1]);
+        fixture.add(new EqualityFactor(), factors, v[4], v[5]);
+        fixture.add(new EqualityFactor(), factors, v[5], v[6]);
+        fixture.add(new AtMostOneFactor(), factors, v[6], v[7]);
+        fixture.add(new AtMostOneFactor(), factors, v[7], v[6]);
+
+        for (Factor[] scope : new Factor[][]{{v[2], v[7]}, {v[7], v[3], v[4]}, {v[6], v[7]}}) {
+            StandardFactor standard = fixture.add(new StandardFactor(), factors, scope);
+            double[] potential = new double[1 << scope.length];
+            for (int i=0; i<potential.length; i++) {
+                potential[i] = generator.nextDouble() - 0.5;
+            }
+            standard.setPotential(potential);
+        }
+        for (Factor variable : v) {
+            IndependentFactor unary = fixture.add(new IndependentFactor(), factors, variable);
+            unary.setPotential(variable, generator.nextDouble() - 0.5);
+        }
+        return factors;
+    }
+
+    /**
+     * Builds a chain of variables, each one linked to the next through a standard factor.
+     */
+    private List<Factor<?>> buildChain(MaxOperator op, long seed) {
+        final Random generator = new Random(seed);
+        final GraphFixture fixture = new GraphFixture(op, null);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        Factor[] v = new Factor[N_VARIABLES];
+        for (int i=0; i<N_VARIABLES; i++) {
+            VariableFactor variable = fixture.add(new VariableFactor(), factors);
+            variable.setBias(generator.nextDouble() - 0.5);
+            v[i] = variable;
+        }
+
+        for (int i=1; i<N_VARIABLES; i++) {
+            StandardFactor standard = fixture.add(new StandardFactor(), factors, v[i-1], v[i]);
+            standard.setPotential(new double[]{generator.nextDouble() - 0.5,
+                    generator.nextDouble() - 0.5, generator.nextDouble() - 0.5,
+                    generator.nextDouble() - 0.5});
+            IndependentFactor unary = fixture.add(new IndependentFactor(), factors, v[i]);
+            unary.setPotential(v[i], generator.nextDouble() - 0.5);
+        }
+        return factors;
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.factors.AtMostOneFactor;
+import es.csic.iiia.bms.factors.CardinalityFactor;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static es.csic.iiia.bms.preprocessing.GraphFixture.getBelief;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.link;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.run;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the tractable structure detector.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class TractableStructureDetectorTest {
+
+    private static final int N_VARIABLES = 10;
+
+    /** Cardinality tables only pay off from 4 variables on */
+    private static final int N_CARDINALITY = 4;
+
+    @Test
+    public void testAnalyze() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            TractableStructureDetector detector = new TractableStructureDetector();
+            assertSame(TractableStructureDetector.Structure.SELECTOR,
+                    detector.analyze(new double[]{op.getWorstValue(), 0, 0, op.getWorstValue()},
+                            op));
+            assertSame(TractableStructureDetector.Structure.AT_MOST_ONE,
+                    detector.analyze(new double[]{0, 0, 0, op.getWorstValue()}, op));
+            assertSame(TractableStructureDetector.Structure.INDEPENDENT,
+                    detector.analyze(new double[]{0, 0.1, 0.2, 0.30000000001}, op));
+            assertSame(TractableStructureDetector.Structure.CARDINALITY,
+                    detector.analyze(new double[]{1, 2, 2, 5}, op));
+            assertNull(detector.analyze(new double[]{0, 1, 2, 4}, op));
+            assertNull(detector.analyze(new double[]{op.getWorstValue(), 0, 0, 0}, op));
+        }
+    }
+
+    @Test
+    public void testTolerance() {
+        TractableStructureDetector detector = new TractableStructureDetector();
+        detector.setTolerance(0);
+        assertNull(detector.analyze(new double[]{0, 0.1, 0.2, 0.30000000001},
+                new Maximize()));
+    }
+
+    @Test
+    public void testSameBeliefs() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            TickCommunicationAdapter originalAdapter = new TickCommunicationAdapter();
+            List<Factor<?>> original = buildGraph(op, originalAdapter);
+            TickCommunicationAdapter rewrittenAdapter = new TickCommunicationAdapter();
+            List<Factor<?>> rewritten = buildGraph(op, rewrittenAdapter);
+
+            TractableStructureDetector detector = new TractableStructureDetector();
+            List<Factor<?>> simplified = detector.apply(rewritten);
+            assertEquals(3, detector.getSubstitutions().size());
+            assertEquals(rewritten.size(), simplified.size());
+            assertTrue(simplified.get(N_VARIABLES) instanceof SelectorFactor);
+            assertTrue(simplified.get(N_VARIABLES + 1) instanceof AtMostOneFactor);
+            assertTrue(simplified.get(N_VARIABLES + 2) instanceof IndependentFactor);
+
+            // Small cardinality tables and pairwise tables are cheaper as they are
+            for (int i=3; i<6; i++) {
+                assertSame(StandardFactor.class, simplified.get(N_VARIABLES + i).getClass());
+            }
+            assertTrue(detector.getReport().contains("INDEPENDENT"));
+
+            // Dense tables over three variables visit 24 entries per run
+            assertEquals(18 + 18 + 21, detector.getEstimatedSavings());
+            long originalChecks = 0, simplifiedChecks = 0;
+            for (int i=0; i<10; i++) {
+                originalChecks += run(original, originalAdapter);
+                simplifiedChecks += run(simplified, rewrittenAdapter);
+            }
+            assertTrue(simplifiedChecks < originalChecks);
+
+            for (int i=0; i<N_VARIABLES; i++) {
+                assertEquals(getBelief(original.get(i)), getBelief(simplified.get(i)),
+                        Constants.DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testCardinality() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            TickCommunicationAdapter originalAdapter = new TickCommunicationAdapter();
+            List<Factor<?>> original = buildCardinalityGraph(op, originalAdapter);
+            TickCommunicationAdapter rewrittenAdapter = new TickCommunicationAdapter();
+            List<Factor<?>> rewritten = buildCardinalityGraph(op, rewrittenAdapter);
+
+            TractableStructureDetector detector = new TractableStructureDetector();
+            List<Factor<?>> simplified = detector.apply(rewritten);
+            assertEquals(1, detector.getSubstitutions().size());
+            assertSame(StandardFactor.class, simplified.get(N_CARDINALITY).getClass());
+            assertTrue(simplified.get(N_CARDINALITY + 1) instanceof CardinalityFactor);
+            assertTrue(detector.getEstimatedSavings() > 0);
+
+            for (int i=0; i<3; i++) {
+                run(original, originalAdapter);
+                run(simplified, rewrittenAdapter);
+            }
+
+            for (int i=0; i<N_CARDINALITY; i++) {
+                assertEquals(getBelief(original.get(i)), getBelief(simplified.get(i)),
+                        Constants.DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testDenseCost() {
+        assertEquals(0, Substitution.getDenseCost(0));
+        assertEquals(24, Substitution.getDenseCost(3));
+        assertEquals(57L << 57, Substitution.getDenseCost(57));
+        assertEquals(Long.MAX_VALUE, Substitution.getDenseCost(58));
+        assertEquals(Long.MAX_VALUE, Substitution.getDenseCost(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCardinalityCrossover() {
+        for (int n=3; n<=N_CARDINALITY+1; n++) {
+            final boolean cheaper = Substitution.getTractableCost(
+                    TractableStructureDetector.Structure.CARDINALITY, n)
+                    < Substitution.getDenseCost(n);
+            assertEquals(n >= N_CARDINALITY, cheaper);
+        }
+    }
+
+    @Test
+    public void testNotRewirable() {
+        StandardFactor factor = new StandardFactor();
+        factor.setIdentity("factor");
+        factor.setMaxOperator(new Maximize());
+        factor.addNeighbor("x");
+        factor.setPotential(new double[]{0, 0});
+
+        TractableStructureDetector detector = new TractableStructureDetector();
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        factors.add(factor);
+        assertSame(factor, detector.apply(factors).get(0));
+        assertTrue(detector.getSubstitutions().isEmpty());
+    }
+
+    private List<Factor<?>> buildGraph(MaxOperator op, TickCommunicationAdapter adapter) {
+        final Random generator = new Random(0);
+        final double worst = op.getWorstValue();
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        for (int i=0; i<N_VARIABLES; i++) {
+            Factor variable = new VariableFactor();
+            fixture.add(variable, factors);
+            IndependentFactor unary = new IndependentFactor();
+            fixture.add(unary, factors);
+            link(unary, variable);
+            unary.setPotential(variable, generator.nextDouble() - 0.5);
+        }
+        final List<Factor<?>> variables = new ArrayList<Factor<?>>();
+        for (int i=0; i<N_VARIABLES; i++) {
+            variables.add(factors.get(2 * i));
+        }
+        factors = reorder(factors);
+
+        final double a = generator.nextDouble(), b = generator.nextDouble(),
+                c = generator.nextDouble(), d = generator.nextDouble();
+        addStandard(factors, variables, fixture, new int[]{0, 1, 2},
+                new double[]{worst, 0, 0, worst, 0, worst, worst, worst});
+        addStandard(factors, variables, fixture, new int[]{2, 3, 4},
+                new double[]{0, 0, 0, worst, 0, worst, worst, worst});
+        addStandard(factors, variables, fixture, new int[]{4, 5, 6},
+                new double[]{0, a, b, a + b, c, a + c, b + c, a + b + c});
+        addStandard(factors, variables, fixture, new int[]{5, 6, 7},
+                new double[]{c, d, d, 1, d, 1, 1, 2});
+        addStandard(factors, variables, fixture, new int[]{8, 9},
+                new double[]{0, a, b, a + b});
+        addStandard(factors, variables, fixture, new int[]{0, 7},
+                new double[]{a, b, c, d});
+        return factors;
+    }
+
+    /**
+     * Builds a graph with a cardinality table over all but one variable, which is not worth
+     * replacing, and another one over all of them.
+     */
+    private List<Factor<?>> buildCardinalityGraph(MaxOperator op,
+            TickCommunicationAdapter adapter)
+    {
+        final Random generator = new Random(0);
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        for (int i=0; i<N_CARDINALITY; i++) {
+            fixture.add(new VariableFactor(), factors);
+        }
+        for (int n=N_CARDINALITY-1; n<=N_CARDINALITY; n++) {
+            StandardFactor factor = fixture.add(new StandardFactor(), factors);
+            for (int i=0; i<n; i++) {
+                link(factor, factors.get(i));
+            }
+            factor.setPotential(getCardinalityTable(generator, n));
+        }
+        return factors;
+    }
+
+    private double[] getCardinalityTable(Random generator, int nVariables) {
+        double[] costs = new double[nVariables + 1];
+        for (int k=0; k<=nVariables; k++) {
+            costs[k] = generator.nextDouble() - 0.5;
+        }
+        double[] table = new double[1 << nVariables];
+        for (int idx=0; idx<table.length; idx++) {
+            table[idx] = costs[Integer.bitCount(idx)];
+        }
+        return table;
+    }
+
+    /**
+     * Moves the variables to the beginning of the list of factors.
+     */
+    private List<Factor<?>> reorder(List<Factor<?>> factors) {
+        List<Factor<?>> result = new ArrayList<Factor<?>>();
+        for (int i=0; i<factors.size(); i+=2) {
+            result.add(factors.get(i));
+        }
+        for (int i=1; i<factors.size(); i+=2) {
+            result.add(factors.get(i));
+        }
+        return result;
+    }
+
+    private void addStandard(List<Factor<?>> factors, List<Factor<?>> variables,
+            GraphFixture fixture, int[] scope, double[] potential)
+    {
+        StandardFactor factor = fixture.add(new StandardFactor(), new ArrayList<Factor<?>>());
+        for (int v : scope) {
+            link(factor, variables.get(v));
+        }
+        factor.setPotential(potential);
+        factors.add(N_VARIABLES + countStandards(factors), factor);
+    }
+
+    private int countStandards(List<Factor<?>> factors) {
+        int count = 0;
+        for (Factor<?> factor : factors) {
+            if (factor instanceof StandardFactor) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
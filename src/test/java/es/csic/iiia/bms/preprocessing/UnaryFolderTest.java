@@ -0,0 +1,187 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.preprocessing;
+
+import es.csic.iiia.bms.Factor;
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import es.csic.iiia.bms.TickCommunicationAdapter;
+import es.csic.iiia.bms.compiled.CompiledGraph;
+import es.csic.iiia.bms.compiled.FactorType;
+import es.csic.iiia.bms.factors.Constants;
+import es.csic.iiia.bms.factors.IndependentFactor;
+import es.csic.iiia.bms.factors.SelectorFactor;
+import es.csic.iiia.bms.factors.SingleWeightFactor;
+import es.csic.iiia.bms.factors.StandardFactor;
+import es.csic.iiia.bms.factors.VariableFactor;
+import es.csic.iiia.bms.factors.WeightingFactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static es.csic.iiia.bms.preprocessing.GraphFixture.getBelief;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.link;
+import static es.csic.iiia.bms.preprocessing.GraphFixture.run;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the unary folder.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class UnaryFolderTest {
+
+    private static final int N_VARIABLES = 6;
+    private static final int N_ITERATIONS = 10;
+
+    @Test
+    public void testSameBeliefs() {
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            // Unary potentials have been delivered once, so folding them changes nothing
+            compare(op, 1);
+            compare(op, 3);
+        }
+    }
+
+    private void compare(MaxOperator op, int foldAt) {
+        TickCommunicationAdapter originalAdapter = new TickCommunicationAdapter();
+        List<Factor<?>> original = buildGraph(op, originalAdapter);
+        TickCommunicationAdapter foldedAdapter = new TickCommunicationAdapter();
+        List<Factor<?>> folded = buildGraph(op, foldedAdapter);
+
+        UnaryFolder folder = new UnaryFolder();
+        for (int i=0; i<N_ITERATIONS; i++) {
+            if (i == foldAt) {
+                folded = folder.apply(folded);
+            }
+            run(original, originalAdapter);
+            run(folded, foldedAdapter);
+        }
+
+        // Every single-variable unary, plus half of the two-variable one, whose other variable
+        // would otherwise be left disconnected
+        assertEquals(N_VARIABLES + 1, folder.getFoldedPotentials());
+        assertEquals(N_VARIABLES, folder.getRemovedFactors());
+        assertEquals(3, folder.getFlattenedProxies());
+        assertEquals(2 * (N_VARIABLES + 1), folder.getEliminatedMessages());
+        assertEquals(original.size() - N_VARIABLES, folded.size());
+        for (Factor<?> factor : folded) {
+            assertFalse(factor instanceof WeightingFactor);
+        }
+
+        for (int i=0; i<N_VARIABLES; i++) {
+            assertEquals(getBelief(original.get(i)), getBelief(folded.get(i)), Constants.DELTA);
+        }
+    }
+
+    @Test
+    public void testCompiled() {
+        List<Factor<?>> folded = new UnaryFolder().apply(
+                buildGraph(new Maximize(), new TickCommunicationAdapter()));
+
+        CompiledGraph graph = CompiledGraph.compile(folded);
+        int biased = 0;
+        for (int factor=0; factor<graph.getNumberOfFactors(); factor++) {
+            if (graph.getType(factor) == FactorType.BIASED_VARIABLE) {
+                biased++;
+            }
+        }
+        assertEquals(N_VARIABLES, biased);
+    }
+
+    private List<Factor<?>> buildGraph(MaxOperator op, TickCommunicationAdapter adapter) {
+        final Random generator = new Random(0);
+        final GraphFixture fixture = new GraphFixture(op, adapter);
+        List<Factor<?>> factors = new ArrayList<Factor<?>>();
+        List<Factor> variables = new ArrayList<Factor>();
+        for (int i=0; i<N_VARIABLES; i++) {
+            Factor variable = new VariableFactor();
+            fixture.add(variable, factors);
+            variables.add(variable);
+        }
+        for (int i=0; i<N_VARIABLES; i++) {
+            IndependentFactor unary = new IndependentFactor();
+            fixture.add(unary, factors);
+            link(unary, variables.get(i));
+            unary.setPotential(variables.get(i), generator.nextDouble() - 0.5);
+        }
+
+        // A unary over two variables, the last of which has no other neighbors once its own
+        // unary is folded
+        IndependentFactor pair = new IndependentFactor();
+        fixture.add(pair, factors);
+        for (int i : new int[]{0, N_VARIABLES - 1}) {
+            link(pair, variables.get(i));
+            pair.setPotential(variables.get(i), generator.nextDouble() - 0.5);
+        }
+
+        WeightingFactor nested = new WeightingFactor(new WeightingFactor(new SelectorFactor()));
+        fixture.add(nested, factors);
+        for (int i : new int[]{0, 1, 2}) {
+            link(nested, variables.get(i));
+            nested.setPotential(variables.get(i), generator.nextDouble() - 0.5);
+            ((WeightingFactor) nested.getInnerFactor()).setPotential(variables.get(i),
+                    generator.nextDouble() - 0.5);
+        }
+
+        StandardFactor standard = new StandardFactor();
+        WeightingFactor weighting = new WeightingFactor(standard);
+        fixture.add(weighting, factors);
+        for (int i : new int[]{2, 3, 4}) {
+            link(weighting, variables.get(i));
+            weighting.setPotential(variables.get(i), generator.nextDouble() - 0.5);
+        }
+        double[] potential = new double[8];
+        for (int i=0; i<potential.length; i++) {
+            potential[i] = generator.nextDouble() - 0.5;
+        }
+        standard.setPotential(potential);
+
+        SingleWeightFactor single = new SingleWeightFactor(new SelectorFactor());
+        fixture.add(single, factors);
+        for (int i : new int[]{1, 3, 4}) {
+            link(single, variables.get(i));
+        }
+        single.setPotential(generator.nextDouble() - 0.5);
+        return factors;
+    }
+
+}
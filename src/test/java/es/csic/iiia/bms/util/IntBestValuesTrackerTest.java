@@ -0,0 +1,95 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright 2014 Marc Pujol <mpujol@iiia.csic.es>.
+ *
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   Redistributions of source code must retain the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the
+ *   following disclaimer in the documentation and/or other
+ *   materials provided with the distribution.
+ *
+ *   Neither the name of IIIA-CSIC, Artificial Intelligence Research Institute
+ *   nor the names of its contributors may be used to
+ *   endorse or promote products derived from this
+ *   software without specific prior written permission of
+ *   IIIA-CSIC, Artificial Intelligence Research Institute
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package es.csic.iiia.bms.util;
+
+import es.csic.iiia.bms.MaxOperator;
+import es.csic.iiia.bms.Maximize;
+import es.csic.iiia.bms.Minimize;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the int-specialized tracker of best values.
+ *
+ * @author Marc Pujol <mpujol@iiia.csic.es>
+ */
+public class IntBestValuesTrackerTest {
+
+    @Test
+    public void testSameAsObjectTracker() {
+        final Random generator = new Random(0);
+        for (MaxOperator op : new MaxOperator[]{new Maximize(), new Minimize()}) {
+            final IntBestValuesTracker tracker = new IntBestValuesTracker(op);
+            final BestValuesTracker<Integer> reference = new BestValuesTracker<Integer>(op);
+            final Integer[] elements = new Integer[8];
+            for (int i=0; i<elements.length; i++) {
+                elements[i] = new Integer(i);
+            }
+
+            for (int run=0; run<100; run++) {
+                tracker.reset();
+                reference.reset();
+                final int n = generator.nextInt(elements.length) + 1;
+                for (int i=0; i<n; i++) {
+                    // Few distinct values, so that there are plenty of ties
+                    final double value = generator.nextInt(3);
+                    tracker.track(i, value);
+                    reference.track(elements[i], value);
+                }
+
+                assertEquals(reference.getBestValue(), tracker.getBestValue(), 0);
+                assertSame(elements[tracker.getBest()], reference.getBest());
+                for (int i=0; i<n; i++) {
+                    assertEquals(reference.getComplementary(elements[i]),
+                            tracker.getComplementary(i), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        final IntBestValuesTracker tracker = new IntBestValuesTracker(new Maximize());
+        assertEquals(-1, tracker.getBest());
+        assertEquals(Double.NEGATIVE_INFINITY, tracker.getBestValue(), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, tracker.getComplementary(0), 0);
+    }
+
+}